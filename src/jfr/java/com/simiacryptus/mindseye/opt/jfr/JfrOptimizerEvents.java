@@ -0,0 +1,161 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.mindseye.opt.jfr;
+
+import com.simiacryptus.mindseye.opt.OptimizerEvents;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.ArrayDeque;
+import java.util.function.Supplier;
+
+public class JfrOptimizerEvents extends OptimizerEvents {
+  private final EventType iteration = EventType.getEventType(IterationEvent.class);
+  private final EventType orientation = EventType.getEventType(OrientationEvent.class);
+  private final EventType lineSearchStep = EventType.getEventType(LineSearchStepEvent.class);
+  private final EventType projection = EventType.getEventType(ProjectionEvent.class);
+  private final EventType subspaceSolve = EventType.getEventType(SubspaceSolveEvent.class);
+  private final InFlight<IterationEvent> iterations = new InFlight<>(IterationEvent::new);
+  private final InFlight<OrientationEvent> orientations = new InFlight<>(OrientationEvent::new);
+  private final InFlight<LineSearchStepEvent> lineSearchSteps = new InFlight<>(LineSearchStepEvent::new);
+  private final InFlight<SubspaceSolveEvent> subspaceSolves = new InFlight<>(SubspaceSolveEvent::new);
+
+  @Override
+  public boolean isIterationEnabled() {
+    return iteration.isEnabled() || orientation.isEnabled();
+  }
+
+  @Override
+  public boolean isLineSearchEnabled() {
+    return lineSearchStep.isEnabled();
+  }
+
+  @Override
+  public boolean isProjectionEnabled() {
+    return projection.isEnabled();
+  }
+
+  @Override
+  public boolean isSubspaceEnabled() {
+    return subspaceSolve.isEnabled();
+  }
+
+  @Override
+  public void iterationBegin() {
+    iterations.begin();
+  }
+
+  @Override
+  public void iterationEnd(@Nonnull String trainer, long iteration, double initialLoss, double loss) {
+    IterationEvent event = iterations.end();
+    if (null == event) return;
+    event.trainer = trainer;
+    event.iteration = iteration;
+    event.initialLoss = initialLoss;
+    event.loss = loss;
+    event.commit();
+  }
+
+  @Override
+  public void orientationBegin() {
+    orientations.begin();
+  }
+
+  @Override
+  public void orientationEnd(long iteration, @Nonnull String strategy, @Nonnull String directionType) {
+    OrientationEvent event = orientations.end();
+    if (null == event) return;
+    event.iteration = iteration;
+    event.strategy = strategy;
+    event.directionType = directionType;
+    event.commit();
+  }
+
+  @Override
+  public void lineSearchStepBegin() {
+    lineSearchSteps.begin();
+  }
+
+  @Override
+  public void lineSearchStepEnd(@Nonnull String cursor, double alpha, double derivative, double loss) {
+    LineSearchStepEvent event = lineSearchSteps.end();
+    if (null == event) return;
+    event.cursor = cursor;
+    event.alpha = alpha;
+    event.derivative = derivative;
+    event.loss = loss;
+    event.commit();
+  }
+
+  @Override
+  public void projection(@Nonnull String region, @Nonnull String layer, int dimension, double clippedFraction) {
+    ProjectionEvent event = new ProjectionEvent();
+    if (!event.shouldCommit()) return;
+    event.region = region;
+    event.layer = layer;
+    event.dimension = dimension;
+    event.clippedFraction = clippedFraction;
+    event.commit();
+  }
+
+  @Override
+  public void subspaceBegin() {
+    subspaceSolves.begin();
+  }
+
+  @Override
+  public void subspaceEnd(int layers, double initialLoss) {
+    SubspaceSolveEvent event = subspaceSolves.end();
+    if (null == event) return;
+    event.layers = layers;
+    event.initialLoss = initialLoss;
+    event.commit();
+  }
+
+  /**
+   * Events begun but not yet committed on the current thread. A stack rather than a single slot, since an optimizer
+   * can run nested inside another one (RecursiveSubspace trains its rates with an inner trainer).
+   */
+  private static final class InFlight<T extends Event> {
+    @Nonnull
+    private final Supplier<T> factory;
+    private final ThreadLocal<ArrayDeque<T>> events = ThreadLocal.withInitial(ArrayDeque::new);
+
+    private InFlight(@Nonnull Supplier<T> factory) {
+      this.factory = factory;
+    }
+
+    void begin() {
+      T event = factory.get();
+      event.begin();
+      events.get().push(event);
+    }
+
+    @Nullable
+    T end() {
+      T event = events.get().poll();
+      if (null == event) return null;
+      event.end();
+      return event.shouldCommit() ? event : null;
+    }
+  }
+}
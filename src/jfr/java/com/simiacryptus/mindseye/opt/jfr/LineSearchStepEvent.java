@@ -0,0 +1,38 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.mindseye.opt.jfr;
+
+import jdk.jfr.*;
+
+@Name("com.simiacryptus.mindseye.LineSearchStep")
+@Label("Line Search Step")
+@Description("A line search cursor evaluated the objective at a step size")
+@Category({"MindsEye", "Optimizer"})
+@StackTrace(false)
+public class LineSearchStepEvent extends Event {
+  @Label("Cursor")
+  public String cursor;
+  @Label("Alpha")
+  public double alpha;
+  @Label("Derivative")
+  public double derivative;
+  @Label("Loss")
+  public double loss;
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.mindseye.opt.region;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import javax.annotation.Nonnull;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Regions configured by an indexMap. The shape parameter is "layout:groups", where blocked layouts assign
+ * contiguous index ranges to each group and strided layouts interleave the groups.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g"})
+@State(Scope.Thread)
+public class IndexedTrustRegionBenchmark {
+
+  @Param({"1000", "100000", "10000000"})
+  public int size;
+  @Param({"blocked:4", "blocked:16", "strided:16", "blocked:256"})
+  public String shape;
+  @Param({
+      "FixedMagnitudeConstraint",
+      "OrthonormalConstraint",
+      "OrthonormalConstraint:NewtonSchulz",
+      "CompoundRegion:Orthonormal+FixedMagnitude"
+  })
+  public String region;
+
+  private TrustRegion trustRegion;
+  private double[][] history;
+  private double[] point;
+
+  public static void main(String[] args) throws RunnerException {
+    new Runner(new OptionsBuilder()
+        .include(IndexedTrustRegionBenchmark.class.getSimpleName())
+        .addProfiler(GCProfiler.class)
+        .build()).run();
+  }
+
+  @Nonnull
+  static int[][] indexMap(@Nonnull String shape, int size) {
+    String[] parts = shape.split(":");
+    int groups = Integer.parseInt(parts[1]);
+    int length = size / groups;
+    int[][] indexMap = new int[groups][length];
+    for (int group = 0; group < groups; group++) {
+      for (int i = 0; i < length; i++) {
+        switch (parts[0]) {
+          case "blocked":
+            indexMap[group][i] = group * length + i;
+            break;
+          case "strided":
+            indexMap[group][i] = i * groups + group;
+            break;
+          default:
+            throw new IllegalArgumentException(shape);
+        }
+      }
+    }
+    return indexMap;
+  }
+
+  @Nonnull
+  static TrustRegion newRegion(@Nonnull String name, @Nonnull int[][] indexMap) {
+    switch (name) {
+      case "FixedMagnitudeConstraint":
+        return new FixedMagnitudeConstraint(indexMap);
+      case "OrthonormalConstraint":
+        return new OrthonormalConstraint(indexMap);
+      case "OrthonormalConstraint:NewtonSchulz":
+        return new OrthonormalConstraint(indexMap).setMode(OrthonormalConstraint.Mode.NEWTON_SCHULZ);
+      case "CompoundRegion:Orthonormal+FixedMagnitude":
+        return new CompoundRegion(new OrthonormalConstraint(indexMap), new FixedMagnitudeConstraint(indexMap));
+      default:
+        throw new IllegalArgumentException(name);
+    }
+  }
+
+  @Setup(Level.Trial)
+  public void setup() {
+    SplittableRandom random = new SplittableRandom(0x5EED);
+    int[][] indexMap = indexMap(shape, size);
+    int effectiveSize = indexMap.length * indexMap[0].length;
+    trustRegion = newRegion(region, indexMap);
+    history = new double[][]{TrustRegionBenchmark.randomArray(random, effectiveSize, 1.0)};
+    point = TrustRegionBenchmark.perturb(random, history[0], 1e-1);
+  }
+
+  @Benchmark
+  public double[] project() {
+    return trustRegion.project(history, point);
+  }
+
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.mindseye.opt.region;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Dense versus sparse projection of a step that only touches a fraction of the coordinates. The sparse case includes
+ * the scan for non-zero indices, as TrustRegionStrategy performs it.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g"})
+@State(Scope.Thread)
+public class SparseTrustRegionBenchmark {
+
+  @Param({"100000", "10000000"})
+  public int size;
+  @Param({"0.001", "0.01", "0.1"})
+  public double density;
+  @Param({"RangeConstraint", "SingleOrthant"})
+  public String region;
+
+  private SparseTrustRegion trustRegion;
+  private double[][] history;
+  private double[] delta;
+  private double[] point;
+  private int[] indices;
+  private double[] correction;
+
+  public static void main(String[] args) throws RunnerException {
+    new Runner(new OptionsBuilder()
+        .include(SparseTrustRegionBenchmark.class.getSimpleName())
+        .addProfiler(GCProfiler.class)
+        .build()).run();
+  }
+
+  @Setup(Level.Trial)
+  public void setup() {
+    SplittableRandom random = new SplittableRandom(0x5EED);
+    trustRegion = (SparseTrustRegion) TrustRegionBenchmark.newRegion(region);
+    history = new double[][]{TrustRegionBenchmark.randomArray(random, size, 0.5)};
+    delta = new double[size];
+    point = history[0].clone();
+    for (int i = 0; i < size; i++) {
+      if (random.nextDouble() < density) {
+        delta[i] = 0.1 * (random.nextDouble() - 0.5);
+        point[i] += delta[i];
+      }
+    }
+    indices = new int[size];
+    correction = new double[size];
+  }
+
+  @Benchmark
+  public double[] dense() {
+    return trustRegion.project(history, point);
+  }
+
+  @Benchmark
+  public int sparse() {
+    int count = 0;
+    for (int i = 0; i < delta.length; i++) {
+      if (0 != delta[i]) indices[count++] = i;
+    }
+    return trustRegion.projectSparse(history[0], delta, indices, count, correction);
+  }
+
+}
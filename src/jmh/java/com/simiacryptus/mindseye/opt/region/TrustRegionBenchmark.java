@@ -0,0 +1,134 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.mindseye.opt.region;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import javax.annotation.Nonnull;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xmx4g"})
+@State(Scope.Thread)
+public class TrustRegionBenchmark {
+
+  @Param({"1000", "100000", "10000000"})
+  public int size;
+  @Param({
+      "RangeConstraint",
+      "SingleOrthant",
+      "LinearSumConstraint",
+      "DistanceConstraint",
+      "AdaptiveTrustSphere",
+      "GrowthSphere",
+      "EllipsoidTrustRegion",
+      "MeanVarianceGradient",
+      "ProportionalityConstraint",
+      "CompoundRegion:Range+Orthant",
+      "CompoundRegion:Distance+MeanVariance+Range"
+  })
+  public String region;
+
+  private TrustRegion trustRegion;
+  private double[][] history;
+  private double[] point;
+
+  public static void main(String[] args) throws RunnerException {
+    new Runner(new OptionsBuilder()
+        .include(TrustRegionBenchmark.class.getSimpleName())
+        .addProfiler(GCProfiler.class)
+        .build()).run();
+  }
+
+  @Nonnull
+  static double[] randomArray(@Nonnull SplittableRandom random, int size, double scale) {
+    double[] data = new double[size];
+    for (int i = 0; i < size; i++) {
+      data[i] = scale * (random.nextDouble() - 0.5);
+    }
+    return data;
+  }
+
+  @Nonnull
+  static double[] perturb(@Nonnull SplittableRandom random, @Nonnull double[] base, double scale) {
+    double[] data = new double[base.length];
+    for (int i = 0; i < base.length; i++) {
+      data[i] = base[i] + scale * (random.nextDouble() - 0.5);
+    }
+    return data;
+  }
+
+  @Nonnull
+  static TrustRegion newRegion(@Nonnull String name) {
+    switch (name) {
+      case "RangeConstraint":
+        return new RangeConstraint(-0.25, 0.25);
+      case "SingleOrthant":
+        return new SingleOrthant();
+      case "LinearSumConstraint":
+        return new LinearSumConstraint();
+      case "DistanceConstraint":
+        return new DistanceConstraint().setMax(1e-2);
+      case "AdaptiveTrustSphere":
+        return new AdaptiveTrustSphere().setLookback(2);
+      case "GrowthSphere":
+        return new GrowthSphere();
+      case "EllipsoidTrustRegion":
+        return new EllipsoidTrustRegion();
+      case "MeanVarianceGradient":
+        return new MeanVarianceGradient();
+      case "ProportionalityConstraint":
+        return new ProportionalityConstraint();
+      case "CompoundRegion:Range+Orthant":
+        return new CompoundRegion(new RangeConstraint(-0.25, 0.25), new SingleOrthant());
+      case "CompoundRegion:Distance+MeanVariance+Range":
+        return new CompoundRegion(new DistanceConstraint().setMax(1e-2), new MeanVarianceGradient(),
+            new RangeConstraint(-0.25, 0.25));
+      default:
+        throw new IllegalArgumentException(name);
+    }
+  }
+
+  @Setup(Level.Trial)
+  public void setup() {
+    SplittableRandom random = new SplittableRandom(0x5EED);
+    trustRegion = newRegion(region);
+    history = new double[3][];
+    history[0] = randomArray(random, size, 1.0);
+    for (int i = 1; i < history.length; i++) {
+      history[i] = perturb(random, history[i - 1], 1e-2);
+    }
+    point = perturb(random, history[0], 1e-1);
+  }
+
+  @Benchmark
+  public double[] project() {
+    return trustRegion.project(history, point);
+  }
+
+}
@@ -0,0 +1,418 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.mindseye.opt;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Monitor that takes log formatting off the training thread. Call sites build an {@link Entry} from a message
+ * template and primitive arguments with {@link #log(TrainingMonitor, String)}; when the monitor is an
+ * AsyncTrainingMonitor the entry is copied into a preallocated lock-free ring buffer, and a daemon thread formats it
+ * and hands it to each {@link Sink}. The first sink forwards formatted text to the wrapped monitor's
+ * {@link TrainingMonitor#log(String)}. Any other monitor receives the formatted text immediately, as before.
+ *
+ * <p>Step callbacks are forwarded synchronously because monitors commonly read live counters in them. Log entries
+ * are dropped, and counted, rather than blocking training when the ring is full.</p>
+ *
+ * <p>The writer parks while the ring is empty and is unparked by the next publish, so an idle monitor costs no CPU.
+ * Call {@link #close()} when training ends to write what is left and stop the thread.</p>
+ */
+public class AsyncTrainingMonitor extends TrainingMonitor {
+  private static final Logger log = LoggerFactory.getLogger(AsyncTrainingMonitor.class);
+  private static final ThreadLocal<Entry> builders = ThreadLocal.withInitial(Entry::new);
+
+  @Nonnull
+  private final TrainingMonitor delegate;
+  @Nonnull
+  private final Slot[] ring;
+  private final int mask;
+  private final AtomicLong head = new AtomicLong();
+  private final AtomicLong dropped = new AtomicLong();
+  private final List<Sink> sinks = new CopyOnWriteArrayList<>();
+  @Nonnull
+  private final Thread writer;
+  private volatile long tail = 0;
+  private volatile boolean closed = false;
+  private volatile boolean waiting = false;
+
+  public AsyncTrainingMonitor(@Nonnull TrainingMonitor delegate) {
+    this(delegate, 1024);
+  }
+
+  public AsyncTrainingMonitor(@Nonnull TrainingMonitor delegate, int capacity) {
+    if (capacity < 2 || Integer.bitCount(capacity) != 1) throw new IllegalArgumentException("Capacity must be a power of two: " + capacity);
+    this.delegate = delegate;
+    this.ring = new Slot[capacity];
+    for (int i = 0; i < capacity; i++) {
+      ring[i] = new Slot();
+    }
+    this.mask = capacity - 1;
+    this.sinks.add(entry -> delegate.log(entry.format()));
+    this.writer = new Thread(this::drain, AsyncTrainingMonitor.class.getSimpleName());
+    this.writer.setDaemon(true);
+    this.writer.start();
+  }
+
+  /**
+   * Starts an entry for {@code monitor}. The returned builder is reused per thread, so finish it with
+   * {@link Entry#publish()} before starting another.
+   */
+  @Nonnull
+  public static Entry log(@Nonnull TrainingMonitor monitor, @Nonnull String template) {
+    Entry entry = builders.get();
+    if (entry.open) entry = new Entry();
+    entry.begin(monitor, template);
+    return entry;
+  }
+
+  @Nonnull
+  public TrainingMonitor getDelegate() {
+    return delegate;
+  }
+
+  public long getDropped() {
+    return dropped.get();
+  }
+
+  public void addSink(@Nonnull Sink sink) {
+    sinks.add(sink);
+  }
+
+  public void removeSink(@Nonnull Sink sink) {
+    sinks.remove(sink);
+  }
+
+  @Override
+  public void log(String msg) {
+    final Entry entry = log(this, null == msg ? "null" : msg);
+    entry.literal = true;
+    entry.publish();
+  }
+
+  @Override
+  public void onStepComplete(Step currentPoint) {
+    delegate.onStepComplete(currentPoint);
+  }
+
+  @Override
+  public boolean onStepFail(Step currentPoint) {
+    return delegate.onStepFail(currentPoint);
+  }
+
+  @Override
+  public void clear() {
+    flush();
+    delegate.clear();
+  }
+
+  /**
+   * Blocks until every entry published before this call has been written.
+   */
+  public void flush() {
+    final long target = head.get();
+    while (tail < target && writer.isAlive()) {
+      LockSupport.parkNanos(TimeUnit.MICROSECONDS.toNanos(100));
+    }
+  }
+
+  /**
+   * Writes the remaining entries and stops the writer thread.
+   */
+  public void close() {
+    flush();
+    closed = true;
+    LockSupport.unpark(writer);
+    try {
+      writer.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private void enqueue(@Nonnull Entry entry) {
+    if (closed) {
+      delegate.log(entry.format());
+      return;
+    }
+    long sequence;
+    do {
+      sequence = head.get();
+      if (sequence - tail >= ring.length) {
+        dropped.incrementAndGet();
+        return;
+      }
+    } while (!head.compareAndSet(sequence, sequence + 1));
+    final Slot slot = ring[(int) (sequence & mask)];
+    slot.copyFrom(entry);
+    slot.sequence = sequence;
+    // Pairs with the writer setting waiting before its last look at the slot, so one of the two always sees the other
+    if (waiting) LockSupport.unpark(writer);
+  }
+
+  private void drain() {
+    long reportedDrops = 0;
+    int idle = 0;
+    while (true) {
+      final long position = tail;
+      final Slot slot = ring[(int) (position & mask)];
+      if (slot.sequence != position) {
+        reportedDrops = reportDrops(reportedDrops);
+        if (closed && head.get() == position) return;
+        if (++idle < 100) {
+          Thread.yield();
+          continue;
+        }
+        waiting = true;
+        if (slot.sequence != position && !closed) LockSupport.park(this);
+        waiting = false;
+        continue;
+      }
+      idle = 0;
+      for (Sink sink : sinks) {
+        try {
+          sink.accept(slot);
+        } catch (Throwable e) {
+          log.warn("Monitor sink failed", e);
+        }
+      }
+      slot.release();
+      tail = position + 1;
+      reportedDrops = reportDrops(reportedDrops);
+    }
+  }
+
+  private long reportDrops(long reportedDrops) {
+    final long drops = dropped.get();
+    if (drops == reportedDrops) return reportedDrops;
+    delegate.log(drops - reportedDrops + " monitor entries dropped");
+    return drops;
+  }
+
+  /**
+   * Receives entries on the writer thread. Entries are reused once the call returns.
+   */
+  public interface Sink {
+    void accept(@Nonnull Entry entry);
+  }
+
+  public enum Kind {
+    LONG, DOUBLE, OBJECT, ARRAY
+  }
+
+  /**
+   * A message template and its arguments. Each {@code %s} in the template is replaced by the next argument; object
+   * arguments must be immutable, and at most one array argument is kept per entry.
+   */
+  public static class Entry {
+    public static final int MAX_ARGUMENTS = 8;
+    private static final Kind[] kinds = Kind.values();
+    final byte[] argumentKinds = new byte[MAX_ARGUMENTS];
+    final long[] longs = new long[MAX_ARGUMENTS];
+    final double[] doubles = new double[MAX_ARGUMENTS];
+    final Object[] objects = new Object[MAX_ARGUMENTS];
+    @Nonnull
+    double[] array = new double[16];
+    @Nullable
+    String template;
+    int count;
+    long nanoTime;
+    boolean literal;
+    @Nullable
+    private TrainingMonitor monitor;
+    private boolean open;
+
+    @Nullable
+    public String getTemplate() {
+      return template;
+    }
+
+    public long getNanoTime() {
+      return nanoTime;
+    }
+
+    public int getArgumentCount() {
+      return count;
+    }
+
+    @Nonnull
+    public Kind getKind(int index) {
+      return kinds[argumentKinds[index]];
+    }
+
+    public long getLong(int index) {
+      return longs[index];
+    }
+
+    public double getDouble(int index) {
+      return doubles[index];
+    }
+
+    @Nullable
+    public Object getObject(int index) {
+      return objects[index];
+    }
+
+    @Nonnull
+    public double[] getArray(int index) {
+      final double[] copy = new double[(int) longs[index]];
+      System.arraycopy(array, 0, copy, 0, copy.length);
+      return copy;
+    }
+
+    @Nonnull
+    public Entry arg(long value) {
+      argumentKinds[next()] = (byte) Kind.LONG.ordinal();
+      longs[count++] = value;
+      return this;
+    }
+
+    @Nonnull
+    public Entry arg(double value) {
+      argumentKinds[next()] = (byte) Kind.DOUBLE.ordinal();
+      doubles[count++] = value;
+      return this;
+    }
+
+    @Nonnull
+    public Entry arg(@Nullable Object value) {
+      argumentKinds[next()] = (byte) Kind.OBJECT.ordinal();
+      objects[count++] = value;
+      return this;
+    }
+
+    @Nonnull
+    public Entry arg(@Nullable double[] values) {
+      if (null == values) return arg((Object) null);
+      argumentKinds[next()] = (byte) Kind.ARRAY.ordinal();
+      if (array.length < values.length) array = new double[Math.max(values.length, array.length * 2)];
+      System.arraycopy(values, 0, array, 0, values.length);
+      longs[count++] = values.length;
+      return this;
+    }
+
+    public void publish() {
+      final TrainingMonitor monitor = this.monitor;
+      open = false;
+      this.monitor = null;
+      assert monitor != null;
+      if (monitor instanceof AsyncTrainingMonitor) {
+        ((AsyncTrainingMonitor) monitor).enqueue(this);
+      } else {
+        monitor.log(format());
+      }
+      release();
+    }
+
+    @Nonnull
+    public String format() {
+      assert template != null;
+      if (literal) return template;
+      final StringBuilder builder = new StringBuilder(template.length() + 16 * count);
+      int argument = 0;
+      int from = 0;
+      int index;
+      while (argument < count && 0 <= (index = template.indexOf("%s", from))) {
+        builder.append(template, from, index);
+        appendArgument(builder, argument++);
+        from = index + 2;
+      }
+      builder.append(template, from, template.length());
+      return builder.toString();
+    }
+
+    @Override
+    public String toString() {
+      return null == template ? "" : format();
+    }
+
+    void begin(@Nonnull TrainingMonitor monitor, @Nonnull String template) {
+      this.monitor = monitor;
+      this.template = template;
+      this.count = 0;
+      this.literal = false;
+      this.nanoTime = System.nanoTime();
+      this.open = true;
+    }
+
+    void copyFrom(@Nonnull Entry entry) {
+      template = entry.template;
+      count = entry.count;
+      literal = entry.literal;
+      nanoTime = entry.nanoTime;
+      System.arraycopy(entry.argumentKinds, 0, argumentKinds, 0, count);
+      System.arraycopy(entry.longs, 0, longs, 0, count);
+      System.arraycopy(entry.doubles, 0, doubles, 0, count);
+      System.arraycopy(entry.objects, 0, objects, 0, count);
+      for (int i = 0; i < count; i++) {
+        if (argumentKinds[i] == Kind.ARRAY.ordinal()) {
+          final int length = (int) longs[i];
+          if (array.length < length) array = new double[Math.max(length, array.length * 2)];
+          System.arraycopy(entry.array, 0, array, 0, length);
+        }
+      }
+    }
+
+    void release() {
+      for (int i = 0; i < count; i++) {
+        objects[i] = null;
+      }
+      template = null;
+    }
+
+    private int next() {
+      if (count >= MAX_ARGUMENTS) throw new IllegalStateException("Too many arguments for " + template);
+      return count;
+    }
+
+    private void appendArgument(@Nonnull StringBuilder builder, int index) {
+      switch (getKind(index)) {
+        case LONG:
+          builder.append(longs[index]);
+          break;
+        case DOUBLE:
+          builder.append(doubles[index]);
+          break;
+        case ARRAY:
+          builder.append('[');
+          for (int i = 0; i < longs[index]; i++) {
+            if (i > 0) builder.append(", ");
+            builder.append(array[i]);
+          }
+          builder.append(']');
+          break;
+        default:
+          builder.append(objects[index]);
+      }
+    }
+  }
+
+  private static final class Slot extends Entry {
+    volatile long sequence = -1;
+  }
+}
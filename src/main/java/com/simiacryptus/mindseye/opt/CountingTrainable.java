@@ -0,0 +1,207 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.mindseye.opt;
+
+import com.simiacryptus.mindseye.eval.Trainable;
+import com.simiacryptus.mindseye.eval.TrainableBase;
+import com.simiacryptus.mindseye.lang.Layer;
+import com.simiacryptus.mindseye.lang.PointSample;
+import com.simiacryptus.ref.wrappers.RefString;
+import com.simiacryptus.ref.wrappers.RefStringBuilder;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counts measure() and reseed() calls on the wrapped trainable, with per-call latency and batch size. Calls are
+ * attributed to the source set on the calling thread with attribute(), which the trainers and strategies in this
+ * package set to the orientation strategy doing the work (plus "/probe" or "/subspace" for diagnostic and inner
+ * loops, and "sample" for the trainer's own per-iteration measurement).
+ */
+public class CountingTrainable extends TrainableBase {
+  public static final String UNATTRIBUTED = "unattributed";
+  public static final String SAMPLE = "sample";
+  private static final ThreadLocal<String> SOURCE = new ThreadLocal<>();
+
+  @Nullable
+  private final Trainable inner;
+  private final Map<String, Counter> counters = new ConcurrentHashMap<>();
+
+  public CountingTrainable(@Nullable Trainable inner) {
+    this.inner = inner;
+  }
+
+  @Nullable
+  public Trainable getInner() {
+    return inner == null ? null : inner.addRef();
+  }
+
+  @Nullable
+  @Override
+  public Layer getLayer() {
+    assert inner != null;
+    return inner.getLayer();
+  }
+
+  @Nonnull
+  public static String getSource() {
+    final String source = SOURCE.get();
+    return null == source ? UNATTRIBUTED : source;
+  }
+
+  /**
+   * Sets the attribution for calls made by the current thread and returns the previous one, to be restored by the
+   * caller. Passing null clears it.
+   */
+  @Nullable
+  public static String attribute(@Nullable String source) {
+    final String previous = SOURCE.get();
+    if (null == source) SOURCE.remove();
+    else SOURCE.set(source);
+    return previous;
+  }
+
+  @Override
+  public PointSample measure(final TrainingMonitor monitor) {
+    assert inner != null;
+    final Counter counter = counter(getSource());
+    final long start = System.nanoTime();
+    final PointSample sample = inner.measure(monitor);
+    counter.latency.record(System.nanoTime() - start);
+    counter.measures.incrementAndGet();
+    counter.samples.addAndGet(sample.count);
+    return sample;
+  }
+
+  @Override
+  public boolean reseed(final long seed) {
+    assert inner != null;
+    counter(getSource()).reseeds.incrementAndGet();
+    return inner.reseed(seed);
+  }
+
+  public long getMeasureCount() {
+    long total = 0;
+    for (Counter counter : counters.values()) {
+      total += counter.measures.get();
+    }
+    return total;
+  }
+
+  public void reset() {
+    counters.clear();
+  }
+
+  @Nonnull
+  public Snapshot snapshot() {
+    final TreeMap<String, SourceStats> sources = new TreeMap<>();
+    counters.forEach((source, counter) -> sources.put(source, new SourceStats(counter.measures.get(),
+        counter.reseeds.get(), counter.samples.get(), counter.latency.snapshot())));
+    return new Snapshot(sources);
+  }
+
+  public void _free() {
+    super._free();
+    if (null != inner)
+      inner.freeRef();
+  }
+
+  @Nonnull
+  public @Override
+  @SuppressWarnings("unused")
+  CountingTrainable addRef() {
+    return (CountingTrainable) super.addRef();
+  }
+
+  @Nonnull
+  private Counter counter(@Nonnull String source) {
+    return counters.computeIfAbsent(source, k -> new Counter());
+  }
+
+  private static final class Counter {
+    final AtomicLong measures = new AtomicLong();
+    final AtomicLong reseeds = new AtomicLong();
+    final AtomicLong samples = new AtomicLong();
+    final LatencyHistogram latency = new LatencyHistogram();
+  }
+
+  public static class SourceStats {
+    public final long measures;
+    public final long reseeds;
+    public final long samples;
+    public final LatencyHistogram.Snapshot latency;
+
+    public SourceStats(long measures, long reseeds, long samples, LatencyHistogram.Snapshot latency) {
+      this.measures = measures;
+      this.reseeds = reseeds;
+      this.samples = samples;
+      this.latency = latency;
+    }
+
+    public double getMeanBatchSize() {
+      return 0 == measures ? 0 : (double) samples / measures;
+    }
+
+    @Nonnull
+    @Override
+    public String toString() {
+      return RefString.format("measures=%d, reseeds=%d, batch=%.1f, latency: %s", measures, reseeds,
+          getMeanBatchSize(), latency);
+    }
+  }
+
+  public static class Snapshot {
+    @Nonnull
+    private final Map<String, SourceStats> sources;
+
+    public Snapshot(@Nonnull Map<String, SourceStats> sources) {
+      this.sources = Collections.unmodifiableMap(sources);
+    }
+
+    @Nonnull
+    public Map<String, SourceStats> getSources() {
+      return sources;
+    }
+
+    public long getMeasures() {
+      long total = 0;
+      for (SourceStats stats : sources.values()) {
+        total += stats.measures;
+      }
+      return total;
+    }
+
+    @Nonnull
+    @Override
+    public String toString() {
+      @Nonnull final RefStringBuilder sb = new RefStringBuilder(
+          RefString.format("Trainable calls: %d measures", getMeasures()));
+      for (Map.Entry<String, SourceStats> entry : sources.entrySet()) {
+        sb.append("\n\t").append(entry.getKey()).append(": ").append(entry.getValue());
+      }
+      return sb.toString();
+    }
+  }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.mindseye.opt;
+
+import com.simiacryptus.ref.wrappers.RefString;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.*;
+
+/**
+ * Iteration-scoped scratch buffers, keyed by layer id and length. A trainer attaches its arena to the training thread
+ * for the duration of run() and calls release() at the end of every iteration, after which all buffers handed out
+ * during that iteration are reused. Borrowed buffers must not outlive the iteration, and are not cleared unless
+ * borrowed with borrowZeroed(). Scratch that is only needed for part of an iteration can be handed back early with
+ * giveBack(), so code that borrows once per call does not claim a new slot on every call. When no arena is attached,
+ * current() returns one that simply allocates.
+ * <p>
+ * RoundRobinTrainer and LayerRateDiagnosticTrainer attach an arena; the borrowers are TrustRegionStrategy's projection
+ * scratch and the sketch directions RecursiveSubspace builds in orient(). Other strategies, QQN included, only create
+ * temporaries inside mindseye-core DeltaSet operations, which allocate for themselves.
+ */
+public class DoubleArena {
+  private static final DoubleArena DISABLED = new DoubleArena(false);
+  private static final ThreadLocal<DoubleArena> CURRENT = new ThreadLocal<>();
+
+  private final boolean enabled;
+  private final Map<UUID, Slots> slots = new HashMap<>();
+  private long hits = 0;
+  private long misses = 0;
+  private long retainedBytes = 0;
+
+  public DoubleArena() {
+    this(true);
+  }
+
+  private DoubleArena(boolean enabled) {
+    this.enabled = enabled;
+  }
+
+  @Nonnull
+  public static DoubleArena current() {
+    final DoubleArena arena = CURRENT.get();
+    return null == arena ? DISABLED : arena;
+  }
+
+  /**
+   * An arena that always allocates, for code that would otherwise borrow but hands its buffers beyond the iteration.
+   */
+  @Nonnull
+  public static DoubleArena unpooled() {
+    return DISABLED;
+  }
+
+  @Nullable
+  public static DoubleArena attach(@Nullable DoubleArena arena) {
+    final DoubleArena previous = CURRENT.get();
+    if (null == arena) CURRENT.remove();
+    else CURRENT.set(arena);
+    return previous;
+  }
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  @Nonnull
+  public synchronized double[] borrow(@Nonnull UUID key, int length) {
+    if (!enabled) return new double[length];
+    final Slots slots = this.slots.computeIfAbsent(key, k -> new Slots());
+    if (slots.next < slots.buffers.size()) {
+      final double[] buffer = slots.buffers.get(slots.next);
+      if (buffer.length == length) {
+        slots.next++;
+        hits++;
+        return buffer;
+      }
+      retainedBytes -= 8L * buffer.length;
+      slots.buffers.set(slots.next, new double[length]);
+    } else {
+      slots.buffers.add(new double[length]);
+    }
+    misses++;
+    retainedBytes += 8L * length;
+    return slots.buffers.get(slots.next++);
+  }
+
+  @Nonnull
+  public double[] borrowZeroed(@Nonnull UUID key, int length) {
+    final double[] buffer = borrow(key, length);
+    if (enabled) Arrays.fill(buffer, 0.0);
+    return buffer;
+  }
+
+  /**
+   * Returns a buffer before the end of the iteration, so the next borrow of the same key and length reuses it. Buffers
+   * must be given back in the reverse order they were borrowed; anything else is ignored and the buffer is simply
+   * kept until release().
+   */
+  public synchronized void giveBack(@Nonnull UUID key, @Nonnull double[] buffer) {
+    if (!enabled) return;
+    final Slots slots = this.slots.get(key);
+    if (null != slots && 0 < slots.next && slots.buffers.get(slots.next - 1) == buffer) {
+      slots.next--;
+    }
+  }
+
+  public synchronized void release() {
+    for (Slots value : slots.values()) {
+      value.next = 0;
+    }
+  }
+
+  public synchronized void clear() {
+    slots.clear();
+    retainedBytes = 0;
+  }
+
+  public synchronized long getHits() {
+    return hits;
+  }
+
+  public synchronized long getMisses() {
+    return misses;
+  }
+
+  public synchronized double getHitRate() {
+    final long total = hits + misses;
+    return 0 == total ? 0 : (double) hits / total;
+  }
+
+  public synchronized long getRetainedBytes() {
+    return retainedBytes;
+  }
+
+  @Nonnull
+  @Override
+  public synchronized String toString() {
+    return RefString.format("Arena: hits=%d, misses=%d, hit rate=%.1f%%, retained=%d bytes", hits, misses,
+        100 * getHitRate(), retainedBytes);
+  }
+
+  private static final class Slots {
+    final List<double[]> buffers = new ArrayList<>();
+    int next = 0;
+  }
+}
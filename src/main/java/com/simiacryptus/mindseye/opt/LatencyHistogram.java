@@ -0,0 +1,132 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.mindseye.opt;
+
+import com.simiacryptus.ref.wrappers.RefString;
+
+import javax.annotation.Nonnull;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A fixed-size log-linear histogram of non-negative long values, in the style of HdrHistogram: each power of two is
+ * split into 16 linear sub-buckets, giving about 6% relative precision over the full long range. Recording is
+ * lock-free and allocation-free.
+ */
+public class LatencyHistogram {
+  private static final int SUB_BUCKET_BITS = 4;
+  private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+  private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+  private final AtomicLong count = new AtomicLong();
+  private final AtomicLong total = new AtomicLong();
+  private final AtomicLong max = new AtomicLong();
+
+  static int bucket(long value) {
+    if (value < SUB_BUCKETS) return (int) Math.max(value, 0);
+    final int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+    final int sub = (int) (value >>> shift) & (SUB_BUCKETS - 1);
+    return (shift + 1) * SUB_BUCKETS + sub;
+  }
+
+  static long lowerBound(int bucket) {
+    if (bucket < SUB_BUCKETS) return bucket;
+    final int shift = bucket / SUB_BUCKETS - 1;
+    final int sub = bucket % SUB_BUCKETS;
+    return (long) (SUB_BUCKETS + sub) << shift;
+  }
+
+  static long upperBound(int bucket) {
+    if (bucket < SUB_BUCKETS) return bucket;
+    return lowerBound(bucket) + (1L << (bucket / SUB_BUCKETS - 1)) - 1;
+  }
+
+  public void record(long value) {
+    counts.incrementAndGet(bucket(value));
+    count.incrementAndGet();
+    total.addAndGet(value);
+    long previous;
+    while (value > (previous = max.get())) {
+      if (max.compareAndSet(previous, value)) break;
+    }
+  }
+
+  public void reset() {
+    for (int i = 0; i < BUCKETS; i++) {
+      counts.set(i, 0);
+    }
+    count.set(0);
+    total.set(0);
+    max.set(0);
+  }
+
+  @Nonnull
+  public Snapshot snapshot() {
+    final long[] copy = new long[BUCKETS];
+    long n = 0;
+    for (int i = 0; i < BUCKETS; i++) {
+      copy[i] = counts.get(i);
+      n += copy[i];
+    }
+    return new Snapshot(n, total.get(), max.get(), percentile(copy, n, 0.5), percentile(copy, n, 0.9),
+        percentile(copy, n, 0.99));
+  }
+
+  private static long percentile(@Nonnull long[] counts, long n, double p) {
+    if (0 == n) return 0;
+    final long rank = (long) Math.ceil(p * n);
+    long cumulative = 0;
+    for (int i = 0; i < counts.length; i++) {
+      cumulative += counts[i];
+      if (cumulative >= rank) return (lowerBound(i) + upperBound(i)) / 2;
+    }
+    return upperBound(counts.length - 1);
+  }
+
+  public static class Snapshot {
+    public final long count;
+    public final long total;
+    public final long max;
+    public final long p50;
+    public final long p90;
+    public final long p99;
+
+    public Snapshot(long count, long total, long max, long p50, long p90, long p99) {
+      this.count = count;
+      this.total = total;
+      this.max = max;
+      this.p50 = p50;
+      this.p90 = p90;
+      this.p99 = p99;
+    }
+
+    public double getMean() {
+      return 0 == count ? 0 : (double) total / count;
+    }
+
+    @Nonnull
+    @Override
+    public String toString() {
+      return RefString.format("count=%d, total=%.3fms, mean=%.3fms, p50=%.3fms, p90=%.3fms, p99=%.3fms, max=%.3fms",
+          count, total / 1e6, getMean() / 1e6, p50 / 1e6, p90 / 1e6, p99 / 1e6, max / 1e6);
+    }
+  }
+}
@@ -44,12 +44,13 @@ import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
 
 public class LayerRateDiagnosticTrainer extends ReferenceCountingBase {
 
   private final Map<Layer, LayerStats> layerRates = new HashMap<>();
   @Nullable
-  private final Trainable subject;
+  private Trainable subject;
   private AtomicInteger currentIteration = new AtomicInteger(0);
   private int iterationsPerSample = 1;
   private int maxIterations = Integer.MAX_VALUE;
@@ -59,6 +60,14 @@ public class LayerRateDiagnosticTrainer extends ReferenceCountingBase {
   private boolean strict = false;
   private double terminateThreshold;
   private Duration timeout;
+  @Nullable
+  private Supplier<? extends Trainable> trainableFactory = null;
+  private int speculativeCandidates = 0;
+  @Nonnull
+  private PhaseTimings timings = new PhaseTimings();
+  @Nonnull
+  private DoubleArena arena = new DoubleArena();
+  private boolean logStatistics = false;
 
   public LayerRateDiagnosticTrainer(@Nullable final Trainable subject) {
     this.subject = subject;
@@ -126,6 +135,53 @@ public class LayerRateDiagnosticTrainer extends ReferenceCountingBase {
       orientation.freeRef();
   }
 
+  public int getSpeculativeCandidates() {
+    return speculativeCandidates;
+  }
+
+  public void setSpeculativeCandidates(int speculativeCandidates) {
+    this.speculativeCandidates = speculativeCandidates;
+  }
+
+  @Nullable
+  public Supplier<? extends Trainable> getTrainableFactory() {
+    return trainableFactory;
+  }
+
+  public void setTrainableFactory(@Nullable Supplier<? extends Trainable> trainableFactory) {
+    this.trainableFactory = trainableFactory;
+  }
+
+  @Nonnull
+  public DoubleArena getArena() {
+    return arena;
+  }
+
+  public void setArena(@Nonnull DoubleArena arena) {
+    this.arena = arena;
+  }
+
+  public boolean isLogStatistics() {
+    return logStatistics;
+  }
+
+  /**
+   * Logs the phase timings, arena usage and measure counts to the monitor when run() ends. Off by default; the same
+   * figures are available from getTimings(), getArena() and a CountingTrainable subject.
+   */
+  public void setLogStatistics(boolean logStatistics) {
+    this.logStatistics = logStatistics;
+  }
+
+  @Nonnull
+  public PhaseTimings getTimings() {
+    return timings;
+  }
+
+  public void setTimings(@Nonnull PhaseTimings timings) {
+    this.timings = timings;
+  }
+
   public double getTerminateThreshold() {
     return terminateThreshold;
   }
@@ -164,28 +220,39 @@ public class LayerRateDiagnosticTrainer extends ReferenceCountingBase {
 
   @Nullable
   public PointSample measure() {
-    PointSample currentPoint = null;
-    int retries = 0;
-    do {
-      assert subject != null;
-      if (!subject.reseed(RefSystem.nanoTime()) && retries > 0) {
-        currentPoint.freeRef();
-        throw new IterativeStopException();
-      }
-      if (10 < retries++) {
-        currentPoint.freeRef();
-        throw new IterativeStopException();
-      }
-      PointSample measure = subject.measure(monitor);
-      currentPoint.freeRef();
-      currentPoint = measure;
-    } while (!Double.isFinite(currentPoint.sum));
-    assert Double.isFinite(currentPoint.sum);
-    return currentPoint;
+    assert subject != null;
+    final SpeculativeReseed.Measurement measurement = SpeculativeReseed.measureFinite(subject.addRef(), monitor, timings,
+        trainableFactory, speculativeCandidates);
+    // A speculative candidate that won replaces the subject, so later steps use the batch the sample came from
+    subject.freeRef();
+    subject = measurement.subject;
+    return measurement.point;
   }
 
   @Nonnull
   public Map<Layer, LayerStats> run() {
+    final PhaseTimings previousTimings = PhaseTimings.attach(timings);
+    final DoubleArena previousArena = DoubleArena.attach(arena);
+    final String previousSource = CountingTrainable.attribute(CountingTrainable.SAMPLE);
+    try {
+      return train();
+    } finally {
+      if (logStatistics) {
+        monitor.log(timings.snapshot().toString());
+        monitor.log(arena.toString());
+        if (subject instanceof CountingTrainable)
+          monitor.log(((CountingTrainable) subject).snapshot().toString());
+      }
+      PhaseTimings.attach(previousTimings);
+      DoubleArena.attach(previousArena);
+      CountingTrainable.attribute(previousSource);
+      if (monitor instanceof AsyncTrainingMonitor)
+        ((AsyncTrainingMonitor) monitor).flush();
+    }
+  }
+
+  @Nonnull
+  private Map<Layer, LayerStats> train() {
     final long timeoutMs = RefSystem.currentTimeMillis() + timeout.toMillis();
     PointSample measure = measure();
     assert measure != null;
@@ -202,19 +269,38 @@ public class LayerRateDiagnosticTrainer extends ReferenceCountingBase {
         if (currentIteration.incrementAndGet() > maxIterations) {
           break;
         }
+        final String strategy = PhaseTimings.label(orientation);
+        final OptimizerEvents events = OptimizerEvents.get();
+        final boolean iterationEvents = events.isIterationEnabled();
+        final double initialLoss = null == measure ? Double.NaN : measure.sum;
+        if (iterationEvents)
+          events.iterationBegin();
+        final long iterationStart = timings.start();
+        final long iterationBytes = timings.allocated();
+        final String previousSource = CountingTrainable.attribute(strategy + "/probe");
 
         {
           OrientationStrategy<?> temp_31_0007 = getOrientation();
           assert temp_31_0007 != null;
+          if (iterationEvents)
+            events.orientationBegin();
+          final long orientStart = timings.start();
+          final long orientBytes = timings.allocated();
           @Nonnull final SimpleLineSearchCursor orient = (SimpleLineSearchCursor) temp_31_0007
               .orient(subject == null ? null : subject.addRef(), measure == null ? null : measure.addRef(), monitor);
+          timings.stop(PhaseTimings.Phase.ORIENT, orientStart);
+          timings.allocated(PhaseTimings.Phase.ORIENT, strategy, orientBytes);
+          if (iterationEvents)
+            events.orientationEnd(currentIteration.get(), strategy, String.valueOf(orient.getDirectionType()));
           temp_31_0007.freeRef();
           final double stepSize = 1e-12 * orient.origin.sum;
+          final long probeStart = timings.start();
           LineSearchPoint temp_31_0008 = orient.step(stepSize, monitor);
           assert temp_31_0008 != null;
           @Nonnull final DeltaSet<UUID> pointB = temp_31_0008.copyPointDelta();
           temp_31_0008.freeRef();
           LineSearchPoint temp_31_0009 = orient.step(0.0, monitor);
+          timings.stop(PhaseTimings.Phase.STEP, probeStart);
           assert temp_31_0009 != null;
           @Nonnull final DeltaSet<UUID> pointA = temp_31_0009.copyPointDelta();
           temp_31_0009.freeRef();
@@ -238,13 +324,15 @@ public class LayerRateDiagnosticTrainer extends ReferenceCountingBase {
             a.freeRef();
             final double idealSize = bmag / (amag * dot);
             steps.put(layer, idealSize);
-            monitor.log(RefString.format("Layers stats: %s (%s, %s, %s) => %s", layer, amag, bmag, dot, idealSize));
+            AsyncTrainingMonitor.log(monitor, "Layers stats: %s (%s, %s, %s) => %s")
+                .arg(layer).arg(amag).arg(bmag).arg(dot).arg(idealSize).publish();
           }
           d2.freeRef();
           d1.freeRef();
-          monitor.log(RefString.format("Estimated ideal rates for layers: %s (%s overall; probed at %s)", steps,
-              overallStepEstimate, stepSize));
+          AsyncTrainingMonitor.log(monitor, "Estimated ideal rates for %s layers (%s overall; probed at %s)")
+              .arg(steps.size()).arg(overallStepEstimate).arg(stepSize).publish();
         }
+        CountingTrainable.attribute(strategy);
 
         @Nullable
         SimpleLineSearchCursor bestOrient = null;
@@ -253,15 +341,23 @@ public class LayerRateDiagnosticTrainer extends ReferenceCountingBase {
         for (@Nonnull final UUID id : layers) {
           Layer layer = toLayer(id);
           OrientationStrategy<?> temp_31_0011 = getOrientation();
+          if (iterationEvents)
+            events.orientationBegin();
+          final long orientStart = timings.start();
+          final long orientBytes = timings.allocated();
           @Nonnull
           SimpleLineSearchCursor orient = (SimpleLineSearchCursor) temp_31_0011
               .orient(subject == null ? null : subject.addRef(), measure == null ? null : measure.addRef(), monitor);
+          timings.stop(PhaseTimings.Phase.ORIENT, orientStart);
+          timings.allocated(PhaseTimings.Phase.ORIENT, strategy, orientBytes);
+          if (iterationEvents)
+            events.orientationEnd(currentIteration.get(), strategy, String.valueOf(orient.getDirectionType()));
           temp_31_0011.freeRef();
           assert orient.direction != null;
           assert layer != null;
           @Nonnull final DeltaSet<UUID> direction = filterDirection(orient.direction, layer.addRef());
           if (direction.getMagnitude() == 0) {
-            monitor.log(RefString.format("Zero derivative for key %s; skipping", layer.addRef()));
+            AsyncTrainingMonitor.log(monitor, "Zero derivative for key %s; skipping").arg(layer.getName()).publish();
             continue;
           }
           assert orient.subject != null;
@@ -269,11 +365,17 @@ public class LayerRateDiagnosticTrainer extends ReferenceCountingBase {
           if (null != orient) orient.freeRef();
           orient = searchCursor;
           final PointSample previous = measure;
+          final long lineSearchStart = timings.start();
+          final long lineSearchBytes = timings.allocated();
           measure = getLineSearchStrategy().step(orient.addRef(), monitor);
+          timings.stop(PhaseTimings.Phase.LINE_SEARCH, lineSearchStart);
+          timings.allocated(PhaseTimings.Phase.LINE_SEARCH, strategy, lineSearchBytes);
           if (isStrict()) {
             assert measure != null;
-            monitor.log(RefString.format("Iteration %s reverting. Error: %s", currentIteration.get(), measure.sum));
-            monitor.log(RefString.format("Optimal rate for key %s: %s", layer.getName(), measure.getRate()));
+            AsyncTrainingMonitor.log(monitor, "Iteration %s reverting. Error: %s")
+                .arg(currentIteration.get()).arg(measure.sum).publish();
+            AsyncTrainingMonitor.log(monitor, "Optimal rate for key %s: %s")
+                .arg(layer.getName()).arg(measure.getRate()).publish();
             if (null == bestPoint || bestPoint.sum < measure.sum) {
               if (null != bestOrient) bestOrient.freeRef();
               bestOrient = orient.addRef();
@@ -289,18 +391,24 @@ public class LayerRateDiagnosticTrainer extends ReferenceCountingBase {
             assert measure != null;
             assert previous != null;
             if (previous.sum == measure.sum) {
-              monitor.log(RefString.format("Iteration %s failed. Error: %s", currentIteration.get(), measure.sum));
+              AsyncTrainingMonitor.log(monitor, "Iteration %s failed. Error: %s")
+                  .arg(currentIteration.get()).arg(measure.sum).publish();
               layer.freeRef();
             } else {
-              monitor.log(RefString.format("Iteration %s complete. Error: %s", currentIteration.get(), measure.sum));
-              monitor.log(RefString.format("Optimal rate for key %s: %s", layer.getName(), measure.getRate()));
+              AsyncTrainingMonitor.log(monitor, "Iteration %s complete. Error: %s")
+                  .arg(currentIteration.get()).arg(measure.sum).publish();
+              AsyncTrainingMonitor.log(monitor, "Optimal rate for key %s: %s")
+                  .arg(layer.getName()).arg(measure.getRate()).publish();
               getLayerRates().put(layer, new LayerStats(measure.getRate(), initialPhasePoint.sum - measure.sum));
             }
           }
           previous.freeRef();
           orient.freeRef();
         }
-        monitor.log(RefString.format("Ideal rates: %s", getLayerRates()));
+        for (Map.Entry<Layer, LayerStats> entry : getLayerRates().entrySet()) {
+          AsyncTrainingMonitor.log(monitor, "Ideal rate for %s: %s")
+              .arg(entry.getKey().getName()).arg(entry.getValue()).publish();
+        }
         if (null != bestPoint) {
           RefUtil.freeRef(bestOrient.step(bestPoint.rate, monitor));
         }
@@ -308,6 +416,13 @@ public class LayerRateDiagnosticTrainer extends ReferenceCountingBase {
           bestPoint.freeRef();
         if (null != bestOrient)
           bestOrient.freeRef();
+        timings.stop(PhaseTimings.Phase.ITERATION, iterationStart);
+        arena.release();
+        timings.allocated(PhaseTimings.Phase.ITERATION, strategy, iterationBytes);
+        CountingTrainable.attribute(previousSource);
+        if (iterationEvents)
+          events.iterationEnd(getClass().getSimpleName(), currentIteration.get(), initialLoss,
+              null == measure ? Double.NaN : measure.sum);
         monitor.onStepComplete(new Step(measure == null ? null : measure.addRef(), currentIteration.get()));
       }
       if (null != initialPhasePoint)
@@ -0,0 +1,104 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.mindseye.opt;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Structured optimizer events for profilers. On Java 11+ builds the implementation in
+ * com.simiacryptus.mindseye.opt.jfr emits Java Flight Recorder events; otherwise every call is a no-op. The is*Enabled
+ * methods let callers skip computing event fields when nothing is recording.
+ * <p>
+ * Iterations, orientations, line-search steps and subspace solves are duration events: the *Begin call starts the
+ * clock and the matching *End call fills in the fields and commits. In-flight events are kept per thread, so a Begin
+ * and its End must run on the same thread, and a caller must read is*Enabled once and use that answer for both.
+ */
+public class OptimizerEvents {
+  private static final Logger log = LoggerFactory.getLogger(OptimizerEvents.class);
+  private static final String JFR_IMPLEMENTATION = "com.simiacryptus.mindseye.opt.jfr.JfrOptimizerEvents";
+  private static final OptimizerEvents INSTANCE = load();
+
+  protected OptimizerEvents() {
+  }
+
+  @Nonnull
+  public static OptimizerEvents get() {
+    return INSTANCE;
+  }
+
+  @Nonnull
+  private static OptimizerEvents load() {
+    try {
+      Class.forName("jdk.jfr.Event");
+      return (OptimizerEvents) Class.forName(JFR_IMPLEMENTATION).getDeclaredConstructor().newInstance();
+    } catch (ClassNotFoundException | LinkageError e) {
+      return new OptimizerEvents();
+    } catch (ReflectiveOperationException | RuntimeException e) {
+      log.warn("Could not load " + JFR_IMPLEMENTATION, e);
+      return new OptimizerEvents();
+    }
+  }
+
+  public boolean isIterationEnabled() {
+    return false;
+  }
+
+  public boolean isLineSearchEnabled() {
+    return false;
+  }
+
+  public boolean isProjectionEnabled() {
+    return false;
+  }
+
+  public boolean isSubspaceEnabled() {
+    return false;
+  }
+
+  public void iterationBegin() {
+  }
+
+  public void iterationEnd(@Nonnull String trainer, long iteration, double initialLoss, double loss) {
+  }
+
+  public void orientationBegin() {
+  }
+
+  public void orientationEnd(long iteration, @Nonnull String strategy, @Nonnull String directionType) {
+  }
+
+  public void lineSearchStepBegin() {
+  }
+
+  public void lineSearchStepEnd(@Nonnull String cursor, double alpha, double derivative, double loss) {
+  }
+
+  public void projection(@Nonnull String region, @Nonnull String layer, int dimension, double clippedFraction) {
+  }
+
+  public void subspaceBegin() {
+  }
+
+  public void subspaceEnd(int layers, double initialLoss) {
+  }
+}
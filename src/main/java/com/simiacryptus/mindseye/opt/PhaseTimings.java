@@ -0,0 +1,261 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.mindseye.opt;
+
+import com.simiacryptus.ref.wrappers.RefString;
+import com.simiacryptus.ref.wrappers.RefStringBuilder;
+
+import com.sun.management.ThreadMXBean;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Per-phase latency histograms for an optimization run. A trainer attaches its instance to the training thread for
+ * the duration of run(), and the strategies and cursors it calls report into whatever instance is attached:
+ * <pre>
+ *   PhaseTimings timings = PhaseTimings.current();
+ *   long start = timings.start();
+ *   ...
+ *   timings.stop(PhaseTimings.Phase.PROJECT, start);
+ * </pre>
+ * When nothing is attached, current() returns a disabled instance whose start and stop are no-ops.
+ * <p>
+ * With allocation tracking enabled, the same call sites can also report the bytes allocated by the calling thread
+ * (via com.sun.management.ThreadMXBean), grouped by phase and by the strategy or region that did the work. Bytes
+ * allocated by worker threads, e.g. inside a parallel measure(), are not attributed.
+ */
+public class PhaseTimings {
+  private static final PhaseTimings DISABLED = new PhaseTimings(false);
+  private static final ThreadLocal<PhaseTimings> CURRENT = new ThreadLocal<>();
+  @Nullable
+  private static final ThreadMXBean THREAD_BEAN = threadBean();
+  private static int allocationTrackers = 0;
+  private static boolean allocationCountingWasEnabled = true;
+
+  private final boolean enabled;
+  @Nonnull
+  private final LatencyHistogram[] histograms;
+  @Nonnull
+  private final List<Map<String, LatencyHistogram>> allocations;
+  private volatile boolean trackAllocations = false;
+
+  public PhaseTimings() {
+    this(true);
+  }
+
+  private PhaseTimings(boolean enabled) {
+    this.enabled = enabled;
+    histograms = new LatencyHistogram[Phase.values().length];
+    for (int i = 0; i < histograms.length; i++) {
+      histograms[i] = new LatencyHistogram();
+    }
+    allocations = new ArrayList<>();
+    for (int i = 0; i < histograms.length; i++) {
+      allocations.add(new ConcurrentHashMap<>());
+    }
+  }
+
+  @Nonnull
+  public static PhaseTimings current() {
+    final PhaseTimings timings = CURRENT.get();
+    return null == timings ? DISABLED : timings;
+  }
+
+  /**
+   * Attaches the given instance to the calling thread and returns the previously attached one, which the caller
+   * should restore when done. Passing null detaches.
+   */
+  @Nullable
+  public static PhaseTimings attach(@Nullable PhaseTimings timings) {
+    final PhaseTimings previous = CURRENT.get();
+    if (null == timings) CURRENT.remove();
+    else CURRENT.set(timings);
+    return previous;
+  }
+
+  @Nonnull
+  public static String label(@Nullable Object strategy) {
+    if (null == strategy) return "null";
+    final Class<?> type = strategy.getClass();
+    final String simpleName = type.getSimpleName();
+    return simpleName.isEmpty() ? type.getName().substring(type.getName().lastIndexOf('.') + 1) : simpleName;
+  }
+
+  public static boolean isAllocationTrackingSupported() {
+    return null != THREAD_BEAN;
+  }
+
+  @Nullable
+  private static ThreadMXBean threadBean() {
+    try {
+      final Object bean = ManagementFactory.getThreadMXBean();
+      if (!(bean instanceof ThreadMXBean)) return null;
+      final ThreadMXBean threadBean = (ThreadMXBean) bean;
+      if (!threadBean.isThreadAllocatedMemorySupported()) return null;
+      return threadBean;
+    } catch (UnsupportedOperationException | SecurityException | LinkageError e) {
+      return null;
+    }
+  }
+
+  public boolean isEnabled() {
+    return enabled;
+  }
+
+  public boolean isTrackAllocations() {
+    return trackAllocations;
+  }
+
+  /**
+   * Enables or disables allocation tracking for this instance, switching the JVM-wide thread allocation counter on
+   * for as long as any instance tracks allocations. Callers that enable tracking should disable it when done so the
+   * previous JVM setting is restored.
+   */
+  public void setTrackAllocations(boolean trackAllocations) {
+    final boolean track = trackAllocations && enabled && isAllocationTrackingSupported();
+    synchronized (PhaseTimings.class) {
+      if (track == this.trackAllocations) return;
+      assert THREAD_BEAN != null;
+      if (track) {
+        if (0 == allocationTrackers++) {
+          allocationCountingWasEnabled = THREAD_BEAN.isThreadAllocatedMemoryEnabled();
+          if (!allocationCountingWasEnabled) THREAD_BEAN.setThreadAllocatedMemoryEnabled(true);
+        }
+      } else {
+        if (0 == --allocationTrackers && !allocationCountingWasEnabled) THREAD_BEAN.setThreadAllocatedMemoryEnabled(false);
+      }
+      this.trackAllocations = track;
+    }
+  }
+
+  public long start() {
+    return enabled ? System.nanoTime() : 0;
+  }
+
+  public void stop(@Nonnull Phase phase, long start) {
+    if (enabled) histograms[phase.ordinal()].record(System.nanoTime() - start);
+  }
+
+  public long allocated() {
+    if (!trackAllocations) return 0;
+    assert THREAD_BEAN != null;
+    return THREAD_BEAN.getThreadAllocatedBytes(Thread.currentThread().getId());
+  }
+
+  public void allocated(@Nonnull Phase phase, @Nonnull String strategy, long start) {
+    if (!trackAllocations) return;
+    final long bytes = allocated() - start;
+    allocations.get(phase.ordinal()).computeIfAbsent(strategy, k -> new LatencyHistogram()).record(bytes);
+  }
+
+  public void reset() {
+    for (LatencyHistogram histogram : histograms) {
+      histogram.reset();
+    }
+    for (Map<String, LatencyHistogram> map : allocations) {
+      map.clear();
+    }
+  }
+
+  @Nonnull
+  public Snapshot snapshot() {
+    final EnumMap<Phase, LatencyHistogram.Snapshot> map = new EnumMap<>(Phase.class);
+    for (Phase phase : Phase.values()) {
+      map.put(phase, histograms[phase.ordinal()].snapshot());
+    }
+    final EnumMap<Phase, Map<String, LatencyHistogram.Snapshot>> bytes = new EnumMap<>(Phase.class);
+    for (Phase phase : Phase.values()) {
+      final TreeMap<String, LatencyHistogram.Snapshot> byStrategy = new TreeMap<>();
+      allocations.get(phase.ordinal()).forEach((strategy, histogram) -> byStrategy.put(strategy, histogram.snapshot()));
+      if (!byStrategy.isEmpty()) bytes.put(phase, Collections.unmodifiableMap(byStrategy));
+    }
+    return new Snapshot(map, bytes);
+  }
+
+  public enum Phase {
+    ITERATION,
+    RESEED,
+    MEASURE,
+    ORIENT,
+    LINE_SEARCH,
+    STEP,
+    PROJECT,
+    SUBSPACE
+  }
+
+  public static class Snapshot {
+    @Nonnull
+    private final Map<Phase, LatencyHistogram.Snapshot> phases;
+    @Nonnull
+    private final Map<Phase, Map<String, LatencyHistogram.Snapshot>> allocations;
+
+    public Snapshot(@Nonnull Map<Phase, LatencyHistogram.Snapshot> phases,
+                    @Nonnull Map<Phase, Map<String, LatencyHistogram.Snapshot>> allocations) {
+      this.phases = Collections.unmodifiableMap(phases);
+      this.allocations = Collections.unmodifiableMap(allocations);
+    }
+
+    @Nonnull
+    public Map<Phase, Map<String, LatencyHistogram.Snapshot>> getAllocations() {
+      return allocations;
+    }
+
+    @Nonnull
+    public Map<String, LatencyHistogram.Snapshot> getAllocations(@Nonnull Phase phase) {
+      final Map<String, LatencyHistogram.Snapshot> map = allocations.get(phase);
+      return null == map ? Collections.emptyMap() : map;
+    }
+
+    @Nonnull
+    public Map<Phase, LatencyHistogram.Snapshot> getPhases() {
+      return phases;
+    }
+
+    public LatencyHistogram.Snapshot get(@Nonnull Phase phase) {
+      return phases.get(phase);
+    }
+
+    @Nonnull
+    @Override
+    public String toString() {
+      @Nonnull final RefStringBuilder sb = new RefStringBuilder("Phase timings:");
+      for (Map.Entry<Phase, LatencyHistogram.Snapshot> entry : phases.entrySet()) {
+        if (0 == entry.getValue().count) continue;
+        sb.append("\n\t").append(entry.getKey()).append(": ").append(entry.getValue());
+      }
+      if (!allocations.isEmpty()) {
+        sb.append("\nAllocated bytes:");
+        for (Map.Entry<Phase, Map<String, LatencyHistogram.Snapshot>> entry : allocations.entrySet()) {
+          for (Map.Entry<String, LatencyHistogram.Snapshot> strategy : entry.getValue().entrySet()) {
+            final LatencyHistogram.Snapshot bytes = strategy.getValue();
+            sb.append("\n\t").append(entry.getKey()).append(" ").append(strategy.getKey()).append(": ")
+                .append(RefString.format("count=%d, mean=%.0f, p50=%d, p99=%d, max=%d", bytes.count, bytes.getMean(),
+                    bytes.p50, bytes.p99, bytes.max));
+          }
+        }
+      }
+      return sb.toString();
+    }
+  }
+}
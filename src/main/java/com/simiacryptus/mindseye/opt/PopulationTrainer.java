@@ -0,0 +1,510 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.mindseye.opt;
+
+import com.simiacryptus.mindseye.eval.Trainable;
+import com.simiacryptus.mindseye.lang.Layer;
+import com.simiacryptus.mindseye.lang.PointSample;
+import com.simiacryptus.mindseye.network.DAGNetwork;
+import com.simiacryptus.mindseye.opt.line.LineSearchStrategy;
+import com.simiacryptus.mindseye.opt.orient.OrientationStrategy;
+import com.simiacryptus.ref.lang.ReferenceCountingBase;
+import com.simiacryptus.ref.wrappers.RefList;
+import com.simiacryptus.ref.wrappers.RefMap;
+import com.simiacryptus.ref.wrappers.RefSystem;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.time.Duration;
+import java.time.temporal.ChronoUnit;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Population-based training over copies of one network. Each member runs its own RoundRobinTrainer, one round of
+ * {@code roundIterations} iterations at a time, on its own thread. Members do not wait for each other: whenever one
+ * finishes a round in the bottom {@code exploitFraction} of the latest scores, it copies the weights and
+ * configuration of a random member from the top fraction (exploit) and then randomly perturbs its line search and
+ * iterationsPerSample (explore). When training ends, the best weights seen are copied into the original network.
+ * <p>
+ * Scores come from one evaluation trainable over its own network copy, into which each member's weights are copied
+ * when it reports, so members are compared on the same data rather than on their own last minibatch.
+ * <p>
+ * Orientation strategies carry no copyable state, so an exploiting member starts fresh strategies from the winner's
+ * configuration; their history rebuilds from the copied weights within a few iterations.
+ */
+public class PopulationTrainer extends ReferenceCountingBase {
+  private static final Logger log = LoggerFactory.getLogger(PopulationTrainer.class);
+
+  @Nonnull
+  private final DAGNetwork network;
+  @Nonnull
+  private final Function<Layer, ? extends Trainable> factory;
+  @Nullable
+  private Function<Layer, ? extends Trainable> evaluation = null;
+  private final List<Configuration> configurations = new ArrayList<>();
+  private int population = Runtime.getRuntime().availableProcessors();
+  private int roundIterations = 10;
+  private int maxRounds = Integer.MAX_VALUE;
+  private double exploitFraction = 0.25;
+  private double explorePerturbation = 0.5;
+  private int maxIterationsPerSample = 64;
+  private double terminateThreshold = Double.NEGATIVE_INFINITY;
+  private Duration timeout = Duration.of(5, ChronoUnit.MINUTES);
+  private long seed = RefSystem.nanoTime();
+  private TrainingMonitor monitor = new TrainingMonitor();
+  @Nullable
+  private String bestConfiguration;
+
+  /**
+   * @param factory builds a trainable over the given network copy, as the caller would over the original
+   */
+  public PopulationTrainer(@Nonnull DAGNetwork network, @Nonnull Function<Layer, ? extends Trainable> factory) {
+    this.network = network;
+    this.factory = factory;
+  }
+
+  /**
+   * Members start from the configurations in turn, and explore line searches drawn from all of them.
+   */
+  public void addConfiguration(@Nonnull Configuration configuration) {
+    configurations.add(configuration);
+  }
+
+  @Nullable
+  public Function<Layer, ? extends Trainable> getEvaluation() {
+    return evaluation;
+  }
+
+  /**
+   * Builds the trainable that scores members. It is applied once, to a network copy that is never trained, and never
+   * reseeded. Defaults to the training factory, which with a minibatch factory means one fixed sample.
+   */
+  public void setEvaluation(@Nullable Function<Layer, ? extends Trainable> evaluation) {
+    this.evaluation = evaluation;
+  }
+
+  public int getPopulation() {
+    return population;
+  }
+
+  public void setPopulation(int population) {
+    this.population = population;
+  }
+
+  public int getRoundIterations() {
+    return roundIterations;
+  }
+
+  public void setRoundIterations(int roundIterations) {
+    this.roundIterations = roundIterations;
+  }
+
+  public int getMaxRounds() {
+    return maxRounds;
+  }
+
+  public void setMaxRounds(int maxRounds) {
+    this.maxRounds = maxRounds;
+  }
+
+  public double getExploitFraction() {
+    return exploitFraction;
+  }
+
+  public void setExploitFraction(double exploitFraction) {
+    this.exploitFraction = exploitFraction;
+  }
+
+  public double getExplorePerturbation() {
+    return explorePerturbation;
+  }
+
+  /**
+   * The probability, after each exploit, of switching line search and, separately, of doubling or halving
+   * iterationsPerSample.
+   */
+  public void setExplorePerturbation(double explorePerturbation) {
+    this.explorePerturbation = explorePerturbation;
+  }
+
+  public int getMaxIterationsPerSample() {
+    return maxIterationsPerSample;
+  }
+
+  public void setMaxIterationsPerSample(int maxIterationsPerSample) {
+    this.maxIterationsPerSample = maxIterationsPerSample;
+  }
+
+  public double getTerminateThreshold() {
+    return terminateThreshold;
+  }
+
+  public void setTerminateThreshold(double terminateThreshold) {
+    this.terminateThreshold = terminateThreshold;
+  }
+
+  public Duration getTimeout() {
+    return timeout;
+  }
+
+  public void setTimeout(Duration timeout) {
+    this.timeout = timeout;
+  }
+
+  public long getSeed() {
+    return seed;
+  }
+
+  public void setSeed(long seed) {
+    this.seed = seed;
+  }
+
+  public TrainingMonitor getMonitor() {
+    return monitor;
+  }
+
+  public void setMonitor(TrainingMonitor monitor) {
+    this.monitor = monitor;
+  }
+
+  /**
+   * The name of the configuration, with its explored settings, that produced the best weights in the last run.
+   */
+  @Nullable
+  public String getBestConfiguration() {
+    return bestConfiguration;
+  }
+
+  /**
+   * Trains the population until the timeout, {@code maxRounds} rounds per member, or a member reaching the terminate
+   * threshold, and returns the best score seen.
+   */
+  public double run() {
+    if (configurations.isEmpty()) throw new IllegalStateException("No configurations");
+    final long deadline = RefSystem.currentTimeMillis() + timeout.toMillis();
+    final Random random = new Random(seed);
+    final List<double[]> weights = weights(network.addRef());
+    final DAGNetwork evaluator = (DAGNetwork) network.copy();
+    final List<double[]> evaluatorWeights = weights(evaluator.addRef());
+    final Population members = new Population(weights, (null == evaluation ? factory : evaluation).apply(evaluator),
+        evaluatorWeights);
+    final ExecutorService pool = Executors.newFixedThreadPool(population, r -> {
+      Thread thread = new Thread(r, PopulationTrainer.class.getSimpleName());
+      thread.setDaemon(true);
+      return thread;
+    });
+    try {
+      for (int i = 0; i < population; i++) {
+        members.add(new Member(i, configurations.get(i % configurations.size()), random.nextLong()));
+      }
+      final List<Future<?>> futures = new ArrayList<>();
+      for (Member member : members.members) {
+        futures.add(pool.submit(() -> member.train(members, deadline)));
+      }
+      for (Future<?> future : futures) {
+        try {
+          future.get();
+        } catch (ExecutionException e) {
+          log.warn("Population member failed", e.getCause());
+        }
+      }
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      members.stop = true;
+      pool.shutdownNow();
+      // A member may still be inside a round; freeing its trainer under it would fail that round mid-measure
+      if (awaitTermination(pool)) {
+        members.free();
+      } else {
+        log.warn("Population members did not stop; their trainers are not freed");
+      }
+    }
+    synchronized (members) {
+      if (null != members.best) {
+        copy(members.best, weights);
+        bestConfiguration = members.bestConfiguration;
+      }
+      AsyncTrainingMonitor.log(monitor, "Population: best %s from %s").arg(members.bestScore)
+          .arg(bestConfiguration).publish();
+      return members.bestScore;
+    }
+  }
+
+  @Override
+  public void _free() {
+    super._free();
+    network.freeRef();
+  }
+
+  @Nonnull
+  public @Override
+  @SuppressWarnings("unused")
+  PopulationTrainer addRef() {
+    return (PopulationTrainer) super.addRef();
+  }
+
+  private static boolean awaitTermination(@Nonnull ExecutorService pool) {
+    try {
+      while (!pool.awaitTermination(1, TimeUnit.MINUTES)) {
+        log.info("Waiting for population members to finish their rounds");
+      }
+      return true;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return false;
+    }
+  }
+
+  /**
+   * Every state array of every non-network layer, ordered by layer id then position, so copies line up.
+   */
+  @Nonnull
+  private static List<double[]> weights(@Nonnull DAGNetwork network) {
+    final TreeMap<UUID, List<double[]>> byId = new TreeMap<>();
+    final RefMap<UUID, Layer> layersById = network.getLayersById();
+    network.freeRef();
+    layersById.forEach((id, layer) -> {
+      if (!(layer instanceof DAGNetwork)) {
+        final RefList<double[]> state = layer.state();
+        if (null != state) {
+          byId.put(id, new ArrayList<>(state));
+          state.freeRef();
+        }
+      }
+      layer.freeRef();
+    });
+    layersById.freeRef();
+    final List<double[]> weights = new ArrayList<>();
+    byId.values().forEach(weights::addAll);
+    return weights;
+  }
+
+  private static void copy(@Nonnull List<double[]> from, @Nonnull List<double[]> to) {
+    for (int i = 0; i < from.size(); i++) {
+      System.arraycopy(from.get(i), 0, to.get(i), 0, to.get(i).length);
+    }
+  }
+
+  @Nonnull
+  private static List<double[]> snapshot(@Nonnull List<double[]> weights) {
+    final List<double[]> copy = new ArrayList<>(weights.size());
+    for (double[] array : weights) {
+      copy.add(array.clone());
+    }
+    return copy;
+  }
+
+  /**
+   * A named starting point for members. Line searches are also exchanged between configurations while exploring.
+   */
+  public static final class Configuration {
+    @Nonnull
+    private final String name;
+    @Nonnull
+    private final Supplier<OrientationStrategy<?>[]> orientations;
+    @Nonnull
+    private final Function<CharSequence, ? extends LineSearchStrategy> lineSearchFactory;
+    private final int iterationsPerSample;
+
+    public Configuration(@Nonnull String name, @Nonnull Supplier<OrientationStrategy<?>[]> orientations,
+                         @Nonnull Function<CharSequence, ? extends LineSearchStrategy> lineSearchFactory,
+                         int iterationsPerSample) {
+      this.name = name;
+      this.orientations = orientations;
+      this.lineSearchFactory = lineSearchFactory;
+      this.iterationsPerSample = iterationsPerSample;
+    }
+
+    @Nonnull
+    public String getName() {
+      return name;
+    }
+  }
+
+  private final class Population {
+    final List<Member> members = new ArrayList<>();
+    @Nonnull
+    final List<double[]> original;
+    @Nonnull
+    final Trainable evaluation;
+    @Nonnull
+    final List<double[]> evaluationWeights;
+    @Nullable
+    List<double[]> best;
+    @Nullable
+    String bestConfiguration;
+    double bestScore = Double.POSITIVE_INFINITY;
+    volatile boolean stop = false;
+
+    private Population(@Nonnull List<double[]> original, @Nonnull Trainable evaluation,
+                       @Nonnull List<double[]> evaluationWeights) {
+      this.original = original;
+      this.evaluation = evaluation;
+      this.evaluationWeights = evaluationWeights;
+    }
+
+    void add(@Nonnull Member member) {
+      members.add(member);
+    }
+
+    /**
+     * Scores a member's weights, records the finished round and returns the member to exploit, or null to keep going
+     * as is.
+     */
+    @Nullable
+    synchronized Member report(@Nonnull Member member, @Nonnull Random random) {
+      final double score = evaluate(member.weights);
+      member.score = score;
+      member.rounds++;
+      if (null == member.published) member.published = snapshot(member.weights);
+      else copy(member.weights, member.published);
+      if (score < bestScore) {
+        bestScore = score;
+        if (null == best) best = snapshot(member.weights);
+        else copy(member.weights, best);
+        bestConfiguration = member.describe();
+      }
+      if (!(score > terminateThreshold)) stop = true;
+      final List<Member> ranked = new ArrayList<>();
+      for (Member other : members) {
+        if (Double.isFinite(other.score)) ranked.add(other);
+      }
+      if (ranked.size() < 2) return null;
+      ranked.sort(Comparator.comparingDouble(m -> m.score));
+      final int cutoff = Math.max(1, (int) Math.floor(exploitFraction * ranked.size()));
+      if (ranked.indexOf(member) < ranked.size() - cutoff && Double.isFinite(score)) return null;
+      return ranked.get(random.nextInt(cutoff));
+    }
+
+    private double evaluate(@Nonnull List<double[]> weights) {
+      copy(weights, evaluationWeights);
+      try {
+        final PointSample point = evaluation.measure(monitor);
+        final double sum = point.sum;
+        point.freeRef();
+        return Double.isFinite(sum) ? sum : Double.POSITIVE_INFINITY;
+      } catch (RuntimeException e) {
+        log.warn("Population evaluation failed", e);
+        return Double.POSITIVE_INFINITY;
+      }
+    }
+
+    /**
+     * Copies a top member's last published weights and settings; synchronized so the source is not mid-publish.
+     */
+    synchronized void exploit(@Nonnull Member member, @Nonnull Member source) {
+      assert source.published != null;
+      copy(source.published, member.weights);
+      member.configuration = source.configuration;
+      member.lineSearch = source.lineSearch;
+      member.iterationsPerSample = source.iterationsPerSample;
+    }
+
+    void free() {
+      for (Member member : members) {
+        member.trainer.freeRef();
+      }
+      evaluation.freeRef();
+    }
+  }
+
+  private final class Member {
+    final int index;
+    @Nonnull
+    final List<double[]> weights;
+    @Nonnull
+    final RoundRobinTrainer trainer;
+    @Nonnull
+    final Random random;
+    @Nonnull
+    Configuration configuration;
+    @Nonnull
+    Configuration lineSearch;
+    int iterationsPerSample;
+    double score = Double.NaN;
+    int rounds = 0;
+    @Nullable
+    List<double[]> published;
+
+    private Member(int index, @Nonnull Configuration configuration, long seed) {
+      this.index = index;
+      this.configuration = configuration;
+      this.lineSearch = configuration;
+      this.iterationsPerSample = configuration.iterationsPerSample;
+      this.random = new Random(seed);
+      final DAGNetwork copy = (DAGNetwork) network.copy();
+      this.weights = weights(copy.addRef());
+      this.trainer = new RoundRobinTrainer(factory.apply(copy));
+      trainer.setMonitor(monitor);
+      configure();
+    }
+
+    @Nonnull
+    String describe() {
+      return String.format("%s (line search from %s, iterationsPerSample = %s)", configuration.name, lineSearch.name,
+          iterationsPerSample);
+    }
+
+    private void configure() {
+      trainer.setOrientations(configuration.orientations.get());
+      trainer.setLineSearchFactory(lineSearch.lineSearchFactory);
+      trainer.setIterationsPerSample(iterationsPerSample);
+    }
+
+    private void explore() {
+      if (random.nextDouble() < explorePerturbation) {
+        lineSearch = configurations.get(random.nextInt(configurations.size()));
+      }
+      if (random.nextDouble() < explorePerturbation) {
+        iterationsPerSample = random.nextBoolean() ? Math.min(maxIterationsPerSample, 2 * iterationsPerSample)
+            : Math.max(1, iterationsPerSample / 2);
+      }
+    }
+
+    private void train(@Nonnull Population population, long deadline) {
+      while (!population.stop && rounds < maxRounds && RefSystem.currentTimeMillis() < deadline) {
+        trainer.setMaxIterations(trainer.getCurrentIteration().get() + roundIterations);
+        trainer.setTimeout(Duration.ofMillis(Math.max(1, deadline - RefSystem.currentTimeMillis())));
+        double score;
+        try {
+          score = trainer.run();
+        } catch (RuntimeException e) {
+          log.warn(String.format("Population member %s failed a round", index), e);
+          score = Double.NaN;
+        }
+        final Member source = population.report(this, random);
+        AsyncTrainingMonitor.log(monitor, "Population member %s round %s: loss %s, evaluated %s with %s").arg(index)
+            .arg(rounds).arg(score).arg(this.score).arg(describe()).publish();
+        if (null == source || source == this) continue;
+        population.exploit(this, source);
+        explore();
+        configure();
+        AsyncTrainingMonitor.log(monitor, "Population member %s exploits member %s, now %s").arg(index)
+            .arg(source.index).arg(describe()).publish();
+      }
+    }
+  }
+}
@@ -40,6 +40,10 @@ import java.time.temporal.ChronoUnit;
 import java.time.temporal.TemporalUnit;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Function;
@@ -50,7 +54,13 @@ public class RoundRobinTrainer extends ReferenceCountingBase {
 
   private final Map<CharSequence, LineSearchStrategy> lineSearchStrategyMap = new HashMap<>();
   @Nullable
-  private final Trainable subject;
+  private Trainable subject;
+  @Nullable
+  private Trainable spare;
+  @Nullable
+  private Future<Boolean> pendingReseed;
+  @Nullable
+  private ExecutorService prefetchExecutor;
   private AtomicInteger currentIteration = new AtomicInteger(0);
   private int iterationsPerSample = 1;
   private Function<CharSequence, ? extends LineSearchStrategy> lineSearchFactory = s -> new ArmijoWolfeSearch();
@@ -60,6 +70,15 @@ public class RoundRobinTrainer extends ReferenceCountingBase {
   private RefList<OrientationStrategy<?>> orientations = new RefArrayList<>(RefArrays.asList(new LBFGS()));
   private double terminateThreshold;
   private Duration timeout;
+  @Nullable
+  private Supplier<? extends Trainable> trainableFactory = null;
+  private int speculativeCandidates = 0;
+  private boolean prefetchSamples = false;
+  @Nonnull
+  private PhaseTimings timings = new PhaseTimings();
+  @Nonnull
+  private DoubleArena arena = new DoubleArena();
+  private boolean logStatistics = false;
 
   public RoundRobinTrainer(@Nullable final Trainable subject) {
     Trainable temp_34_0001 = subject == null ? null : subject.addRef();
@@ -93,11 +112,12 @@ public class RoundRobinTrainer extends ReferenceCountingBase {
   }
 
   public void setLineSearchFactory(@Nonnull Supplier<LineSearchStrategy> lineSearchFactory) {
-    this.lineSearchFactory = s -> lineSearchFactory.get();
+    setLineSearchFactory(s -> lineSearchFactory.get());
   }
 
   public void setLineSearchFactory(Function<CharSequence, ? extends LineSearchStrategy> lineSearchFactory) {
     this.lineSearchFactory = lineSearchFactory;
+    lineSearchStrategyMap.clear();
   }
 
   public int getMaxIterations() {
@@ -122,9 +142,66 @@ public class RoundRobinTrainer extends ReferenceCountingBase {
   }
 
   public void setOrientations(final OrientationStrategy<?>... orientations) {
+    if (null != this.orientations)
+      this.orientations.freeRef();
     this.orientations = new RefArrayList<>(RefArrays.asList(orientations));
   }
 
+  public boolean isPrefetchSamples() {
+    return prefetchSamples;
+  }
+
+  public void setPrefetchSamples(boolean prefetchSamples) {
+    this.prefetchSamples = prefetchSamples;
+  }
+
+  public int getSpeculativeCandidates() {
+    return speculativeCandidates;
+  }
+
+  public void setSpeculativeCandidates(int speculativeCandidates) {
+    this.speculativeCandidates = speculativeCandidates;
+  }
+
+  @Nullable
+  public Supplier<? extends Trainable> getTrainableFactory() {
+    return trainableFactory;
+  }
+
+  public void setTrainableFactory(@Nullable Supplier<? extends Trainable> trainableFactory) {
+    this.trainableFactory = trainableFactory;
+  }
+
+  @Nonnull
+  public DoubleArena getArena() {
+    return arena;
+  }
+
+  public void setArena(@Nonnull DoubleArena arena) {
+    this.arena = arena;
+  }
+
+  public boolean isLogStatistics() {
+    return logStatistics;
+  }
+
+  /**
+   * Logs the phase timings, arena usage and measure counts to the monitor when run() ends. Off by default; the same
+   * figures are available from getTimings(), getArena() and a CountingTrainable subject.
+   */
+  public void setLogStatistics(boolean logStatistics) {
+    this.logStatistics = logStatistics;
+  }
+
+  @Nonnull
+  public PhaseTimings getTimings() {
+    return timings;
+  }
+
+  public void setTimings(@Nonnull PhaseTimings timings) {
+    this.timings = timings;
+  }
+
   public double getTerminateThreshold() {
     return terminateThreshold;
   }
@@ -143,26 +220,39 @@ public class RoundRobinTrainer extends ReferenceCountingBase {
 
   @Nullable
   public PointSample measure() {
-    PointSample currentPoint = null;
-    int retries = 0;
-    do {
-      assert subject != null;
-      if (!subject.reseed(RefSystem.nanoTime()) && retries > 0) {
-        currentPoint.freeRef();
-        throw new IterativeStopException();
-      }
-      if (10 < retries++) {
-        currentPoint.freeRef();
-        throw new IterativeStopException();
-      }
-      currentPoint.freeRef();
-      currentPoint = subject.measure(monitor);
-    } while (!Double.isFinite(currentPoint.sum));
-    assert Double.isFinite(currentPoint.sum);
-    return currentPoint;
+    assert subject != null;
+    final SpeculativeReseed.Measurement measurement = SpeculativeReseed.measureFinite(subject.addRef(), monitor, timings,
+        trainableFactory, speculativeCandidates);
+    // A speculative candidate that won replaces the subject, so later steps use the batch the sample came from
+    subject.freeRef();
+    subject = measurement.subject;
+    return measurement.point;
   }
 
   public double run() {
+    final PhaseTimings previousTimings = PhaseTimings.attach(timings);
+    final DoubleArena previousArena = DoubleArena.attach(arena);
+    final String previousSource = CountingTrainable.attribute(CountingTrainable.SAMPLE);
+    try {
+      return train();
+    } finally {
+      if (logStatistics) {
+        monitor.log(timings.snapshot().toString());
+        monitor.log(arena.toString());
+        if (subject instanceof CountingTrainable)
+          monitor.log(((CountingTrainable) subject).snapshot().toString());
+        if (spare instanceof CountingTrainable)
+          monitor.log(((CountingTrainable) spare).snapshot().toString());
+      }
+      PhaseTimings.attach(previousTimings);
+      DoubleArena.attach(previousArena);
+      CountingTrainable.attribute(previousSource);
+      if (monitor instanceof AsyncTrainingMonitor)
+        ((AsyncTrainingMonitor) monitor).flush();
+    }
+  }
+
+  private double train() {
     final long timeoutMs = RefSystem.currentTimeMillis() + timeout.toMillis();
     PointSample currentPoint = measure();
     assert currentPoint != null;
@@ -173,7 +263,10 @@ mainLoop:
           break;
         }
         currentPoint.freeRef();
-        currentPoint = measure();
+        currentPoint = null == pendingReseed ? measure() : measurePrefetched();
+        if (prefetchSamples && null != trainableFactory) {
+          startPrefetch();
+        }
         for (int subiteration = 0; subiteration < iterationsPerSample; subiteration++) {
           final PointSample previousOrientations = currentPoint == null ? null : currentPoint.addRef();
           RefIterator<OrientationStrategy<?>> orientationStrategyRefIterator = orientations.iterator();
@@ -192,14 +285,16 @@ mainLoop:
           assert currentPoint != null;
           assert previousOrientations != null;
           if (previousOrientations.sum <= currentPoint.sum) {
+            previousOrientations.freeRef();
             assert subject != null;
-            if (subject.reseed(RefSystem.nanoTime())) {
-              monitor.log(RefString.format("MacroIteration %s failed, retrying. Error: %s", currentIteration.get(),
-                  currentPoint.sum));
+            // With a prefetch in flight the retry uses the spare, so reseeding the subject here would be wasted
+            if (null == pendingReseed ? subject.reseed(RefSystem.nanoTime()) : awaitPrefetch()) {
+              AsyncTrainingMonitor.log(monitor, "MacroIteration %s failed, retrying. Error: %s")
+                  .arg(currentIteration.get()).arg(currentPoint.sum).publish();
               break;
             } else {
-              monitor.log(RefString.format("MacroIteration %s failed, aborting. Error: %s", currentIteration.get(),
-                  currentPoint.sum));
+              AsyncTrainingMonitor.log(monitor, "MacroIteration %s failed, aborting. Error: %s")
+                  .arg(currentIteration.get()).arg(currentPoint.sum).publish();
               break mainLoop;
             }
           }
@@ -210,15 +305,31 @@ mainLoop:
     } finally {
       if (null != currentPoint)
         currentPoint.freeRef();
+      stopPrefetch();
     }
   }
 
   @Nonnull
   public PointSample getPointSample(@javax.annotation.Nullable PointSample currentPoint, @Nonnull OrientationStrategy<?> orientation) {
+    final String strategy = PhaseTimings.label(orientation);
+    final OptimizerEvents events = OptimizerEvents.get();
+    final boolean iterationEvents = events.isIterationEnabled();
+    final double initialLoss = null == currentPoint ? Double.NaN : currentPoint.sum;
+    if (iterationEvents) {
+      events.iterationBegin();
+      events.orientationBegin();
+    }
+    final String previousSource = CountingTrainable.attribute(strategy);
+    final long iterationStart = timings.start();
+    final long iterationBytes = timings.allocated();
     final LineSearchCursor direction = orientation.orient(subject == null ? null : subject.addRef(),
         currentPoint == null ? null : currentPoint.addRef(), monitor);
+    timings.stop(PhaseTimings.Phase.ORIENT, iterationStart);
+    timings.allocated(PhaseTimings.Phase.ORIENT, strategy, iterationBytes);
     @Nonnull final CharSequence directionType = direction.getDirectionType() + "+"
         + Long.toHexString(RefSystem.identityHashCode(orientation));
+    if (iterationEvents)
+      events.orientationEnd(currentIteration.get(), strategy, String.valueOf(direction.getDirectionType()));
     LineSearchStrategy lineSearchStrategy;
     if (lineSearchStrategyMap.containsKey(directionType)) {
       lineSearchStrategy = lineSearchStrategyMap.get(directionType);
@@ -230,20 +341,120 @@ mainLoop:
     final PointSample previous = currentPoint == null ? null : currentPoint.addRef();
     assert currentPoint != null;
     currentPoint.freeRef();
+    final long lineSearchStart = timings.start();
+    final long lineSearchBytes = timings.allocated();
     currentPoint = lineSearchStrategy.step(direction.addRef(), monitor);
+    timings.stop(PhaseTimings.Phase.LINE_SEARCH, lineSearchStart);
+    timings.allocated(PhaseTimings.Phase.LINE_SEARCH, strategy, lineSearchBytes);
+    CountingTrainable.attribute(previousSource);
     direction.freeRef();
+    timings.stop(PhaseTimings.Phase.ITERATION, iterationStart);
+    arena.release();
+    timings.allocated(PhaseTimings.Phase.ITERATION, strategy, iterationBytes);
+    if (iterationEvents)
+      events.iterationEnd(getClass().getSimpleName(), currentIteration.get(), initialLoss,
+          null == currentPoint ? Double.NaN : currentPoint.sum);
     monitor.onStepComplete(new Step(currentPoint == null ? null : currentPoint.addRef(), currentIteration.get()));
     assert currentPoint != null;
     if (previous.sum == currentPoint.sum) {
-      monitor.log(
-          RefString.format("Iteration %s failed, ignoring. Error: %s", currentIteration.get(), currentPoint.sum));
+      AsyncTrainingMonitor.log(monitor, "Iteration %s failed, ignoring. Error: %s")
+          .arg(currentIteration.get()).arg(currentPoint.sum).publish();
     } else {
-      monitor.log(RefString.format("Iteration %s complete. Error: %s", currentIteration.get(), currentPoint.sum));
+      AsyncTrainingMonitor.log(monitor, "Iteration %s complete. Error: %s")
+          .arg(currentIteration.get()).arg(currentPoint.sum).publish();
     }
     previous.freeRef();
     return currentPoint;
   }
 
+  private void startPrefetch() {
+    if (null == spare) {
+      assert trainableFactory != null;
+      spare = trainableFactory.get();
+    }
+    if (null == prefetchExecutor) {
+      prefetchExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "RoundRobinTrainer-prefetch");
+        thread.setDaemon(true);
+        return thread;
+      });
+    }
+    final Trainable next = spare.addRef();
+    final long seed = RefSystem.nanoTime();
+    pendingReseed = prefetchExecutor.submit(() -> {
+      final String previousSource = CountingTrainable.attribute(CountingTrainable.SAMPLE);
+      try {
+        return next.reseed(seed);
+      } finally {
+        CountingTrainable.attribute(previousSource);
+        next.freeRef();
+      }
+    });
+  }
+
+  /**
+   * Waits for the pending prefetch and returns whether the spare was reseeded. The future is kept, so a later call
+   * returns the same result without waiting.
+   */
+  private boolean awaitPrefetch() {
+    assert pendingReseed != null;
+    final long waitStart = timings.start();
+    try {
+      return pendingReseed.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IterativeStopException();
+    } catch (ExecutionException e) {
+      log.warn("Sample prefetch failed", e.getCause());
+      return false;
+    } finally {
+      timings.stop(PhaseTimings.Phase.RESEED, waitStart);
+    }
+  }
+
+  @Nullable
+  private PointSample measurePrefetched() {
+    final boolean ready;
+    try {
+      ready = awaitPrefetch();
+    } finally {
+      pendingReseed = null;
+    }
+    if (!ready) {
+      return measure();
+    }
+    final Trainable previous = subject;
+    subject = spare;
+    spare = previous;
+    assert subject != null;
+    final long measureStart = timings.start();
+    PointSample point = subject.measure(monitor);
+    timings.stop(PhaseTimings.Phase.MEASURE, measureStart);
+    if (!Double.isFinite(point.sum)) {
+      point.freeRef();
+      return measure();
+    }
+    return point;
+  }
+
+  private void stopPrefetch() {
+    if (null != pendingReseed) {
+      // Not cancelled: a task cancelled before it starts would never release its reference to the spare
+      try {
+        pendingReseed.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      } catch (ExecutionException e) {
+        log.debug("Unused sample prefetch failed", e.getCause());
+      }
+      pendingReseed = null;
+    }
+    if (null != prefetchExecutor) {
+      prefetchExecutor.shutdown();
+      prefetchExecutor = null;
+    }
+  }
+
   public void setTimeout(int number, @Nonnull TemporalUnit units) {
     timeout = Duration.of(number, units);
   }
@@ -257,8 +468,11 @@ mainLoop:
   public @SuppressWarnings("unused")
   void _free() {
     super._free();
+    stopPrefetch();
     if (null != subject)
       subject.freeRef();
+    if (null != spare)
+      spare.freeRef();
     orientations.freeRef();
   }
 
@@ -0,0 +1,239 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.mindseye.opt;
+
+import com.simiacryptus.mindseye.eval.Trainable;
+import com.simiacryptus.mindseye.lang.IterativeStopException;
+import com.simiacryptus.mindseye.lang.PointSample;
+import com.simiacryptus.ref.wrappers.RefSystem;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Supplier;
+
+/**
+ * Measures several reseeded candidates concurrently and keeps the first finite one. The factory must return
+ * trainables over the same network as the subject. The winning candidate replaces the subject rather than the
+ * subject being reseeded with the winning seed, since trainables such as SampledArrayTrainable draw their sample
+ * without regard to the seed, and the subject would then no longer match the sample handed to the line search.
+ */
+public class SpeculativeReseed {
+  private static final Logger log = LoggerFactory.getLogger(SpeculativeReseed.class);
+  private static final ExecutorService pool = Executors.newCachedThreadPool(r -> {
+    Thread thread = new Thread(r, SpeculativeReseed.class.getSimpleName());
+    thread.setDaemon(true);
+    return thread;
+  });
+
+  @Nonnull
+  private final Supplier<? extends Trainable> factory;
+  private final int candidates;
+
+  public SpeculativeReseed(@Nonnull Supplier<? extends Trainable> factory, int candidates) {
+    if (candidates < 1) throw new IllegalArgumentException();
+    this.factory = factory;
+    this.candidates = candidates;
+  }
+
+  public int getCandidates() {
+    return candidates;
+  }
+
+  /**
+   * Reseeds and measures the subject until the sample is finite, as the trainers' measure() does. Retries stop with
+   * an {@link IterativeStopException} after ten attempts or when the subject cannot be reseeded. Once a sample has
+   * come back non-finite and a factory is given, each further retry measures that many reseeded candidates
+   * concurrently instead of one, and the winner becomes the subject of the result. Consumes the subject reference.
+   */
+  @Nonnull
+  public static Measurement measureFinite(@Nonnull Trainable subject, @Nonnull TrainingMonitor monitor,
+                                          @Nonnull PhaseTimings timings,
+                                          @Nullable Supplier<? extends Trainable> factory, int candidates) {
+    PointSample currentPoint = null;
+    int retries = 0;
+    try {
+      do {
+        if (retries > 0 && candidates > 0 && null != factory) {
+          if (10 < retries) throw new IterativeStopException();
+          retries += candidates;
+          final long speculativeStart = timings.start();
+          final Measurement speculative = new SpeculativeReseed(factory, candidates).measure(monitor);
+          timings.stop(PhaseTimings.Phase.RESEED, speculativeStart);
+          if (null == speculative) throw new IterativeStopException();
+          currentPoint.freeRef();
+          currentPoint = speculative.point;
+          subject.freeRef();
+          subject = speculative.subject;
+          continue;
+        }
+        final long reseedStart = timings.start();
+        final boolean reseeded = subject.reseed(RefSystem.nanoTime());
+        timings.stop(PhaseTimings.Phase.RESEED, reseedStart);
+        if (!reseeded && retries > 0) throw new IterativeStopException();
+        if (10 < retries++) throw new IterativeStopException();
+        final long measureStart = timings.start();
+        final PointSample measure = subject.measure(monitor);
+        timings.stop(PhaseTimings.Phase.MEASURE, measureStart);
+        // Nothing to release on the first attempt
+        if (null != currentPoint)
+          currentPoint.freeRef();
+        currentPoint = measure;
+      } while (!Double.isFinite(currentPoint.sum));
+      final Measurement result = new Measurement(subject, currentPoint);
+      currentPoint = null;
+      subject = null;
+      return result;
+    } finally {
+      if (null != currentPoint)
+        currentPoint.freeRef();
+      if (null != subject)
+        subject.freeRef();
+    }
+  }
+
+  /**
+   * Returns the first finite candidate together with the trainable it was measured on, or null if none was finite.
+   * Candidates that have not started when a winner is found return without measuring; those already measuring are
+   * waited for and freed before this returns.
+   */
+  @Nullable
+  public Measurement measure(@Nonnull TrainingMonitor monitor) {
+    final long baseSeed = RefSystem.nanoTime();
+    final AtomicBoolean done = new AtomicBoolean(false);
+    final String source = CountingTrainable.getSource();
+    final CompletionService<Candidate> completionService = new ExecutorCompletionService<>(pool);
+    final List<Future<Candidate>> futures = new ArrayList<>();
+    for (int i = 0; i < candidates; i++) {
+      final long seed = baseSeed + i * 0x9E3779B97F4A7C15L;
+      futures.add(completionService.submit(() -> evaluate(seed, source, done, monitor)));
+    }
+    Future<Candidate> winner = null;
+    try {
+      for (int i = 0; i < candidates; i++) {
+        final Future<Candidate> future = completionService.take();
+        final Candidate candidate;
+        try {
+          candidate = future.get();
+        } catch (ExecutionException e) {
+          log.warn("Speculative measurement failed", e.getCause());
+          continue;
+        }
+        if (null == candidate) continue;
+        winner = future;
+        AsyncTrainingMonitor.log(monitor, "Speculative reseed accepted seed %s after %s of %s candidates. Error: %s")
+            .arg(candidate.seed).arg(i + 1).arg(candidates).arg(candidate.point.sum).publish();
+        return new Measurement(candidate.trainable, candidate.point);
+      }
+      return null;
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      return null;
+    } finally {
+      done.set(true);
+      for (Future<Candidate> future : futures) {
+        if (future != winner) freeCandidate(future);
+      }
+    }
+  }
+
+  private static void freeCandidate(@Nonnull Future<Candidate> future) {
+    boolean interrupted = false;
+    try {
+      while (true) {
+        try {
+          final Candidate candidate = future.get();
+          if (null != candidate) candidate.free();
+          return;
+        } catch (InterruptedException e) {
+          interrupted = true;
+        } catch (ExecutionException e) {
+          // Already reported, or irrelevant once a winner was chosen
+          return;
+        }
+      }
+    } finally {
+      if (interrupted) Thread.currentThread().interrupt();
+    }
+  }
+
+  @Nullable
+  private Candidate evaluate(long seed, @Nonnull String source, @Nonnull AtomicBoolean done,
+                             @Nonnull TrainingMonitor monitor) {
+    if (done.get()) return null;
+    final String previousSource = CountingTrainable.attribute(source);
+    Trainable trainable = factory.get();
+    try {
+      if (!trainable.reseed(seed)) return null;
+      PointSample point = trainable.measure(monitor);
+      if (done.get() || !Double.isFinite(point.sum)) {
+        point.freeRef();
+        return null;
+      }
+      final Candidate candidate = new Candidate(seed, trainable, point);
+      trainable = null;
+      return candidate;
+    } finally {
+      if (null != trainable)
+        trainable.freeRef();
+      CountingTrainable.attribute(previousSource);
+    }
+  }
+
+  /**
+   * A finite sample and the trainable it was measured on, which is the one to keep measuring and orienting against.
+   * The caller owns both references.
+   */
+  public static final class Measurement {
+    @Nonnull
+    public final Trainable subject;
+    @Nonnull
+    public final PointSample point;
+
+    private Measurement(@Nonnull Trainable subject, @Nonnull PointSample point) {
+      this.subject = subject;
+      this.point = point;
+    }
+  }
+
+  private static final class Candidate {
+    final long seed;
+    @Nonnull
+    final Trainable trainable;
+    @Nonnull
+    final PointSample point;
+
+    private Candidate(long seed, @Nonnull Trainable trainable, @Nonnull PointSample point) {
+      this.seed = seed;
+      this.trainable = trainable;
+      this.point = point;
+    }
+
+    void free() {
+      point.freeRef();
+      trainable.freeRef();
+    }
+  }
+}
@@ -0,0 +1,245 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.mindseye.opt;
+
+import com.simiacryptus.mindseye.lang.Delta;
+import com.simiacryptus.mindseye.lang.DeltaSet;
+import com.simiacryptus.mindseye.lang.State;
+import com.simiacryptus.mindseye.lang.StateSet;
+import com.simiacryptus.ref.wrappers.RefMap;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UncheckedIOException;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * A copy of the live weights of a StateSet kept outside the Java heap, either in direct memory or, when a scratch
+ * directory is given, in a memory-mapped temporary file. Unlike PointSample.backup(), restoring does not need a heap
+ * copy of every layer to outlive the inner loop that keeps returning the network to the captured point.
+ *
+ * <p>Each layer is held in buffers of at most 1 GiB, since a single buffer or mapping is limited to 2 GiB. close()
+ * releases the buffers and unmaps the file before deleting it, through {@code sun.misc.Unsafe.invokeCleaner}; on a
+ * runtime without it, the memory is only returned once the buffers are garbage collected, and the file may outlive
+ * close() on platforms that refuse to delete mapped files.</p>
+ */
+public class WeightSnapshot implements AutoCloseable {
+  private static final int CHUNK_DOUBLES = 1 << 27;
+  @Nullable
+  private static final Cleaner cleaner = Cleaner.find();
+  private final Map<UUID, Slot> slots = new LinkedHashMap<>();
+  private final List<ByteBuffer> buffers = new ArrayList<>();
+  @Nullable
+  private final File file;
+  @Nullable
+  private final RandomAccessFile channelFile;
+  private long bytes = 0;
+
+  private WeightSnapshot(@Nullable File file) throws IOException {
+    this.file = file;
+    this.channelFile = null == file ? null : new RandomAccessFile(file, "rw");
+  }
+
+  /**
+   * Copies the current target values of every layer in the set.
+   *
+   * @param scratchDirectory directory for the memory-mapped file, or null for direct memory
+   */
+  @Nonnull
+  public static WeightSnapshot capture(@Nonnull StateSet<UUID> weights, @Nullable File scratchDirectory) {
+    final WeightSnapshot snapshot;
+    try {
+      snapshot = new WeightSnapshot(null == scratchDirectory ? null
+          : File.createTempFile("weights", ".snapshot", scratchDirectory));
+    } catch (IOException e) {
+      weights.freeRef();
+      throw new UncheckedIOException(e);
+    }
+    final RefMap<UUID, State<UUID>> map = weights.getMap();
+    weights.freeRef();
+    try {
+      map.forEach((id, state) -> {
+        final double[] target = state.target;
+        state.freeRef();
+        snapshot.add(id, target);
+      });
+    } catch (UncheckedIOException e) {
+      snapshot.close();
+      throw e;
+    } finally {
+      map.freeRef();
+    }
+    return snapshot;
+  }
+
+  public long getBytes() {
+    return bytes;
+  }
+
+  public boolean isMapped() {
+    return null != file;
+  }
+
+  /**
+   * Writes the captured values back into the live weights.
+   */
+  public synchronized void restore() {
+    for (Slot slot : slots.values()) {
+      slot.read(slot.target);
+    }
+  }
+
+  /**
+   * Returns the live weights minus the captured ones, as a delta over the same targets.
+   */
+  @Nonnull
+  public synchronized DeltaSet<UUID> delta() {
+    final DeltaSet<UUID> delta = new DeltaSet<>();
+    for (Map.Entry<UUID, Slot> entry : slots.entrySet()) {
+      final Slot slot = entry.getValue();
+      final Delta<UUID> layerDelta = delta.get(entry.getKey(), slot.target);
+      assert layerDelta != null;
+      final double[] values = layerDelta.getDelta();
+      layerDelta.freeRef();
+      assert values != null;
+      slot.read(values);
+      for (int i = 0; i < values.length; i++) {
+        values[i] = slot.target[i] - values[i];
+      }
+    }
+    return delta;
+  }
+
+  @Override
+  public synchronized void close() {
+    slots.clear();
+    for (ByteBuffer buffer : buffers) {
+      if (null != cleaner) cleaner.clean(buffer);
+    }
+    buffers.clear();
+    if (null != channelFile) {
+      try {
+        channelFile.close();
+      } catch (IOException e) {
+        throw new UncheckedIOException(e);
+      } finally {
+        assert file != null;
+        file.delete();
+      }
+    }
+  }
+
+  private void add(@Nonnull UUID id, @Nonnull double[] target) {
+    final DoubleBuffer[] chunks = new DoubleBuffer[(target.length + CHUNK_DOUBLES - 1) / CHUNK_DOUBLES];
+    for (int c = 0; c < chunks.length; c++) {
+      final int from = c * CHUNK_DOUBLES;
+      final int count = Math.min(CHUNK_DOUBLES, target.length - from);
+      final long length = 8L * count;
+      final ByteBuffer buffer;
+      if (null == channelFile) {
+        buffer = ByteBuffer.allocateDirect((int) length);
+      } else {
+        try {
+          buffer = channelFile.getChannel().map(FileChannel.MapMode.READ_WRITE, bytes, length);
+        } catch (IOException e) {
+          throw new UncheckedIOException(e);
+        }
+      }
+      buffers.add(buffer);
+      chunks[c] = buffer.order(ByteOrder.nativeOrder()).asDoubleBuffer();
+      chunks[c].put(target, from, count);
+      bytes += length;
+    }
+    slots.put(id, new Slot(target, chunks));
+  }
+
+  private static final class Slot {
+    @Nonnull
+    final double[] target;
+    @Nonnull
+    final DoubleBuffer[] chunks;
+
+    private Slot(@Nonnull double[] target, @Nonnull DoubleBuffer[] chunks) {
+      this.target = target;
+      this.chunks = chunks;
+    }
+
+    void read(@Nonnull double[] values) {
+      int from = 0;
+      for (DoubleBuffer chunk : chunks) {
+        // Through Buffer, since JDK 9+ links the covariant DoubleBuffer.rewind() that Java 8 lacks
+        ((Buffer) chunk).rewind();
+        final int count = chunk.remaining();
+        chunk.get(values, from, count);
+        from += count;
+      }
+    }
+  }
+
+  /**
+   * Frees a direct or mapped buffer immediately rather than when it is collected. The buffer must not be touched
+   * afterwards.
+   */
+  private static final class Cleaner {
+    @Nonnull
+    private final Object unsafe;
+    @Nonnull
+    private final Method invokeCleaner;
+
+    private Cleaner(@Nonnull Object unsafe, @Nonnull Method invokeCleaner) {
+      this.unsafe = unsafe;
+      this.invokeCleaner = invokeCleaner;
+    }
+
+    @Nullable
+    static Cleaner find() {
+      try {
+        final Class<?> type = Class.forName("sun.misc.Unsafe");
+        final Field field = type.getDeclaredField("theUnsafe");
+        field.setAccessible(true);
+        return new Cleaner(field.get(null), type.getMethod("invokeCleaner", ByteBuffer.class));
+      } catch (ReflectiveOperationException | RuntimeException e) {
+        return null;
+      }
+    }
+
+    void clean(@Nonnull ByteBuffer buffer) {
+      try {
+        invokeCleaner.invoke(unsafe, buffer);
+      } catch (ReflectiveOperationException e) {
+        throw new IllegalStateException(e);
+      }
+    }
+  }
+}
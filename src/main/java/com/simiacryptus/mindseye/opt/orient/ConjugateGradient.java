@@ -0,0 +1,180 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.mindseye.opt.orient;
+
+import com.simiacryptus.mindseye.eval.Trainable;
+import com.simiacryptus.mindseye.lang.Delta;
+import com.simiacryptus.mindseye.lang.DeltaSet;
+import com.simiacryptus.mindseye.lang.PointSample;
+import com.simiacryptus.mindseye.opt.AsyncTrainingMonitor;
+import com.simiacryptus.mindseye.opt.TrainingMonitor;
+import com.simiacryptus.mindseye.opt.line.SimpleLineSearchCursor;
+import com.simiacryptus.ref.wrappers.RefMap;
+
+import javax.annotation.Nonnull;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.UUID;
+
+/**
+ * Nonlinear conjugate gradient with the Polak-Ribiere+ update. The only state is the previous gradient and the
+ * previous direction, one array each per layer, overwritten in place on every orientation. Falls back to steepest
+ * descent on the first call, after reset(), every {@code restartInterval} iterations, when successive gradients lose
+ * orthogonality (Powell's criterion) and whenever the update does not give a descent direction.
+ */
+public class ConjugateGradient extends OrientationStrategyBase<SimpleLineSearchCursor> {
+
+  public static final String CURSOR_LABEL = "CG";
+  private final Map<UUID, double[]> previousGradient = new HashMap<>();
+  private final Map<UUID, double[]> previousDirection = new HashMap<>();
+  private boolean hasPrevious = false;
+  private int sinceRestart = 0;
+  private int restartInterval = 100;
+  private double restartThreshold = 0.2;
+
+  public int getRestartInterval() {
+    return restartInterval;
+  }
+
+  /**
+   * Restarts from steepest descent after this many conjugate steps. Zero or less never restarts on a schedule.
+   */
+  public void setRestartInterval(int restartInterval) {
+    this.restartInterval = restartInterval;
+  }
+
+  public double getRestartThreshold() {
+    return restartThreshold;
+  }
+
+  /**
+   * Restarts when |g.g'| exceeds this fraction of |g|^2, where g' is the previous gradient.
+   */
+  public void setRestartThreshold(double restartThreshold) {
+    this.restartThreshold = restartThreshold;
+  }
+
+  @Nonnull
+  @Override
+  public synchronized SimpleLineSearchCursor orient(@Nonnull Trainable subject, @Nonnull PointSample measurement,
+                                                    @Nonnull TrainingMonitor monitor) {
+    @Nonnull final DeltaSet<UUID> direction = new DeltaSet<>();
+    final Map<UUID, double[]> gradients = new HashMap<>();
+    final Map<UUID, double[]> directions = new HashMap<>();
+    final RefMap<UUID, Delta<UUID>> map = measurement.delta.getMap();
+    map.forEach((id, gradient) -> {
+      final Delta<UUID> delta = direction.get(id, gradient.target);
+      assert delta != null;
+      gradients.put(id, gradient.getDelta());
+      directions.put(id, delta.getDelta());
+      delta.freeRef();
+      gradient.freeRef();
+    });
+    map.freeRef();
+    boolean restart = !hasPrevious || !previousGradient.keySet().equals(gradients.keySet())
+        || (0 < restartInterval && sinceRestart >= restartInterval);
+    double gg = 0;
+    double gPrevious = 0;
+    double previousSq = 0;
+    for (Map.Entry<UUID, double[]> entry : gradients.entrySet()) {
+      final double[] g = entry.getValue();
+      final double[] p = previousGradient.get(entry.getKey());
+      if (null == p || p.length != g.length) {
+        restart = true;
+        for (double v : g) gg += v * v;
+        continue;
+      }
+      for (int i = 0; i < g.length; i++) {
+        gg += g[i] * g[i];
+        gPrevious += g[i] * p[i];
+        previousSq += p[i] * p[i];
+      }
+    }
+    double beta = 0;
+    if (!restart && previousSq > 0) {
+      beta = Math.max(0, (gg - gPrevious) / previousSq);
+      if (Math.abs(gPrevious) >= restartThreshold * gg || !Double.isFinite(beta)) beta = 0;
+    }
+    double slope = 0;
+    for (Map.Entry<UUID, double[]> entry : gradients.entrySet()) {
+      final double[] g = entry.getValue();
+      final double[] d = directions.get(entry.getKey());
+      final double[] dPrevious = 0 == beta ? null : previousDirection.get(entry.getKey());
+      for (int i = 0; i < g.length; i++) {
+        d[i] = null == dPrevious ? -g[i] : beta * dPrevious[i] - g[i];
+        slope += d[i] * g[i];
+      }
+    }
+    if (0 != beta && !(slope < 0)) {
+      beta = 0;
+      for (Map.Entry<UUID, double[]> entry : gradients.entrySet()) {
+        final double[] g = entry.getValue();
+        final double[] d = directions.get(entry.getKey());
+        for (int i = 0; i < g.length; i++) {
+          d[i] = -g[i];
+        }
+      }
+    }
+    sinceRestart = 0 == beta ? 0 : sinceRestart + 1;
+    remember(gradients, previousGradient);
+    remember(directions, previousDirection);
+    hasPrevious = true;
+    AsyncTrainingMonitor.log(monitor, "CG: beta = %s, steps since restart = %s").arg(beta).arg(sinceRestart).publish();
+    @Nonnull final SimpleLineSearchCursor cursor = new SimpleLineSearchCursor(subject, measurement, direction);
+    cursor.setDirectionType(0 == beta ? "GD" : CURSOR_LABEL);
+    return cursor;
+  }
+
+  @Override
+  public synchronized void reset() {
+    hasPrevious = false;
+    sinceRestart = 0;
+  }
+
+  @Override
+  public synchronized void _free() {
+    super._free();
+    previousGradient.clear();
+    previousDirection.clear();
+  }
+
+  @Nonnull
+  public @Override
+  @SuppressWarnings("unused")
+  ConjugateGradient addRef() {
+    return (ConjugateGradient) super.addRef();
+  }
+
+  /**
+   * Copies into the retained arrays, reallocating only for layers whose size changed, and drops departed layers.
+   */
+  private static void remember(@Nonnull Map<UUID, double[]> values, @Nonnull Map<UUID, double[]> retained) {
+    retained.keySet().retainAll(values.keySet());
+    for (Map.Entry<UUID, double[]> entry : values.entrySet()) {
+      final double[] value = entry.getValue();
+      double[] copy = retained.get(entry.getKey());
+      if (null == copy || copy.length != value.length) {
+        copy = new double[value.length];
+        retained.put(entry.getKey(), copy);
+      }
+      System.arraycopy(value, 0, copy, 0, value.length);
+    }
+  }
+}
@@ -0,0 +1,648 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.mindseye.opt.orient;
+
+import com.simiacryptus.mindseye.eval.Trainable;
+import com.simiacryptus.mindseye.lang.Delta;
+import com.simiacryptus.mindseye.lang.DeltaSet;
+import com.simiacryptus.mindseye.lang.DoubleBuffer;
+import com.simiacryptus.mindseye.lang.PointSample;
+import com.simiacryptus.mindseye.opt.AsyncTrainingMonitor;
+import com.simiacryptus.mindseye.opt.TrainingMonitor;
+import com.simiacryptus.mindseye.opt.line.SimpleLineSearchCursor;
+import com.simiacryptus.ref.wrappers.RefMap;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.*;
+
+/**
+ * Limited-memory SR1 trust-region method. The model B = gamma*I + Psi*M*Psi' is kept in compact form, with
+ * Psi = Y - gamma*S, the s and y vectors as flattened rows and their inner products in small Gram matrices. Each
+ * orientation solves the trust-region subproblem exactly in the eigenbasis of the low-rank part, and returns the
+ * step as a cursor direction, so a step size of 1 lands on the solution. The radius grows or shrinks with the ratio
+ * of the actual to the predicted reduction of the step taken, whatever step size the line search chose.
+ */
+public class LSR1 extends OrientationStrategyBase<SimpleLineSearchCursor> {
+
+  public static final String CURSOR_LABEL = "LSR1";
+  private final List<double[]> s = new ArrayList<>();
+  private final List<double[]> y = new ArrayList<>();
+  private final ArrayDeque<double[]> spare = new ArrayDeque<>();
+  private int maxHistory = 10;
+  private double initialRadius = 1.0;
+  private double minRadius = 1e-8;
+  private double maxRadius = 1e4;
+  private double skipThreshold = 1e-8;
+  private double radius = initialRadius;
+  @Nullable
+  private UUID[] ids;
+  private int[] lengths;
+  private int columns;
+  private double[][] ss;
+  private double[][] sy;
+  private double[][] yy;
+  private double gamma;
+  @Nullable
+  private double[][] middle;
+  @Nullable
+  private double[] lastWeights;
+  @Nullable
+  private double[] lastGradient;
+  private double lastSum;
+  private boolean hasLast = false;
+
+  public int getMaxHistory() {
+    return maxHistory;
+  }
+
+  public void setMaxHistory(int maxHistory) {
+    this.maxHistory = maxHistory;
+    ids = null;
+  }
+
+  public double getInitialRadius() {
+    return initialRadius;
+  }
+
+  public void setInitialRadius(double initialRadius) {
+    this.initialRadius = initialRadius;
+    this.radius = initialRadius;
+  }
+
+  public double getMinRadius() {
+    return minRadius;
+  }
+
+  public void setMinRadius(double minRadius) {
+    this.minRadius = minRadius;
+  }
+
+  public double getMaxRadius() {
+    return maxRadius;
+  }
+
+  public void setMaxRadius(double maxRadius) {
+    this.maxRadius = maxRadius;
+  }
+
+  public double getSkipThreshold() {
+    return skipThreshold;
+  }
+
+  /**
+   * A pair is skipped unless |s'(y - Bs)| is at least this fraction of |s| |y - Bs|, which keeps the update bounded.
+   */
+  public void setSkipThreshold(double skipThreshold) {
+    this.skipThreshold = skipThreshold;
+  }
+
+  public synchronized double getRadius() {
+    return radius;
+  }
+
+  public synchronized int getPairCount() {
+    return s.size();
+  }
+
+  @Nonnull
+  @Override
+  public synchronized SimpleLineSearchCursor orient(@Nonnull Trainable subject, @Nonnull PointSample measurement,
+                                                    @Nonnull TrainingMonitor monitor) {
+    prepare(measurement.delta);
+    final double[] gradient = new double[columns];
+    final double[] weights = new double[columns];
+    if (!load(measurement, gradient, weights) || !Double.isFinite(measurement.sum)) {
+      hasLast = false;
+      return steepest(subject, measurement, gradient, monitor);
+    }
+    if (hasLast) update(gradient, weights, measurement.sum, monitor);
+    assert lastWeights != null && lastGradient != null;
+    System.arraycopy(weights, 0, lastWeights, 0, columns);
+    System.arraycopy(gradient, 0, lastGradient, 0, columns);
+    lastSum = measurement.sum;
+    hasLast = true;
+    if (null == middle) return steepest(subject, measurement, gradient, monitor);
+    final double[] step = solve(gradient);
+    if (null == step) return steepest(subject, measurement, gradient, monitor);
+    AsyncTrainingMonitor.log(monitor, "LSR1: radius = %s, pairs = %s, gamma = %s").arg(radius).arg(s.size())
+        .arg(gamma).publish();
+    return cursor(subject, measurement, step, CURSOR_LABEL);
+  }
+
+  @Override
+  public synchronized void reset() {
+    clearHistory();
+    hasLast = false;
+    radius = initialRadius;
+  }
+
+  @Override
+  public synchronized void _free() {
+    super._free();
+    clearHistory();
+    spare.clear();
+  }
+
+  @Nonnull
+  public @Override
+  @SuppressWarnings("unused")
+  LSR1 addRef() {
+    return (LSR1) super.addRef();
+  }
+
+  /**
+   * Scores the step just taken against the model that proposed it, adapts the radius, then adds the new pair.
+   */
+  private void update(@Nonnull double[] gradient, @Nonnull double[] weights, double sum,
+                      @Nonnull TrainingMonitor monitor) {
+    assert lastWeights != null && lastGradient != null;
+    final double[] sNew = spare.isEmpty() ? new double[columns] : spare.pop();
+    final double[] yNew = spare.isEmpty() ? new double[columns] : spare.pop();
+    double lastGs = 0;
+    for (int i = 0; i < columns; i++) {
+      sNew[i] = weights[i] - lastWeights[i];
+      yNew[i] = gradient[i] - lastGradient[i];
+      lastGs += lastGradient[i] * sNew[i];
+    }
+    final int m = s.size();
+    final double[] sDotS = new double[m];
+    final double[] sDotY = new double[m];
+    final double[] yDotS = new double[m];
+    final double[] yDotY = new double[m];
+    for (int j = 0; j < m; j++) {
+      sDotS[j] = dot(s.get(j), sNew);
+      sDotY[j] = dot(s.get(j), yNew);
+      yDotS[j] = dot(y.get(j), sNew);
+      yDotY[j] = dot(y.get(j), yNew);
+    }
+    final double ssNew = dot(sNew, sNew);
+    final double syNew = dot(sNew, yNew);
+    final double yyNew = dot(yNew, yNew);
+    final double stepNorm = Math.sqrt(ssNew);
+    boolean admit = ssNew > 0 && Double.isFinite(syNew) && Double.isFinite(yyNew);
+    if (null != middle && ssNew > 0) {
+      final double[] psiS = new double[m];
+      final double[] psiY = new double[m];
+      for (int j = 0; j < m; j++) {
+        psiS[j] = yDotS[j] - gamma * sDotS[j];
+        psiY[j] = yDotY[j] - gamma * sDotY[j];
+      }
+      final double[] mPsiS = multiply(middle, psiS);
+      final double sBs = gamma * ssNew + dot(psiS, mPsiS);
+      final double predicted = -(lastGs + 0.5 * sBs);
+      final double actual = lastSum - sum;
+      if (predicted > 0) {
+        final double ratio = actual / predicted;
+        if (ratio < 0.25) {
+          radius = Math.max(minRadius, 0.5 * Math.min(radius, stepNorm));
+        } else if (ratio > 0.75 && stepNorm >= 0.8 * radius) {
+          radius = Math.min(maxRadius, 2 * radius);
+        }
+        AsyncTrainingMonitor.log(monitor, "LSR1: actual/predicted = %s/%s, radius = %s").arg(actual).arg(predicted)
+            .arg(radius).publish();
+      }
+      // |y - Bs|^2 = y'y - 2 y'Bs + |Bs|^2, all from inner products with the stored pairs
+      final double yBs = gamma * syNew + dot(psiY, mPsiS);
+      final double[] psiPsiMPsiS = multiply(psiGram(), mPsiS);
+      final double bsBs = gamma * gamma * ssNew + 2 * gamma * dot(psiS, mPsiS) + dot(mPsiS, psiPsiMPsiS);
+      final double residual = Math.sqrt(Math.max(0, yyNew - 2 * yBs + bsBs));
+      admit &= Math.abs(syNew - sBs) >= skipThreshold * stepNorm * residual;
+    }
+    if (!admit) {
+      spare.push(sNew);
+      spare.push(yNew);
+      return;
+    }
+    if (m == maxHistory) {
+      spare.push(s.remove(0));
+      spare.push(y.remove(0));
+      shift(ss);
+      shift(sy);
+      shift(yy);
+    }
+    final int k = s.size();
+    s.add(sNew);
+    y.add(yNew);
+    final int offset = m - k;
+    for (int j = 0; j < k; j++) {
+      ss[j][k] = ss[k][j] = sDotS[j + offset];
+      sy[j][k] = sDotY[j + offset];
+      sy[k][j] = yDotS[j + offset];
+      yy[j][k] = yy[k][j] = yDotY[j + offset];
+    }
+    ss[k][k] = ssNew;
+    sy[k][k] = syNew;
+    yy[k][k] = yyNew;
+    rebuild();
+  }
+
+  /**
+   * Recomputes gamma and M = (D + L + L' - gamma*S'S)^-1, dropping the oldest pairs while the middle matrix is
+   * singular.
+   */
+  private void rebuild() {
+    middle = null;
+    while (!s.isEmpty()) {
+      final int m = s.size();
+      gamma = Math.sqrt(yy[m - 1][m - 1] / ss[m - 1][m - 1]);
+      if (!(gamma > 0) || !Double.isFinite(gamma)) gamma = 1;
+      final double[][] n = new double[m][m];
+      for (int i = 0; i < m; i++) {
+        for (int j = 0; j < m; j++) {
+          n[i][j] = sy[Math.max(i, j)][Math.min(i, j)] - gamma * ss[i][j];
+        }
+      }
+      final double[][] vectors = new double[m][m];
+      final double[] values = eigen(n, vectors);
+      double largest = 0;
+      double smallest = Double.POSITIVE_INFINITY;
+      for (double value : values) {
+        largest = Math.max(largest, Math.abs(value));
+        smallest = Math.min(smallest, Math.abs(value));
+      }
+      if (largest > 0 && smallest > 1e-10 * largest && Double.isFinite(largest)) {
+        final double[][] inverse = new double[m][m];
+        for (int i = 0; i < m; i++) {
+          for (int j = 0; j < m; j++) {
+            double sum = 0;
+            for (int l = 0; l < m; l++) {
+              sum += vectors[i][l] * vectors[j][l] / values[l];
+            }
+            inverse[i][j] = sum;
+          }
+        }
+        middle = inverse;
+        return;
+      }
+      spare.push(s.remove(0));
+      spare.push(y.remove(0));
+      shift(ss);
+      shift(sy);
+      shift(yy);
+    }
+  }
+
+  /**
+   * Solves min g'p + p'Bp/2 subject to |p| &lt;= radius, returning null if the model gives no descent direction.
+   */
+  @Nullable
+  private double[] solve(@Nonnull double[] gradient) {
+    assert middle != null;
+    final int m = s.size();
+    final double[] psiG = new double[m];
+    for (int j = 0; j < m; j++) {
+      psiG[j] = dot(y.get(j), gradient) - gamma * dot(s.get(j), gradient);
+    }
+    final double gg = dot(gradient, gradient);
+    if (!(gg > 0)) return null;
+    // Thin QR of Psi through its Gram matrix: Psi = Q R with Q = Psi V e^-1/2 and R = e^1/2 V'
+    final double[][] gramVectors = new double[m][m];
+    final double[] gramValues = eigen(psiGram(), gramVectors);
+    double largest = 0;
+    for (double value : gramValues) largest = Math.max(largest, value);
+    if (!(largest > 0)) return null;
+    final List<Integer> kept = new ArrayList<>();
+    for (int i = 0; i < m; i++) {
+      if (gramValues[i] > 1e-12 * largest) kept.add(i);
+    }
+    final int r = kept.size();
+    final double[][] c0 = new double[m][r];
+    final double[][] rm = new double[r][m];
+    for (int k = 0; k < r; k++) {
+      final int i = kept.get(k);
+      final double root = Math.sqrt(gramValues[i]);
+      for (int j = 0; j < m; j++) {
+        c0[j][k] = gramVectors[j][i] / root;
+        rm[k][j] = gramVectors[j][i] * root;
+      }
+    }
+    final double[][] rmr = new double[r][r];
+    final double[][] rmRow = multiply(rm, middle);
+    for (int a = 0; a < r; a++) {
+      for (int b = 0; b < r; b++) {
+        rmr[a][b] = dot(rmRow[a], rm[b]);
+      }
+    }
+    final double[][] u = new double[r][r];
+    final double[] lowRank = eigen(rmr, u);
+    // Eigenvectors of B in the range of Psi are the columns of Psi*C, with eigenvalues gamma + lowRank
+    final double[][] c = multiply(c0, u);
+    final double[] lambda = new double[r];
+    final double[] gPar = new double[r];
+    double gParSq = 0;
+    int minIndex = -1;
+    double lambdaMin = gamma;
+    for (int k = 0; k < r; k++) {
+      lambda[k] = gamma + lowRank[k];
+      for (int j = 0; j < m; j++) {
+        gPar[k] += c[j][k] * psiG[j];
+      }
+      gParSq += gPar[k] * gPar[k];
+      if (lambda[k] < lambdaMin) {
+        lambdaMin = lambda[k];
+        minIndex = k;
+      }
+    }
+    final double gPerpSq = Math.max(0, gg - gParSq);
+    final double lower = Math.max(0, -lambdaMin);
+    double sigma;
+    double tau = 0;
+    if (lambdaMin > 0 && stepNorm(lambda, gPar, gPerpSq, 0) <= radius) {
+      sigma = 0;
+    } else if (lambdaMin < 0 && 0 <= minIndex && isHardCase(lambda, gPar, gPerpSq, lower, gg)) {
+      sigma = lower;
+      final double norm = stepNorm(lambda, gPar, gPerpSq, sigma);
+      tau = Math.sqrt(Math.max(0, radius * radius - norm * norm));
+    } else {
+      double lo = lower;
+      double hi = lower + Math.sqrt(gg) / radius;
+      for (int iteration = 0; iteration < 200 && hi - lo > 1e-14 * Math.max(1, hi); iteration++) {
+        final double mid = 0.5 * (lo + hi);
+        if (stepNorm(lambda, gPar, gPerpSq, mid) > radius) lo = mid;
+        else hi = mid;
+      }
+      sigma = hi;
+    }
+    // p = -g/(gamma+sigma) + Psi*C*h with h_k = gPar_k (1/(gamma+sigma) - 1/(lambda_k+sigma)), plus tau on the
+    // leading negative eigenvector in the hard case
+    final double a = -1 / (gamma + sigma);
+    final double[] h = new double[r];
+    for (int k = 0; k < r; k++) {
+      final double shifted = lambda[k] + sigma;
+      h[k] = gPar[k] / (gamma + sigma) - (Math.abs(shifted) > 1e-300 && 0 != gPar[k] ? gPar[k] / shifted : 0);
+    }
+    if (0 != tau) h[minIndex] += tau;
+    final double[] w = new double[m];
+    for (int j = 0; j < m; j++) {
+      for (int k = 0; k < r; k++) {
+        w[j] += c[j][k] * h[k];
+      }
+    }
+    final double[] step = new double[columns];
+    for (int i = 0; i < columns; i++) {
+      step[i] = a * gradient[i];
+    }
+    for (int j = 0; j < m; j++) {
+      final double[] sj = s.get(j);
+      final double[] yj = y.get(j);
+      final double wj = w[j];
+      for (int i = 0; i < columns; i++) {
+        step[i] += wj * (yj[i] - gamma * sj[i]);
+      }
+    }
+    final double slope = dot(step, gradient);
+    return slope < 0 && Double.isFinite(slope) ? step : null;
+  }
+
+  /**
+   * The hard case: the gradient has no component along the most negative eigenvector and the shifted step at the
+   * smallest admissible shift is still inside the region.
+   */
+  private boolean isHardCase(@Nonnull double[] lambda, @Nonnull double[] gPar, double gPerpSq, double lower,
+                             double gg) {
+    for (int k = 0; k < lambda.length; k++) {
+      if (Math.abs(lambda[k] + lower) <= 1e-12 * Math.max(1, Math.abs(lower)) && gPar[k] * gPar[k] > 1e-20 * gg) {
+        return false;
+      }
+    }
+    return stepNorm(lambda, gPar, gPerpSq, lower) < radius;
+  }
+
+  private double stepNorm(@Nonnull double[] lambda, @Nonnull double[] gPar, double gPerpSq, double sigma) {
+    double sum = 0;
+    for (int k = 0; k < lambda.length; k++) {
+      final double shifted = lambda[k] + sigma;
+      if (0 == gPar[k]) continue;
+      if (!(Math.abs(shifted) > 1e-300)) return Double.POSITIVE_INFINITY;
+      sum += gPar[k] * gPar[k] / (shifted * shifted);
+    }
+    final double shifted = gamma + sigma;
+    sum += gPerpSq / (shifted * shifted);
+    return Math.sqrt(sum);
+  }
+
+  @Nonnull
+  private double[][] psiGram() {
+    final int m = s.size();
+    final double[][] gram = new double[m][m];
+    for (int i = 0; i < m; i++) {
+      for (int j = 0; j < m; j++) {
+        gram[i][j] = yy[i][j] - gamma * (sy[i][j] + sy[j][i]) + gamma * gamma * ss[i][j];
+      }
+    }
+    return gram;
+  }
+
+  @Nonnull
+  private SimpleLineSearchCursor steepest(@Nonnull Trainable subject, @Nonnull PointSample measurement,
+                                          @Nonnull double[] gradient, @Nonnull TrainingMonitor monitor) {
+    final double norm = Math.sqrt(dot(gradient, gradient));
+    final double scale = norm > 0 ? -Math.min(radius, norm) / norm : -1;
+    final double[] step = new double[gradient.length];
+    for (int i = 0; i < step.length; i++) {
+      step[i] = scale * gradient[i];
+    }
+    AsyncTrainingMonitor.log(monitor, "LSR1: steepest descent, radius = %s").arg(radius).publish();
+    return cursor(subject, measurement, step, CURSOR_LABEL + "/GD");
+  }
+
+  @Nonnull
+  private SimpleLineSearchCursor cursor(@Nonnull Trainable subject, @Nonnull PointSample measurement,
+                                        @Nonnull double[] step, @Nonnull String type) {
+    @Nonnull final DeltaSet<UUID> direction = new DeltaSet<>();
+    assert ids != null;
+    int offset = 0;
+    for (int l = 0; l < ids.length; l++) {
+      final Delta<UUID> gradient = measurement.delta.get(ids[l]);
+      assert gradient != null;
+      final Delta<UUID> delta = direction.get(ids[l], gradient.target);
+      gradient.freeRef();
+      assert delta != null;
+      final double[] values = delta.getDelta();
+      delta.freeRef();
+      assert values != null;
+      if (offset + values.length <= step.length)
+        System.arraycopy(step, offset, values, 0, values.length);
+      offset += lengths[l];
+    }
+    @Nonnull final SimpleLineSearchCursor cursor = new SimpleLineSearchCursor(subject, measurement, direction);
+    cursor.setDirectionType(type);
+    return cursor;
+  }
+
+  /**
+   * Lays out the layers by sorted id, discarding the history when the set of layers or their sizes changed.
+   */
+  private void prepare(@Nonnull DeltaSet<UUID> gradient) {
+    final TreeMap<UUID, Integer> layout = new TreeMap<>();
+    final RefMap<UUID, Delta<UUID>> map = gradient.getMap();
+    map.forEach((id, delta) -> {
+      final double[] values = delta.getDelta();
+      if (null != values) layout.put(id, values.length);
+      delta.freeRef();
+    });
+    map.freeRef();
+    if (null != ids && ids.length == layout.size()) {
+      int l = 0;
+      boolean same = true;
+      for (Map.Entry<UUID, Integer> entry : layout.entrySet()) {
+        same &= ids[l].equals(entry.getKey()) && lengths[l] == entry.getValue();
+        l++;
+      }
+      if (same) return;
+    }
+    ids = layout.keySet().toArray(new UUID[0]);
+    lengths = layout.values().stream().mapToInt(x -> x).toArray();
+    long total = 0;
+    for (int length : lengths) total += length;
+    if (total > Integer.MAX_VALUE) throw new IllegalStateException("Too many parameters: " + total);
+    columns = (int) total;
+    clearHistory();
+    spare.clear();
+    ss = new double[maxHistory][maxHistory];
+    sy = new double[maxHistory][maxHistory];
+    yy = new double[maxHistory][maxHistory];
+    lastWeights = new double[columns];
+    lastGradient = new double[columns];
+    hasLast = false;
+    radius = initialRadius;
+  }
+
+  private boolean load(@Nonnull PointSample measurement, @Nonnull double[] gradient, @Nonnull double[] weights) {
+    assert ids != null;
+    int offset = 0;
+    for (int l = 0; l < ids.length; l++) {
+      final Delta<UUID> delta = measurement.delta.get(ids[l]);
+      final DoubleBuffer<UUID> state = measurement.weights.get(ids[l]);
+      final double[] g = null == delta ? null : delta.getDelta();
+      final double[] w = null == state ? null : state.getDelta();
+      if (null != delta) delta.freeRef();
+      if (null != state) state.freeRef();
+      if (null == g || null == w || g.length != lengths[l] || w.length != lengths[l]) return false;
+      System.arraycopy(g, 0, gradient, offset, g.length);
+      System.arraycopy(w, 0, weights, offset, w.length);
+      offset += lengths[l];
+    }
+    return true;
+  }
+
+  private void clearHistory() {
+    while (!s.isEmpty()) {
+      spare.push(s.remove(s.size() - 1));
+      spare.push(y.remove(y.size() - 1));
+    }
+    middle = null;
+  }
+
+  private static void shift(@Nonnull double[][] gram) {
+    final int n = gram.length;
+    for (int i = 0; i + 1 < n; i++) {
+      System.arraycopy(gram[i + 1], 1, gram[i], 0, n - 1);
+    }
+  }
+
+  private static double dot(@Nonnull double[] a, @Nonnull double[] b) {
+    double sum = 0;
+    for (int i = 0; i < a.length; i++) {
+      sum += a[i] * b[i];
+    }
+    return sum;
+  }
+
+  @Nonnull
+  private static double[] multiply(@Nonnull double[][] matrix, @Nonnull double[] vector) {
+    final double[] result = new double[matrix.length];
+    for (int i = 0; i < matrix.length; i++) {
+      result[i] = dot(matrix[i], vector);
+    }
+    return result;
+  }
+
+  @Nonnull
+  private static double[][] multiply(@Nonnull double[][] left, @Nonnull double[][] right) {
+    final int inner = right.length;
+    final int width = 0 == inner ? 0 : right[0].length;
+    final double[][] result = new double[left.length][width];
+    for (int i = 0; i < left.length; i++) {
+      for (int l = 0; l < inner; l++) {
+        final double value = left[i][l];
+        for (int j = 0; j < width; j++) {
+          result[i][j] += value * right[l][j];
+        }
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Cyclic Jacobi eigendecomposition of a small symmetric matrix. Fills {@code vectors} with the eigenvectors as
+   * columns and returns the eigenvalues.
+   */
+  @Nonnull
+  private static double[] eigen(@Nonnull double[][] matrix, @Nonnull double[][] vectors) {
+    final int n = matrix.length;
+    final double[][] a = new double[n][];
+    double scale = 0;
+    for (int i = 0; i < n; i++) {
+      a[i] = Arrays.copyOf(matrix[i], n);
+      Arrays.fill(vectors[i], 0);
+      vectors[i][i] = 1;
+      for (int j = 0; j < n; j++) scale += a[i][j] * a[i][j];
+    }
+    for (int sweep = 0; sweep < 64; sweep++) {
+      double off = 0;
+      for (int p = 0; p < n; p++) {
+        for (int q = p + 1; q < n; q++) off += a[p][q] * a[p][q];
+      }
+      if (!(off > 1e-30 * scale)) break;
+      for (int p = 0; p < n; p++) {
+        for (int q = p + 1; q < n; q++) {
+          if (0 == a[p][q]) continue;
+          final double theta = (a[q][q] - a[p][p]) / (2 * a[p][q]);
+          final double t = (theta >= 0 ? 1 : -1) / (Math.abs(theta) + Math.sqrt(theta * theta + 1));
+          final double cos = 1 / Math.sqrt(t * t + 1);
+          final double sin = t * cos;
+          for (int k = 0; k < n; k++) {
+            final double kp = a[k][p];
+            final double kq = a[k][q];
+            a[k][p] = cos * kp - sin * kq;
+            a[k][q] = sin * kp + cos * kq;
+          }
+          for (int k = 0; k < n; k++) {
+            final double pk = a[p][k];
+            final double qk = a[q][k];
+            a[p][k] = cos * pk - sin * qk;
+            a[q][k] = sin * pk + cos * qk;
+          }
+          for (int k = 0; k < n; k++) {
+            final double kp = vectors[k][p];
+            final double kq = vectors[k][q];
+            vectors[k][p] = cos * kp - sin * kq;
+            vectors[k][q] = sin * kp + cos * kq;
+          }
+        }
+      }
+    }
+    final double[] values = new double[n];
+    for (int i = 0; i < n; i++) values[i] = a[i][i];
+    return values;
+  }
+}
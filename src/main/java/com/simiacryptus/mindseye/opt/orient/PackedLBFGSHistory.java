@@ -0,0 +1,487 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.mindseye.opt.orient;
+
+import com.simiacryptus.mindseye.eval.Trainable;
+import com.simiacryptus.mindseye.lang.Delta;
+import com.simiacryptus.mindseye.lang.DeltaSet;
+import com.simiacryptus.mindseye.lang.DoubleBuffer;
+import com.simiacryptus.mindseye.lang.PointSample;
+import com.simiacryptus.mindseye.opt.line.SimpleLineSearchCursor;
+import com.simiacryptus.ref.wrappers.RefMap;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.util.*;
+
+/**
+ * L-BFGS history packed into one off-heap matrix. Each row holds a whole flattened s or y vector, laid out by sorted
+ * layer id, in float or double precision. Instead of walking per-layer arrays, the two-loop recursion runs on the
+ * small Gram matrix of the stored vectors (the vector-free formulation), so each orientation costs one blocked pass
+ * for the gradient's dot products and one to assemble the direction. Adding a pair is also a single blocked pass.
+ *
+ * <p>Pairs are formed from consecutive samples in the order they are added, and the oldest pair is evicted first, as
+ * in textbook L-BFGS. The core {@link LBFGS} instead keeps its samples sorted by loss, highest first, pairs neighbours
+ * in that order and evicts the highest loss. The two agree while every added sample improves on the one before, as
+ * accepted iterates do. They differ when QQN admits a line search probe that went uphill: here it is still paired with
+ * its predecessor, and the pair is kept only if its curvature s.y is positive.</p>
+ */
+public class PackedLBFGSHistory {
+  private static final int BLOCK = 2048;
+
+  @Nonnull
+  private final Precision precision;
+  private int maxHistory;
+  private int minHistory;
+  @Nullable
+  private UUID[] ids;
+  private int[] offsets;
+  private int[] lengths;
+  private int columns;
+  @Nullable
+  private ByteBuffer buffer;
+  private java.nio.DoubleBuffer doubles;
+  @Nullable
+  private FloatBuffer floats;
+  private int slots;
+  private final ArrayDeque<Integer> active = new ArrayDeque<>();
+  private final ArrayDeque<Integer> free = new ArrayDeque<>();
+  private double[][] gram;
+  private double[][] scratch;
+  @Nullable
+  private float[] floatScratch;
+  private int lastWeights;
+  private int lastGradient;
+  private int nextWeights;
+  private int nextGradient;
+  private boolean hasLast;
+
+  public PackedLBFGSHistory(@Nonnull Precision precision, int minHistory, int maxHistory) {
+    this.precision = precision;
+    this.minHistory = minHistory;
+    this.maxHistory = maxHistory;
+  }
+
+  @Nonnull
+  public Precision getPrecision() {
+    return precision;
+  }
+
+  public synchronized int getMaxHistory() {
+    return maxHistory;
+  }
+
+  public synchronized void setMaxHistory(int maxHistory) {
+    if (this.maxHistory != maxHistory) {
+      this.maxHistory = maxHistory;
+      buffer = null;
+    }
+  }
+
+  public synchronized int getMinHistory() {
+    return minHistory;
+  }
+
+  public synchronized void setMinHistory(int minHistory) {
+    this.minHistory = minHistory;
+  }
+
+  public synchronized int getPairCount() {
+    return null == buffer ? 0 : active.size();
+  }
+
+  public synchronized long getBytes() {
+    return null == buffer ? 0 : buffer.capacity();
+  }
+
+  public synchronized void reset() {
+    if (null == buffer) return;
+    free.addAll(active);
+    active.clear();
+    hasLast = false;
+  }
+
+  /**
+   * Pairs the sample with the previous one and keeps the pair if it has positive curvature.
+   */
+  public synchronized void add(@Nonnull PointSample sample) {
+    try {
+      if (!Double.isFinite(sample.sum)) return;
+      prepare(sample.delta);
+      if (!loadGradient(sample.delta, nextGradient) || !loadWeights(sample, nextWeights)) {
+        hasLast = false;
+        return;
+      }
+      if (hasLast) pair();
+      swap();
+      hasLast = true;
+    } finally {
+      sample.freeRef();
+    }
+  }
+
+  /**
+   * Returns an L-BFGS cursor from the origin, falling back to steepest descent until {@code minHistory} pairs are
+   * stored or when the history does not yield a descent direction.
+   */
+  @Nonnull
+  public synchronized SimpleLineSearchCursor orient(@Nonnull Trainable subject, @Nonnull PointSample origin) {
+    prepare(origin.delta);
+    final int pairs = active.size();
+    if (pairs < Math.max(1, minHistory) || !loadGradient(origin.delta, nextGradient)) {
+      return gradientDescent(subject, origin);
+    }
+    final int[] order = new int[pairs];
+    int p = 0;
+    for (int slot : active) {
+      order[p++] = slot;
+    }
+    final int[] rows = new int[2 * pairs];
+    for (int i = 0; i < pairs; i++) {
+      rows[2 * i] = sRow(order[i]);
+      rows[2 * i + 1] = yRow(order[i]);
+    }
+    final double[] gradientDots = new double[rows.length + 1];
+    final double[] g = scratch[0];
+    for (int from = 0; from < columns; from += BLOCK) {
+      final int length = Math.min(BLOCK, columns - from);
+      read(nextGradient, from, length, g);
+      for (int r = 0; r < rows.length; r++) {
+        final double[] row = scratch[r + 1];
+        read(rows[r], from, length, row);
+        gradientDots[r] += dot(g, row, length);
+      }
+      gradientDots[rows.length] += dot(g, g, length);
+    }
+    // Coefficients over [s_0, y_0, ..., s_k, y_k, g]; dotWith(x) evaluates the represented vector against basis x
+    final double[] coefficients = new double[rows.length + 1];
+    coefficients[rows.length] = 1;
+    final double[] alpha = new double[pairs];
+    for (int i = pairs - 1; i >= 0; i--) {
+      final double rho = 1 / gram[rows[2 * i]][rows[2 * i + 1]];
+      alpha[i] = rho * dotWith(coefficients, rows, gradientDots, 2 * i);
+      coefficients[2 * i + 1] -= alpha[i];
+    }
+    final int newest = 2 * (pairs - 1);
+    final double gamma = gram[rows[newest]][rows[newest + 1]] / gram[rows[newest + 1]][rows[newest + 1]];
+    for (int j = 0; j < coefficients.length; j++) {
+      coefficients[j] *= gamma;
+    }
+    for (int i = 0; i < pairs; i++) {
+      final double rho = 1 / gram[rows[2 * i]][rows[2 * i + 1]];
+      final double beta = rho * dotWith(coefficients, rows, gradientDots, 2 * i + 1);
+      coefficients[2 * i] += alpha[i] - beta;
+    }
+    final double descent = dotWith(coefficients, rows, gradientDots, rows.length);
+    if (!(descent > 0) || !Double.isFinite(descent)) {
+      return gradientDescent(subject, origin);
+    }
+    @Nonnull final DeltaSet<UUID> direction = new DeltaSet<>();
+    assert ids != null;
+    final double[][] outputs = new double[ids.length][];
+    for (int l = 0; l < ids.length; l++) {
+      final Delta<UUID> gradient = origin.delta.get(ids[l]);
+      assert gradient != null;
+      final Delta<UUID> delta = direction.get(ids[l], gradient.target);
+      gradient.freeRef();
+      assert delta != null;
+      outputs[l] = delta.getDelta();
+      delta.freeRef();
+    }
+    final double[] block = scratch[rows.length + 1];
+    int layer = 0;
+    for (int from = 0; from < columns; from += BLOCK) {
+      final int length = Math.min(BLOCK, columns - from);
+      read(nextGradient, from, length, g);
+      final double gradientCoefficient = -coefficients[rows.length];
+      for (int i = 0; i < length; i++) {
+        block[i] = gradientCoefficient * g[i];
+      }
+      for (int r = 0; r < rows.length; r++) {
+        final double coefficient = -coefficients[r];
+        if (coefficient == 0) continue;
+        final double[] row = scratch[r + 1];
+        read(rows[r], from, length, row);
+        for (int i = 0; i < length; i++) {
+          block[i] += coefficient * row[i];
+        }
+      }
+      layer = scatter(block, from, length, outputs, layer);
+    }
+    @Nonnull final SimpleLineSearchCursor cursor = new SimpleLineSearchCursor(subject, origin, direction);
+    cursor.setDirectionType("LBFGS");
+    return cursor;
+  }
+
+  @Nonnull
+  private static SimpleLineSearchCursor gradientDescent(@Nonnull Trainable subject, @Nonnull PointSample origin) {
+    @Nonnull final DeltaSet<UUID> direction = origin.delta.scale(-1);
+    @Nonnull final SimpleLineSearchCursor cursor = new SimpleLineSearchCursor(subject, origin, direction);
+    cursor.setDirectionType("GD");
+    return cursor;
+  }
+
+  private double dotWith(@Nonnull double[] coefficients, @Nonnull int[] rows, @Nonnull double[] gradientDots, int basis) {
+    final int g = rows.length;
+    double sum = coefficients[g] * gradientDots[basis];
+    if (basis == g) {
+      for (int j = 0; j < g; j++) {
+        sum += coefficients[j] * gradientDots[j];
+      }
+    } else {
+      for (int j = 0; j < g; j++) {
+        sum += coefficients[j] * gram[rows[j]][rows[basis]];
+      }
+    }
+    return sum;
+  }
+
+  private void pair() {
+    final int slot = free.peekFirst();
+    final int s = sRow(slot);
+    final int y = yRow(slot);
+    final int[] rows = new int[2 * active.size()];
+    int p = 0;
+    for (int other : active) {
+      rows[p++] = sRow(other);
+      rows[p++] = yRow(other);
+    }
+    final double[] sDots = new double[rows.length];
+    final double[] yDots = new double[rows.length];
+    double ss = 0;
+    double yy = 0;
+    double sy = 0;
+    final double[] sBlock = scratch[0];
+    final double[] yBlock = scratch[1];
+    final double[] previous = scratch[2];
+    final double[] row = scratch[3];
+    for (int from = 0; from < columns; from += BLOCK) {
+      final int length = Math.min(BLOCK, columns - from);
+      read(nextWeights, from, length, sBlock);
+      read(lastWeights, from, length, previous);
+      for (int i = 0; i < length; i++) {
+        sBlock[i] -= previous[i];
+      }
+      read(nextGradient, from, length, yBlock);
+      read(lastGradient, from, length, previous);
+      for (int i = 0; i < length; i++) {
+        yBlock[i] -= previous[i];
+      }
+      write(s, from, length, sBlock);
+      write(y, from, length, yBlock);
+      ss += dot(sBlock, sBlock, length);
+      yy += dot(yBlock, yBlock, length);
+      sy += dot(sBlock, yBlock, length);
+      for (int r = 0; r < rows.length; r++) {
+        read(rows[r], from, length, row);
+        sDots[r] += dot(sBlock, row, length);
+        yDots[r] += dot(yBlock, row, length);
+      }
+    }
+    if (!(ss > 0) || !(sy > 1e-10 * Math.sqrt(ss * yy))) return;
+    gram[s][s] = ss;
+    gram[y][y] = yy;
+    gram[s][y] = gram[y][s] = sy;
+    for (int r = 0; r < rows.length; r++) {
+      gram[s][rows[r]] = gram[rows[r]][s] = sDots[r];
+      gram[y][rows[r]] = gram[rows[r]][y] = yDots[r];
+    }
+    free.pollFirst();
+    active.addLast(slot);
+    if (active.size() > maxHistory) free.addLast(active.pollFirst());
+  }
+
+  private void swap() {
+    final int weights = lastWeights;
+    final int gradient = lastGradient;
+    lastWeights = nextWeights;
+    lastGradient = nextGradient;
+    nextWeights = weights;
+    nextGradient = gradient;
+  }
+
+  private int sRow(int slot) {
+    return 2 * slot;
+  }
+
+  private int yRow(int slot) {
+    return 2 * slot + 1;
+  }
+
+  /**
+   * Rebuilds the layout and storage when the set of layers, their sizes or the history length changed.
+   */
+  private void prepare(@Nonnull DeltaSet<UUID> gradient) {
+    final TreeMap<UUID, Integer> layout = new TreeMap<>();
+    final RefMap<UUID, Delta<UUID>> map = gradient.getMap();
+    map.forEach((id, delta) -> {
+      final double[] values = delta.getDelta();
+      if (null != values) layout.put(id, values.length);
+      delta.freeRef();
+    });
+    map.freeRef();
+    if (null != buffer && null != ids && matches(layout)) return;
+    final int layers = layout.size();
+    ids = new UUID[layers];
+    offsets = new int[layers];
+    lengths = new int[layers];
+    long total = 0;
+    int l = 0;
+    for (Map.Entry<UUID, Integer> entry : layout.entrySet()) {
+      ids[l] = entry.getKey();
+      offsets[l] = (int) total;
+      lengths[l] = entry.getValue();
+      total += entry.getValue();
+      l++;
+    }
+    slots = Math.max(1, maxHistory) + 1;
+    final int rowCount = 2 * slots + 4;
+    final long bytes = total * rowCount * precision.bytes;
+    if (bytes > Integer.MAX_VALUE) {
+      throw new IllegalStateException(String.format("Packed history needs %s bytes; reduce maxHistory or use %s",
+          bytes, Precision.FLOAT));
+    }
+    columns = (int) total;
+    buffer = ByteBuffer.allocateDirect((int) bytes).order(ByteOrder.nativeOrder());
+    doubles = precision == Precision.DOUBLE ? buffer.asDoubleBuffer() : null;
+    floats = precision == Precision.FLOAT ? buffer.asFloatBuffer() : null;
+    gram = new double[2 * slots][2 * slots];
+    scratch = new double[2 * slots + 2][Math.min(BLOCK, Math.max(1, columns))];
+    floatScratch = precision == Precision.FLOAT ? new float[scratch[0].length] : null;
+    active.clear();
+    free.clear();
+    for (int slot = 0; slot < slots; slot++) {
+      free.addLast(slot);
+    }
+    lastWeights = 2 * slots;
+    lastGradient = 2 * slots + 1;
+    nextWeights = 2 * slots + 2;
+    nextGradient = 2 * slots + 3;
+    hasLast = false;
+  }
+
+  private boolean matches(@Nonnull TreeMap<UUID, Integer> layout) {
+    assert ids != null;
+    if (layout.size() != ids.length) return false;
+    int l = 0;
+    for (Map.Entry<UUID, Integer> entry : layout.entrySet()) {
+      if (!entry.getKey().equals(ids[l]) || entry.getValue() != lengths[l]) return false;
+      l++;
+    }
+    return true;
+  }
+
+  private boolean loadGradient(@Nonnull DeltaSet<UUID> gradient, int row) {
+    assert ids != null;
+    for (int l = 0; l < ids.length; l++) {
+      final Delta<UUID> delta = gradient.get(ids[l]);
+      if (null == delta) return false;
+      final double[] values = delta.getDelta();
+      delta.freeRef();
+      if (null == values || values.length != lengths[l]) return false;
+      write(row, offsets[l], values.length, values);
+    }
+    return true;
+  }
+
+  private boolean loadWeights(@Nonnull PointSample sample, int row) {
+    assert ids != null;
+    for (int l = 0; l < ids.length; l++) {
+      final DoubleBuffer<UUID> state = sample.weights.get(ids[l]);
+      if (null == state) return false;
+      final double[] values = state.getDelta();
+      state.freeRef();
+      if (null == values || values.length != lengths[l]) return false;
+      write(row, offsets[l], values.length, values);
+    }
+    return true;
+  }
+
+  private int scatter(@Nonnull double[] block, int from, int length, @Nonnull double[][] outputs, int layer) {
+    int position = from;
+    final int end = from + length;
+    while (position < end) {
+      while (offsets[layer] + lengths[layer] <= position) layer++;
+      final int within = position - offsets[layer];
+      final int count = Math.min(end, offsets[layer] + lengths[layer]) - position;
+      System.arraycopy(block, position - from, outputs[layer], within, count);
+      position += count;
+    }
+    return layer;
+  }
+
+  private void read(int row, int from, int length, @Nonnull double[] target) {
+    final int base = row * columns + from;
+    // Positioned through Buffer, since JDK 9+ links the covariant DoubleBuffer/FloatBuffer overloads that Java 8 lacks
+    if (null != doubles) {
+      ((Buffer) doubles).position(base);
+      doubles.get(target, 0, length);
+    } else {
+      assert floats != null && floatScratch != null;
+      ((Buffer) floats).position(base);
+      floats.get(floatScratch, 0, length);
+      for (int i = 0; i < length; i++) {
+        target[i] = floatScratch[i];
+      }
+    }
+  }
+
+  private void write(int row, int from, int length, @Nonnull double[] source) {
+    final int base = row * columns + from;
+    if (null != doubles) {
+      ((Buffer) doubles).position(base);
+      doubles.put(source, 0, length);
+    } else {
+      assert floats != null && floatScratch != null;
+      // Whole layers are written at once, so narrow through the scratch a block at a time
+      for (int done = 0; done < length; done += floatScratch.length) {
+        final int count = Math.min(floatScratch.length, length - done);
+        for (int i = 0; i < count; i++) {
+          floatScratch[i] = (float) source[done + i];
+        }
+        ((Buffer) floats).position(base + done);
+        floats.put(floatScratch, 0, count);
+      }
+    }
+  }
+
+  private static double dot(@Nonnull double[] a, @Nonnull double[] b, int length) {
+    double sum = 0;
+    for (int i = 0; i < length; i++) {
+      sum += a[i] * b[i];
+    }
+    return sum;
+  }
+
+  public enum Precision {
+    FLOAT(4),
+    DOUBLE(8);
+
+    private final int bytes;
+
+    Precision(int bytes) {
+      this.bytes = bytes;
+    }
+  }
+}
@@ -20,22 +20,37 @@
 package com.simiacryptus.mindseye.opt.orient;
 
 import com.simiacryptus.mindseye.eval.Trainable;
+import com.simiacryptus.mindseye.lang.Delta;
 import com.simiacryptus.mindseye.lang.DeltaSet;
+import com.simiacryptus.mindseye.lang.Layer;
 import com.simiacryptus.mindseye.lang.PointSample;
+import com.simiacryptus.mindseye.opt.AsyncTrainingMonitor;
+import com.simiacryptus.mindseye.opt.OptimizerEvents;
+import com.simiacryptus.mindseye.opt.PhaseTimings;
 import com.simiacryptus.mindseye.opt.TrainingMonitor;
 import com.simiacryptus.mindseye.opt.line.LineSearchCursor;
 import com.simiacryptus.mindseye.opt.line.LineSearchCursorBase;
 import com.simiacryptus.mindseye.opt.line.LineSearchPoint;
 import com.simiacryptus.mindseye.opt.line.SimpleLineSearchCursor;
-import com.simiacryptus.ref.wrappers.RefString;
+import com.simiacryptus.mindseye.opt.orient.PackedLBFGSHistory.Precision;
+import com.simiacryptus.ref.wrappers.RefMap;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import java.util.UUID;
+import java.util.function.Function;
 
 public class QQN extends OrientationStrategyBase<LineSearchCursor> {
 
   public static final String CURSOR_NAME = "QQN";
   private final LBFGS inner = new LBFGS();
+  @Nullable
+  private PackedLBFGSHistory packedHistory = null;
+  @Nonnull
+  private HistoryAdmission historyAdmission = HistoryAdmission.ALL;
+  private int maxProbes = 2;
+  @Nullable
+  private SpeculativeAlphas speculation = null;
 
   public int getMaxHistory() {
     return inner.getMaxHistory();
@@ -43,6 +58,8 @@ public class QQN extends OrientationStrategyBase<LineSearchCursor> {
 
   public void setMaxHistory(final int maxHistory) {
     inner.setMaxHistory(maxHistory);
+    if (null != packedHistory)
+      packedHistory.setMaxHistory(maxHistory);
   }
 
   public int getMinHistory() {
@@ -51,27 +68,104 @@ public class QQN extends OrientationStrategyBase<LineSearchCursor> {
 
   public void setMinHistory(final int minHistory) {
     inner.setMinHistory(minHistory);
+    if (null != packedHistory)
+      packedHistory.setMinHistory(minHistory);
+  }
+
+  @Nonnull
+  public HistoryAdmission getHistoryAdmission() {
+    return historyAdmission;
+  }
+
+  public void setHistoryAdmission(@Nonnull final HistoryAdmission historyAdmission) {
+    this.historyAdmission = historyAdmission;
+  }
+
+  public int getMaxProbes() {
+    return maxProbes;
+  }
+
+  /**
+   * Number of line-search probes per cursor admitted under {@link HistoryAdmission#MAX_PROBES}.
+   */
+  public void setMaxProbes(final int maxProbes) {
+    this.maxProbes = maxProbes;
   }
 
+  @Nonnull
+  public double[] getSpeculativeAlphas() {
+    return null == speculation ? new double[0] : speculation.getAlphas();
+  }
+
+  /**
+   * Measures the given step sizes of each quadratic cursor concurrently, on network copies trained through
+   * {@code factory}, which must evaluate the same data as the subject. Steps the line search asks for are served from
+   * these results; the rest are cancelled. A null factory or no alphas disables speculation. Only full-batch
+   * trainables are supported: if the factory's trainable reports a new sample on reseed(), speculation turns itself
+   * off and every step is measured on the subject.
+   */
+  public void setSpeculation(@Nullable final Function<Layer, ? extends Trainable> factory, final double... alphas) {
+    if (null != speculation)
+      speculation.free();
+    speculation = null == factory || 0 == alphas.length ? null : new SpeculativeAlphas(factory, alphas);
+  }
+
+  @Nullable
+  public Precision getPackedHistory() {
+    return null == packedHistory ? null : packedHistory.getPrecision();
+  }
+
+  /**
+   * Keeps the quasi-Newton history in an off-heap {@link PackedLBFGSHistory} of the given precision instead of the
+   * inner {@link LBFGS}; null restores the default.
+   */
+  public void setPackedHistory(@Nullable final Precision precision) {
+    this.packedHistory = null == precision ? null
+        : new PackedLBFGSHistory(precision, inner.getMinHistory(), inner.getMaxHistory());
+  }
+
+
+  private static void accumulate(@Nonnull DeltaSet<UUID> direction, double factor) {
+    RefMap<UUID, Delta<UUID>> map = direction.getMap();
+    map.forEach((id, delta) -> {
+      delta.accumulate(factor);
+      delta.freeRef();
+    });
+    map.freeRef();
+  }
 
   @Override
   public LineSearchCursor orient(@Nonnull final Trainable subject, @Nonnull final PointSample origin,
                                  @Nonnull final TrainingMonitor monitor) {
-    inner.addToHistory(origin.addRef(), monitor);
-    final SimpleLineSearchCursor lbfgsCursor = inner.orient(subject.addRef(),
-        origin.addRef(), monitor);
+    final PackedLBFGSHistory packedHistory = this.packedHistory;
+    final SimpleLineSearchCursor lbfgsCursor;
+    if (null != packedHistory) {
+      packedHistory.add(origin.addRef());
+      lbfgsCursor = packedHistory.orient(subject.addRef(), origin.addRef());
+    } else {
+      inner.addToHistory(origin.addRef(), monitor);
+      lbfgsCursor = inner.orient(subject.addRef(), origin.addRef(), monitor);
+    }
     assert lbfgsCursor.direction != null;
     final DeltaSet<UUID> lbfgs = lbfgsCursor.direction.addRef();
     @Nonnull final DeltaSet<UUID> gd = origin.delta.scale(-1.0);
+    final HistoryAdmission admission = historyAdmission;
+    final int probeLimit = maxProbes;
+    final double lbfgsSlope = admission == HistoryAdmission.CURVATURE ? lbfgs.dot(origin.delta.addRef()) : 0;
     origin.freeRef();
     final double lbfgsMag = lbfgs.getMagnitude();
     final double gdMag = gd.getMagnitude();
     if (Math.abs(lbfgsMag - gdMag) / (lbfgsMag + gdMag) > 1e-2) {
       @Nonnull final DeltaSet<UUID> scaledGradient = gd.scale(lbfgsMag / gdMag);
       gd.freeRef();
-      monitor.log(RefString.format("Returning Quadratic Cursor %s GD, %s QN", gdMag, lbfgsMag));
+      AsyncTrainingMonitor.log(monitor, "Returning Quadratic Cursor %s GD, %s QN").arg(gdMag).arg(lbfgsMag).publish();
+      // Slope of the scaled gradient at the origin: -|g|^2 * lbfgsMag / gdMag
+      final double gradientSlope = -gdMag * lbfgsMag;
+      final SpeculativeAlphas.Round round = null == speculation ? null
+          : speculation.start(subject.addRef(), scaledGradient.addRef(), lbfgs.addRef());
       try {
         return new LineSearchCursorBase() {
+          private int probes = 0;
 
           {
             subject.addRef();
@@ -110,27 +204,65 @@ public class QQN extends OrientationStrategyBase<LineSearchCursor> {
           public LineSearchPoint step(final double t, @Nonnull final TrainingMonitor monitor) {
             if (!Double.isFinite(t))
               throw new IllegalArgumentException();
+            final PhaseTimings timings = PhaseTimings.current();
+            final long stepStart = timings.start();
+            final long stepBytes = timings.allocated();
+            final OptimizerEvents events = OptimizerEvents.get();
+            final boolean stepEvents = events.isLineSearchEnabled();
+            if (stepEvents)
+              events.lineSearchStepBegin();
             reset();
-            DeltaSet<UUID> temp_38_0008 = position(t);
-            temp_38_0008.accumulate(1);
-            temp_38_0008.freeRef();
-            PointSample temp_38_0009 = subject.measure(monitor);
+            accumulate(scaledGradient, t - t * t);
+            accumulate(lbfgs, t * t);
+            final long measureStart = timings.start();
+            PointSample temp_38_0009 = null == round ? null : round.take(t);
+            if (null == temp_38_0009)
+              temp_38_0009 = subject.measure(monitor);
+            timings.stop(PhaseTimings.Phase.MEASURE, measureStart);
             temp_38_0009.setRate(t);
             @Nonnull final PointSample sample = temp_38_0009.addRef();
             temp_38_0009.freeRef();
             //monitor.log(String.format("evalInputDelta buffers %d %d %d %d %d", sample.evalInputDelta.apply.size(), origin.evalInputDelta.apply.size(), lbfgs.apply.size(), gd.apply.size(), scaledGradient.apply.size()));
-            inner.addToHistory(sample.addRef(), monitor);
-            DeltaSet<UUID> temp_38_0010 = scaledGradient.scale(1 - 2 * t);
-            @Nonnull final DeltaSet<UUID> tangent = temp_38_0010.add(lbfgs.scale(2 * t));
-            temp_38_0010.freeRef();
-            double dot = tangent.dot(sample.delta.addRef());
-            tangent.freeRef();
+            final double gradientDot = scaledGradient.dot(sample.delta.addRef());
+            final double lbfgsDot = lbfgs.dot(sample.delta.addRef());
+            if (admit(t, gradientDot, lbfgsDot, sample.sum)) {
+              if (null != packedHistory) {
+                packedHistory.add(sample.addRef());
+              } else {
+                inner.addToHistory(sample.addRef(), monitor);
+              }
+            }
+            double dot = (1 - 2 * t) * gradientDot + 2 * t * lbfgsDot;
+            if (stepEvents)
+              events.lineSearchStepEnd(String.valueOf(getDirectionType()), t, dot, sample.sum);
+            timings.stop(PhaseTimings.Phase.STEP, stepStart);
+            timings.allocated(PhaseTimings.Phase.STEP, PhaseTimings.label(QQN.this), stepBytes);
             return new LineSearchPoint(sample, dot);
           }
 
+          /**
+           * The step from the origin is (t - t^2) * scaledGradient + t^2 * lbfgs, so its curvature s.y against the
+           * origin's gradient follows from the two directional derivatives without touching the sample's buffers.
+           */
+          private boolean admit(final double t, final double gradientDot, final double lbfgsDot, final double sum) {
+            if (!Double.isFinite(sum)) return false;
+            switch (admission) {
+              case ACCEPTED:
+                return false;
+              case CURVATURE:
+                return (t - t * t) * (gradientDot - gradientSlope) + t * t * (lbfgsDot - lbfgsSlope) > 0;
+              case MAX_PROBES:
+                return probes++ < probeLimit;
+              default:
+                return true;
+            }
+          }
+
           @Override
           public void _free() {
             super._free();
+            if (null != round)
+              round.cancel();
             subject.freeRef();
             scaledGradient.freeRef();
             lbfgs.freeRef();
@@ -155,12 +287,16 @@ public class QQN extends OrientationStrategyBase<LineSearchCursor> {
   @Override
   public void reset() {
     inner.reset();
+    if (null != packedHistory)
+      packedHistory.reset();
   }
 
   @Override
   public void _free() {
     super._free();
     inner.freeRef();
+    if (null != speculation)
+      speculation.free();
   }
 
   @Nonnull
@@ -170,4 +306,15 @@ public class QQN extends OrientationStrategyBase<LineSearchCursor> {
     return (QQN) super.addRef();
   }
 
+  /**
+   * Which quadratic-cursor probes enter the quasi-Newton history. Each orientation's origin is always added, so
+   * {@link #ACCEPTED} keeps only the points line searches settled on.
+   */
+  public enum HistoryAdmission {
+    ALL,
+    ACCEPTED,
+    CURVATURE,
+    MAX_PROBES
+  }
+
 }
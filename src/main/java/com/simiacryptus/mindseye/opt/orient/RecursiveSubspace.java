@@ -26,8 +26,14 @@ import com.simiacryptus.mindseye.eval.Trainable;
 import com.simiacryptus.mindseye.lang.*;
 import com.simiacryptus.mindseye.layers.PlaceholderLayer;
 import com.simiacryptus.mindseye.network.DAGNetwork;
+import com.simiacryptus.mindseye.opt.AsyncTrainingMonitor;
+import com.simiacryptus.mindseye.opt.CountingTrainable;
+import com.simiacryptus.mindseye.opt.DoubleArena;
 import com.simiacryptus.mindseye.opt.IterativeTrainer;
+import com.simiacryptus.mindseye.opt.OptimizerEvents;
+import com.simiacryptus.mindseye.opt.PhaseTimings;
 import com.simiacryptus.mindseye.opt.TrainingMonitor;
+import com.simiacryptus.mindseye.opt.WeightSnapshot;
 import com.simiacryptus.mindseye.opt.line.ArmijoWolfeSearch;
 import com.simiacryptus.mindseye.opt.line.LineSearchStrategy;
 import com.simiacryptus.mindseye.opt.line.SimpleLineSearchCursor;
@@ -35,14 +41,11 @@ import com.simiacryptus.ref.lang.RefUtil;
 import com.simiacryptus.ref.wrappers.RefList;
 import com.simiacryptus.ref.wrappers.RefMap;
 import com.simiacryptus.ref.wrappers.RefSet;
-import com.simiacryptus.ref.wrappers.RefString;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
-import java.util.Arrays;
-import java.util.List;
-import java.util.Map;
-import java.util.UUID;
+import java.io.File;
+import java.util.*;
 import java.util.stream.Collectors;
 import java.util.stream.DoubleStream;
 import java.util.stream.IntStream;
@@ -50,11 +53,18 @@ import java.util.stream.IntStream;
 public class RecursiveSubspace extends OrientationStrategyBase<SimpleLineSearchCursor> {
 
   public static final String CURSOR_LABEL = "RecursiveSubspace";
+  private static final long SKETCH_SEED = 0x5EED;
   private int iterations = 4;
+  private int sketchRank = 0;
+  private double sketchDecay = 0.9;
+  @Nullable
+  private SubspaceSketch sketch = null;
   @Nullable
   private double[] weights = null;
   private double terminateThreshold;
   @Nullable
+  private File snapshotDirectory = null;
+  @Nullable
   private Trainable subject;
   @Nullable
   private LBFGS orientation = new LBFGS();
@@ -68,6 +78,28 @@ public class RecursiveSubspace extends OrientationStrategyBase<SimpleLineSearchC
     this.iterations = iterations;
   }
 
+  public int getSketchRank() {
+    return sketchRank;
+  }
+
+  /**
+   * Adds up to this many directions from a randomized sketch of recent weight and gradient differences to the
+   * per-layer gradient directions. Zero disables the sketch.
+   */
+  public void setSketchRank(int sketchRank) {
+    this.sketchRank = sketchRank;
+    this.sketch = null;
+  }
+
+  public double getSketchDecay() {
+    return sketchDecay;
+  }
+
+  public void setSketchDecay(double sketchDecay) {
+    this.sketchDecay = sketchDecay;
+    this.sketch = null;
+  }
+
   public LineSearchStrategy getLineSearch() {
     return lineSearch;
   }
@@ -100,6 +132,19 @@ public class RecursiveSubspace extends OrientationStrategyBase<SimpleLineSearchC
     this.terminateThreshold = terminateThreshold;
   }
 
+  @Nullable
+  public File getSnapshotDirectory() {
+    return snapshotDirectory;
+  }
+
+  /**
+   * Keeps the origin weights in a memory-mapped file in this directory while the subspace is solved, rather than in
+   * direct memory. Null, the default, uses direct memory.
+   */
+  public void setSnapshotDirectory(@Nullable File snapshotDirectory) {
+    this.snapshotDirectory = snapshotDirectory;
+  }
+
   @Nonnull
   @Override
   public SimpleLineSearchCursor orient(@Nonnull Trainable subject, @Nonnull PointSample measurement,
@@ -110,28 +155,35 @@ public class RecursiveSubspace extends OrientationStrategyBase<SimpleLineSearchC
     this.subject = temp_30_0002 == null ? null : temp_30_0002.addRef();
     if (null != temp_30_0002)
       temp_30_0002.freeRef();
-    PointSample temp_30_0015 = measurement.copyFull();
-    temp_30_0015.backup();
-    @Nonnull
-    PointSample origin = temp_30_0015.addRef();
-    temp_30_0015.freeRef();
+    final WeightSnapshot snapshot = WeightSnapshot.capture(measurement.weights.addRef(), snapshotDirectory);
     @Nullable
-    Layer macroLayer = buildSubspace(subject.addRef(), measurement, monitor);
+    Layer macroLayer = buildSubspace(subject.addRef(), measurement.addRef(), snapshot, false, monitor);
+    final PhaseTimings timings = PhaseTimings.current();
+    final long subspaceStart = timings.start();
+    final long subspaceBytes = timings.allocated();
+    final OptimizerEvents events = OptimizerEvents.get();
+    final boolean subspaceEvents = events.isSubspaceEnabled();
+    if (subspaceEvents)
+      events.subspaceBegin();
+    final String previousSource = CountingTrainable.attribute(PhaseTimings.label(this) + "/subspace");
     train(monitor, macroLayer.addRef());
+    CountingTrainable.attribute(previousSource);
+    timings.stop(PhaseTimings.Phase.SUBSPACE, subspaceStart);
+    if (subspaceEvents)
+      events.subspaceEnd(null == weights ? 0 : weights.length, measurement.sum);
+    timings.allocated(PhaseTimings.Phase.SUBSPACE, PhaseTimings.label(this), subspaceBytes);
     assert macroLayer != null;
-    Result eval = macroLayer.eval(((Result) null).addRef());
+    Result eval = macroLayer.eval((Result) null);
     macroLayer.freeRef();
     assert eval != null;
     RefUtil.freeRef(eval.getData());
     eval.freeRef();
     @Nonnull
-    StateSet<UUID> backupCopy = origin.weights.copy();
-    @Nonnull
-    DeltaSet<UUID> delta = backupCopy.subtract(origin.weights.addRef());
-    backupCopy.freeRef();
-    origin.restore();
+    DeltaSet<UUID> delta = snapshot.delta();
+    snapshot.restore();
+    snapshot.close();
     @Nonnull
-    SimpleLineSearchCursor simpleLineSearchCursor = new SimpleLineSearchCursor(subject, origin, delta);
+    SimpleLineSearchCursor simpleLineSearchCursor = new SimpleLineSearchCursor(subject, measurement, delta);
     simpleLineSearchCursor.setDirectionType(CURSOR_LABEL);
     SimpleLineSearchCursor temp_30_0006 = simpleLineSearchCursor.addRef();
     simpleLineSearchCursor.freeRef();
@@ -154,18 +206,20 @@ public class RecursiveSubspace extends OrientationStrategyBase<SimpleLineSearchC
   @Nullable
   public Layer buildSubspace(@Nonnull Trainable subject, @Nonnull PointSample measurement,
                              @Nonnull TrainingMonitor monitor) {
-    PointSample temp_30_0017 = measurement.copyFull();
-    temp_30_0017.backup();
-    @Nonnull
-    PointSample origin = temp_30_0017.addRef();
-    temp_30_0017.freeRef();
+    final WeightSnapshot snapshot = WeightSnapshot.capture(measurement.weights.addRef(), snapshotDirectory);
+    return buildSubspace(subject, measurement, snapshot, true, monitor);
+  }
+
+  @Nullable
+  private Layer buildSubspace(@Nonnull Trainable subject, @Nonnull PointSample measurement,
+                              @Nonnull WeightSnapshot snapshot, boolean ownsSnapshot,
+                              @Nonnull TrainingMonitor monitor) {
     @Nonnull final DeltaSet<UUID> direction = measurement.delta.scale(-1);
-    measurement.freeRef();
     final double magnitude = direction.getMagnitude();
     if (Math.abs(magnitude) < 1e-10) {
-      monitor.log(RefString.format("Zero gradient: %s", magnitude));
+      AsyncTrainingMonitor.log(monitor, "Zero gradient: %s").arg(magnitude).publish();
     } else if (Math.abs(magnitude) < 1e-5) {
-      monitor.log(RefString.format("Low gradient: %s", magnitude));
+      AsyncTrainingMonitor.log(monitor, "Low gradient: %s").arg(magnitude).publish();
     }
     final RefMap<UUID, Delta<UUID>> directionMap = direction.getMap();
     direction.freeRef();
@@ -179,10 +233,46 @@ public class RecursiveSubspace extends OrientationStrategyBase<SimpleLineSearchC
       return temp_30_0008;
     }).collect(Collectors.toList());
     entries.freeRef();
-    int size = deltaLayers.size() + 0;
+    // A layer built by orient() is done with before the iteration ends, so its sketch directions can come from the
+    // trainer's arena; the public buildSubspace() hands the layer to its caller, so those are allocated
+    final double[][][] sketchDirections = sketch(deltaLayers, measurement,
+        ownsSnapshot ? DoubleArena.unpooled() : DoubleArena.current());
+    int size = deltaLayers.size() + sketchDirections.length;
     if (null == weights || weights.length != size)
       weights = new double[size];
-    return new MyLayerBase(origin, deltaLayers, directionMap, false, subject, monitor, this);
+    else
+      // The sketch directions are rebuilt every time, so coefficients solved for the previous ones mean nothing here
+      Arrays.fill(weights, deltaLayers.size(), size, 0);
+    return new MyLayerBase(snapshot, ownsSnapshot, deltaLayers, directionMap, sketchDirections, false, subject, monitor,
+        this.addRef());
+  }
+
+  @Nonnull
+  private double[][][] sketch(@Nonnull List<UUID> deltaLayers, @Nonnull PointSample measurement,
+                              @Nonnull DoubleArena arena) {
+    if (sketchRank <= 0) {
+      measurement.freeRef();
+      return new double[0][][];
+    }
+    final Map<UUID, double[]> weights = new HashMap<>();
+    final Map<UUID, double[]> gradient = new HashMap<>();
+    for (UUID id : deltaLayers) {
+      final State<UUID> state = measurement.weights.get(id);
+      final Delta<UUID> delta = measurement.delta.get(id);
+      if (null != state && null != delta) {
+        weights.put(id, state.getDelta());
+        gradient.put(id, delta.getDelta());
+      }
+      if (null != state)
+        state.freeRef();
+      if (null != delta)
+        delta.freeRef();
+    }
+    if (null == sketch)
+      sketch = new SubspaceSketch(sketchRank, sketchDecay, SKETCH_SEED);
+    sketch.update(weights, gradient);
+    measurement.freeRef();
+    return sketch.directions(deltaLayers, arena);
   }
 
   public void train(@Nonnull TrainingMonitor monitor, @Nullable Layer macroLayer) {
@@ -229,6 +319,8 @@ public class RecursiveSubspace extends OrientationStrategyBase<SimpleLineSearchC
   @Override
   public void reset() {
     weights = null;
+    if (null != sketch)
+      sketch.clear();
   }
 
   @Override
@@ -253,16 +345,18 @@ public class RecursiveSubspace extends OrientationStrategyBase<SimpleLineSearchC
     @Nullable
     private final RecursiveSubspace parent;
     @Nonnull
-    private final PointSample origin;
+    private final WeightSnapshot origin;
+    private final boolean ownsOrigin;
     private final List<UUID> deltaLayers;
     private final RefMap<UUID, Delta<UUID>> directionMap;
+    private final double[][][] sketchDirections;
     private final boolean hasPlaceholders;
     @Nullable
     private final Trainable subject;
     private final TrainingMonitor monitor;
 
-    public MyLayerBase(@Nullable PointSample origin, List<UUID> deltaLayers, RefMap<UUID, Delta<UUID>> directionMap,
-                       boolean hasPlaceholders, @Nullable Trainable subject, TrainingMonitor monitor,
+    public MyLayerBase(@Nonnull WeightSnapshot origin, boolean ownsOrigin, List<UUID> deltaLayers, RefMap<UUID, Delta<UUID>> directionMap,
+                       double[][][] sketchDirections, boolean hasPlaceholders, @Nullable Trainable subject, TrainingMonitor monitor,
                        @Nullable RecursiveSubspace parent) {
       RecursiveSubspace temp_30_0003 = parent == null ? null : parent.addRef();
       this.parent = temp_30_0003 == null ? null : temp_30_0003.addRef();
@@ -270,14 +364,11 @@ public class RecursiveSubspace extends OrientationStrategyBase<SimpleLineSearchC
         temp_30_0003.freeRef();
       if (null != parent)
         parent.freeRef();
-      PointSample temp_30_0004 = origin == null ? null : origin.addRef();
-      this.origin = temp_30_0004 == null ? null : temp_30_0004.addRef();
-      if (null != temp_30_0004)
-        temp_30_0004.freeRef();
-      if (null != origin)
-        origin.freeRef();
+      this.origin = origin;
+      this.ownsOrigin = ownsOrigin;
       this.deltaLayers = deltaLayers;
       this.directionMap = directionMap;
+      this.sketchDirections = sketchDirections;
       this.hasPlaceholders = hasPlaceholders;
       Trainable temp_30_0005 = subject == null ? null : subject.addRef();
       this.subject = temp_30_0005 == null ? null : temp_30_0005.addRef();
@@ -323,13 +414,33 @@ public class RecursiveSubspace extends OrientationStrategyBase<SimpleLineSearchC
         });
         entries.freeRef();
       }
+      final int sketchOffset = (hasPlaceholders ? 1 : 0) + deltaLayers.size();
+      for (int j = 0; j < sketchDirections.length; j++) {
+        assert parent != null;
+        assert parent.weights != null;
+        final double factor = parent.weights[sketchOffset + j];
+        for (int i = 0; i < deltaLayers.size(); i++) {
+          final double[] direction = sketchDirections[j][i];
+          if (null == direction) continue;
+          Delta<UUID> layerDelta = directionMap.get(deltaLayers.get(i));
+          assert layerDelta != null;
+          final double[] target = layerDelta.target;
+          layerDelta.freeRef();
+          for (int m = 0; m < direction.length; m++) {
+            target[m] += factor * direction[m];
+          }
+        }
+      }
       assert subject != null;
+      final PhaseTimings timings = PhaseTimings.current();
+      final long measureStart = timings.start();
       PointSample measure = subject.measure(monitor);
+      timings.stop(PhaseTimings.Phase.MEASURE, measureStart);
       double mean = measure.getMean();
       assert parent != null;
-      monitor.log(RefString.format("RecursiveSubspace: %s <- %s", mean, Arrays.toString(parent.weights)));
+      AsyncTrainingMonitor.log(monitor, "RecursiveSubspace: %s <- %s").arg(mean).arg(parent.weights).publish();
       TensorArray data = new TensorArray(new Tensor(mean));
-      return new Result(data, new Accumulator(measure, this.deltaLayers, this.hasPlaceholders, this.getId(), this.parent.addRef(), this.directionMap.addRef()), true);
+      return new Result(data, new Accumulator(measure, this.deltaLayers, this.sketchDirections, this.hasPlaceholders, this.getId(), this.parent.addRef(), this.directionMap.addRef()), true);
     }
 
     @Nonnull
@@ -348,7 +459,8 @@ public class RecursiveSubspace extends OrientationStrategyBase<SimpleLineSearchC
     public void _free() {
       if (null != subject)
         subject.freeRef();
-      origin.freeRef();
+      if (ownsOrigin)
+        origin.close();
       if (null != parent)
         parent.freeRef();
       directionMap.freeRef();
@@ -368,12 +480,14 @@ public class RecursiveSubspace extends OrientationStrategyBase<SimpleLineSearchC
       private RefMap<UUID, Delta<UUID>> directionMap;
       private RecursiveSubspace parent;
       private List<UUID> deltaLayers;
+      private double[][][] sketchDirections;
       private boolean hasPlaceholders;
       private UUID id;
 
-      public Accumulator(PointSample measure, List<UUID> deltaLayers, boolean hasPlaceholders, UUID id, RecursiveSubspace parent, RefMap<UUID, Delta<UUID>> directionMap) {
+      public Accumulator(PointSample measure, List<UUID> deltaLayers, double[][][] sketchDirections, boolean hasPlaceholders, UUID id, RecursiveSubspace parent, RefMap<UUID, Delta<UUID>> directionMap) {
         this.measure = measure;
         this.deltaLayers = deltaLayers;
+        this.sketchDirections = sketchDirections;
         this.hasPlaceholders = hasPlaceholders;
         this.directionMap = directionMap;
         this.parent = parent;
@@ -415,6 +529,9 @@ public class RecursiveSubspace extends OrientationStrategyBase<SimpleLineSearchC
           }).sum()), deltaStream);
           uuids.freeRef();
         }
+        if (0 < sketchDirections.length) {
+          deltaStream = DoubleStream.concat(deltaStream, Arrays.stream(sketchDirections).mapToDouble(this::sketchDot));
+        }
         Delta<UUID> temp_30_0028 = buffer.get(id, parent.weights);
         assert temp_30_0028 != null;
         temp_30_0028.addInPlace(deltaStream.toArray());
@@ -422,6 +539,22 @@ public class RecursiveSubspace extends OrientationStrategyBase<SimpleLineSearchC
         buffer.freeRef();
       }
 
+      private double sketchDot(@Nonnull double[][] direction) {
+        double sum = 0;
+        for (int i = 0; i < deltaLayers.size(); i++) {
+          if (null == direction[i]) continue;
+          Delta<UUID> gradient = measure.delta.get(deltaLayers.get(i));
+          if (null == gradient) continue;
+          final double[] values = gradient.getDelta();
+          gradient.freeRef();
+          if (null == values) continue;
+          for (int m = 0; m < values.length; m++) {
+            sum += values[m] * direction[i][m];
+          }
+        }
+        return sum;
+      }
+
       public @SuppressWarnings("unused")
       void _free() {
         super._free();
@@ -0,0 +1,339 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.mindseye.opt.orient;
+
+import com.simiacryptus.mindseye.eval.Trainable;
+import com.simiacryptus.mindseye.lang.*;
+import com.simiacryptus.mindseye.network.DAGNetwork;
+import com.simiacryptus.mindseye.opt.CountingTrainable;
+import com.simiacryptus.mindseye.opt.TrainingMonitor;
+import com.simiacryptus.ref.wrappers.RefList;
+import com.simiacryptus.ref.wrappers.RefMap;
+import com.simiacryptus.ref.wrappers.RefSystem;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Function;
+
+/**
+ * Evaluates a fixed set of quadratic-path step sizes concurrently, each on its own copy of the network, so a line
+ * search can pick up finished points instead of measuring them in sequence. Network copies are pooled between
+ * orientations and refreshed from the subject's weights at the start of each round.
+ * <p>
+ * Speculation only works on full-batch trainables. A pooled copy has no way to follow the subject's reseeds (and
+ * SampledArrayTrainable does not even derive its sample from the seed it is given), so a minibatch copy would measure
+ * different data than the subject and the line search would mix points from two objectives. Each new copy is
+ * therefore probed with reseed(); if that reports a new sample, speculation is switched off for good.
+ */
+class SpeculativeAlphas {
+  private static final Logger log = LoggerFactory.getLogger(SpeculativeAlphas.class);
+  private static final ExecutorService pool = Executors.newCachedThreadPool(r -> {
+    Thread thread = new Thread(r, SpeculativeAlphas.class.getSimpleName());
+    thread.setDaemon(true);
+    return thread;
+  });
+  private static final Object CANCELLED = new Object();
+
+  @Nonnull
+  private final Function<Layer, ? extends Trainable> factory;
+  @Nonnull
+  private final double[] alphas;
+  private final ConcurrentLinkedQueue<Worker> idle = new ConcurrentLinkedQueue<>();
+  private volatile boolean sampled = false;
+
+  SpeculativeAlphas(@Nonnull Function<Layer, ? extends Trainable> factory, @Nonnull double[] alphas) {
+    this.factory = factory;
+    this.alphas = alphas.clone();
+  }
+
+  @Nonnull
+  public double[] getAlphas() {
+    return alphas.clone();
+  }
+
+  /**
+   * True once a copy turned out to be a minibatch trainable, after which no further speculation is started.
+   */
+  public boolean isSampled() {
+    return sampled;
+  }
+
+  /**
+   * Starts measuring every alpha at {@code origin + (t - t^2) * gradient + t^2 * lbfgs}. The subject must still be at
+   * the origin; the weight copies are made before this returns.
+   */
+  @Nonnull
+  public Round start(@Nonnull Trainable subject, @Nonnull DeltaSet<UUID> gradient, @Nonnull DeltaSet<UUID> lbfgs) {
+    final TreeMap<UUID, double[][]> buffers = new TreeMap<>();
+    final RefMap<UUID, Delta<UUID>> gradientMap = gradient.getMap();
+    gradientMap.forEach((id, delta) -> {
+      final Delta<UUID> other = lbfgs.get(id);
+      buffers.put(id, new double[][]{delta.target, delta.getDelta(), null == other ? null : other.getDelta()});
+      if (null != other)
+        other.freeRef();
+      delta.freeRef();
+    });
+    gradientMap.freeRef();
+    gradient.freeRef();
+    lbfgs.freeRef();
+    final UUID[] ids = buffers.keySet().toArray(new UUID[0]);
+    final double[][] targets = new double[ids.length][];
+    for (int l = 0; l < ids.length; l++) {
+      targets[l] = buffers.get(ids[l])[0];
+    }
+    final String source = CountingTrainable.getSource();
+    final Speculation[] speculations = new Speculation[alphas.length];
+    for (int a = 0; a < alphas.length && !sampled; a++) {
+      final double t = alphas[a];
+      final Worker worker = acquire(subject.addRef(), ids, targets);
+      if (null == worker) continue;
+      for (int l = 0; l < ids.length; l++) {
+        final double[][] buffer = buffers.get(ids[l]);
+        final double[] copy = worker.targets[l];
+        System.arraycopy(targets[l], 0, copy, 0, copy.length);
+        final double[] gd = buffer[1];
+        final double[] qn = buffer[2];
+        for (int i = 0; i < copy.length; i++) {
+          copy[i] += (t - t * t) * gd[i] + (null == qn ? 0 : t * t * qn[i]);
+        }
+      }
+      final Speculation speculation = new Speculation(t, worker);
+      speculation.future = pool.submit(() -> speculation.run(source));
+      speculations[a] = speculation;
+    }
+    subject.freeRef();
+    return new Round(ids, targets, speculations);
+  }
+
+  public void free() {
+    Worker worker;
+    while (null != (worker = idle.poll())) {
+      worker.trainable.freeRef();
+    }
+  }
+
+  @Nullable
+  private Worker acquire(@Nonnull Trainable subject, @Nonnull UUID[] ids, @Nonnull double[][] targets) {
+    Worker worker;
+    while (null != (worker = idle.poll())) {
+      if (Arrays.equals(worker.ids, ids)) {
+        subject.freeRef();
+        return worker;
+      }
+      worker.trainable.freeRef();
+    }
+    final Layer layer = subject.getLayer();
+    subject.freeRef();
+    if (!(layer instanceof DAGNetwork)) {
+      if (null != layer)
+        layer.freeRef();
+      return null;
+    }
+    final DAGNetwork network = (DAGNetwork) layer;
+    final DAGNetwork copy = (DAGNetwork) network.copy();
+    final double[][] copyTargets = new double[ids.length][];
+    final RefMap<UUID, Layer> layers = network.getLayersById();
+    final RefMap<UUID, Layer> copyLayers = copy.getLayersById();
+    network.freeRef();
+    try {
+      for (int l = 0; l < ids.length; l++) {
+        copyTargets[l] = counterpart(layers.get(ids[l]), copyLayers.get(ids[l]), targets[l]);
+        if (null == copyTargets[l]) {
+          log.warn("No counterpart for layer " + ids[l] + "; speculation disabled for this round");
+          copy.freeRef();
+          return null;
+        }
+      }
+    } finally {
+      layers.freeRef();
+      copyLayers.freeRef();
+    }
+    final Trainable trainable = factory.apply(copy);
+    if (trainable.reseed(RefSystem.nanoTime())) {
+      log.warn("Speculation disabled: " + trainable.getClass().getSimpleName() + " samples its data on reseed");
+      sampled = true;
+      trainable.freeRef();
+      return null;
+    }
+    return new Worker(ids, copyTargets, trainable);
+  }
+
+  /**
+   * The copy's state array at the same position as {@code target} in the original layer's state.
+   */
+  @Nullable
+  private static double[] counterpart(@Nullable Layer layer, @Nullable Layer copy, @Nonnull double[] target) {
+    try {
+      if (null == layer || null == copy) return null;
+      final RefList<double[]> state = layer.state();
+      final RefList<double[]> copyState = copy.state();
+      try {
+        if (null == state || null == copyState) return null;
+        for (int index = 0; index < state.size() && index < copyState.size(); index++) {
+          if (state.get(index) == target) return copyState.get(index);
+        }
+        return null;
+      } finally {
+        if (null != state)
+          state.freeRef();
+        if (null != copyState)
+          copyState.freeRef();
+      }
+    } finally {
+      if (null != layer)
+        layer.freeRef();
+      if (null != copy)
+        copy.freeRef();
+    }
+  }
+
+  private static final class Worker {
+    @Nonnull
+    final UUID[] ids;
+    @Nonnull
+    final double[][] targets;
+    @Nonnull
+    final Trainable trainable;
+
+    private Worker(@Nonnull UUID[] ids, @Nonnull double[][] targets, @Nonnull Trainable trainable) {
+      this.ids = ids;
+      this.targets = targets;
+      this.trainable = trainable;
+    }
+  }
+
+  private final class Speculation {
+    final double alpha;
+    @Nonnull
+    final Worker worker;
+    final AtomicReference<Object> result = new AtomicReference<>();
+    Future<?> future;
+
+    private Speculation(double alpha, @Nonnull Worker worker) {
+      this.alpha = alpha;
+      this.worker = worker;
+    }
+
+    private void run(@Nonnull String source) {
+      final String previousSource = CountingTrainable.attribute(source);
+      try {
+        if (CANCELLED == result.get()) return;
+        final PointSample point = worker.trainable.measure(new TrainingMonitor());
+        if (!result.compareAndSet(null, point))
+          point.freeRef();
+      } finally {
+        CountingTrainable.attribute(previousSource);
+        idle.add(worker);
+      }
+    }
+
+    @Nullable
+    private PointSample take() {
+      try {
+        future.get();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      } catch (ExecutionException e) {
+        log.warn("Speculative measurement failed", e.getCause());
+      }
+      final Object taken = result.getAndSet(CANCELLED);
+      return taken instanceof PointSample ? (PointSample) taken : null;
+    }
+
+    private void cancel() {
+      if (future.cancel(false))
+        idle.add(worker);
+      final Object taken = result.getAndSet(CANCELLED);
+      if (taken instanceof PointSample)
+        ((PointSample) taken).freeRef();
+    }
+  }
+
+  /**
+   * The speculations started for one orientation.
+   */
+  final class Round {
+    @Nonnull
+    private final UUID[] ids;
+    @Nonnull
+    private final double[][] targets;
+    @Nonnull
+    private final Speculation[] speculations;
+
+    private Round(@Nonnull UUID[] ids, @Nonnull double[][] targets, @Nonnull Speculation[] speculations) {
+      this.ids = ids;
+      this.targets = targets;
+      this.speculations = speculations;
+    }
+
+    /**
+     * Waits for the speculation at {@code alpha}, if any, and returns it rebound to the subject's weights. The subject
+     * must already be positioned at {@code alpha}. Returns null if alpha was not speculated or its measurement failed.
+     */
+    @Nullable
+    public PointSample take(double alpha) {
+      for (int a = 0; a < speculations.length; a++) {
+        final Speculation speculation = speculations[a];
+        if (null == speculation || Math.abs(speculation.alpha - alpha) > 1e-9 * Math.max(1, Math.abs(alpha)))
+          continue;
+        speculations[a] = null;
+        final PointSample point = speculation.take();
+        if (null == point) return null;
+        if (!Double.isFinite(point.sum)) {
+          point.freeRef();
+          return null;
+        }
+        final DeltaSet<UUID> delta = new DeltaSet<>();
+        for (int l = 0; l < ids.length; l++) {
+          final Delta<UUID> gradient = point.delta.get(ids[l]);
+          if (null == gradient) continue;
+          final double[] values = gradient.getDelta();
+          gradient.freeRef();
+          final Delta<UUID> rebound = delta.get(ids[l], targets[l]);
+          assert rebound != null;
+          if (null != values)
+            rebound.addInPlace(values);
+          rebound.freeRef();
+        }
+        final PointSample rebound = new PointSample(delta.addRef(), new StateSet<>(delta), point.sum, alpha, point.count);
+        point.freeRef();
+        return rebound;
+      }
+      return null;
+    }
+
+    /**
+     * Cancels everything not taken. Measurements already running finish on their own and are discarded.
+     */
+    public void cancel() {
+      for (int a = 0; a < speculations.length; a++) {
+        if (null != speculations[a]) {
+          speculations[a].cancel();
+          speculations[a] = null;
+        }
+      }
+    }
+  }
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.mindseye.opt.orient;
+
+import com.simiacryptus.mindseye.opt.DoubleArena;
+
+import javax.annotation.Nonnull;
+import java.util.*;
+
+/**
+ * Streaming randomized sketch of recent weight and gradient differences, held as {@code rank} primitive columns per
+ * layer. Each update folds the newest differences into every column with Gaussian coefficients, so the columns span
+ * the dominant recent directions while only the previous weights and gradient are retained.
+ */
+class SubspaceSketch {
+  private final int rank;
+  private final double decay;
+  @Nonnull
+  private final Random random;
+  private final Map<UUID, double[][]> columns = new HashMap<>();
+  private final Map<UUID, double[]> lastWeights = new HashMap<>();
+  private final Map<UUID, double[]> lastGradient = new HashMap<>();
+  private int updates = 0;
+
+  SubspaceSketch(int rank, double decay, long seed) {
+    if (rank < 1) throw new IllegalArgumentException();
+    this.rank = rank;
+    this.decay = decay;
+    this.random = new Random(seed);
+  }
+
+  public int getUpdates() {
+    return updates;
+  }
+
+  /**
+   * Folds the step from the previous update into the sketch. Both differences are normalized over all layers so that
+   * neither weight nor gradient scale dominates.
+   */
+  public void update(@Nonnull Map<UUID, double[]> weights, @Nonnull Map<UUID, double[]> gradient) {
+    double stepSq = 0;
+    double gradientSq = 0;
+    for (UUID id : weights.keySet()) {
+      final double[] w = weights.get(id);
+      final double[] g = gradient.get(id);
+      final double[] previousW = lastWeights.get(id);
+      final double[] previousG = lastGradient.get(id);
+      if (null == g || !matches(w, previousW) || !matches(g, previousG)) continue;
+      for (int i = 0; i < w.length; i++) {
+        final double s = w[i] - previousW[i];
+        final double y = g[i] - previousG[i];
+        stepSq += s * s;
+        gradientSq += y * y;
+      }
+    }
+    if (stepSq > 0 || gradientSq > 0) {
+      updates++;
+      final double stepScale = stepSq > 0 ? 1 / Math.sqrt(stepSq) : 0;
+      final double gradientScale = gradientSq > 0 ? 1 / Math.sqrt(gradientSq) : 0;
+      final double[] stepCoeff = new double[rank];
+      final double[] gradientCoeff = new double[rank];
+      for (int j = 0; j < rank; j++) {
+        stepCoeff[j] = random.nextGaussian() * stepScale;
+        gradientCoeff[j] = random.nextGaussian() * gradientScale;
+      }
+      for (UUID id : weights.keySet()) {
+        final double[] w = weights.get(id);
+        final double[] g = gradient.get(id);
+        final double[] previousW = lastWeights.get(id);
+        final double[] previousG = lastGradient.get(id);
+        if (null == g || !matches(w, previousW) || !matches(g, previousG)) continue;
+        double[][] layerColumns = columns.get(id);
+        if (null == layerColumns || layerColumns[0].length != w.length) {
+          layerColumns = new double[rank][w.length];
+          columns.put(id, layerColumns);
+        }
+        for (int j = 0; j < rank; j++) {
+          final double[] column = layerColumns[j];
+          for (int i = 0; i < column.length; i++) {
+            column[i] = decay * column[i] + stepCoeff[j] * (w[i] - previousW[i]) + gradientCoeff[j] * (g[i] - previousG[i]);
+          }
+        }
+      }
+    }
+    for (UUID id : weights.keySet()) {
+      retain(lastWeights, id, weights.get(id));
+      final double[] g = gradient.get(id);
+      if (null != g) retain(lastGradient, id, g);
+    }
+  }
+
+  /**
+   * Returns orthonormal directions spanning the sketch, indexed by direction and then by position in {@code layers}.
+   * Layers the sketch has not seen have null entries, and numerically dependent columns are dropped. The direction
+   * vectors are borrowed from {@code arena} under their layer's id, so they must not outlive its iteration.
+   */
+  @Nonnull
+  public double[][][] directions(@Nonnull List<UUID> layers, @Nonnull DoubleArena arena) {
+    final List<double[][]> basis = new ArrayList<>();
+    if (0 == updates) return new double[0][][];
+    for (int j = 0; j < rank; j++) {
+      final double[][] vector = new double[layers.size()][];
+      for (int i = 0; i < layers.size(); i++) {
+        final double[][] layerColumns = columns.get(layers.get(i));
+        if (null == layerColumns) continue;
+        vector[i] = arena.borrow(layers.get(i), layerColumns[j].length);
+        System.arraycopy(layerColumns[j], 0, vector[i], 0, vector[i].length);
+      }
+      final double original = Math.sqrt(dot(vector, vector));
+      if (!(original > 0)) {
+        giveBack(layers, vector, arena);
+        continue;
+      }
+      for (double[][] previous : basis) {
+        final double projection = dot(vector, previous);
+        for (int i = 0; i < vector.length; i++) {
+          if (null == vector[i]) continue;
+          for (int m = 0; m < vector[i].length; m++) {
+            vector[i][m] -= projection * previous[i][m];
+          }
+        }
+      }
+      final double residual = Math.sqrt(dot(vector, vector));
+      if (!(residual > 1e-8 * original)) {
+        giveBack(layers, vector, arena);
+        continue;
+      }
+      for (double[] layer : vector) {
+        if (null == layer) continue;
+        for (int m = 0; m < layer.length; m++) {
+          layer[m] /= residual;
+        }
+      }
+      basis.add(vector);
+    }
+    return basis.toArray(new double[0][][]);
+  }
+
+  public void clear() {
+    columns.clear();
+    lastWeights.clear();
+    lastGradient.clear();
+    updates = 0;
+  }
+
+  static double dot(@Nonnull double[][] a, @Nonnull double[][] b) {
+    double sum = 0;
+    for (int i = 0; i < a.length; i++) {
+      if (null == a[i] || null == b[i]) continue;
+      for (int m = 0; m < a[i].length; m++) {
+        sum += a[i][m] * b[i][m];
+      }
+    }
+    return sum;
+  }
+
+  private static void giveBack(@Nonnull List<UUID> layers, @Nonnull double[][] vector, @Nonnull DoubleArena arena) {
+    for (int i = 0; i < vector.length; i++) {
+      if (null != vector[i]) arena.giveBack(layers.get(i), vector[i]);
+    }
+  }
+
+  private static boolean matches(@Nonnull double[] current, double[] previous) {
+    return null != previous && previous.length == current.length;
+  }
+
+  private static void retain(@Nonnull Map<UUID, double[]> store, @Nonnull UUID id, @Nonnull double[] values) {
+    final double[] retained = store.get(id);
+    if (null != retained && retained.length == values.length) {
+      System.arraycopy(values, 0, retained, 0, values.length);
+    } else {
+      store.put(id, values.clone());
+    }
+  }
+}
@@ -22,13 +22,19 @@ package com.simiacryptus.mindseye.opt.orient;
 import com.simiacryptus.mindseye.eval.Trainable;
 import com.simiacryptus.mindseye.lang.*;
 import com.simiacryptus.mindseye.network.DAGNetwork;
+import com.simiacryptus.mindseye.opt.DoubleArena;
+import com.simiacryptus.mindseye.opt.OptimizerEvents;
+import com.simiacryptus.mindseye.opt.PhaseTimings;
 import com.simiacryptus.mindseye.opt.TrainingMonitor;
 import com.simiacryptus.mindseye.opt.line.LineSearchCursor;
 import com.simiacryptus.mindseye.opt.line.LineSearchCursorBase;
 import com.simiacryptus.mindseye.opt.line.LineSearchPoint;
 import com.simiacryptus.mindseye.opt.line.SimpleLineSearchCursor;
+import com.simiacryptus.mindseye.opt.region.BufferedTrustRegion;
+import com.simiacryptus.mindseye.opt.region.SparseTrustRegion;
 import com.simiacryptus.mindseye.opt.region.TrustRegion;
 import com.simiacryptus.ref.lang.RefUtil;
+import com.simiacryptus.ref.lang.ReferenceCountingBase;
 import com.simiacryptus.ref.wrappers.RefLinkedList;
 import com.simiacryptus.ref.wrappers.RefList;
 import com.simiacryptus.ref.wrappers.RefMap;
@@ -36,8 +42,12 @@ import com.simiacryptus.util.ArrayUtil;
 
 import javax.annotation.Nonnull;
 import javax.annotation.Nullable;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.BiConsumer;
 import java.util.stream.IntStream;
 
@@ -47,6 +57,9 @@ public abstract class TrustRegionStrategy extends OrientationStrategyBase<LineSe
   public final OrientationStrategy<? extends SimpleLineSearchCursor> inner;
   private final RefList<PointSample> history = new RefLinkedList<>();
   private int maxHistory = 10;
+  private double sparseDensity = 0.25;
+  private int projectionCacheSize = 4;
+  private long projectionCacheBytes = 64L << 20;
 
   public TrustRegionStrategy() {
     this(new LBFGS());
@@ -64,6 +77,41 @@ public abstract class TrustRegionStrategy extends OrientationStrategyBase<LineSe
     this.maxHistory = maxHistory;
   }
 
+  public double getSparseDensity() {
+    return sparseDensity;
+  }
+
+  /**
+   * Steps with at most this fraction of non-zero coordinates are projected through
+   * {@link SparseTrustRegion#projectSparse} when the layer's region supports it.
+   */
+  public void setSparseDensity(final double sparseDensity) {
+    this.sparseDensity = sparseDensity;
+  }
+
+  public int getProjectionCacheSize() {
+    return projectionCacheSize;
+  }
+
+  /**
+   * Each cursor keeps the projected position and adjusted gradient for up to this many of its most recently used step
+   * sizes. Zero disables the cache.
+   */
+  public void setProjectionCacheSize(final int projectionCacheSize) {
+    this.projectionCacheSize = projectionCacheSize;
+  }
+
+  public long getProjectionCacheBytes() {
+    return projectionCacheBytes;
+  }
+
+  /**
+   * Caps the memory, in bytes of delta values, that each cursor's projection cache may retain.
+   */
+  public void setProjectionCacheBytes(final long projectionCacheBytes) {
+    this.projectionCacheBytes = projectionCacheBytes;
+  }
+
   public static double dot(@Nonnull final List<DoubleBuffer<UUID>> a, @Nonnull final List<DoubleBuffer<UUID>> b) {
     assert a.size() == b.size();
     return IntStream.range(0, a.size()).mapToDouble(i -> {
@@ -114,12 +162,20 @@ public abstract class TrustRegionStrategy extends OrientationStrategyBase<LineSe
   }
 
   private static class TrustRegionCursor extends LineSearchCursorBase {
+    private static final ThreadLocal<int[]> SPARSE_INDICES = ThreadLocal.withInitial(() -> new int[0]);
     @Nullable
     private final SimpleLineSearchCursor cursor;
     @Nullable
     private final Trainable subject;
     @Nullable
     private final TrustRegionStrategy parent;
+    private final LinkedHashMap<Double, Projection> projections = new LinkedHashMap<>(16, 0.75f, true);
+    /**
+     * Whether each layer's origin weights lie inside its region, checked the first time the layer is projected. The
+     * sparse path only matches project() from inside the region, so layers that start outside it stay on the dense path.
+     */
+    private final Map<UUID, Boolean> feasible = new ConcurrentHashMap<>();
+    private long projectionBytes = 0;
 
     public TrustRegionCursor(@Nullable SimpleLineSearchCursor cursor, @Nullable Trainable subject, @Nullable TrustRegionStrategy parent) {
       this.parent = parent;
@@ -144,9 +200,48 @@ public abstract class TrustRegionStrategy extends OrientationStrategyBase<LineSe
     @Nonnull
     @Override
     public DeltaSet<UUID> position(final double alpha) {
-      //reset();
+      final Projection projection = projection(alpha);
+      final DeltaSet<UUID> gradient = projection.gradient.copy();
+      projection.freeRef();
+      return gradient;
+    }
+
+    /**
+     * Returns the projected position and adjusted gradient for this step size, reusing a cached projection when the
+     * line search revisits it. The weights are restored to the origin first, since the projection reads them as the
+     * starting point and a previous step() may have left them elsewhere; callers therefore always see the origin
+     * weights afterwards, whether or not the cache was hit.
+     */
+    @Nonnull
+    private synchronized Projection projection(final double alpha) {
       assert cursor != null;
-      return project(cursor.position(alpha));
+      assert parent != null;
+      cursor.reset();
+      final Projection cached = projections.get(alpha);
+      if (null != cached) return cached.addRef();
+      final DeltaSet<UUID> position = cursor.position(alpha);
+      final DeltaSet<UUID> gradient = project(position.addRef());
+      final Projection projection = new Projection(position, gradient);
+      if (0 < parent.projectionCacheSize && projection.bytes <= parent.projectionCacheBytes) {
+        projections.put(alpha, projection.addRef());
+        projectionBytes += projection.bytes;
+        final Iterator<Projection> iterator = projections.values().iterator();
+        while (projections.size() > parent.projectionCacheSize || projectionBytes > parent.projectionCacheBytes) {
+          final Projection eldest = iterator.next();
+          iterator.remove();
+          projectionBytes -= eldest.bytes;
+          eldest.freeRef();
+        }
+      }
+      return projection;
+    }
+
+    private synchronized void clearProjections() {
+      for (Projection projection : projections.values()) {
+        projection.freeRef();
+      }
+      projections.clear();
+      projectionBytes = 0;
     }
 
     @Nullable
@@ -165,6 +260,10 @@ public abstract class TrustRegionStrategy extends OrientationStrategyBase<LineSe
     public DeltaSet<UUID> project(@Nonnull final DeltaSet<UUID> deltaIn) {
       assert cursor != null;
       assert cursor.direction != null;
+      final PhaseTimings timings = PhaseTimings.current();
+      final OptimizerEvents events = OptimizerEvents.get();
+      final boolean projectionEvents = events.isProjectionEnabled();
+      final DoubleArena arena = DoubleArena.current();
       final DeltaSet<UUID> originalAlphaDerivative = cursor.direction.addRef();
       @Nonnull final DeltaSet<UUID> newAlphaDerivative = originalAlphaDerivative.copy();
       RefMap<UUID, Delta<UUID>> deltaInMap = deltaIn.getMap();
@@ -182,10 +281,22 @@ public abstract class TrustRegionStrategy extends OrientationStrategyBase<LineSe
             assert originalDelta != null;
             Delta<UUID> newDelta = newAlphaDerivative.get(id, currentPosition);
             assert newDelta != null;
-            @Nonnull final double[] proposedPosition = ArrayUtil.add(currentPosition, delta);
             Layer layer = toLayer(id);
+            final String layerName = projectionEvents ? (null == layer ? id.toString() : layer.getName()) : null;
             assert parent != null;
             final TrustRegion region = parent.getRegionPolicy(layer);
+            if (region instanceof SparseTrustRegion
+                && feasible.computeIfAbsent(id, key -> ((SparseTrustRegion) region).contains(currentPosition))
+                && projectSparse((SparseTrustRegion) region, id, layerName, currentPosition, delta,
+                originalDelta.addRef(), newDelta.addRef())) {
+              originalDelta.freeRef();
+              newDelta.freeRef();
+              return;
+            }
+            @Nonnull final double[] proposedPosition = arena.borrow(id, currentPosition.length);
+            for (int i = 0; i < proposedPosition.length; i++) {
+              proposedPosition[i] = currentPosition[i] + delta[i];
+            }
             if (null != region) {
               double[][] historyArray;
               synchronized (parent.history) {
@@ -200,12 +311,34 @@ public abstract class TrustRegionStrategy extends OrientationStrategyBase<LineSe
                   }
                 }).filter(x -> null != x).toArray(i -> new double[i][]);
               }
-              final double[] projectedPosition = region.project(historyArray, proposedPosition);
+              final long projectStart = timings.start();
+              final long projectBytes = timings.allocated();
+              // A buffered region writes into arena scratch, handed back below once the normal is done with
+              final boolean buffered = region instanceof BufferedTrustRegion;
+              final double[] projectedPosition = buffered ?
+                  ((BufferedTrustRegion) region).project(historyArray, proposedPosition,
+                      arena.borrow(id, proposedPosition.length)) :
+                  region.project(historyArray, proposedPosition);
+              timings.stop(PhaseTimings.Phase.PROJECT, projectStart);
+              timings.allocated(PhaseTimings.Phase.PROJECT, PhaseTimings.label(region), projectBytes);
+              if (projectionEvents) {
+                int clipped = 0;
+                if (projectedPosition != proposedPosition) {
+                  for (int i = 0; i < projectedPosition.length; i++) {
+                    if (projectedPosition[i] != proposedPosition[i]) clipped++;
+                  }
+                }
+                events.projection(PhaseTimings.label(region), layerName, proposedPosition.length,
+                    0 == proposedPosition.length ? 0 : (double) clipped / proposedPosition.length);
+              }
               if (projectedPosition != proposedPosition) {
                 for (int i = 0; i < projectedPosition.length; i++) {
                   delta[i] = projectedPosition[i] - currentPosition[i];
                 }
-                @Nonnull final double[] normal = ArrayUtil.subtract(projectedPosition, proposedPosition);
+                @Nonnull final double[] normal = arena.borrow(id, projectedPosition.length);
+                for (int i = 0; i < normal.length; i++) {
+                  normal[i] = projectedPosition[i] - proposedPosition[i];
+                }
                 final double normalMagSq = ArrayUtil.dot(normal, normal);
                 //              monitor.log(String.format("%s: evalInputDelta = %s, projectedPosition = %s, proposedPosition = %s, currentPosition = %s, normalMagSq = %s", key,
                 //                ArrayUtil.dot(evalInputDelta,evalInputDelta),
@@ -218,12 +351,11 @@ public abstract class TrustRegionStrategy extends OrientationStrategyBase<LineSe
                   assert originalAlphaD != null;
                   final double a = ArrayUtil.dot(originalAlphaD, normal);
                   if (a != -1) {
-                    @Nonnull final double[] tangent = ArrayUtil.add(originalAlphaD,
-                        ArrayUtil.multiply(normal, -a / normalMagSq));
+                    final double scale = -a / normalMagSq;
                     @Nullable final double[] newAlphaD = newDelta.getDelta();
-                    for (int i = 0; i < tangent.length; i++) {
-                      assert newAlphaD != null;
-                      newAlphaD[i] = tangent[i];
+                    assert newAlphaD != null;
+                    for (int i = 0; i < originalAlphaD.length; i++) {
+                      newAlphaD[i] = originalAlphaD[i] + normal[i] * scale;
                     }
                     //                  double newAlphaDerivSq = ArrayUtil.dot(tangent, tangent);
                     //                  double originalAlphaDerivSq = ArrayUtil.dot(originalAlphaD, originalAlphaD);
@@ -232,8 +364,12 @@ public abstract class TrustRegionStrategy extends OrientationStrategyBase<LineSe
                     //                  monitor.log(String.format("%s: normalMagSq = %s, newAlphaDerivSq = %s, originalAlphaDerivSq = %s", key, normalMagSq, newAlphaDerivSq, originalAlphaDerivSq));
                   }
                 }
+                arena.giveBack(id, normal);
               }
+              if (buffered)
+                arena.giveBack(id, projectedPosition);
             }
+            arena.giveBack(id, proposedPosition);
             originalDelta.freeRef();
             newDelta.freeRef();
           }, originalAlphaDerivative,
@@ -243,9 +379,76 @@ public abstract class TrustRegionStrategy extends OrientationStrategyBase<LineSe
       return newAlphaDerivative;
     }
 
+    /**
+     * Projects a step whose non-zero coordinates are a small fraction of the layer, touching only those coordinates.
+     * Returns false, having done nothing, when the step is too dense for the sparse path to pay off.
+     */
+    private boolean projectSparse(@Nonnull final SparseTrustRegion region, @Nonnull final UUID id,
+                                  @Nullable final String layerName, @Nonnull final double[] currentPosition,
+                                  @Nonnull final double[] delta, @Nonnull final Delta<UUID> originalDelta,
+                                  @Nonnull final Delta<UUID> newDelta) {
+      assert parent != null;
+      final int limit = (int) (parent.sparseDensity * delta.length);
+      int[] indices = SPARSE_INDICES.get();
+      if (indices.length < limit) {
+        indices = new int[limit];
+        SPARSE_INDICES.set(indices);
+      }
+      int count = 0;
+      for (int i = 0; i < delta.length; i++) {
+        if (0 == delta[i]) continue;
+        if (count == limit) {
+          originalDelta.freeRef();
+          newDelta.freeRef();
+          return false;
+        }
+        indices[count++] = i;
+      }
+      final PhaseTimings timings = PhaseTimings.current();
+      final OptimizerEvents events = OptimizerEvents.get();
+      final DoubleArena arena = DoubleArena.current();
+      final double[] correction = arena.borrow(id, delta.length);
+      final long projectStart = timings.start();
+      final long projectBytes = timings.allocated();
+      final int changed = region.projectSparse(currentPosition, delta, indices, count, correction);
+      timings.stop(PhaseTimings.Phase.PROJECT, projectStart);
+      timings.allocated(PhaseTimings.Phase.PROJECT, PhaseTimings.label(region), projectBytes);
+      if (events.isProjectionEnabled()) {
+        events.projection(PhaseTimings.label(region), layerName, delta.length,
+            0 == delta.length ? 0 : (double) changed / delta.length);
+      }
+      if (0 < changed) {
+        @Nullable final double[] originalAlphaD = originalDelta.getDelta();
+        assert originalAlphaD != null;
+        double normalMagSq = 0;
+        double a = 0;
+        for (int k = 0; k < count; k++) {
+          final double c = correction[k];
+          if (0 == c) continue;
+          delta[indices[k]] += c;
+          normalMagSq += c * c;
+          a += originalAlphaD[indices[k]] * c;
+        }
+        if (0 < normalMagSq && a != -1) {
+          final double scale = -a / normalMagSq;
+          @Nullable final double[] newAlphaD = newDelta.getDelta();
+          assert newAlphaD != null;
+          for (int k = 0; k < count; k++) {
+            final double c = correction[k];
+            if (0 != c) newAlphaD[indices[k]] = originalAlphaD[indices[k]] + c * scale;
+          }
+        }
+      }
+      arena.giveBack(id, correction);
+      originalDelta.freeRef();
+      newDelta.freeRef();
+      return true;
+    }
+
     @Override
     public void reset() {
       assert cursor != null;
+      clearProjections();
       cursor.reset();
     }
 
@@ -253,23 +456,36 @@ public abstract class TrustRegionStrategy extends OrientationStrategyBase<LineSe
     @Override
     public LineSearchPoint step(final double alpha, final TrainingMonitor monitor) {
       assert cursor != null;
-      cursor.reset();
-      @Nonnull final DeltaSet<UUID> adjustedPosVector = cursor.position(alpha);
-      @Nonnull final DeltaSet<UUID> adjustedGradient = project(adjustedPosVector.addRef());
-      adjustedPosVector.accumulate(1);
-      adjustedPosVector.freeRef();
+      final PhaseTimings timings = PhaseTimings.current();
+      final long stepStart = timings.start();
+      final long stepBytes = timings.allocated();
+      final OptimizerEvents events = OptimizerEvents.get();
+      final boolean stepEvents = events.isLineSearchEnabled();
+      if (stepEvents)
+        events.lineSearchStepBegin();
+      final Projection projection = projection(alpha);
+      projection.position.accumulate(1);
+      @Nonnull final DeltaSet<UUID> adjustedGradient = projection.gradient.addRef();
+      projection.freeRef();
       assert subject != null;
+      final long measureStart = timings.start();
       PointSample temp_33_0016 = subject.measure(monitor);
+      timings.stop(PhaseTimings.Phase.MEASURE, measureStart);
       temp_33_0016.setRate(alpha);
       @Nonnull final PointSample sample = afterStep(temp_33_0016);
       double dot = adjustedGradient.dot(sample.delta.addRef());
       adjustedGradient.freeRef();
+      if (stepEvents)
+        events.lineSearchStepEnd(String.valueOf(getDirectionType()), alpha, dot, sample.sum);
+      timings.stop(PhaseTimings.Phase.STEP, stepStart);
+      timings.allocated(PhaseTimings.Phase.STEP, PhaseTimings.label(parent), stepBytes);
       return new LineSearchPoint(sample, dot);
     }
 
     @Override
     public void _free() {
       super._free();
+      clearProjections();
       if (null != parent)
         parent.freeRef();
       if (null != subject)
@@ -284,5 +500,45 @@ public abstract class TrustRegionStrategy extends OrientationStrategyBase<LineSe
     TrustRegionCursor addRef() {
       return (TrustRegionCursor) super.addRef();
     }
+
+    private static final class Projection extends ReferenceCountingBase {
+      @Nonnull
+      final DeltaSet<UUID> position;
+      @Nonnull
+      final DeltaSet<UUID> gradient;
+      final long bytes;
+
+      private Projection(@Nonnull DeltaSet<UUID> position, @Nonnull DeltaSet<UUID> gradient) {
+        this.position = position;
+        this.gradient = gradient;
+        this.bytes = bytes(position.addRef()) + bytes(gradient.addRef());
+      }
+
+      private static long bytes(@Nonnull DeltaSet<UUID> deltaSet) {
+        final long[] bytes = {0};
+        final RefMap<UUID, Delta<UUID>> map = deltaSet.getMap();
+        deltaSet.freeRef();
+        map.forEach((id, delta) -> {
+          bytes[0] += 8L * delta.length();
+          delta.freeRef();
+        });
+        map.freeRef();
+        return bytes[0];
+      }
+
+      @Override
+      public void _free() {
+        super._free();
+        position.freeRef();
+        gradient.freeRef();
+      }
+
+      @Nonnull
+      public @Override
+      @SuppressWarnings("unused")
+      Projection addRef() {
+        return (Projection) super.addRef();
+      }
+    }
   }
 }
@@ -0,0 +1,411 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.mindseye.opt.parallel;
+
+import com.google.gson.JsonObject;
+import com.simiacryptus.mindseye.eval.TrainableBase;
+import com.simiacryptus.mindseye.lang.Delta;
+import com.simiacryptus.mindseye.lang.DeltaSet;
+import com.simiacryptus.mindseye.lang.Layer;
+import com.simiacryptus.mindseye.lang.PointSample;
+import com.simiacryptus.mindseye.lang.StateSet;
+import com.simiacryptus.mindseye.lang.Tensor;
+import com.simiacryptus.mindseye.network.DAGNetwork;
+import com.simiacryptus.mindseye.opt.TrainingMonitor;
+import com.simiacryptus.ref.lang.RefUtil;
+import com.simiacryptus.ref.wrappers.RefString;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.*;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * A Trainable that shards its data across worker JVMs on the local machine. Each measure() broadcasts the current
+ * weights of the network to every worker over a loopback socket, each worker measures its shard, and the gradients,
+ * loss sums and sample counts are summed here into one PointSample whose deltas target this process's network, so
+ * orientation strategies and line searches work on top of it unchanged.
+ * <p>
+ * Workers are started lazily on the first measure() with the current classpath. With a sample size set, each worker
+ * samples that many rows of its shard and reseed() is forwarded with a per-worker offset; otherwise the full shard
+ * is evaluated and reseed() returns false.
+ * <p>
+ * The network is sent to the workers as JSON and rebuilt with Layer.fromJson, so its class must declare a static
+ * fromJson(JsonObject, Map) factory. PipelineNetwork does; SimpleLossNetwork and SupervisedNetwork do not, so build
+ * the loss into a two-input PipelineNetwork instead.
+ */
+public class DataParallelTrainable extends TrainableBase {
+  private static final Logger log = LoggerFactory.getLogger(DataParallelTrainable.class);
+
+  @Nullable
+  private final DAGNetwork network;
+  private final int workers;
+  @Nullable
+  private Tensor[][] data;
+  private int sampleSize = 0;
+  @Nonnull
+  private List<String> jvmArgs = new ArrayList<>();
+  @Nonnull
+  private Duration startupTimeout = Duration.ofMinutes(1);
+  @Nullable
+  private List<WireFormat.WeightRef> weights = null;
+  @Nullable
+  private List<Worker> connections = null;
+  @Nullable
+  private ExecutorService executor = null;
+
+  public DataParallelTrainable(@Nonnull Tensor[][] data, @Nonnull DAGNetwork network, int workers) {
+    if (workers < 1) throw new IllegalArgumentException();
+    if (data.length < workers) throw new IllegalArgumentException("Fewer rows than workers");
+    try {
+      network.getClass().getMethod("fromJson", JsonObject.class, Map.class);
+    } catch (NoSuchMethodException e) {
+      throw new IllegalArgumentException(network.getClass().getSimpleName() + " cannot be rebuilt from JSON by the workers", e);
+    }
+    this.data = data;
+    this.network = network;
+    this.workers = workers;
+  }
+
+  @Nonnull
+  public List<String> getJvmArgs() {
+    return jvmArgs;
+  }
+
+  public void setJvmArgs(@Nonnull List<String> jvmArgs) {
+    this.jvmArgs = new ArrayList<>(jvmArgs);
+  }
+
+  @Nullable
+  @Override
+  public Layer getLayer() {
+    return network == null ? null : network.addRef();
+  }
+
+  public int getSampleSize() {
+    return sampleSize;
+  }
+
+  public void setSampleSize(int sampleSize) {
+    this.sampleSize = sampleSize;
+  }
+
+  @Nonnull
+  public Duration getStartupTimeout() {
+    return startupTimeout;
+  }
+
+  public void setStartupTimeout(@Nonnull Duration startupTimeout) {
+    this.startupTimeout = startupTimeout;
+  }
+
+  public int getWorkers() {
+    return workers;
+  }
+
+  @Override
+  public synchronized PointSample measure(final TrainingMonitor monitor) {
+    start();
+    assert connections != null;
+    assert weights != null;
+    final List<Future<Result>> futures = new ArrayList<>();
+    for (Worker worker : connections) {
+      futures.add(executor.submit(() -> worker.measure(weights)));
+    }
+    final Map<UUID, WireFormat.WeightRef[]> byLayer = new HashMap<>();
+    for (WireFormat.WeightRef weight : weights) {
+      final WireFormat.WeightRef[] refs = byLayer.computeIfAbsent(weight.id, id -> new WireFormat.WeightRef[0]);
+      final WireFormat.WeightRef[] grown = Arrays.copyOf(refs, Math.max(refs.length, weight.index + 1));
+      grown[weight.index] = weight;
+      byLayer.put(weight.id, grown);
+    }
+    final DeltaSet<UUID> delta = new DeltaSet<>();
+    double sum = 0;
+    int count = 0;
+    try {
+      for (Future<Result> future : futures) {
+        final Result result = get(future);
+        sum += result.sum;
+        count += result.count;
+        for (Gradient gradient : result.gradients) {
+          final WireFormat.WeightRef[] refs = byLayer.get(gradient.id);
+          if (null == refs || gradient.index >= refs.length || null == refs[gradient.index])
+            throw new IllegalStateException("Gradient for unknown buffer of " + gradient.id);
+          final Delta<UUID> buffer = delta.get(gradient.id, refs[gradient.index].data);
+          assert buffer != null;
+          buffer.addInPlace(gradient.delta);
+          buffer.freeRef();
+        }
+      }
+    } catch (RuntimeException e) {
+      delta.freeRef();
+      throw e;
+    }
+    return new PointSample(delta.addRef(), new StateSet<>(delta), sum, 0.0, count);
+  }
+
+  @Override
+  public synchronized boolean reseed(final long seed) {
+    if (sampleSize <= 0) return false;
+    start();
+    assert connections != null;
+    final List<Future<Boolean>> futures = new ArrayList<>();
+    for (Worker worker : connections) {
+      final long workerSeed = seed + worker.index * 0x9E3779B97F4A7C15L;
+      futures.add(executor.submit(() -> worker.reseed(workerSeed)));
+    }
+    boolean reseeded = true;
+    for (Future<Boolean> future : futures) {
+      reseeded &= get(future);
+    }
+    return reseeded;
+  }
+
+  public synchronized void shutdown() {
+    if (null != connections) {
+      for (Worker worker : connections) {
+        worker.close();
+      }
+      connections = null;
+    }
+    if (null != executor) {
+      executor.shutdownNow();
+      executor = null;
+    }
+  }
+
+  public void _free() {
+    shutdown();
+    if (null != data) {
+      RefUtil.freeRef(data);
+      data = null;
+    }
+    if (null != network)
+      network.freeRef();
+    super._free();
+  }
+
+  @Nonnull
+  public @Override
+  @SuppressWarnings("unused")
+  DataParallelTrainable addRef() {
+    return (DataParallelTrainable) super.addRef();
+  }
+
+  private static <T> T get(@Nonnull Future<T> future) {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new RuntimeException(e);
+    } catch (ExecutionException e) {
+      throw new RuntimeException(e.getCause());
+    }
+  }
+
+  private void start() {
+    if (null != connections) return;
+    assert network != null;
+    assert data != null;
+    weights = WireFormat.weights(network.addRef());
+    final String json = network.getJson().toString();
+    final List<Process> processes = new ArrayList<>();
+    final List<Socket> sockets = new ArrayList<>();
+    final Worker[] started = new Worker[workers];
+    boolean connected = false;
+    try (ServerSocket server = new ServerSocket(0, workers, InetAddress.getLoopbackAddress())) {
+      server.setSoTimeout((int) startupTimeout.toMillis());
+      for (int i = 0; i < workers; i++) {
+        processes.add(launch(server.getLocalPort(), i));
+      }
+      for (int i = 0; i < workers; i++) {
+        final Socket socket = server.accept();
+        sockets.add(socket);
+        socket.setTcpNoDelay(true);
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 1 << 16));
+        final int index = in.readInt();
+        started[index] = new Worker(index, socket, in, processes.get(index));
+      }
+      for (int i = 0; i < workers; i++) {
+        final int from = (int) ((long) data.length * i / workers);
+        final int to = (int) ((long) data.length * (i + 1) / workers);
+        started[i].init(json, sampleSize, Arrays.copyOfRange(data, from, to), weights.size());
+      }
+      connected = true;
+    } catch (SocketTimeoutException e) {
+      throw new IllegalStateException("Workers did not connect within " + startupTimeout, e);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    } finally {
+      if (!connected) abort(sockets, processes);
+    }
+    RefUtil.freeRef(data);
+    data = null;
+    connections = Collections.unmodifiableList(Arrays.asList(started));
+    executor = Executors.newFixedThreadPool(workers, r -> {
+      Thread thread = new Thread(r, DataParallelTrainable.class.getSimpleName());
+      thread.setDaemon(true);
+      return thread;
+    });
+    log.info(RefString.format("Started %d data-parallel workers", workers));
+  }
+
+  /**
+   * Closes the connections accepted so far and kills every launched worker, for when not all of them came up.
+   */
+  private static void abort(@Nonnull List<Socket> sockets, @Nonnull List<Process> processes) {
+    for (Socket socket : sockets) {
+      try {
+        socket.close();
+      } catch (IOException e) {
+        log.debug("Error closing worker connection", e);
+      }
+    }
+    for (Process process : processes) {
+      process.destroyForcibly();
+    }
+  }
+
+  @Nonnull
+  private Process launch(int port, int index) throws IOException {
+    final List<String> command = new ArrayList<>();
+    command.add(new File(new File(System.getProperty("java.home"), "bin"), "java").getAbsolutePath());
+    command.addAll(jvmArgs);
+    command.add("-cp");
+    command.add(System.getProperty("java.class.path"));
+    command.add(DataParallelWorker.class.getName());
+    command.add(InetAddress.getLoopbackAddress().getHostAddress());
+    command.add(Integer.toString(port));
+    command.add(Integer.toString(index));
+    return new ProcessBuilder(command).inheritIO().start();
+  }
+
+  private static final class Worker {
+    final int index;
+    @Nonnull
+    final Socket socket;
+    @Nonnull
+    final DataInputStream in;
+    @Nonnull
+    final DataOutputStream out;
+    @Nonnull
+    final Process process;
+
+    Worker(int index, @Nonnull Socket socket, @Nonnull DataInputStream in, @Nonnull Process process) throws IOException {
+      this.index = index;
+      this.socket = socket;
+      this.in = in;
+      this.out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 1 << 16));
+      this.process = process;
+    }
+
+    void init(@Nonnull String json, int sampleSize, @Nonnull Tensor[][] shard, int expectedWeights) throws IOException {
+      out.writeInt(WireFormat.INIT);
+      WireFormat.writeString(out, json);
+      out.writeInt(sampleSize);
+      out.writeInt(shard.length);
+      for (Tensor[] row : shard) {
+        out.writeInt(row.length);
+        for (Tensor tensor : row) {
+          WireFormat.writeTensor(out, tensor.addRef());
+        }
+      }
+      out.flush();
+      final int workerWeights = in.readInt();
+      if (workerWeights != expectedWeights)
+        throw new IOException(RefString.format("Worker %d sees %d weight buffers, expected %d", index, workerWeights,
+            expectedWeights));
+    }
+
+    @Nonnull
+    Result measure(@Nonnull List<WireFormat.WeightRef> weights) throws IOException {
+      out.writeInt(WireFormat.MEASURE);
+      for (WireFormat.WeightRef weight : weights) {
+        WireFormat.writeDoubles(out, weight.data);
+      }
+      out.flush();
+      final double sum = in.readDouble();
+      final int count = in.readInt();
+      final Gradient[] gradients = new Gradient[in.readInt()];
+      for (int i = 0; i < gradients.length; i++) {
+        gradients[i] = new Gradient(WireFormat.readUUID(in), in.readInt(), WireFormat.readDoubles(in));
+      }
+      return new Result(sum, count, gradients);
+    }
+
+    boolean reseed(long seed) throws IOException {
+      out.writeInt(WireFormat.RESEED);
+      out.writeLong(seed);
+      out.flush();
+      return in.readBoolean();
+    }
+
+    void close() {
+      try {
+        out.writeInt(WireFormat.SHUTDOWN);
+        out.flush();
+        socket.close();
+      } catch (IOException e) {
+        log.debug("Error closing worker " + index, e);
+      }
+      try {
+        if (!process.waitFor(10, TimeUnit.SECONDS)) process.destroyForcibly();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+        process.destroyForcibly();
+      }
+    }
+  }
+
+  private static final class Gradient {
+    @Nonnull
+    final UUID id;
+    final int index;
+    @Nonnull
+    final double[] delta;
+
+    Gradient(@Nonnull UUID id, int index, @Nonnull double[] delta) {
+      this.id = id;
+      this.index = index;
+      this.delta = delta;
+    }
+  }
+
+  private static final class Result {
+    final double sum;
+    final int count;
+    @Nonnull
+    final Gradient[] gradients;
+
+    Result(double sum, int count, @Nonnull Gradient[] gradients) {
+      this.sum = sum;
+      this.count = count;
+      this.gradients = gradients;
+    }
+  }
+}
@@ -0,0 +1,150 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.mindseye.opt.parallel;
+
+import com.google.gson.JsonParser;
+import com.simiacryptus.mindseye.eval.ArrayTrainable;
+import com.simiacryptus.mindseye.eval.SampledArrayTrainable;
+import com.simiacryptus.mindseye.eval.Trainable;
+import com.simiacryptus.mindseye.lang.Delta;
+import com.simiacryptus.mindseye.lang.Layer;
+import com.simiacryptus.mindseye.lang.PointSample;
+import com.simiacryptus.mindseye.lang.Tensor;
+import com.simiacryptus.mindseye.network.DAGNetwork;
+import com.simiacryptus.mindseye.opt.TrainingMonitor;
+import com.simiacryptus.ref.wrappers.RefMap;
+
+import javax.annotation.Nonnull;
+import java.io.*;
+import java.net.Socket;
+import java.util.*;
+
+/**
+ * Worker process for DataParallelTrainable. It connects back to the coordinator, receives the network and its shard
+ * of the data, and then answers measure and reseed requests until told to shut down.
+ * <p>
+ * Usage: DataParallelWorker host port index
+ */
+public class DataParallelWorker {
+  @Nonnull
+  private final DataInputStream in;
+  @Nonnull
+  private final DataOutputStream out;
+  private DAGNetwork network;
+  private List<WireFormat.WeightRef> weights;
+  private Map<double[], WireFormat.WeightRef> weightsByTarget;
+  private Trainable trainable;
+
+  public DataParallelWorker(@Nonnull InputStream in, @Nonnull OutputStream out) {
+    this.in = new DataInputStream(new BufferedInputStream(in, 1 << 16));
+    this.out = new DataOutputStream(new BufferedOutputStream(out, 1 << 16));
+  }
+
+  public static void main(String[] args) throws IOException {
+    final String host = args[0];
+    final int port = Integer.parseInt(args[1]);
+    final int index = Integer.parseInt(args[2]);
+    try (Socket socket = new Socket(host, port)) {
+      socket.setTcpNoDelay(true);
+      final DataParallelWorker worker = new DataParallelWorker(socket.getInputStream(), socket.getOutputStream());
+      worker.out.writeInt(index);
+      worker.out.flush();
+      worker.run();
+    }
+    System.exit(0);
+  }
+
+  public void run() throws IOException {
+    try {
+      while (true) {
+        final int command = in.readInt();
+        switch (command) {
+          case WireFormat.INIT:
+            init();
+            break;
+          case WireFormat.MEASURE:
+            measure();
+            break;
+          case WireFormat.RESEED:
+            out.writeBoolean(trainable.reseed(in.readLong()));
+            break;
+          case WireFormat.SHUTDOWN:
+            return;
+          default:
+            throw new IOException("Unknown command " + command);
+        }
+        out.flush();
+      }
+    } finally {
+      if (null != trainable) trainable.freeRef();
+      if (null != network) network.freeRef();
+    }
+  }
+
+  private void init() throws IOException {
+    final Layer layer = Layer.fromJson(JsonParser.parseString(WireFormat.readString(in)).getAsJsonObject());
+    if (!(layer instanceof DAGNetwork)) throw new IOException("Expected a DAGNetwork");
+    network = (DAGNetwork) layer;
+    final int sampleSize = in.readInt();
+    final Tensor[][] shard = new Tensor[in.readInt()][];
+    for (int row = 0; row < shard.length; row++) {
+      shard[row] = new Tensor[in.readInt()];
+      for (int column = 0; column < shard[row].length; column++) {
+        shard[row][column] = WireFormat.readTensor(in);
+      }
+    }
+    weights = WireFormat.weights(network.addRef());
+    weightsByTarget = new IdentityHashMap<>();
+    for (WireFormat.WeightRef weight : weights) {
+      weightsByTarget.put(weight.data, weight);
+    }
+    trainable = sampleSize > 0 ? new SampledArrayTrainable(shard, network.addRef(), sampleSize)
+        : new ArrayTrainable(shard, network.addRef());
+    out.writeInt(weights.size());
+  }
+
+  private void measure() throws IOException {
+    for (WireFormat.WeightRef weight : weights) {
+      WireFormat.readDoubles(in, weight.data);
+    }
+    final PointSample sample = trainable.measure(new TrainingMonitor());
+    out.writeDouble(sample.sum);
+    out.writeInt(sample.count);
+    final RefMap<UUID, Delta<UUID>> map = sample.delta.getMap();
+    final List<Delta<UUID>> deltas = new ArrayList<>();
+    map.forEach((id, delta) -> deltas.add(delta));
+    map.freeRef();
+    sample.freeRef();
+    try {
+      out.writeInt(deltas.size());
+      for (Delta<UUID> delta : deltas) {
+        final WireFormat.WeightRef weight = weightsByTarget.get(delta.target);
+        if (null == weight) throw new IOException("Gradient for unknown buffer of " + delta.key);
+        WireFormat.writeUUID(out, weight.id);
+        out.writeInt(weight.index);
+        WireFormat.writeDoubles(out, delta.getDelta());
+      }
+    } finally {
+      for (Delta<UUID> delta : deltas) {
+        delta.freeRef();
+      }
+    }
+  }
+}
@@ -0,0 +1,157 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.mindseye.opt.parallel;
+
+import com.simiacryptus.mindseye.lang.Layer;
+import com.simiacryptus.mindseye.lang.Tensor;
+import com.simiacryptus.mindseye.network.DAGNetwork;
+import com.simiacryptus.ref.wrappers.RefList;
+import com.simiacryptus.ref.wrappers.RefMap;
+
+import javax.annotation.Nonnull;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Message layout shared by DataParallelTrainable and DataParallelWorker. All values are big-endian as written by
+ * DataOutputStream; strings and arrays are length-prefixed.
+ */
+final class WireFormat {
+  static final int INIT = 1;
+  static final int MEASURE = 2;
+  static final int RESEED = 3;
+  static final int SHUTDOWN = 4;
+
+  private WireFormat() {
+  }
+
+  static void writeString(@Nonnull DataOutputStream out, @Nonnull String value) throws IOException {
+    final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+    out.writeInt(bytes.length);
+    out.write(bytes);
+  }
+
+  @Nonnull
+  static String readString(@Nonnull DataInputStream in) throws IOException {
+    final byte[] bytes = new byte[in.readInt()];
+    in.readFully(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  static void writeUUID(@Nonnull DataOutputStream out, @Nonnull UUID id) throws IOException {
+    out.writeLong(id.getMostSignificantBits());
+    out.writeLong(id.getLeastSignificantBits());
+  }
+
+  @Nonnull
+  static UUID readUUID(@Nonnull DataInputStream in) throws IOException {
+    return new UUID(in.readLong(), in.readLong());
+  }
+
+  static void writeDoubles(@Nonnull DataOutputStream out, @Nonnull double[] values) throws IOException {
+    out.writeInt(values.length);
+    for (double value : values) {
+      out.writeDouble(value);
+    }
+  }
+
+  static void readDoubles(@Nonnull DataInputStream in, @Nonnull double[] target) throws IOException {
+    final int length = in.readInt();
+    if (length != target.length) throw new IOException("Expected " + target.length + " values, got " + length);
+    for (int i = 0; i < length; i++) {
+      target[i] = in.readDouble();
+    }
+  }
+
+  @Nonnull
+  static double[] readDoubles(@Nonnull DataInputStream in) throws IOException {
+    final double[] values = new double[in.readInt()];
+    for (int i = 0; i < values.length; i++) {
+      values[i] = in.readDouble();
+    }
+    return values;
+  }
+
+  static void writeTensor(@Nonnull DataOutputStream out, @Nonnull Tensor tensor) throws IOException {
+    final int[] dimensions = tensor.getDimensions();
+    out.writeInt(dimensions.length);
+    for (int dimension : dimensions) {
+      out.writeInt(dimension);
+    }
+    writeDoubles(out, tensor.getData());
+    tensor.freeRef();
+  }
+
+  @Nonnull
+  static Tensor readTensor(@Nonnull DataInputStream in) throws IOException {
+    final int[] dimensions = new int[in.readInt()];
+    for (int i = 0; i < dimensions.length; i++) {
+      dimensions[i] = in.readInt();
+    }
+    return new Tensor(readDoubles(in), dimensions);
+  }
+
+  /**
+   * The weight buffers of a network, in a stable order: every state array of every non-network layer.
+   */
+  @Nonnull
+  static List<WeightRef> weights(@Nonnull DAGNetwork network) {
+    final List<WeightRef> weights = new ArrayList<>();
+    final RefMap<UUID, Layer> layersById = network.getLayersById();
+    network.freeRef();
+    layersById.forEach((id, layer) -> {
+      if (!(layer instanceof DAGNetwork)) {
+        final RefList<double[]> state = layer.state();
+        if (null != state) {
+          for (int index = 0; index < state.size(); index++) {
+            weights.add(new WeightRef(id, index, state.get(index)));
+          }
+          state.freeRef();
+        }
+      }
+      layer.freeRef();
+    });
+    layersById.freeRef();
+    weights.sort((a, b) -> {
+      final int compare = a.id.compareTo(b.id);
+      return 0 != compare ? compare : Integer.compare(a.index, b.index);
+    });
+    return weights;
+  }
+
+  static final class WeightRef {
+    @Nonnull
+    final UUID id;
+    final int index;
+    @Nonnull
+    final double[] data;
+
+    WeightRef(@Nonnull UUID id, int index, @Nonnull double[] data) {
+      this.id = id;
+      this.index = index;
+      this.data = data;
+    }
+  }
+}
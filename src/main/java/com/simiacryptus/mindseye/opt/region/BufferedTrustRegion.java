@@ -0,0 +1,34 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.mindseye.opt.region;
+
+import javax.annotation.Nonnull;
+
+/**
+ * A region that can write its projection into a buffer the caller supplies, rather than allocating the result.
+ */
+public interface BufferedTrustRegion extends TrustRegion {
+  /**
+   * Projects {@code point} as {@link #project(double[][], double[])} does, writing the result into {@code out} and
+   * returning it. {@code out} has the point's length.
+   */
+  @Nonnull
+  double[] project(@Nonnull double[][] history, @Nonnull double[] point, @Nonnull double[] out);
+}
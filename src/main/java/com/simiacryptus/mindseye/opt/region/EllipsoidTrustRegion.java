@@ -0,0 +1,204 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.mindseye.opt.region;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Ellipsoidal trust region with a diagonal preconditioner. Each coordinate's radius is scaled by an exponential
+ * moving average of its squared past steps, so parameters that habitually move a lot are not held back by ones that
+ * barely move. The region is {@code sum((d_i / s_i)^2) <= n * radius^2}, and points outside it are projected onto it
+ * by bisection on the Lagrange multiplier.
+ *
+ * <p>The estimate is kept per instance and updated as new weight snapshots arrive, so share one instance per layer
+ * (for example via {@link LayerTrustRegionMap}). Snapshots are recognized by array identity, not by content: the
+ * estimate is folded forward only when {@code history[1]} is the very array that was {@code history[0]} on the last
+ * call, and a history that reuses or copies its arrays looks unfamiliar. An unfamiliar history is rebuilt from
+ * scratch in O(history.length * n), so a {@code getRegionPolicy} that returns a new instance on every call pays
+ * that rebuild on every projection.</p>
+ */
+public class EllipsoidTrustRegion implements TrustRegion {
+
+  private double decay = 0.9;
+  private double radius = 2.0;
+  private double minScale = 1e-3;
+  private int maxBisections = 64;
+  private double tolerance = 1e-6;
+  @Nullable
+  private double[] meanSquare;
+  @Nullable
+  private double[] lastHead;
+  /**
+   * Scratch for the floored squared scales of the current projection, kept so each call does not allocate it.
+   */
+  @Nullable
+  private double[] scaleSq;
+
+  public double getDecay() {
+    return decay;
+  }
+
+  @Nonnull
+  public EllipsoidTrustRegion setDecay(final double decay) {
+    this.decay = decay;
+    return this;
+  }
+
+  public double getRadius() {
+    return radius;
+  }
+
+  @Nonnull
+  public EllipsoidTrustRegion setRadius(final double radius) {
+    this.radius = radius;
+    return this;
+  }
+
+  public double getMinScale() {
+    return minScale;
+  }
+
+  /**
+   * Floor for each coordinate's scale, relative to the RMS scale of the layer.
+   */
+  @Nonnull
+  public EllipsoidTrustRegion setMinScale(final double minScale) {
+    this.minScale = minScale;
+    return this;
+  }
+
+  public int getMaxBisections() {
+    return maxBisections;
+  }
+
+  @Nonnull
+  public EllipsoidTrustRegion setMaxBisections(final int maxBisections) {
+    this.maxBisections = maxBisections;
+    return this;
+  }
+
+  public double getTolerance() {
+    return tolerance;
+  }
+
+  @Nonnull
+  public EllipsoidTrustRegion setTolerance(final double tolerance) {
+    this.tolerance = tolerance;
+    return this;
+  }
+
+  @Nonnull
+  @Override
+  public synchronized double[] project(@Nonnull final double[][] history, @Nonnull final double[] point) {
+    if (history.length < 2) return point;
+    final double[] weights = history[0];
+    final double[] stepSquares = update(history);
+    if (null == stepSquares) return point;
+    final int n = point.length;
+    double meanScaleSq = 0;
+    for (int i = 0; i < n; i++) {
+      meanScaleSq += stepSquares[i];
+    }
+    meanScaleSq /= n;
+    if (!(meanScaleSq > 0)) return point;
+    final double floor = minScale * minScale * meanScaleSq;
+    if (null == scaleSq || scaleSq.length != n) scaleSq = new double[n];
+    final double[] scaleSq = this.scaleSq;
+    double norm = 0;
+    double weightedSq = 0;
+    for (int i = 0; i < n; i++) {
+      scaleSq[i] = Math.max(stepSquares[i], floor);
+      final double d = point[i] - weights[i];
+      norm += d * d / scaleSq[i];
+      weightedSq += d * d * scaleSq[i];
+    }
+    final double bound = n * radius * radius;
+    if (norm <= bound) return point;
+    // f(lambda) = sum(d^2 s^2 / (s^2 + lambda)^2) decreases from norm to 0; lambda = sqrt(sum(d^2 s^2) / bound)
+    // already satisfies f(lambda) <= bound.
+    double lo = 0;
+    double hi = Math.sqrt(weightedSq / bound);
+    for (int iteration = 0; iteration < maxBisections && hi - lo > tolerance * hi; iteration++) {
+      final double lambda = (lo + hi) / 2;
+      if (constraint(weights, point, scaleSq, lambda) > bound) {
+        lo = lambda;
+      } else {
+        hi = lambda;
+      }
+    }
+    final double[] projected = new double[n];
+    for (int i = 0; i < n; i++) {
+      projected[i] = weights[i] + (point[i] - weights[i]) * scaleSq[i] / (scaleSq[i] + hi);
+    }
+    return projected;
+  }
+
+  private static double constraint(@Nonnull final double[] weights, @Nonnull final double[] point,
+                                   @Nonnull final double[] scaleSq, final double lambda) {
+    double sum = 0;
+    for (int i = 0; i < point.length; i++) {
+      final double d = point[i] - weights[i];
+      final double denominator = scaleSq[i] + lambda;
+      sum += d * d * scaleSq[i] / (denominator * denominator);
+    }
+    return sum;
+  }
+
+  /**
+   * Folds the newest step into the running mean square when the history advanced by exactly one snapshot since the
+   * last call, and rebuilds it from the whole history otherwise.
+   */
+  @Nullable
+  private double[] update(@Nonnull final double[][] history) {
+    final double[] head = history[0];
+    if (null != meanSquare && meanSquare.length == head.length) {
+      if (head == lastHead) return meanSquare;
+      if (history[1] == lastHead) {
+        accumulate(meanSquare, history[0], history[1]);
+        lastHead = head;
+        return meanSquare;
+      }
+    }
+    double[] rebuilt = null;
+    for (int k = history.length - 1; k > 0; k--) {
+      if (history[k].length != head.length || history[k - 1].length != head.length) continue;
+      if (null == rebuilt) {
+        rebuilt = new double[head.length];
+        for (int i = 0; i < rebuilt.length; i++) {
+          final double d = history[k - 1][i] - history[k][i];
+          rebuilt[i] = d * d;
+        }
+      } else {
+        accumulate(rebuilt, history[k - 1], history[k]);
+      }
+    }
+    meanSquare = rebuilt;
+    lastHead = null == rebuilt ? null : head;
+    return rebuilt;
+  }
+
+  private void accumulate(@Nonnull final double[] meanSquare, @Nonnull final double[] to, @Nonnull final double[] from) {
+    for (int i = 0; i < meanSquare.length; i++) {
+      final double d = to[i] - from[i];
+      meanSquare[i] = decay * meanSquare[i] + (1 - decay) * d * d;
+    }
+  }
+}
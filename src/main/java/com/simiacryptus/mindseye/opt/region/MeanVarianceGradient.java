@@ -22,10 +22,19 @@ package com.simiacryptus.mindseye.opt.region;
 import com.simiacryptus.util.ArrayUtil;
 
 import javax.annotation.Nonnull;
+import java.util.stream.IntStream;
 
-public class MeanVarianceGradient implements TrustRegion {
+/**
+ * Rescales the weights to match the mean and dispersion of the proposed point. Statistics for both arrays are
+ * gathered in fused passes without temporaries, split into blocks and reduced in parallel for large arrays.
+ */
+public class MeanVarianceGradient implements BufferedTrustRegion {
+  private static final int BLOCK_SIZE = 1 << 14;
 
   private double max = Double.POSITIVE_INFINITY;
+  @Nonnull
+  private Dispersion dispersion = Dispersion.ABSOLUTE;
+  private int parallelThreshold = 1 << 16;
 
   public double getMax() {
     return max;
@@ -37,6 +46,27 @@ public class MeanVarianceGradient implements TrustRegion {
     return this;
   }
 
+  @Nonnull
+  public Dispersion getDispersion() {
+    return dispersion;
+  }
+
+  @Nonnull
+  public MeanVarianceGradient setDispersion(@Nonnull final Dispersion dispersion) {
+    this.dispersion = dispersion;
+    return this;
+  }
+
+  public int getParallelThreshold() {
+    return parallelThreshold;
+  }
+
+  @Nonnull
+  public MeanVarianceGradient setParallelThreshold(final int parallelThreshold) {
+    this.parallelThreshold = parallelThreshold;
+    return this;
+  }
+
   public double length(@Nonnull final double[] weights) {
     return ArrayUtil.magnitude(weights);
   }
@@ -44,12 +74,184 @@ public class MeanVarianceGradient implements TrustRegion {
   @Nonnull
   @Override
   public double[] project(@Nonnull final double[] weights, @Nonnull final double[] point) {
-    final double meanWeight = ArrayUtil.mean(weights);
-    final double meanPoint = ArrayUtil.mean(point);
-    final double varWeights = ArrayUtil.mean(ArrayUtil.op(weights, x -> Math.abs(x - meanWeight)));
-    final double varPoint = ArrayUtil.mean(ArrayUtil.op(point, x -> Math.abs(x - meanPoint)));
-    return ArrayUtil.op(weights, v -> {
-      return (v - meanWeight) * (varPoint / varWeights) + meanPoint;
-    });
+    return project(weights, point, new double[weights.length]);
+  }
+
+  @Nonnull
+  @Override
+  public double[] project(@Nonnull final double[][] history, @Nonnull final double[] point, @Nonnull final double[] out) {
+    return project(history[0], point, out);
+  }
+
+  /**
+   * Writes the projection into {@code out}, which may alias either input, and returns it.
+   */
+  @Nonnull
+  public double[] project(@Nonnull final double[] weights, @Nonnull final double[] point, @Nonnull final double[] out) {
+    if (point.length != weights.length || out.length != weights.length) {
+      throw new IllegalArgumentException(weights.length + " != " + point.length + " / " + out.length);
+    }
+    final Moments moments = dispersion == Dispersion.STANDARD ? welford(weights, point) : absolute(weights, point);
+    final double meanWeight = moments.meanWeight;
+    final double meanPoint = moments.meanPoint;
+    final double scale = moments.devPoint / moments.devWeight;
+    if (weights.length < parallelThreshold) {
+      for (int i = 0; i < weights.length; i++) {
+        out[i] = (weights[i] - meanWeight) * scale + meanPoint;
+      }
+    } else {
+      blocks(weights.length).parallel().forEach(block -> {
+        final int end = Math.min(weights.length, block + BLOCK_SIZE);
+        for (int i = block; i < end; i++) {
+          out[i] = (weights[i] - meanWeight) * scale + meanPoint;
+        }
+      });
+    }
+    return out;
+  }
+
+  @Nonnull
+  private Moments absolute(@Nonnull final double[] weights, @Nonnull final double[] point) {
+    final int length = weights.length;
+    final boolean parallel = length >= parallelThreshold;
+    final Moments sums = parallel ?
+        blocks(length).parallel().mapToObj(block -> sum(weights, point, block, block + BLOCK_SIZE))
+            .reduce(new Moments(), Moments::add) :
+        sum(weights, point, 0, length);
+    final double meanWeight = sums.meanWeight / length;
+    final double meanPoint = sums.meanPoint / length;
+    final Moments deviations = parallel ?
+        blocks(length).parallel().mapToObj(block -> deviation(weights, point, meanWeight, meanPoint, block, block + BLOCK_SIZE))
+            .reduce(new Moments(), Moments::add) :
+        deviation(weights, point, meanWeight, meanPoint, 0, length);
+    final Moments moments = new Moments();
+    moments.count = length;
+    moments.meanWeight = meanWeight;
+    moments.meanPoint = meanPoint;
+    moments.devWeight = deviations.devWeight / length;
+    moments.devPoint = deviations.devPoint / length;
+    return moments;
+  }
+
+  @Nonnull
+  private Moments welford(@Nonnull final double[] weights, @Nonnull final double[] point) {
+    final int length = weights.length;
+    final Moments moments = length >= parallelThreshold ?
+        blocks(length).parallel().mapToObj(block -> welford(weights, point, block, block + BLOCK_SIZE))
+            .reduce(new Moments(), Moments::merge) :
+        welford(weights, point, 0, length);
+    moments.devWeight = Math.sqrt(moments.devWeight / length);
+    moments.devPoint = Math.sqrt(moments.devPoint / length);
+    return moments;
+  }
+
+  @Nonnull
+  private static IntStream blocks(final int length) {
+    return IntStream.range(0, (length + BLOCK_SIZE - 1) / BLOCK_SIZE).map(i -> i * BLOCK_SIZE);
+  }
+
+  @Nonnull
+  private static Moments sum(@Nonnull final double[] weights, @Nonnull final double[] point, final int from, final int to) {
+    final int end = Math.min(to, weights.length);
+    double sumWeight = 0;
+    double sumPoint = 0;
+    for (int i = from; i < end; i++) {
+      sumWeight += weights[i];
+      sumPoint += point[i];
+    }
+    final Moments moments = new Moments();
+    moments.meanWeight = sumWeight;
+    moments.meanPoint = sumPoint;
+    return moments;
+  }
+
+  @Nonnull
+  private static Moments deviation(@Nonnull final double[] weights, @Nonnull final double[] point,
+                                   final double meanWeight, final double meanPoint, final int from, final int to) {
+    final int end = Math.min(to, weights.length);
+    double devWeight = 0;
+    double devPoint = 0;
+    for (int i = from; i < end; i++) {
+      devWeight += Math.abs(weights[i] - meanWeight);
+      devPoint += Math.abs(point[i] - meanPoint);
+    }
+    final Moments moments = new Moments();
+    moments.devWeight = devWeight;
+    moments.devPoint = devPoint;
+    return moments;
+  }
+
+  @Nonnull
+  private static Moments welford(@Nonnull final double[] weights, @Nonnull final double[] point, final int from, final int to) {
+    final int end = Math.min(to, weights.length);
+    double meanWeight = 0;
+    double meanPoint = 0;
+    double m2Weight = 0;
+    double m2Point = 0;
+    for (int i = from; i < end; i++) {
+      final int n = i - from + 1;
+      final double dw = weights[i] - meanWeight;
+      final double dp = point[i] - meanPoint;
+      meanWeight += dw / n;
+      meanPoint += dp / n;
+      m2Weight += dw * (weights[i] - meanWeight);
+      m2Point += dp * (point[i] - meanPoint);
+    }
+    final Moments moments = new Moments();
+    moments.count = Math.max(0, end - from);
+    moments.meanWeight = meanWeight;
+    moments.meanPoint = meanPoint;
+    moments.devWeight = m2Weight;
+    moments.devPoint = m2Point;
+    return moments;
+  }
+
+  public enum Dispersion {
+    /**
+     * Mean absolute deviation; exact, so it needs the means before the deviation pass.
+     */
+    ABSOLUTE,
+    /**
+     * Standard deviation, gathered in a single Welford pass.
+     */
+    STANDARD
+  }
+
+  /**
+   * Partial statistics for both arrays. Depending on the pass the fields hold sums, deviations or Welford
+   * means and squared-deviation totals.
+   */
+  private static final class Moments {
+    long count;
+    double meanWeight;
+    double meanPoint;
+    double devWeight;
+    double devPoint;
+
+    @Nonnull
+    static Moments add(@Nonnull final Moments a, @Nonnull final Moments b) {
+      final Moments moments = new Moments();
+      moments.meanWeight = a.meanWeight + b.meanWeight;
+      moments.meanPoint = a.meanPoint + b.meanPoint;
+      moments.devWeight = a.devWeight + b.devWeight;
+      moments.devPoint = a.devPoint + b.devPoint;
+      return moments;
+    }
+
+    @Nonnull
+    static Moments merge(@Nonnull final Moments a, @Nonnull final Moments b) {
+      if (a.count == 0) return b;
+      if (b.count == 0) return a;
+      final Moments moments = new Moments();
+      moments.count = a.count + b.count;
+      final double fraction = (double) b.count / moments.count;
+      final double dw = b.meanWeight - a.meanWeight;
+      final double dp = b.meanPoint - a.meanPoint;
+      moments.meanWeight = a.meanWeight + dw * fraction;
+      moments.meanPoint = a.meanPoint + dp * fraction;
+      moments.devWeight = a.devWeight + b.devWeight + dw * dw * a.count * fraction;
+      moments.devPoint = a.devPoint + b.devPoint + dp * dp * a.count * fraction;
+      return moments;
+    }
   }
 }
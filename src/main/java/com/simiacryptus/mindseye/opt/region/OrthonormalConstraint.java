@@ -23,6 +23,7 @@ import com.simiacryptus.ref.lang.RecycleBin;
 import com.simiacryptus.util.ArrayUtil;
 
 import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
@@ -35,6 +36,12 @@ public class OrthonormalConstraint implements TrustRegion {
   private final int[][] indexMap;
   private boolean ortho = true;
   private boolean unit = true;
+  @Nonnull
+  private Mode mode = Mode.GRAM_SCHMIDT;
+  private int maxIterations = 12;
+  private double tolerance = 1e-8;
+  @Nullable
+  private volatile double[][] warmStart = null;
 
   public OrthonormalConstraint(@Nonnull int[]... indexMap) {
     if (Arrays.stream(indexMap).mapToInt(x -> x.length).distinct().count() != 1) {
@@ -66,6 +73,41 @@ public class OrthonormalConstraint implements TrustRegion {
     return this;
   }
 
+  @Nonnull
+  public Mode getMode() {
+    return mode;
+  }
+
+  @Nonnull
+  public OrthonormalConstraint setMode(@Nonnull Mode mode) {
+    this.mode = mode;
+    this.warmStart = null;
+    return this;
+  }
+
+  public int getMaxIterations() {
+    return maxIterations;
+  }
+
+  @Nonnull
+  public OrthonormalConstraint setMaxIterations(int maxIterations) {
+    this.maxIterations = maxIterations;
+    return this;
+  }
+
+  public double getTolerance() {
+    return tolerance;
+  }
+
+  /**
+   * Newton-Schulz stops once every entry of the Gram matrix is within this distance of the identity.
+   */
+  @Nonnull
+  public OrthonormalConstraint setTolerance(double tolerance) {
+    this.tolerance = tolerance;
+    return this;
+  }
+
   public static double dot(@Nonnull double[] a, double[] b) {
     return IntStream.range(0, a.length).mapToDouble(i -> a[i] * b[i]).sum();
   }
@@ -93,6 +135,10 @@ public class OrthonormalConstraint implements TrustRegion {
   @Nonnull
   @Override
   public double[] project(@Nonnull final double[] weights, @Nonnull final double[] point) {
+    if (Mode.NEWTON_SCHULZ == mode && isOrtho() && isUnit()) {
+      final double[][] rows = newtonSchulz(decompose(point).toArray(new double[0][]));
+      if (null != rows) return recompose(Arrays.asList(rows));
+    }
     List<double[]> decompose = decompose(point);
     List<double[]> orthogonal = isOrtho() ? orthogonal(decompose) : decompose;
     List<double[]> unitVectors = isUnit() ? unitVectors(orthogonal) : orthogonal;
@@ -112,6 +158,163 @@ public class OrthonormalConstraint implements TrustRegion {
     return result;
   }
 
+  /**
+   * Orthonormalizes the rows by polar iteration, X &lt;- (3I - XX')X / 2, which converges to the polar factor
+   * (AA')^-1/2 A of the rows A, the nearest orthonormal set. A cold start scales A by a Gershgorin bound on its largest
+   * singular value; any other left factor F would converge to the polar factor of FA instead. A warm start uses the
+   * previous call's accumulated factor, which is close to orthonormalizing the new rows, and then removes the rotation
+   * that introduces by taking the k x k polar factor of A X'. Returns null, dropping the warm start, if the iteration
+   * does not converge, e.g. because the rows are linearly dependent.
+   */
+  @Nullable
+  private double[][] newtonSchulz(@Nonnull final double[][] rows) {
+    final int k = rows.length;
+    final double[][] previous = warmStart;
+    if (null != previous && previous.length == k) {
+      final double[][][] warm = polar(rows, previous, true);
+      if (null != warm) {
+        // X = polar(FA) = R polar(A), and A X' = (AA')^1/2 R', whose polar factor is R'
+        final double[][][] rotation = polar(multiplyTransposed(rows, warm[0]), null, false);
+        if (null != rotation) {
+          warmStart = multiply(rotation[0], warm[1]);
+          return multiply(rotation[0], warm[0]);
+        }
+      }
+    }
+    final double[][][] cold = polar(rows, null, false);
+    warmStart = null == cold ? null : cold[1];
+    return null == cold ? null : cold[0];
+  }
+
+  /**
+   * Runs the polar iteration from {@code factor} times the rows, or from the rows scaled by a Gershgorin bound when no
+   * factor is given. Returns {X, accumulated factor}, or null if it does not converge, or if {@code mustStartClose}
+   * and the start is not within 0.5 of orthonormal.
+   */
+  @Nullable
+  private double[][][] polar(@Nonnull final double[][] rows, @Nullable double[][] factor, boolean mustStartClose) {
+    final int k = rows.length;
+    if (null == factor) factor = scaling(gram(rows));
+    double[][] x = multiply(factor, rows);
+    for (int iteration = 0; iteration <= maxIterations; iteration++) {
+      final double[][] gram = gram(x);
+      double error = 0;
+      double bound = 0;
+      for (int i = 0; i < k; i++) {
+        double rowSum = 0;
+        for (int j = 0; j < k; j++) {
+          error = Math.max(error, Math.abs(gram[i][j] - (i == j ? 1 : 0)));
+          rowSum += Math.abs(gram[i][j]);
+        }
+        bound = Math.max(bound, rowSum);
+      }
+      // The input moved too far for the previous factor to help
+      if (mustStartClose && 0 == iteration && !(error <= 0.5)) return null;
+      if (!Double.isFinite(error)) return null;
+      if (error <= tolerance) return new double[][][]{x, factor};
+      if (iteration == maxIterations) return null;
+      final double[][] step = new double[k][k];
+      if (bound > 2.5) {
+        // The iteration only converges for singular values below sqrt(3); rescale so the largest is at most 1
+        final double rescale = 1 / Math.sqrt(bound);
+        for (int i = 0; i < k; i++) step[i][i] = rescale;
+      } else {
+        for (int i = 0; i < k; i++) {
+          for (int j = 0; j < k; j++) {
+            step[i][j] = (i == j ? 1.5 : 0) - 0.5 * gram[i][j];
+          }
+        }
+      }
+      x = multiply(step, x);
+      factor = multiply(step, factor);
+    }
+    return null;
+  }
+
+  /**
+   * A multiple of the identity that brings the largest singular value to at most 1, using the smaller of the
+   * Gershgorin bound and the trace of the Gram matrix as the bound on its largest eigenvalue.
+   */
+  @Nonnull
+  private static double[][] scaling(@Nonnull final double[][] gram) {
+    final int k = gram.length;
+    double gershgorin = 0;
+    double trace = 0;
+    for (int i = 0; i < k; i++) {
+      double rowSum = 0;
+      for (int j = 0; j < k; j++) {
+        rowSum += Math.abs(gram[i][j]);
+      }
+      gershgorin = Math.max(gershgorin, rowSum);
+      trace += gram[i][i];
+    }
+    final double scale = 1 / Math.sqrt(Math.min(gershgorin, trace));
+    final double[][] factor = new double[k][k];
+    for (int i = 0; i < k; i++) factor[i][i] = scale;
+    return factor;
+  }
+
+  /**
+   * Returns AB', the dot products of every row of {@code a} with every row of {@code b}.
+   */
+  @Nonnull
+  private static double[][] multiplyTransposed(@Nonnull final double[][] a, @Nonnull final double[][] b) {
+    final double[][] product = new double[a.length][b.length];
+    rows(a.length, a[0].length).forEach(i -> {
+      for (int j = 0; j < b.length; j++) {
+        double sum = 0;
+        for (int m = 0; m < a[i].length; m++) {
+          sum += a[i][m] * b[j][m];
+        }
+        product[i][j] = sum;
+      }
+    });
+    return product;
+  }
+
+  @Nonnull
+  private static double[][] gram(@Nonnull final double[][] x) {
+    final int k = x.length;
+    final double[][] gram = new double[k][k];
+    rows(k, x[0].length).forEach(i -> {
+      for (int j = 0; j <= i; j++) {
+        final double[] a = x[i];
+        final double[] b = x[j];
+        double sum = 0;
+        for (int m = 0; m < a.length; m++) {
+          sum += a[m] * b[m];
+        }
+        gram[i][j] = sum;
+        gram[j][i] = sum;
+      }
+    });
+    return gram;
+  }
+
+  @Nonnull
+  private static double[][] multiply(@Nonnull final double[][] left, @Nonnull final double[][] right) {
+    final int width = right[0].length;
+    final double[][] product = new double[left.length][width];
+    rows(left.length, width).forEach(i -> {
+      final double[] out = product[i];
+      for (int j = 0; j < right.length; j++) {
+        final double scale = left[i][j];
+        if (0 == scale) continue;
+        final double[] row = right[j];
+        for (int m = 0; m < width; m++) {
+          out[m] += scale * row[m];
+        }
+      }
+    });
+    return product;
+  }
+
+  @Nonnull
+  private static IntStream rows(int count, int width) {
+    final IntStream rows = IntStream.range(0, count);
+    return (long) count * count * width >= 1 << 18 ? rows.parallel() : rows;
+  }
+
   @Nonnull
   public double[] recompose(@Nonnull final List<double[]> unitVectors) {
     double[] doubles = RecycleBin.DOUBLES.create(Arrays.stream(indexMap).mapToInt(x -> x.length).sum());
@@ -127,4 +330,15 @@ public class OrthonormalConstraint implements TrustRegion {
   public List<double[]> decompose(@Nonnull final double[] point) {
     return Arrays.stream(indexMap).map(x -> Arrays.stream(x).mapToDouble(i -> point[i]).toArray()).collect(Collectors.toList());
   }
+
+  /**
+   * GRAM_SCHMIDT orthonormalizes every call from scratch, in group order. NEWTON_SCHULZ instead returns the nearest
+   * orthonormal set, to within the tolerance, by polar iteration warm-started from the previous call, which takes a
+   * few passes over the rows per call when the input is already close to orthonormal. It only applies when both
+   * ortho and unit are set.
+   */
+  public enum Mode {
+    GRAM_SCHMIDT,
+    NEWTON_SCHULZ
+  }
 }
@@ -24,7 +24,7 @@ import com.simiacryptus.util.ArrayUtil;
 import javax.annotation.Nonnull;
 import java.util.Arrays;
 
-public class RangeConstraint implements TrustRegion {
+public class RangeConstraint implements SparseTrustRegion {
 
   private double min;
   private double max;
@@ -68,4 +68,25 @@ public class RangeConstraint implements TrustRegion {
   public double[] project(@Nonnull final double[] weights, @Nonnull final double[] point) {
     return Arrays.stream(point).map(x -> Math.max(x, min)).map(x -> Math.min(x, max)).toArray();
   }
+
+  @Override
+  public boolean contains(@Nonnull final double[] weights) {
+    for (double weight : weights) {
+      if (!(weight >= min && weight <= max)) return false;
+    }
+    return true;
+  }
+
+  @Override
+  public int projectSparse(@Nonnull final double[] weights, @Nonnull final double[] delta, @Nonnull final int[] indices,
+                           final int count, @Nonnull final double[] correction) {
+    int changed = 0;
+    for (int k = 0; k < count; k++) {
+      final int i = indices[k];
+      final double point = weights[i] + delta[i];
+      correction[k] = Math.min(Math.max(point, min), max) - point;
+      if (0 != correction[k]) changed++;
+    }
+    return changed;
+  }
 }
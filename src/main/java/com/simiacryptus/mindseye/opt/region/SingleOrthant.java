@@ -21,7 +21,7 @@ package com.simiacryptus.mindseye.opt.region;
 
 import javax.annotation.Nonnull;
 
-public class SingleOrthant implements TrustRegion {
+public class SingleOrthant implements SparseTrustRegion {
   private double zeroTol = 1e-20;
 
   public double getZeroTol() {
@@ -44,6 +44,28 @@ public class SingleOrthant implements TrustRegion {
     return returnValue;
   }
 
+  /**
+   * Always true: the orthant is the one the weights themselves are in.
+   */
+  @Override
+  public boolean contains(@Nonnull final double[] weights) {
+    return true;
+  }
+
+  @Override
+  public int projectSparse(@Nonnull final double[] weights, @Nonnull final double[] delta, @Nonnull final int[] indices,
+                           final int count, @Nonnull final double[] correction) {
+    int changed = 0;
+    for (int k = 0; k < count; k++) {
+      final int i = indices[k];
+      final double point = weights[i] + delta[i];
+      final int positionSign = sign(weights[i]);
+      correction[k] = 0 != positionSign && positionSign != sign(point) ? -point : 0;
+      if (0 != correction[k]) changed++;
+    }
+    return changed;
+  }
+
   public int sign(final double weight) {
     if (weight > zeroTol) {
       return 1;
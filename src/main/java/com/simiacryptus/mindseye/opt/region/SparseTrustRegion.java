@@ -0,0 +1,44 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.mindseye.opt.region;
+
+import javax.annotation.Nonnull;
+
+/**
+ * A coordinate-wise region that can project a sparse step without touching the coordinates the step leaves alone.
+ */
+public interface SparseTrustRegion extends TrustRegion {
+  /**
+   * Whether {@code weights} already lie inside the region, so that {@link #project} would leave every coordinate a
+   * step does not touch where it is.
+   */
+  boolean contains(@Nonnull double[] weights);
+
+  /**
+   * Projects {@code weights + delta}, where {@code delta} is zero outside {@code indices[0..count)}. For each listed
+   * coordinate, writes {@code projected - (weights + delta)} into the matching slot of {@code correction}. Coordinates
+   * that are not listed are left alone, so the result only matches {@link #project} when {@link #contains} holds for
+   * {@code weights}.
+   *
+   * @return the number of non-zero corrections
+   */
+  int projectSparse(@Nonnull double[] weights, @Nonnull double[] delta, @Nonnull int[] indices, int count,
+                    @Nonnull double[] correction);
+}
@@ -0,0 +1,202 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.mindseye.opt;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import javax.annotation.Nonnull;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Publishes to an AsyncTrainingMonitor from several threads and checks what reaches the wrapped monitor: nothing lost
+ * or reordered per producer while the ring has room, overflow counted and reported, flush() and close() waiting for
+ * earlier entries, and an idle writer parked rather than polling.
+ */
+public class AsyncTrainingMonitorTest {
+  private static final Duration TIMEOUT = Duration.ofSeconds(30);
+
+  @Test
+  public void multipleProducersDeliverEveryEntryInOrder() throws InterruptedException {
+    final int producers = 4;
+    final int perProducer = 5000;
+    final RecordingMonitor delegate = new RecordingMonitor();
+    final AsyncTrainingMonitor monitor = new AsyncTrainingMonitor(delegate, 1 << 15);
+    try {
+      final List<Thread> threads = new ArrayList<>();
+      for (int p = 0; p < producers; p++) {
+        final int producer = p;
+        threads.add(new Thread(() -> {
+          for (int i = 0; i < perProducer; i++) {
+            AsyncTrainingMonitor.log(monitor, "%s %s").arg(producer).arg(i).publish();
+          }
+        }));
+      }
+      threads.forEach(Thread::start);
+      for (Thread thread : threads) thread.join();
+      Assertions.assertTimeoutPreemptively(TIMEOUT, monitor::flush);
+      Assertions.assertEquals(0, monitor.getDropped());
+      final int[] next = new int[producers];
+      for (String message : delegate.messages()) {
+        final String[] fields = message.split(" ");
+        final int producer = Integer.parseInt(fields[0]);
+        Assertions.assertEquals(next[producer]++, Integer.parseInt(fields[1]), "Producer " + producer + " out of order");
+      }
+      for (int p = 0; p < producers; p++) {
+        Assertions.assertEquals(perProducer, next[p], "Producer " + p + " lost entries");
+      }
+    } finally {
+      monitor.close();
+    }
+  }
+
+  @Test
+  public void fullRingDropsAndReports() throws InterruptedException {
+    final RecordingMonitor delegate = new RecordingMonitor();
+    final AsyncTrainingMonitor monitor = new AsyncTrainingMonitor(delegate, 4);
+    final CountDownLatch entered = new CountDownLatch(1);
+    final CountDownLatch release = new CountDownLatch(1);
+    monitor.addSink(entry -> {
+      entered.countDown();
+      try {
+        release.await();
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+    });
+    try {
+      monitor.log("0");
+      Assertions.assertTrue(entered.await(TIMEOUT.getSeconds(), TimeUnit.SECONDS));
+      // The writer is holding entry 0 in the sink, so the ring has room for three more
+      for (int i = 1; i < 20; i++) {
+        monitor.log(Integer.toString(i));
+      }
+      Assertions.assertEquals(16, monitor.getDropped());
+      release.countDown();
+      Assertions.assertTimeoutPreemptively(TIMEOUT, monitor::flush);
+    } finally {
+      release.countDown();
+      monitor.close();
+    }
+    final List<String> messages = delegate.messages();
+    Assertions.assertEquals(5, messages.size(), messages.toString());
+    Assertions.assertTrue(messages.contains("16 monitor entries dropped"), messages.toString());
+    messages.remove("16 monitor entries dropped");
+    Assertions.assertEquals(List.of("0", "1", "2", "3"), messages);
+  }
+
+  @Test
+  public void flushWaitsForEarlierEntries() {
+    final RecordingMonitor delegate = new RecordingMonitor();
+    final AsyncTrainingMonitor monitor = new AsyncTrainingMonitor(delegate, 64);
+    monitor.addSink(entry -> sleep(1));
+    try {
+      for (int i = 0; i < 50; i++) {
+        AsyncTrainingMonitor.log(monitor, "entry %s").arg(i).publish();
+      }
+      Assertions.assertTimeoutPreemptively(TIMEOUT, monitor::flush);
+      final List<String> messages = delegate.messages();
+      Assertions.assertEquals(50, messages.size());
+      for (int i = 0; i < 50; i++) {
+        Assertions.assertEquals("entry " + i, messages.get(i));
+      }
+    } finally {
+      monitor.close();
+    }
+  }
+
+  @Test
+  public void closeWritesRemainingEntriesAndStopsTheWriter() {
+    final RecordingMonitor delegate = new RecordingMonitor();
+    final AsyncTrainingMonitor monitor = new AsyncTrainingMonitor(delegate, 64);
+    monitor.addSink(entry -> sleep(1));
+    for (int i = 0; i < 20; i++) {
+      monitor.log("before " + i);
+    }
+    Assertions.assertTimeoutPreemptively(TIMEOUT, monitor::close);
+    Assertions.assertEquals(20, delegate.messages().size());
+    Assertions.assertTrue(writers().isEmpty(), "Writer thread still running after close()");
+    // With the writer gone, entries go straight to the wrapped monitor on the calling thread
+    AsyncTrainingMonitor.log(monitor, "after %s").arg(1.5).publish();
+    final List<String> messages = delegate.messages();
+    Assertions.assertEquals(21, messages.size());
+    Assertions.assertEquals("after 1.5", messages.get(20));
+  }
+
+  @Test
+  public void idleWriterParks() {
+    final AsyncTrainingMonitor monitor = new AsyncTrainingMonitor(new RecordingMonitor(), 64);
+    try {
+      monitor.log("wake up");
+      Assertions.assertTimeoutPreemptively(TIMEOUT, monitor::flush);
+      final List<Thread> writers = writers();
+      Assertions.assertEquals(1, writers.size());
+      final Thread writer = writers.get(0);
+      final long deadline = System.nanoTime() + TIMEOUT.toNanos();
+      while (writer.getState() != Thread.State.WAITING && System.nanoTime() < deadline) {
+        sleep(1);
+      }
+      // WAITING rather than TIMED_WAITING: the writer sleeps until the next publish instead of polling
+      Assertions.assertEquals(Thread.State.WAITING, writer.getState());
+      monitor.log("again");
+      Assertions.assertTimeoutPreemptively(TIMEOUT, monitor::flush);
+    } finally {
+      monitor.close();
+    }
+  }
+
+  @Nonnull
+  private static List<Thread> writers() {
+    final List<Thread> writers = new ArrayList<>();
+    for (Thread thread : Thread.getAllStackTraces().keySet()) {
+      if (thread.isAlive() && AsyncTrainingMonitor.class.getSimpleName().equals(thread.getName())) writers.add(thread);
+    }
+    return writers;
+  }
+
+  private static void sleep(long millis) {
+    try {
+      Thread.sleep(millis);
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  private static final class RecordingMonitor extends TrainingMonitor {
+    private final List<String> messages = Collections.synchronizedList(new ArrayList<>());
+
+    @Override
+    public void log(String msg) {
+      messages.add(msg);
+    }
+
+    @Nonnull
+    private List<String> messages() {
+      synchronized (messages) {
+        return new ArrayList<>(messages);
+      }
+    }
+  }
+}
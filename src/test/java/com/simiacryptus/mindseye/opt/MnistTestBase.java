@@ -20,6 +20,9 @@
 package com.simiacryptus.mindseye.opt;
 
 import com.simiacryptus.lang.UncheckedSupplier;
+import com.simiacryptus.mindseye.eval.SampledCachedTrainable;
+import com.simiacryptus.mindseye.eval.SampledTrainable;
+import com.simiacryptus.mindseye.eval.Trainable;
 import com.simiacryptus.mindseye.lang.Layer;
 import com.simiacryptus.mindseye.lang.Result;
 import com.simiacryptus.mindseye.lang.Tensor;
@@ -60,6 +63,11 @@ public abstract class MnistTestBase extends NotebookTestBase {
   private static final Logger log = LoggerFactory.getLogger(MnistTestBase.class);
 
   int modelNo = 0;
+  @Nonnull
+  private final List<CountingTrainable> counters = new ArrayList<>();
+  @Nonnull
+  private final List<ConvergencePoint> convergence = new ArrayList<>();
+  private long trainingStart = System.currentTimeMillis();
 
   @Nonnull
   @Override
@@ -90,8 +98,12 @@ public abstract class MnistTestBase extends NotebookTestBase {
     final DAGNetwork network = buildModel(log);
     addMonitoring(network.addRef(), monitoringRoot.addRef());
     log.h1("Training");
+    convergence.clear();
+    trainingStart = System.currentTimeMillis();
     train(log, network.addRef(), trainingData, monitor);
     report(log, monitoringRoot, history, network.addRef());
+    counters.forEach(counter -> counter.freeRef());
+    counters.clear();
     validate(log, network.addRef());
     removeMonitoring(network);
   }
@@ -167,21 +179,21 @@ public abstract class MnistTestBase extends NotebookTestBase {
                      @Nonnull final List<Step> history, @Nonnull final Layer network) {
 
     if (!history.isEmpty()) {
-      log.eval(() -> {
-        @Nonnull final ScatterPlot plot = ScatterPlot.of(history.stream().map(step -> {
-          assert step.point != null;
-          double[] temp_41_0002 = new double[]{step.iteration, Math.log10(step.point.getMean())};
-          step.freeRef();
-          return temp_41_0002;
-        }).toArray(i -> new double[i][]));
-        Canvas canvas = new Canvas(new double[]{0,0}, new double[]{1,1});
-        canvas.add(plot);
-        PlotPanel plotPanel = new PlotPanel(canvas);
-        canvas.setTitle("Convergence Plot");
-        canvas.setAxisLabels("Iteration", "log10(Fitness)");
-        plotPanel.setSize(600, 400);
-        return plotPanel;
-      });
+      plot(log, "Convergence Plot", "Iteration", history.stream().map(step -> {
+        assert step.point != null;
+        double[] temp_41_0002 = new double[]{step.iteration, Math.log10(step.point.getMean())};
+        step.freeRef();
+        return temp_41_0002;
+      }).toArray(i -> new double[i][]));
+    }
+    if (!convergence.isEmpty()) {
+      plot(log, "Convergence vs Time", "Seconds", convergence.stream()
+          .map(point -> new double[]{point.elapsedMs / 1000.0, Math.log10(point.fitness)})
+          .toArray(i -> new double[i][]));
+      plot(log, "Convergence vs Evaluations", "Evaluations", convergence.stream()
+          .map(point -> new double[]{point.evaluations, Math.log10(point.fitness)})
+          .toArray(i -> new double[i][]));
+      reportThresholds(log);
     }
 
     @Nonnull final String modelName = "model" + modelNo++ + ".json";
@@ -217,14 +229,90 @@ public abstract class MnistTestBase extends NotebookTestBase {
 
       @Override
       public void onStepComplete(@Nonnull final Step currentPoint) {
+        if (null != currentPoint.point) {
+          convergence.add(new ConvergencePoint(currentPoint.iteration, currentPoint.time - trainingStart,
+              getEvaluations(), currentPoint.point.getMean()));
+        }
         history.add(currentPoint.addRef());
         super.onStepComplete(currentPoint);
       }
     };
   }
 
+  public void reportThresholds(@Nonnull final NotebookOutput log) {
+    final List<LinkedHashMap<String, Object>> rows = new ArrayList<>();
+    final double initial = convergence.get(0).fitness;
+    final double best = convergence.stream().mapToDouble(point -> point.fitness).min().getAsDouble();
+    if (!(initial > 0) || !(best > 0)) return;
+    for (int exponent = (int) Math.ceil(Math.log10(initial)) - 1; exponent >= (int) Math.floor(Math.log10(best)); exponent--) {
+      final double threshold = Math.pow(10, exponent);
+      convergence.stream().filter(point -> point.fitness <= threshold).findFirst().ifPresent(point -> {
+        final LinkedHashMap<String, Object> row = new LinkedHashMap<>();
+        row.put("threshold", threshold);
+        row.put("iteration", point.iteration);
+        row.put("timeMs", point.elapsedMs);
+        row.put("evaluations", point.evaluations);
+        rows.add(row);
+      });
+    }
+    final LinkedHashMap<String, Object> summary = new LinkedHashMap<>();
+    summary.put("target", getTargetClass().getSimpleName());
+    summary.put("initialFitness", initial);
+    summary.put("bestFitness", best);
+    summary.put("iterations", convergence.get(convergence.size() - 1).iteration);
+    summary.put("timeMs", convergence.get(convergence.size() - 1).elapsedMs);
+    summary.put("evaluations", getEvaluations());
+    summary.put("thresholds", rows);
+    log.h1("Time to Loss");
+    log.eval(() -> {
+      @Nonnull final TableOutput table = new TableOutput();
+      for (LinkedHashMap<String, Object> row : rows) {
+        table.putRow(new LinkedHashMap<CharSequence, Object>(row));
+      }
+      return table;
+    });
+    @Nonnull final String fileName = "convergence" + modelNo + ".json";
+    try {
+      final String json = JsonUtil.getMapper().writerWithDefaultPrettyPrinter().writeValueAsString(summary);
+      log.p("Saved convergence summary as " + log.file(json, fileName, fileName));
+    } catch (@Nonnull final IOException e) {
+      throw Util.throwException(e);
+    }
+  }
+
   public abstract void train(NotebookOutput log, Layer network, Tensor[][] trainingData, TrainingMonitor monitor);
 
+  /**
+   * Wraps a trainable built by train() so its measure() calls show up as evaluations in the convergence report.
+   */
+  @Nonnull
+  public Trainable counting(@Nonnull final Trainable trainable) {
+    final CountingTrainable counter = new CountingTrainable(trainable);
+    counters.add(counter.addRef());
+    return counter;
+  }
+
+  /**
+   * As {@link #counting(Trainable)}, keeping the trainable usable as the training subject of a ValidatingTrainer.
+   */
+  @Nonnull
+  public SampledTrainable counting(@Nonnull final SampledTrainable trainable) {
+    final CountingSampledTrainable counter = new CountingSampledTrainable(trainable);
+    counters.add(counter.addRef());
+    return counter;
+  }
+
+  /**
+   * Total measure() calls so far on the trainables wrapped with counting().
+   */
+  public long getEvaluations() {
+    long total = 0;
+    for (CountingTrainable counter : counters) {
+      total += counter.getMeasureCount();
+    }
+    return total;
+  }
+
   public void validate(@Nonnull final NotebookOutput log, @Nonnull final Layer network) {
     log.h1("Validation");
     log.p("If we apply our model against the entire validation dataset, we get this accuracy:");
@@ -273,4 +361,74 @@ public abstract class MnistTestBase extends NotebookTestBase {
         }, network));
   }
 
+  private void plot(@Nonnull final NotebookOutput log, @Nonnull final String title, @Nonnull final String xLabel,
+                    @Nonnull final double[][] data) {
+    log.eval(() -> {
+      @Nonnull final ScatterPlot plot = ScatterPlot.of(data);
+      Canvas canvas = new Canvas(new double[]{0,0}, new double[]{1,1});
+      canvas.add(plot);
+      PlotPanel plotPanel = new PlotPanel(canvas);
+      canvas.setTitle(title);
+      canvas.setAxisLabels(xLabel, "log10(Fitness)");
+      plotPanel.setSize(600, 400);
+      return plotPanel;
+    });
+  }
+
+  public static class ConvergencePoint {
+    public final long iteration;
+    public final long elapsedMs;
+    public final long evaluations;
+    public final double fitness;
+
+    public ConvergencePoint(long iteration, long elapsedMs, long evaluations, double fitness) {
+      this.iteration = iteration;
+      this.elapsedMs = elapsedMs;
+      this.evaluations = evaluations;
+      this.fitness = fitness;
+    }
+  }
+
+  private static class CountingSampledTrainable extends CountingTrainable implements SampledTrainable {
+
+    CountingSampledTrainable(@Nonnull final SampledTrainable inner) {
+      super(inner);
+    }
+
+    @Override
+    public int getTrainingSize() {
+      final SampledTrainable inner = (SampledTrainable) getInner();
+      assert inner != null;
+      final int trainingSize = inner.getTrainingSize();
+      inner.freeRef();
+      return trainingSize;
+    }
+
+    @Override
+    public void setTrainingSize(final int trainingSize) {
+      final SampledTrainable inner = (SampledTrainable) getInner();
+      assert inner != null;
+      inner.setTrainingSize(trainingSize);
+      inner.freeRef();
+    }
+
+    @Nonnull
+    @Override
+    public SampledCachedTrainable<? extends SampledTrainable> cached() {
+      return new SampledCachedTrainable<>(addRef());
+    }
+
+    public @SuppressWarnings("unused")
+    void _free() {
+      super._free();
+    }
+
+    @Nonnull
+    public @Override
+    @SuppressWarnings("unused")
+    CountingSampledTrainable addRef() {
+      return (CountingSampledTrainable) super.addRef();
+    }
+  }
+
 }
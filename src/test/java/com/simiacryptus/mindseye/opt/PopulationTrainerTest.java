@@ -0,0 +1,253 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.mindseye.opt;
+
+import com.simiacryptus.mindseye.eval.ArrayTrainable;
+import com.simiacryptus.mindseye.eval.Trainable;
+import com.simiacryptus.mindseye.eval.TrainableWrapper;
+import com.simiacryptus.mindseye.lang.Layer;
+import com.simiacryptus.mindseye.lang.PointSample;
+import com.simiacryptus.mindseye.lang.Tensor;
+import com.simiacryptus.mindseye.layers.java.FullyConnectedLayer;
+import com.simiacryptus.mindseye.layers.java.MeanSqLossLayer;
+import com.simiacryptus.mindseye.network.PipelineNetwork;
+import com.simiacryptus.mindseye.opt.line.ArmijoWolfeSearch;
+import com.simiacryptus.mindseye.opt.line.LineSearchPoint;
+import com.simiacryptus.mindseye.opt.orient.GradientDescent;
+import com.simiacryptus.mindseye.opt.orient.OrientationStrategy;
+import com.simiacryptus.ref.lang.RefUtil;
+import com.simiacryptus.ref.wrappers.RefList;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import javax.annotation.Nonnull;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Trains a population of two on a small regression: one member descends, the other starts with a line search that
+ * never moves. The frozen member is held back until the first member has been scored, so on its first report it ranks
+ * last and has to exploit: its next round must start from weights the first member was scored on. The best weights
+ * scored must end up in the original network.
+ */
+public class PopulationTrainerTest {
+
+  @Test
+  public void exploitCopiesWeightsAndBestWeightsAreKept() {
+    final Tensor[][] data = data();
+    final FullyConnectedLayer layer = new FullyConnectedLayer(new int[]{3}, new int[]{2});
+    layer.set((int i) -> Math.sin(1 + i));
+    final PipelineNetwork network = new PipelineNetwork(2);
+    RefUtil.freeRef(network.add(new MeanSqLossLayer(), network.add(layer, network.getInput(0)), network.getInput(1)));
+    final double[] initial = weights(network.addRef());
+
+    final CountDownLatch firstScore = new CountDownLatch(1);
+    final AtomicInteger built = new AtomicInteger();
+    final List<Thread> frozenThread = Collections.synchronizedList(new ArrayList<>());
+    final List<Score> scores = Collections.synchronizedList(new ArrayList<>());
+    final PopulationTrainer trainer = new PopulationTrainer(network.addRef(), copy -> {
+      final ArrayTrainable trainable = new ArrayTrainable(RefUtil.addRef(data), copy);
+      // Members are built in order, and member 1 gets the frozen configuration
+      return 1 == built.getAndIncrement() ? new Gated(trainable, scores, firstScore, frozenThread) : trainable;
+    });
+    trainer.setEvaluation(copy -> new Recording(new ArrayTrainable(RefUtil.addRef(data), copy), scores, firstScore));
+    trainer.addConfiguration(new PopulationTrainer.Configuration("descend",
+        () -> new OrientationStrategy<?>[]{new GradientDescent()}, directionType -> new ArmijoWolfeSearch(), 1));
+    trainer.addConfiguration(new PopulationTrainer.Configuration("frozen",
+        () -> new OrientationStrategy<?>[]{new GradientDescent()},
+        directionType -> (cursor, monitor) -> {
+          final LineSearchPoint step = cursor.step(0, monitor);
+          cursor.freeRef();
+          final PointSample point = step.getPoint();
+          step.freeRef();
+          return point;
+        }, 1));
+    trainer.setPopulation(2);
+    trainer.setExploitFraction(0.5);
+    trainer.setExplorePerturbation(0);
+    trainer.setRoundIterations(3);
+    trainer.setMaxRounds(4);
+    trainer.setTimeout(Duration.ofMinutes(1));
+    trainer.setSeed(1);
+    final double best;
+    try {
+      best = trainer.run();
+    } finally {
+      trainer.freeRef();
+      RefUtil.freeRef(data);
+    }
+    final double[] result = weights(network);
+
+    Assertions.assertEquals(1, frozenThread.size(), "The frozen member never trained");
+    final Thread frozen = frozenThread.get(0);
+    final List<Score> events;
+    synchronized (scores) {
+      events = new ArrayList<>(scores);
+    }
+    int firstReport = -1;
+    for (int i = 0; i < events.size() && firstReport < 0; i++) {
+      if (events.get(i).evaluation && events.get(i).thread == frozen) firstReport = i;
+    }
+    Assertions.assertTrue(firstReport > 0, "The frozen member was never scored");
+    Assertions.assertArrayEquals(initial, events.get(firstReport).weights, "The frozen member moved in its first round");
+    Score nextRound = null;
+    for (int i = firstReport + 1; i < events.size() && null == nextRound; i++) {
+      if (!events.get(i).evaluation && events.get(i).thread == frozen) nextRound = events.get(i);
+    }
+    Assertions.assertNotNull(nextRound, "The frozen member did not train after its first report");
+    final double[] start = nextRound.weights;
+    Assertions.assertFalse(Arrays.equals(initial, start), "The frozen member did not exploit");
+    Assertions.assertTrue(events.subList(0, firstReport).stream()
+            .anyMatch(score -> score.evaluation && score.thread != frozen && Arrays.equals(score.weights, start)),
+        "The frozen member started its next round from weights nobody published");
+    final Score lowest;
+    synchronized (scores) {
+      lowest = scores.stream().filter(score -> score.evaluation).min((a, b) -> Double.compare(a.sum, b.sum)).get();
+    }
+    Assertions.assertEquals(lowest.sum, best);
+    Assertions.assertArrayEquals(lowest.weights, result, "The best weights were not copied back");
+  }
+
+  @Nonnull
+  private static double[] weights(@Nonnull PipelineNetwork network) {
+    final List<double[]> arrays = new ArrayList<>();
+    network.getLayersById().forEach((id, layer) -> {
+      if (layer instanceof FullyConnectedLayer) {
+        final RefList<double[]> state = layer.state();
+        assert state != null;
+        arrays.addAll(state);
+        state.freeRef();
+      }
+      layer.freeRef();
+    });
+    network.freeRef();
+    return arrays.stream().flatMapToDouble(Arrays::stream).toArray();
+  }
+
+  @Nonnull
+  private static Tensor[][] data() {
+    final Random random = new Random(42);
+    final Tensor[][] data = new Tensor[16][];
+    for (int i = 0; i < data.length; i++) {
+      final double x = random.nextGaussian();
+      final double y = random.nextGaussian();
+      final double z = random.nextGaussian();
+      data[i] = new Tensor[]{new Tensor(new double[]{x, y, z}, 3), new Tensor(new double[]{x - 2 * y, 3 * z + x}, 2)};
+    }
+    return data;
+  }
+
+  /**
+   * A measurement by the evaluation trainable, or by the frozen member's own trainable, and the weights it saw.
+   */
+  private static final class Score {
+    final Thread thread = Thread.currentThread();
+    final boolean evaluation;
+    final double sum;
+    final double[] weights;
+
+    private Score(boolean evaluation, double sum, @Nonnull double[] weights) {
+      this.evaluation = evaluation;
+      this.sum = sum;
+      this.weights = weights;
+    }
+  }
+
+  /**
+   * Records the evaluated weights and loss, on the thread of the member being scored.
+   */
+  private static final class Recording extends TrainableWrapper<Trainable> {
+    @Nonnull
+    private final List<Score> scores;
+    @Nonnull
+    private final CountDownLatch firstScore;
+
+    private Recording(@Nonnull Trainable inner, @Nonnull List<Score> scores, @Nonnull CountDownLatch firstScore) {
+      super(inner);
+      this.scores = scores;
+      this.firstScore = firstScore;
+    }
+
+    @Override
+    public PointSample measure(TrainingMonitor monitor) {
+      final PointSample point = super.measure(monitor);
+      final Layer layer = getLayer();
+      assert layer != null;
+      scores.add(new Score(true, point.sum, weights((PipelineNetwork) layer)));
+      firstScore.countDown();
+      return point;
+    }
+
+    @Override
+    public void _free() {
+      super._free();
+    }
+  }
+
+  /**
+   * Holds the first measurement until the other member has been scored once, and records every measurement.
+   */
+  private static final class Gated extends TrainableWrapper<Trainable> {
+    @Nonnull
+    private final List<Score> scores;
+    @Nonnull
+    private final CountDownLatch gate;
+    @Nonnull
+    private final List<Thread> thread;
+
+    private Gated(@Nonnull Trainable inner, @Nonnull List<Score> scores, @Nonnull CountDownLatch gate,
+                  @Nonnull List<Thread> thread) {
+      super(inner);
+      this.scores = scores;
+      this.gate = gate;
+      this.thread = thread;
+    }
+
+    @Override
+    public PointSample measure(TrainingMonitor monitor) {
+      if (thread.isEmpty()) {
+        thread.add(Thread.currentThread());
+        try {
+          Assertions.assertTrue(gate.await(1, TimeUnit.MINUTES));
+        } catch (InterruptedException e) {
+          throw new RuntimeException(e);
+        }
+      }
+      final Layer layer = getLayer();
+      assert layer != null;
+      final double[] weights = weights((PipelineNetwork) layer);
+      final PointSample point = super.measure(monitor);
+      scores.add(new Score(false, point.sum, weights));
+      return point;
+    }
+
+    @Override
+    public void _free() {
+      super._free();
+    }
+  }
+}
@@ -0,0 +1,153 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.mindseye.opt;
+
+import com.simiacryptus.mindseye.eval.TrainableBase;
+import com.simiacryptus.mindseye.lang.*;
+import com.simiacryptus.mindseye.opt.line.ArmijoWolfeSearch;
+import com.simiacryptus.mindseye.opt.orient.GradientDescent;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Checks the sample prefetch in RoundRobinTrainer: the subject and spare swap on every macro-iteration, failed
+ * macro-iterations retry with the prefetched spare instead of reseeding the subject on the training thread, and both
+ * trainables are released with the trainer.
+ */
+public class RoundRobinTrainerTest {
+  private static final UUID KEY = UUID.nameUUIDFromBytes("RoundRobinTrainerTest".getBytes());
+
+  @Test
+  public void prefetchSwapsSubjectAndSpare() {
+    final double[] weights = {1.0, -2.0, 3.0};
+    final List<String> events = Collections.synchronizedList(new ArrayList<>());
+    final List<QuadraticTrainable> created = Collections.synchronizedList(new ArrayList<>());
+    final QuadraticTrainable subject = new QuadraticTrainable(0, weights, events);
+    created.add(subject);
+    final RoundRobinTrainer trainer = new RoundRobinTrainer(subject.addRef());
+    trainer.setTrainableFactory(() -> {
+      final QuadraticTrainable spare = new QuadraticTrainable(created.size(), weights, events);
+      created.add(spare);
+      return spare;
+    });
+    trainer.setPrefetchSamples(true);
+    trainer.setOrientations(new GradientDescent());
+    trainer.setLineSearchFactory(directionType -> new ArmijoWolfeSearch());
+    trainer.setMaxIterations(30);
+    trainer.setMonitor(new TrainingMonitor() {
+      @Override
+      public void log(String msg) {
+        if (msg.startsWith("MacroIteration")) events.add("fail");
+      }
+    });
+    try {
+      trainer.run();
+    } finally {
+      trainer.freeRef();
+    }
+    subject.freeRef();
+    synchronized (events) {
+      Assertions.assertEquals(2, created.size(), "The factory should be asked for exactly one spare");
+      Assertions.assertTrue(events.contains("fail"), "Expected at least one failed macro-iteration: " + events);
+      // Only the measurements before the first prefetch reseed on the training thread
+      int expected = 0;
+      boolean prefetching = false;
+      for (String event : events) {
+        if (event.startsWith("reseed ")) {
+          Assertions.assertFalse(prefetching, "Subject reseeded on the training thread: " + events);
+        } else if (event.startsWith("prefetch ")) {
+          prefetching = true;
+          expected = Integer.parseInt(event.substring("prefetch ".length()));
+        } else if (event.startsWith("sample ")) {
+          Assertions.assertEquals("sample " + expected, event, "Sample taken from the wrong trainable: " + events);
+        }
+      }
+    }
+    for (QuadraticTrainable trainable : created) {
+      Assertions.assertTrue(trainable.isFreed(), "Trainable " + trainable.id + " was not released");
+    }
+  }
+
+  /**
+   * f(w) = 1 + |w|^2 over weights shared by every instance; the first measure() after each reseed is logged as a
+   * sample. Once w is close to zero, line searches stop improving and macro-iterations fail.
+   */
+  private static final class QuadraticTrainable extends TrainableBase {
+    private final int id;
+    @Nonnull
+    private final double[] weights;
+    @Nonnull
+    private final List<String> events;
+    private volatile boolean reseeded = false;
+
+    private QuadraticTrainable(int id, @Nonnull double[] weights, @Nonnull List<String> events) {
+      this.id = id;
+      this.weights = weights;
+      this.events = events;
+    }
+
+    @Nullable
+    @Override
+    public Layer getLayer() {
+      return null;
+    }
+
+    @Override
+    public boolean reseed(long seed) {
+      final boolean prefetch = Thread.currentThread().getName().startsWith("RoundRobinTrainer-prefetch");
+      events.add((prefetch ? "prefetch " : "reseed ") + id);
+      reseeded = true;
+      return true;
+    }
+
+    @Override
+    public PointSample measure(TrainingMonitor monitor) {
+      if (reseeded) {
+        reseeded = false;
+        events.add("sample " + id);
+      }
+      double sum = 1.0;
+      final double[] gradient = new double[weights.length];
+      for (int i = 0; i < weights.length; i++) {
+        sum += weights[i] * weights[i];
+        gradient[i] = 2 * weights[i];
+      }
+      final DeltaSet<UUID> delta = new DeltaSet<>();
+      final Delta<UUID> buffer = delta.get(KEY, weights);
+      assert buffer != null;
+      buffer.addInPlace(gradient);
+      buffer.freeRef();
+      final StateSet<UUID> state = new StateSet<>(delta.addRef());
+      return new PointSample(delta, state, sum, 0.0, 1);
+    }
+
+    @Override
+    public void _free() {
+      super._free();
+    }
+  }
+}
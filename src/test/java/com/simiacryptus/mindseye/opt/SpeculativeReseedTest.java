@@ -0,0 +1,252 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.mindseye.opt;
+
+import com.simiacryptus.mindseye.eval.TrainableBase;
+import com.simiacryptus.mindseye.lang.*;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntPredicate;
+import java.util.function.LongPredicate;
+
+/**
+ * Drives the shared measure() retry loop with trainables whose samples are non-finite for most seeds, and checks
+ * that every sample and candidate produced along the way, including those still running when a winner is chosen,
+ * is freed exactly once, and that the winning candidate comes back as the subject its sample belongs to.
+ */
+public class SpeculativeReseedTest {
+
+  @Test
+  public void speculativeRetryFreesLosingCandidates() {
+    final List<PointSample> samples = Collections.synchronizedList(new ArrayList<>());
+    final List<SeededTrainable> candidates = Collections.synchronizedList(new ArrayList<>());
+    final AtomicInteger factoryCalls = new AtomicInteger();
+    final Set<Long> finiteSeeds = Collections.synchronizedSet(new HashSet<>());
+    // The subject never produces a finite sample, so the retry loop has to switch to speculation. Only every third
+    // candidate is finite; the others sleep, so some of them finish after the winner has been chosen.
+    final SeededTrainable subject = new SeededTrainable(samples, seed -> false, 0);
+    final SpeculativeReseed.Measurement measurement = SpeculativeReseed.measureFinite(subject.addRef(),
+        new TrainingMonitor(), new PhaseTimings(), () -> {
+          final boolean finite = 0 == factoryCalls.incrementAndGet() % 3;
+          final SeededTrainable candidate = new SeededTrainable(samples, seed -> finite && finiteSeeds.add(seed), 50);
+          candidates.add(candidate);
+          return candidate;
+        }, 8);
+    try {
+      Assertions.assertTrue(Double.isFinite(measurement.point.sum));
+      Assertions.assertNotSame(subject, measurement.subject, "The winning candidate did not replace the subject");
+      Assertions.assertTrue(candidates.contains(measurement.subject));
+      Assertions.assertTrue(finiteSeeds.contains(((SeededTrainable) measurement.subject).seed));
+      assertAllFreedExcept(samples, measurement.point);
+      synchronized (candidates) {
+        for (SeededTrainable candidate : candidates) {
+          if (candidate != measurement.subject) Assertions.assertTrue(candidate.isFreed(), "Leaked candidate");
+        }
+      }
+    } finally {
+      measurement.point.freeRef();
+      measurement.subject.freeRef();
+      subject.freeRef();
+    }
+    Assertions.assertTrue(subject.isFreed());
+    Assertions.assertTrue(measurement.subject.isFreed());
+  }
+
+  @Test
+  public void finiteFirstAttemptIsReturnedAsIs() {
+    final List<PointSample> samples = Collections.synchronizedList(new ArrayList<>());
+    final SeededTrainable subject = new SeededTrainable(samples, seed -> true, 0);
+    final SpeculativeReseed.Measurement measurement = SpeculativeReseed.measureFinite(subject.addRef(),
+        new TrainingMonitor(), new PhaseTimings(), () -> {
+          throw new AssertionError("Speculated without a failed attempt");
+        }, 4);
+    try {
+      Assertions.assertSame(subject, measurement.subject);
+      Assertions.assertEquals(1, samples.size());
+      Assertions.assertSame(samples.get(0), measurement.point);
+    } finally {
+      measurement.point.freeRef();
+      measurement.subject.freeRef();
+      subject.freeRef();
+    }
+    Assertions.assertTrue(subject.isFreed());
+  }
+
+  @Test
+  public void winnerReplacesSubjectWhenSeedsAreIgnored() {
+    // Like SampledArrayTrainable, these draw the next batch from a shared source whatever seed they are given, so
+    // replaying the winning seed on the subject would put it on a different batch from the returned sample
+    final AtomicInteger batches = new AtomicInteger();
+    final BatchTrainable subject = new BatchTrainable(batches, batch -> false);
+    final SpeculativeReseed.Measurement measurement = SpeculativeReseed.measureFinite(subject.addRef(),
+        new TrainingMonitor(), new PhaseTimings(), () -> new BatchTrainable(batches, batch -> 0 == batch % 5), 4);
+    try {
+      Assertions.assertTrue(Double.isFinite(measurement.point.sum));
+      final BatchTrainable winner = (BatchTrainable) measurement.subject;
+      Assertions.assertNotSame(subject, winner);
+      Assertions.assertEquals(measurement.point.sum, winner.batch, "The subject is not on the batch that was measured");
+      final PointSample again = winner.measure(new TrainingMonitor());
+      Assertions.assertEquals(measurement.point.sum, again.sum);
+      again.freeRef();
+    } finally {
+      measurement.point.freeRef();
+      measurement.subject.freeRef();
+      subject.freeRef();
+    }
+  }
+
+  @Test
+  public void exhaustedRetriesFreeEverySample() {
+    final List<PointSample> samples = Collections.synchronizedList(new ArrayList<>());
+    final SeededTrainable subject = new SeededTrainable(samples, seed -> false, 0);
+    Assertions.assertThrows(IterativeStopException.class, () -> SpeculativeReseed.measureFinite(subject.addRef(),
+        new TrainingMonitor(), new PhaseTimings(), () -> new SeededTrainable(samples, seed -> false, 5), 4));
+    assertAllFreedExcept(samples, null);
+    subject.freeRef();
+    Assertions.assertTrue(subject.isFreed());
+  }
+
+  @Test
+  public void sequentialRetryFreesRejectedSamples() {
+    final List<PointSample> samples = Collections.synchronizedList(new ArrayList<>());
+    final AtomicInteger measures = new AtomicInteger();
+    final SeededTrainable subject = new SeededTrainable(samples, seed -> measures.incrementAndGet() > 3, 0);
+    final SpeculativeReseed.Measurement measurement = SpeculativeReseed.measureFinite(subject.addRef(),
+        new TrainingMonitor(), new PhaseTimings(), null, 0);
+    try {
+      Assertions.assertTrue(Double.isFinite(measurement.point.sum));
+      Assertions.assertSame(subject, measurement.subject);
+      Assertions.assertEquals(4, samples.size());
+      assertAllFreedExcept(samples, measurement.point);
+    } finally {
+      measurement.point.freeRef();
+      measurement.subject.freeRef();
+      subject.freeRef();
+    }
+    Assertions.assertTrue(subject.isFreed());
+  }
+
+  private static void assertAllFreedExcept(@Nonnull List<PointSample> samples, @Nullable PointSample survivor) {
+    synchronized (samples) {
+      Assertions.assertFalse(samples.isEmpty());
+      for (PointSample sample : samples) {
+        if (sample == survivor) {
+          Assertions.assertEquals(1, sample.currentRefCount());
+        } else {
+          Assertions.assertTrue(sample.isFreed(), "Leaked sample " + sample.sum);
+        }
+      }
+    }
+  }
+
+  private static final class SeededTrainable extends TrainableBase {
+    @Nonnull
+    private final List<PointSample> samples;
+    @Nonnull
+    private final LongPredicate finite;
+    private final long delayMs;
+    private volatile long seed;
+
+    private SeededTrainable(@Nonnull List<PointSample> samples, @Nonnull LongPredicate finite, long delayMs) {
+      this.samples = samples;
+      this.finite = finite;
+      this.delayMs = delayMs;
+    }
+
+    @Nullable
+    @Override
+    public Layer getLayer() {
+      return null;
+    }
+
+    @Override
+    public boolean reseed(long seed) {
+      this.seed = seed;
+      return true;
+    }
+
+    @Override
+    public PointSample measure(TrainingMonitor monitor) {
+      final boolean isFinite = finite.test(seed);
+      if (!isFinite && delayMs > 0) {
+        try {
+          Thread.sleep(delayMs);
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+        }
+      }
+      final PointSample point = new PointSample(new DeltaSet<UUID>(), new StateSet<UUID>(),
+          isFinite ? 1.0 : Double.NaN, 0.0, 1);
+      samples.add(point);
+      return point;
+    }
+
+    @Override
+    public void _free() {
+      super._free();
+    }
+  }
+
+  /**
+   * Ignores the seed and takes the next batch number from a shared counter on every reseed; each sample's sum is its
+   * batch number, or NaN where the batch is rejected.
+   */
+  private static final class BatchTrainable extends TrainableBase {
+    @Nonnull
+    private final AtomicInteger batches;
+    @Nonnull
+    private final IntPredicate finite;
+    private volatile int batch;
+
+    private BatchTrainable(@Nonnull AtomicInteger batches, @Nonnull IntPredicate finite) {
+      this.batches = batches;
+      this.finite = finite;
+      this.batch = batches.incrementAndGet();
+    }
+
+    @Nullable
+    @Override
+    public Layer getLayer() {
+      return null;
+    }
+
+    @Override
+    public boolean reseed(long seed) {
+      batch = batches.incrementAndGet();
+      return true;
+    }
+
+    @Override
+    public PointSample measure(TrainingMonitor monitor) {
+      return new PointSample(new DeltaSet<UUID>(), new StateSet<UUID>(), finite.test(batch) ? batch : Double.NaN,
+          0.0, 1);
+    }
+
+    @Override
+    public void _free() {
+      super._free();
+    }
+  }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.mindseye.opt;
+
+import com.simiacryptus.mindseye.lang.Delta;
+import com.simiacryptus.mindseye.lang.DeltaSet;
+import com.simiacryptus.mindseye.lang.StateSet;
+import com.simiacryptus.ref.lang.RefUtil;
+import com.simiacryptus.ref.wrappers.RefMap;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.File;
+import java.util.UUID;
+
+/**
+ * Captures two layers, moves the live weights, and checks delta() and restore() against the captured values, in
+ * direct memory and in a mapped file. The mapped file must be gone once the snapshot is closed.
+ */
+public class WeightSnapshotTest {
+  private static final UUID FIRST = UUID.nameUUIDFromBytes("WeightSnapshotTest/first".getBytes());
+  private static final UUID SECOND = UUID.nameUUIDFromBytes("WeightSnapshotTest/second".getBytes());
+
+  @TempDir
+  File scratch;
+
+  @Test
+  public void directRestoresCapturedWeights() {
+    roundTrip(null);
+  }
+
+  @Test
+  public void mappedRestoresCapturedWeightsAndDeletesFile() {
+    roundTrip(scratch);
+    final String[] remaining = scratch.list();
+    Assertions.assertNotNull(remaining);
+    Assertions.assertEquals(0, remaining.length, String.join(", ", remaining));
+  }
+
+  private static void roundTrip(@Nullable File directory) {
+    final double[] first = new double[1000];
+    final double[] second = new double[17];
+    for (int i = 0; i < first.length; i++) first[i] = Math.sin(i);
+    for (int i = 0; i < second.length; i++) second[i] = Math.cos(i);
+    final double[] firstCaptured = first.clone();
+    final double[] secondCaptured = second.clone();
+    final WeightSnapshot snapshot = WeightSnapshot.capture(state(first, second), directory);
+    try {
+      Assertions.assertEquals(null != directory, snapshot.isMapped());
+      Assertions.assertEquals(8L * (first.length + second.length), snapshot.getBytes());
+      for (int i = 0; i < first.length; i++) first[i] += 0.5 * i;
+      for (int i = 0; i < second.length; i++) second[i] -= 2;
+      final DeltaSet<UUID> delta = snapshot.delta();
+      final RefMap<UUID, Delta<UUID>> map = delta.getMap();
+      delta.freeRef();
+      final double[] firstDelta = values(map.get(FIRST));
+      final double[] secondDelta = values(map.get(SECOND));
+      map.freeRef();
+      for (int i = 0; i < first.length; i++) Assertions.assertEquals(0.5 * i, firstDelta[i], 1e-12);
+      for (int i = 0; i < second.length; i++) Assertions.assertEquals(-2, secondDelta[i], 1e-12);
+      snapshot.restore();
+      Assertions.assertArrayEquals(firstCaptured, first);
+      Assertions.assertArrayEquals(secondCaptured, second);
+    } finally {
+      snapshot.close();
+    }
+    // Closed snapshots hold nothing, so a late restore() is harmless
+    snapshot.restore();
+  }
+
+  @Nonnull
+  private static StateSet<UUID> state(@Nonnull double[] first, @Nonnull double[] second) {
+    final DeltaSet<UUID> delta = new DeltaSet<>();
+    RefUtil.freeRef(delta.get(FIRST, first));
+    RefUtil.freeRef(delta.get(SECOND, second));
+    final StateSet<UUID> state = new StateSet<>(delta.addRef());
+    delta.freeRef();
+    return state;
+  }
+
+  @Nonnull
+  private static double[] values(@Nullable Delta<UUID> delta) {
+    assert delta != null;
+    final double[] values = delta.getDelta();
+    delta.freeRef();
+    assert values != null;
+    return values.clone();
+  }
+}
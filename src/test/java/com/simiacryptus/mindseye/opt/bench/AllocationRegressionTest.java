@@ -0,0 +1,149 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.mindseye.opt.bench;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.simiacryptus.mindseye.opt.LatencyHistogram;
+import com.simiacryptus.mindseye.opt.PhaseTimings;
+import com.simiacryptus.mindseye.opt.RoundRobinTrainer;
+import com.simiacryptus.mindseye.opt.TrainingMonitor;
+import com.simiacryptus.mindseye.opt.orient.OrientationStrategy;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Supplier;
+
+/**
+ * Fails when the bytes allocated per training iteration by any optimizer regress past the stored baseline in
+ * optimizer-allocation-baseline.json by more than the tolerance (system property allocation.tolerance, default 0.25).
+ * Each configuration is run several times (allocation.repeats, default 3) and the lowest mean is compared, since
+ * runs that hand work to parallel streams attribute a varying share of it to the training thread. Configurations
+ * missing from the baseline also fail. The measured values are always written to
+ * target/optimizer-allocation/baseline.json so they can be reviewed and copied into the resource when a strategy is
+ * added or an allocation change is intended. Tagged Integration, so it only runs under the integration profile.
+ */
+public class AllocationRegressionTest {
+  private static final Logger log = LoggerFactory.getLogger(AllocationRegressionTest.class);
+  private static final long SEED = 0x5EED;
+  private static final String BASELINE = "/optimizer-allocation-baseline.json";
+
+  private final int iterations = 20;
+  private final int repeats = Integer.getInteger("allocation.repeats", 3);
+  private final double tolerance = Double.parseDouble(System.getProperty("allocation.tolerance", "0.25"));
+
+  @Test
+  @Tag("Integration")
+  public void allocationsPerIteration() {
+    Assertions.assertTrue(PhaseTimings.isAllocationTrackingSupported(), "Thread allocation counters unavailable");
+    final Map<String, Double> baseline = loadBaseline();
+    final Map<String, Double> measured = new TreeMap<>();
+    final List<String> regressions = new ArrayList<>();
+    for (SyntheticObjective objective : new SyntheticObjective[]{
+        new IllConditionedQuadratic(100, 1e4, SEED),
+        new LogisticRegressionObjective(500, 20, SEED)
+    }) {
+      for (Map.Entry<String, Supplier<OrientationStrategy<?>[]>> entry : OptimizerBenchmark.getStrategies().entrySet()) {
+        final String key = objective.getName() + " / " + entry.getKey();
+        double bytesPerIteration = Double.POSITIVE_INFINITY;
+        for (int i = 0; i < repeats; i++) {
+          bytesPerIteration = Math.min(bytesPerIteration, bytesPerIteration(objective.addRef(), entry.getValue().get()));
+        }
+        measured.put(key, (double) Math.round(bytesPerIteration));
+        final Double expected = baseline.get(key);
+        if (null == expected) {
+          regressions.add(String.format("%s: %.0f bytes/iteration has no baseline", key, bytesPerIteration));
+        } else if (bytesPerIteration > expected * (1 + tolerance)) {
+          regressions.add(String.format("%s: %.0f bytes/iteration exceeds baseline %.0f by more than %.0f%%",
+              key, bytesPerIteration, expected, 100 * tolerance));
+        } else {
+          log.info(String.format("%s: %.0f bytes/iteration (baseline %.0f)", key, bytesPerIteration, expected));
+        }
+      }
+      objective.freeRef();
+    }
+    write(measured);
+    Assertions.assertTrue(regressions.isEmpty(), String.join("\n", regressions));
+  }
+
+  private double bytesPerIteration(@Nonnull SyntheticObjective objective, @Nonnull OrientationStrategy<?>[] orientations) {
+    objective.reset(SEED);
+    final PhaseTimings timings = new PhaseTimings();
+    timings.setTrackAllocations(true);
+    RoundRobinTrainer trainer = new RoundRobinTrainer(objective);
+    trainer.setOrientations(orientations);
+    trainer.setLineSearchFactory(OptimizerBenchmark::lineSearch);
+    trainer.setMaxIterations(iterations);
+    trainer.setTerminateThreshold(Double.NEGATIVE_INFINITY);
+    trainer.setMonitor(new TrainingMonitor());
+    trainer.setTimings(timings);
+    try {
+      trainer.run();
+    } finally {
+      trainer.freeRef();
+      timings.setTrackAllocations(false);
+    }
+    long count = 0;
+    long total = 0;
+    for (LatencyHistogram.Snapshot bytes : timings.snapshot().getAllocations(PhaseTimings.Phase.ITERATION).values()) {
+      count += bytes.count;
+      total += bytes.total;
+    }
+    return 0 == count ? 0 : (double) total / count;
+  }
+
+  @Nonnull
+  private static Map<String, Double> loadBaseline() {
+    final Map<String, Double> baseline = new TreeMap<>();
+    final InputStream stream = AllocationRegressionTest.class.getResourceAsStream(BASELINE);
+    if (null == stream) return baseline;
+    try (Reader reader = new InputStreamReader(stream, StandardCharsets.UTF_8)) {
+      final Map<?, ?> json = new Gson().fromJson(reader, Map.class);
+      if (null != json) {
+        json.forEach((key, value) -> baseline.put(key.toString(), ((Number) value).doubleValue()));
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return baseline;
+  }
+
+  private static void write(@Nonnull Map<String, Double> measured) {
+    final File dir = new File("target/optimizer-allocation");
+    dir.mkdirs();
+    final File file = new File(dir, "baseline.json");
+    try (Writer writer = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)) {
+      new GsonBuilder().setPrettyPrinting().disableHtmlEscaping().create().toJson(measured, writer);
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    log.info("Wrote " + file.getAbsolutePath());
+  }
+}
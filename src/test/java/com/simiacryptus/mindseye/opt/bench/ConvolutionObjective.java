@@ -0,0 +1,147 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.mindseye.opt.bench;
+
+import javax.annotation.Nonnull;
+import java.util.Random;
+
+/**
+ * Mean squared error of a single tanh-activated "valid" 2D convolution, fit to the outputs of a hidden kernel over
+ * generated images. Parameters are the kernel and the per-band bias; the optimum has zero loss.
+ */
+public class ConvolutionObjective extends SyntheticObjective {
+
+  private static final int KERNEL = 3;
+  private final int bandsIn;
+  private final int bandsOut;
+  private final int width;
+  @Nonnull
+  private final double[][][][] images;
+  @Nonnull
+  private final double[][][][] targets;
+
+  public ConvolutionObjective(int samples, int width, int bandsIn, int bandsOut, long seed) {
+    super(bandsOut * bandsIn * KERNEL * KERNEL, bandsOut);
+    this.bandsIn = bandsIn;
+    this.bandsOut = bandsOut;
+    this.width = width;
+    Random random = new Random(seed);
+    double[] hiddenKernel = new double[bandsOut * bandsIn * KERNEL * KERNEL];
+    for (int i = 0; i < hiddenKernel.length; i++) {
+      hiddenKernel[i] = random.nextGaussian() / KERNEL;
+    }
+    double[] hiddenBias = new double[bandsOut];
+    for (int i = 0; i < hiddenBias.length; i++) {
+      hiddenBias[i] = 0.1 * random.nextGaussian();
+    }
+    images = new double[samples][bandsIn][width][width];
+    targets = new double[samples][][][];
+    for (int n = 0; n < samples; n++) {
+      for (int c = 0; c < bandsIn; c++) {
+        for (int y = 0; y < width; y++) {
+          for (int x = 0; x < width; x++) {
+            images[n][c][y][x] = random.nextGaussian();
+          }
+        }
+      }
+      targets[n] = forward(images[n], hiddenKernel, hiddenBias);
+    }
+  }
+
+  @Nonnull
+  @Override
+  public String getName() {
+    return "Convolution(m=" + images.length + ", " + width + "x" + width + "x" + bandsIn + " -> " + bandsOut + ")";
+  }
+
+  @Override
+  public double getTargetLoss() {
+    return 1e-6;
+  }
+
+  @Override
+  protected void initialize(@Nonnull Random random) {
+    for (double[] block : weights) {
+      for (int i = 0; i < block.length; i++) {
+        block[i] = 1e-2 * random.nextGaussian();
+      }
+    }
+  }
+
+  @Override
+  protected double evaluate(@Nonnull double[][] weights, @Nonnull double[][] gradient) {
+    final double[] kernel = weights[0];
+    final double[] bias = weights[1];
+    final double[] gk = gradient[0];
+    final double[] gb = gradient[1];
+    final int out = width - KERNEL + 1;
+    final double scale = 1.0 / (images.length * bandsOut * out * out);
+    double loss = 0;
+    for (int n = 0; n < images.length; n++) {
+      final double[][][] image = images[n];
+      final double[][][] activation = forward(image, kernel, bias);
+      for (int o = 0; o < bandsOut; o++) {
+        for (int py = 0; py < out; py++) {
+          for (int px = 0; px < out; px++) {
+            final double a = activation[o][py][px];
+            final double error = a - targets[n][o][py][px];
+            loss += 0.5 * error * error * scale;
+            final double dz = error * (1 - a * a) * scale;
+            gb[o] += dz;
+            for (int c = 0; c < bandsIn; c++) {
+              for (int ky = 0; ky < KERNEL; ky++) {
+                for (int kx = 0; kx < KERNEL; kx++) {
+                  gk[index(o, c, ky, kx)] += dz * image[c][py + ky][px + kx];
+                }
+              }
+            }
+          }
+        }
+      }
+    }
+    return loss;
+  }
+
+  @Nonnull
+  private double[][][] forward(@Nonnull double[][][] image, @Nonnull double[] kernel, @Nonnull double[] bias) {
+    final int out = width - KERNEL + 1;
+    final double[][][] result = new double[bandsOut][out][out];
+    for (int o = 0; o < bandsOut; o++) {
+      for (int py = 0; py < out; py++) {
+        for (int px = 0; px < out; px++) {
+          double z = bias[o];
+          for (int c = 0; c < bandsIn; c++) {
+            for (int ky = 0; ky < KERNEL; ky++) {
+              for (int kx = 0; kx < KERNEL; kx++) {
+                z += kernel[index(o, c, ky, kx)] * image[c][py + ky][px + kx];
+              }
+            }
+          }
+          result[o][py][px] = Math.tanh(z);
+        }
+      }
+    }
+    return result;
+  }
+
+  private int index(int o, int c, int ky, int kx) {
+    return ((o * bandsIn + c) * KERNEL + ky) * KERNEL + kx;
+  }
+}
@@ -0,0 +1,106 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.mindseye.opt.bench;
+
+import javax.annotation.Nonnull;
+import java.util.Random;
+
+/**
+ * f(x) = 0.5 * (x-c)' H L H (x-c), where L is diagonal with eigenvalues log-spaced from 1 to the condition number
+ * and H is a Householder reflection, so the problem is neither separable nor axis-aligned.
+ */
+public class IllConditionedQuadratic extends SyntheticObjective {
+
+  private final double condition;
+  @Nonnull
+  private final double[] eigenvalues;
+  @Nonnull
+  private final double[] center;
+  @Nonnull
+  private final double[] reflection;
+
+  public IllConditionedQuadratic(int dimension, double condition, long seed) {
+    super(dimension);
+    this.condition = condition;
+    Random random = new Random(seed);
+    eigenvalues = new double[dimension];
+    center = new double[dimension];
+    reflection = new double[dimension];
+    double norm = 0;
+    for (int i = 0; i < dimension; i++) {
+      eigenvalues[i] = Math.pow(condition, dimension == 1 ? 0 : (double) i / (dimension - 1));
+      center[i] = random.nextGaussian();
+      reflection[i] = random.nextGaussian();
+      norm += reflection[i] * reflection[i];
+    }
+    norm = Math.sqrt(norm);
+    for (int i = 0; i < dimension; i++) {
+      reflection[i] /= norm;
+    }
+  }
+
+  @Nonnull
+  @Override
+  public String getName() {
+    return "Quadratic(n=" + eigenvalues.length + ", cond=" + condition + ")";
+  }
+
+  @Override
+  public double getTargetLoss() {
+    return 1e-8;
+  }
+
+  @Override
+  protected void initialize(@Nonnull Random random) {
+    double[] x = weights[0];
+    for (int i = 0; i < x.length; i++) {
+      x[i] = center[i] + random.nextGaussian();
+    }
+  }
+
+  @Override
+  protected double evaluate(@Nonnull double[][] weights, @Nonnull double[][] gradient) {
+    final double[] x = weights[0];
+    final double[] g = gradient[0];
+    final int n = x.length;
+    final double[] rotated = new double[n];
+    for (int i = 0; i < n; i++) {
+      rotated[i] = x[i] - center[i];
+    }
+    reflect(rotated);
+    double value = 0;
+    for (int i = 0; i < n; i++) {
+      value += 0.5 * eigenvalues[i] * rotated[i] * rotated[i];
+      g[i] = eigenvalues[i] * rotated[i];
+    }
+    reflect(g);
+    return value;
+  }
+
+  private void reflect(@Nonnull double[] v) {
+    double dot = 0;
+    for (int i = 0; i < v.length; i++) {
+      dot += reflection[i] * v[i];
+    }
+    for (int i = 0; i < v.length; i++) {
+      v[i] -= 2 * dot * reflection[i];
+    }
+  }
+}
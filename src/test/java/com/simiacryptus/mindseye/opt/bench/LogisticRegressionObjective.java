@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.mindseye.opt.bench;
+
+import javax.annotation.Nonnull;
+import java.util.Random;
+
+/**
+ * Mean log-loss of a logistic regression model over a generated dataset. Labels are drawn from a hidden model,
+ * and the target is the loss of that hidden model, which the maximum-likelihood fit can only improve on.
+ */
+public class LogisticRegressionObjective extends SyntheticObjective {
+
+  @Nonnull
+  private final double[][] features;
+  @Nonnull
+  private final double[] labels;
+  private final double targetLoss;
+
+  public LogisticRegressionObjective(int samples, int dimension, long seed) {
+    super(dimension, 1);
+    Random random = new Random(seed);
+    double[] hiddenWeights = new double[dimension];
+    for (int i = 0; i < dimension; i++) {
+      hiddenWeights[i] = random.nextGaussian();
+    }
+    double hiddenBias = random.nextGaussian();
+    features = new double[samples][dimension];
+    labels = new double[samples];
+    for (int n = 0; n < samples; n++) {
+      double z = hiddenBias;
+      for (int i = 0; i < dimension; i++) {
+        features[n][i] = random.nextGaussian();
+        z += hiddenWeights[i] * features[n][i];
+      }
+      labels[n] = random.nextDouble() < sigmoid(z) ? 1 : 0;
+    }
+    targetLoss = evaluate(new double[][]{hiddenWeights, {hiddenBias}},
+        new double[][]{new double[dimension], new double[1]});
+  }
+
+  private static double sigmoid(double z) {
+    return 1 / (1 + Math.exp(-z));
+  }
+
+  @Nonnull
+  @Override
+  public String getName() {
+    return "LogisticRegression(m=" + labels.length + ", d=" + features[0].length + ")";
+  }
+
+  @Override
+  public double getTargetLoss() {
+    return targetLoss;
+  }
+
+  @Override
+  protected void initialize(@Nonnull Random random) {
+    for (double[] block : weights) {
+      for (int i = 0; i < block.length; i++) {
+        block[i] = 1e-2 * random.nextGaussian();
+      }
+    }
+  }
+
+  @Override
+  protected double evaluate(@Nonnull double[][] weights, @Nonnull double[][] gradient) {
+    final double[] w = weights[0];
+    final double b = weights[1][0];
+    final double[] gw = gradient[0];
+    final double[] gb = gradient[1];
+    final int samples = labels.length;
+    double loss = 0;
+    for (int n = 0; n < samples; n++) {
+      final double[] x = features[n];
+      double z = b;
+      for (int i = 0; i < w.length; i++) {
+        z += w[i] * x[i];
+      }
+      // log(1 + exp(z)) - y * z, computed without overflow
+      loss += Math.max(z, 0) + Math.log1p(Math.exp(-Math.abs(z))) - labels[n] * z;
+      final double residual = (sigmoid(z) - labels[n]) / samples;
+      for (int i = 0; i < w.length; i++) {
+        gw[i] += residual * x[i];
+      }
+      gb[0] += residual;
+    }
+    return loss / samples;
+  }
+}
@@ -0,0 +1,289 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.mindseye.opt.bench;
+
+import com.google.gson.GsonBuilder;
+import com.simiacryptus.mindseye.lang.Layer;
+import com.simiacryptus.mindseye.opt.AsyncTrainingMonitor;
+import com.simiacryptus.mindseye.opt.CountingTrainable;
+import com.simiacryptus.mindseye.opt.RoundRobinTrainer;
+import com.simiacryptus.mindseye.opt.Step;
+import com.simiacryptus.mindseye.opt.TrainingMonitor;
+import com.simiacryptus.mindseye.opt.line.ArmijoWolfeSearch;
+import com.simiacryptus.mindseye.opt.line.LineSearchStrategy;
+import com.simiacryptus.mindseye.opt.line.QuadraticSearch;
+import com.simiacryptus.mindseye.opt.line.StaticLearningRate;
+import com.simiacryptus.mindseye.opt.orient.*;
+import com.simiacryptus.mindseye.opt.region.AdaptiveTrustSphere;
+import com.simiacryptus.mindseye.opt.region.DistanceConstraint;
+import com.simiacryptus.mindseye.opt.region.EllipsoidTrustRegion;
+import com.simiacryptus.mindseye.opt.region.TrustRegion;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.time.Duration;
+import java.util.*;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Compares the optimizers in this module on deterministic synthetic objectives, without network or dataset access.
+ * Each configuration is trained from the same starting point until it reaches the objective's target loss, and the
+ * results are written as JSON to target/optimizer-benchmark.
+ */
+public class OptimizerBenchmark {
+  private static final Logger log = LoggerFactory.getLogger(OptimizerBenchmark.class);
+  private static final long SEED = 0x5EED;
+
+  private final int maxIterations = 500;
+  private final Duration timeout = Duration.ofMinutes(1);
+
+  @Nonnull
+  public static Map<String, Supplier<OrientationStrategy<?>[]>> getStrategies() {
+    Map<String, Supplier<OrientationStrategy<?>[]>> strategies = new LinkedHashMap<>();
+    strategies.put("LBFGS", () -> new OrientationStrategy<?>[]{new LBFGS()});
+    strategies.put("QQN", () -> new OrientationStrategy<?>[]{new QQN()});
+    strategies.put("QQN+AcceptedHistory", () -> {
+      QQN qqn = new QQN();
+      qqn.setHistoryAdmission(QQN.HistoryAdmission.ACCEPTED);
+      return new OrientationStrategy<?>[]{qqn};
+    });
+    strategies.put("QQN+CurvatureHistory", () -> {
+      QQN qqn = new QQN();
+      qqn.setHistoryAdmission(QQN.HistoryAdmission.CURVATURE);
+      return new OrientationStrategy<?>[]{qqn};
+    });
+    strategies.put("QQN+PackedFloat", () -> {
+      QQN qqn = new QQN();
+      qqn.setPackedHistory(PackedLBFGSHistory.Precision.FLOAT);
+      return new OrientationStrategy<?>[]{qqn};
+    });
+    strategies.put("RecursiveSubspace", () -> new OrientationStrategy<?>[]{new RecursiveSubspace()});
+    strategies.put("RecursiveSubspace+Sketch", () -> {
+      RecursiveSubspace subspace = new RecursiveSubspace();
+      subspace.setSketchRank(4);
+      return new OrientationStrategy<?>[]{subspace};
+    });
+    strategies.put("TrustRegion+AdaptiveTrustSphere", () -> new OrientationStrategy<?>[]{
+        trustRegion(AdaptiveTrustSphere::new)});
+    strategies.put("TrustRegion+DistanceConstraint", () -> new OrientationStrategy<?>[]{
+        trustRegion(() -> new DistanceConstraint().setMax(1.0))});
+    strategies.put("TrustRegion+EllipsoidTrustRegion", () -> new OrientationStrategy<?>[]{
+        layerTrustRegion(EllipsoidTrustRegion::new)});
+    strategies.put("LayerReweighting+LBFGS", () -> new OrientationStrategy<?>[]{
+        new LayerReweightingStrategy.HashMapLayerReweightingStrategy(new LBFGS())});
+    strategies.put("ConjugateGradient", () -> new OrientationStrategy<?>[]{new ConjugateGradient()});
+    strategies.put("LayerReweighting+ConjugateGradient", () -> new OrientationStrategy<?>[]{
+        new LayerReweightingStrategy.HashMapLayerReweightingStrategy(new ConjugateGradient())});
+    strategies.put("LSR1", () -> new OrientationStrategy<?>[]{new LSR1()});
+    strategies.put("RoundRobin(GD,QQN)", () -> new OrientationStrategy<?>[]{new GradientDescent(), new QQN()});
+    return strategies;
+  }
+
+  @Nonnull
+  private static TrustRegionStrategy trustRegion(@Nonnull Supplier<TrustRegion> region) {
+    return new TrustRegionStrategy() {
+      @Override
+      public TrustRegion getRegionPolicy(@Nullable Layer layer) {
+        if (null != layer)
+          layer.freeRef();
+        return region.get();
+      }
+    };
+  }
+
+  /**
+   * Like {@link #trustRegion}, but keeps one region per layer so stateful regions see a consistent history.
+   */
+  @Nonnull
+  private static TrustRegionStrategy layerTrustRegion(@Nonnull Supplier<TrustRegion> region) {
+    final Map<UUID, TrustRegion> regions = new HashMap<>();
+    return new TrustRegionStrategy() {
+      @Override
+      public TrustRegion getRegionPolicy(@Nullable Layer layer) {
+        if (null == layer) return region.get();
+        final UUID id = layer.getId();
+        layer.freeRef();
+        synchronized (regions) {
+          return regions.computeIfAbsent(id, x -> region.get());
+        }
+      }
+    };
+  }
+
+  @Nonnull
+  static LineSearchStrategy lineSearch(@Nonnull CharSequence directionType) {
+    if (directionType.toString().startsWith(LSR1.CURSOR_LABEL)) return new StaticLearningRate(1.0);
+    return directionType.toString().startsWith(RecursiveSubspace.CURSOR_LABEL) ? new QuadraticSearch()
+        : new ArmijoWolfeSearch();
+  }
+
+  private static long allocatedBytes() {
+    java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+    if (!(bean instanceof com.sun.management.ThreadMXBean)) return -1;
+    long[] bytes = ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(bean.getAllThreadIds());
+    long sum = 0;
+    for (long b : bytes) {
+      if (b > 0) sum += b;
+    }
+    return sum;
+  }
+
+  @Test
+  @Tag("Report")
+  public void quadratic() {
+    run(new IllConditionedQuadratic(100, 1e4, SEED));
+  }
+
+  @Test
+  @Tag("Report")
+  public void rosenbrock() {
+    run(new Rosenbrock(20));
+  }
+
+  @Test
+  @Tag("Report")
+  public void logisticRegression() {
+    run(new LogisticRegressionObjective(500, 20, SEED));
+  }
+
+  @Test
+  @Tag("Report")
+  public void convolution() {
+    run(new ConvolutionObjective(16, 8, 2, 2, SEED));
+  }
+
+  public void run(@Nonnull SyntheticObjective objective) {
+    List<Result> results = new ArrayList<>();
+    for (Map.Entry<String, Supplier<OrientationStrategy<?>[]>> entry : getStrategies().entrySet()) {
+      Result result = run(objective.addRef(), entry.getKey(), entry.getValue().get(), OptimizerBenchmark::lineSearch);
+      log.info(result.toString());
+      results.add(result);
+      Assertions.assertTrue(result.totalMeasures > 0, result.strategy);
+    }
+    write(objective.getName(), results);
+    objective.freeRef();
+  }
+
+  @Nonnull
+  public Result run(@Nonnull SyntheticObjective objective, @Nonnull String strategy,
+                    @Nonnull OrientationStrategy<?>[] orientations,
+                    @Nonnull Function<CharSequence, ? extends LineSearchStrategy> lineSearchFactory) {
+    objective.reset(SEED);
+    final Result result = new Result(objective.getName(), strategy, objective.getTargetLoss());
+    result.initialLoss = objective.value();
+    final long startBytes = allocatedBytes();
+    final long startNanos = System.nanoTime();
+    final CountingTrainable counting = new CountingTrainable(objective.addRef());
+    RoundRobinTrainer trainer = new RoundRobinTrainer(counting.addRef());
+    trainer.setOrientations(orientations);
+    trainer.setLineSearchFactory(lineSearchFactory);
+    trainer.setMaxIterations(maxIterations);
+    trainer.setTimeout(timeout);
+    trainer.setTerminateThreshold(result.targetLoss);
+    // Optimizers format their log lines on the monitor's writer thread, as they would in a real run
+    final AsyncTrainingMonitor monitor = new AsyncTrainingMonitor(new TrainingMonitor() {
+      @Override
+      public void onStepComplete(@Nonnull Step step) {
+        assert step.point != null;
+        result.iterations = (int) step.iteration;
+        if (result.timeToTargetMs < 0 && step.point.sum <= result.targetLoss) {
+          result.timeToTargetMs = (System.nanoTime() - startNanos) / 1000000;
+          result.measuresToTarget = objective.getMeasureCount();
+          result.iterationsToTarget = (int) step.iteration;
+        }
+        super.onStepComplete(step);
+      }
+    });
+    trainer.setMonitor(monitor);
+    try {
+      result.finalLoss = trainer.run();
+    } catch (RuntimeException e) {
+      log.warn(strategy + " failed on " + objective.getName(), e);
+      result.error = e.toString();
+      result.finalLoss = objective.value();
+    } finally {
+      trainer.freeRef();
+      monitor.close();
+    }
+    result.elapsedMs = (System.nanoTime() - startNanos) / 1000000;
+    result.allocatedBytes = allocatedBytes() - startBytes;
+    result.totalMeasures = objective.getMeasureCount();
+    counting.snapshot().getSources().forEach((source, stats) -> result.measuresBySource.put(source, stats.measures));
+    counting.freeRef();
+    objective.freeRef();
+    return result;
+  }
+
+  private void write(@Nonnull String problem, @Nonnull List<Result> results) {
+    File dir = new File("target/optimizer-benchmark");
+    dir.mkdirs();
+    File file = new File(dir, problem.replaceAll("[^\\w]+", "_") + ".json");
+    try (Writer writer = new FileWriter(file)) {
+      new GsonBuilder().setPrettyPrinting().create().toJson(results, writer);
+    } catch (IOException e) {
+      throw new RuntimeException(e);
+    }
+    log.info("Wrote " + file.getAbsolutePath());
+  }
+
+  public static class Result {
+    public final String problem;
+    public final String strategy;
+    public final double targetLoss;
+    public double initialLoss;
+    public double finalLoss;
+    public long timeToTargetMs = -1;
+    public int measuresToTarget = -1;
+    public int iterationsToTarget = -1;
+    public int iterations;
+    public int totalMeasures;
+    public long elapsedMs;
+    public long allocatedBytes;
+    public final Map<String, Long> measuresBySource = new TreeMap<>();
+    @Nullable
+    public String error;
+
+    public Result(String problem, String strategy, double targetLoss) {
+      this.problem = problem;
+      this.strategy = strategy;
+      this.targetLoss = targetLoss;
+    }
+
+    @Nonnull
+    @Override
+    public String toString() {
+      return String.format("%s / %s: loss %s -> %s (target %s); time-to-target %s ms, measures-to-target %s, "
+              + "total measures %s %s, iterations %s, elapsed %s ms, allocated %s bytes%s",
+          problem, strategy, initialLoss, finalLoss, targetLoss, timeToTargetMs, measuresToTarget, totalMeasures,
+          measuresBySource, iterations, elapsedMs, allocatedBytes, null == error ? "" : ", error " + error);
+    }
+  }
+}
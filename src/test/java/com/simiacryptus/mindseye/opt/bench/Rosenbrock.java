@@ -0,0 +1,67 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.mindseye.opt.bench;
+
+import javax.annotation.Nonnull;
+import java.util.Random;
+
+/**
+ * The generalized (chained) Rosenbrock function, started from the classic (-1.2, 1) point with a small jitter.
+ */
+public class Rosenbrock extends SyntheticObjective {
+
+  public Rosenbrock(int dimension) {
+    super(dimension);
+  }
+
+  @Nonnull
+  @Override
+  public String getName() {
+    return "Rosenbrock(n=" + weights[0].length + ")";
+  }
+
+  @Override
+  public double getTargetLoss() {
+    return 1e-4;
+  }
+
+  @Override
+  protected void initialize(@Nonnull Random random) {
+    double[] x = weights[0];
+    for (int i = 0; i < x.length; i++) {
+      x[i] = (i % 2 == 0 ? -1.2 : 1.0) + 1e-2 * random.nextGaussian();
+    }
+  }
+
+  @Override
+  protected double evaluate(@Nonnull double[][] weights, @Nonnull double[][] gradient) {
+    final double[] x = weights[0];
+    final double[] g = gradient[0];
+    double value = 0;
+    for (int i = 0; i < x.length - 1; i++) {
+      final double a = x[i + 1] - x[i] * x[i];
+      final double b = 1 - x[i];
+      value += 100 * a * a + b * b;
+      g[i] += -400 * a * x[i] - 2 * b;
+      g[i + 1] += 200 * a;
+    }
+    return value;
+  }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.mindseye.opt.bench;
+
+import com.simiacryptus.mindseye.eval.TrainableBase;
+import com.simiacryptus.mindseye.lang.*;
+import com.simiacryptus.mindseye.opt.TrainingMonitor;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A deterministic, closed-form objective exposed as a full-batch Trainable. Parameters are held in one primitive
+ * array per block, and each block is reported under its own stable key, so strategies see a multi-layer model.
+ */
+public abstract class SyntheticObjective extends TrainableBase {
+
+  @Nonnull
+  private final UUID[] ids;
+  @Nonnull
+  protected final double[][] weights;
+  private final AtomicInteger measureCount = new AtomicInteger();
+
+  protected SyntheticObjective(@Nonnull int... blockSizes) {
+    ids = new UUID[blockSizes.length];
+    weights = new double[blockSizes.length][];
+    for (int i = 0; i < blockSizes.length; i++) {
+      ids[i] = UUID.nameUUIDFromBytes((getClass().getName() + "/" + i).getBytes(StandardCharsets.UTF_8));
+      weights[i] = new double[blockSizes[i]];
+    }
+  }
+
+  @Nonnull
+  public abstract String getName();
+
+  public abstract double getTargetLoss();
+
+  public int getMeasureCount() {
+    return measureCount.get();
+  }
+
+  public int getDimension() {
+    int sum = 0;
+    for (double[] block : weights) sum += block.length;
+    return sum;
+  }
+
+  @Nullable
+  @Override
+  public Layer getLayer() {
+    return null;
+  }
+
+  public void reset(long seed) {
+    measureCount.set(0);
+    initialize(new Random(seed));
+  }
+
+  public double value() {
+    double[][] gradient = new double[weights.length][];
+    for (int i = 0; i < weights.length; i++) {
+      gradient[i] = new double[weights[i].length];
+    }
+    return evaluate(weights, gradient);
+  }
+
+  @Override
+  public PointSample measure(final TrainingMonitor monitor) {
+    measureCount.incrementAndGet();
+    double[][] gradient = new double[weights.length][];
+    for (int i = 0; i < weights.length; i++) {
+      gradient[i] = new double[weights[i].length];
+    }
+    final double value = evaluate(weights, gradient);
+    final DeltaSet<UUID> delta = new DeltaSet<>();
+    for (int i = 0; i < weights.length; i++) {
+      Delta<UUID> buffer = delta.get(ids[i], weights[i]);
+      assert buffer != null;
+      buffer.addInPlace(gradient[i]);
+      buffer.freeRef();
+    }
+    final StateSet<UUID> state = new StateSet<>(delta.addRef());
+    return new PointSample(delta, state, value, 0.0, 1);
+  }
+
+  /**
+   * Writes the starting point into {@link #weights} in place; the arrays themselves must never be replaced.
+   */
+  protected abstract void initialize(@Nonnull Random random);
+
+  /**
+   * Returns the objective value at the given weights and writes its gradient into the zeroed gradient arrays.
+   */
+  protected abstract double evaluate(@Nonnull double[][] weights, @Nonnull double[][] gradient);
+
+  @Nonnull
+  public @Override
+  @SuppressWarnings("unused")
+  SyntheticObjective addRef() {
+    return (SyntheticObjective) super.addRef();
+  }
+}
@@ -51,9 +51,9 @@ public class GDTest extends MnistTestBase {
         .wrapInterface((UncheckedSupplier<Double>) () -> {
           @Nonnull final SimpleLossNetwork supervisedNetwork = new SimpleLossNetwork(network.addRef(),
               new EntropyLossLayer());
-          @Nonnull final Trainable trainable = new SampledArrayTrainable(
+          @Nonnull final Trainable trainable = counting(new SampledArrayTrainable(
               RefUtil.addRef(trainingData),
-              supervisedNetwork, 1000);
+              supervisedNetwork, 1000));
           IterativeTrainer temp_42_0002 = new IterativeTrainer(
               trainable);
           temp_42_0002.setMonitor(monitor);
@@ -22,6 +22,7 @@ package com.simiacryptus.mindseye.opt.orient;
 import com.simiacryptus.lang.UncheckedSupplier;
 import com.simiacryptus.mindseye.eval.ArrayTrainable;
 import com.simiacryptus.mindseye.eval.SampledArrayTrainable;
+import com.simiacryptus.mindseye.eval.Trainable;
 import com.simiacryptus.mindseye.lang.Layer;
 import com.simiacryptus.mindseye.lang.Tensor;
 import com.simiacryptus.mindseye.layers.java.EntropyLossLayer;
@@ -52,12 +53,12 @@ public class LBFGSTest extends MnistTestBase {
         .wrapInterface((UncheckedSupplier<Double>) () -> {
           @Nonnull final SimpleLossNetwork supervisedNetwork = new SimpleLossNetwork(network.addRef(),
               new EntropyLossLayer());
-          ArrayTrainable temp_35_0002 = new ArrayTrainable(
+          Trainable temp_35_0002 = counting(new ArrayTrainable(
               RefUtil.addRef(trainingData),
-              supervisedNetwork.addRef());
+              supervisedNetwork.addRef()));
           ValidatingTrainer temp_35_0003 = new ValidatingTrainer(
-              new SampledArrayTrainable(RefUtil.addRef(trainingData),
-                  supervisedNetwork, 1000, 10000),
+              counting(new SampledArrayTrainable(RefUtil.addRef(trainingData),
+                  supervisedNetwork, 1000, 10000)),
               temp_35_0002.cached());
           temp_35_0003.setMonitor(monitor);
           @Nonnull
@@ -50,9 +50,9 @@ public class MomentumTest extends MnistTestBase {
         .wrapInterface((UncheckedSupplier<Double>) () -> {
           @Nonnull final SimpleLossNetwork supervisedNetwork = new SimpleLossNetwork(network.addRef(),
               new EntropyLossLayer());
-          @Nonnull final Trainable trainable = new SampledArrayTrainable(
+          @Nonnull final Trainable trainable = counting(new SampledArrayTrainable(
               RefUtil.addRef(trainingData),
-              supervisedNetwork, 1000);
+              supervisedNetwork, 1000));
           IterativeTrainer temp_51_0002 = new IterativeTrainer(
               trainable);
           MomentumStrategy temp_51_0003 = new MomentumStrategy(
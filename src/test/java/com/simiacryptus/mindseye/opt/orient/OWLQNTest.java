@@ -50,9 +50,9 @@ public class OWLQNTest extends MnistTestBase {
         .wrapInterface((UncheckedSupplier<Double>) () -> {
           @Nonnull final SimpleLossNetwork supervisedNetwork = new SimpleLossNetwork(network.addRef(),
               new EntropyLossLayer());
-          @Nonnull final Trainable trainable = new SampledArrayTrainable(
+          @Nonnull final Trainable trainable = counting(new SampledArrayTrainable(
               RefUtil.addRef(trainingData),
-              supervisedNetwork, 10000);
+              supervisedNetwork, 10000));
           IterativeTrainer temp_43_0002 = new IterativeTrainer(
               trainable);
           temp_43_0002.setIterationsPerSample(100);
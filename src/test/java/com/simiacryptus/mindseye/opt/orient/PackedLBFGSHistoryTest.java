@@ -0,0 +1,257 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.mindseye.opt.orient;
+
+import com.simiacryptus.mindseye.eval.TrainableBase;
+import com.simiacryptus.mindseye.lang.*;
+import com.simiacryptus.mindseye.opt.TrainingMonitor;
+import com.simiacryptus.mindseye.opt.line.SimpleLineSearchCursor;
+import com.simiacryptus.mindseye.opt.orient.PackedLBFGSHistory.Precision;
+import com.simiacryptus.ref.wrappers.RefMap;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+/**
+ * Feeds the same iterates of a diagonal quadratic to a PackedLBFGSHistory and to a plain two-loop L-BFGS over double
+ * arrays, and compares the directions. The two layers are sized so that blocks straddle the layer boundary, and the
+ * history is shorter than the run, so eviction is covered as well.
+ */
+public class PackedLBFGSHistoryTest {
+  private static final UUID FIRST = UUID.nameUUIDFromBytes("PackedLBFGSHistoryTest/first".getBytes(StandardCharsets.UTF_8));
+  private static final UUID SECOND = UUID.nameUUIDFromBytes("PackedLBFGSHistoryTest/second".getBytes(StandardCharsets.UTF_8));
+  private static final int MAX_HISTORY = 3;
+  private static final int SAMPLES = 8;
+
+  @Test
+  public void doubleMatchesTwoLoopRecursion() {
+    assertMatchesReference(Precision.DOUBLE, 1e-10);
+  }
+
+  @Test
+  public void floatMatchesTwoLoopRecursion() {
+    assertMatchesReference(Precision.FLOAT, 1e-4);
+  }
+
+  private static void assertMatchesReference(@Nonnull Precision precision, double tolerance) {
+    final Quadratic subject = new Quadratic(3000, 1100);
+    final PackedLBFGSHistory history = new PackedLBFGSHistory(precision, 1, MAX_HISTORY);
+    final List<double[]> weights = new ArrayList<>();
+    final List<double[]> gradients = new ArrayList<>();
+    final Random random = new Random(7);
+    PointSample origin = null;
+    for (int k = 0; k < SAMPLES; k++) {
+      if (null != origin) origin.freeRef();
+      origin = subject.measure(new TrainingMonitor());
+      weights.add(subject.flatWeights());
+      gradients.add(subject.flatGradient());
+      history.add(origin.addRef());
+      subject.descend(0.05, random);
+    }
+    assert origin != null;
+    Assertions.assertEquals(MAX_HISTORY, history.getPairCount());
+    final SimpleLineSearchCursor cursor = history.orient(subject.addRef(), origin);
+    final double[] actual;
+    try {
+      Assertions.assertEquals("LBFGS", cursor.getDirectionType().toString());
+      final RefMap<UUID, Delta<UUID>> map = cursor.direction.getMap();
+      actual = concat(values(map.get(FIRST)), values(map.get(SECOND)));
+      map.freeRef();
+    } finally {
+      cursor.freeRef();
+      subject.freeRef();
+    }
+    final double[] expected = twoLoop(weights, gradients, MAX_HISTORY);
+    double scale = 0;
+    for (double value : expected) {
+      scale = Math.max(scale, Math.abs(value));
+    }
+    Assertions.assertTrue(dot(expected, gradients.get(SAMPLES - 1)) < 0, "Reference is not a descent direction");
+    Assertions.assertArrayEquals(expected, actual, tolerance * scale);
+  }
+
+  /**
+   * Textbook two-loop recursion over the last {@code maxHistory} pairs of consecutive iterates, returning -H g for the
+   * last gradient, with H0 = (s.y / y.y) of the newest pair.
+   */
+  @Nonnull
+  private static double[] twoLoop(@Nonnull List<double[]> weights, @Nonnull List<double[]> gradients, int maxHistory) {
+    final int last = weights.size() - 1;
+    final int pairs = Math.min(maxHistory, last);
+    final double[][] s = new double[pairs][];
+    final double[][] y = new double[pairs][];
+    for (int i = 0; i < pairs; i++) {
+      final int k = last - pairs + i;
+      s[i] = subtract(weights.get(k + 1), weights.get(k));
+      y[i] = subtract(gradients.get(k + 1), gradients.get(k));
+    }
+    final double[] q = gradients.get(last).clone();
+    final double[] alpha = new double[pairs];
+    for (int i = pairs - 1; i >= 0; i--) {
+      alpha[i] = dot(s[i], q) / dot(s[i], y[i]);
+      axpy(-alpha[i], y[i], q);
+    }
+    final double gamma = dot(s[pairs - 1], y[pairs - 1]) / dot(y[pairs - 1], y[pairs - 1]);
+    for (int j = 0; j < q.length; j++) {
+      q[j] *= gamma;
+    }
+    for (int i = 0; i < pairs; i++) {
+      final double beta = dot(y[i], q) / dot(s[i], y[i]);
+      axpy(alpha[i] - beta, s[i], q);
+    }
+    for (int j = 0; j < q.length; j++) {
+      q[j] = -q[j];
+    }
+    return q;
+  }
+
+  @Nonnull
+  private static double[] values(@Nullable Delta<UUID> delta) {
+    assert delta != null;
+    final double[] values = delta.getDelta();
+    delta.freeRef();
+    assert values != null;
+    return values.clone();
+  }
+
+  @Nonnull
+  private static double[] concat(@Nonnull double[] a, @Nonnull double[] b) {
+    final double[] result = new double[a.length + b.length];
+    System.arraycopy(a, 0, result, 0, a.length);
+    System.arraycopy(b, 0, result, a.length, b.length);
+    return result;
+  }
+
+  @Nonnull
+  private static double[] subtract(@Nonnull double[] a, @Nonnull double[] b) {
+    final double[] result = new double[a.length];
+    for (int i = 0; i < a.length; i++) {
+      result[i] = a[i] - b[i];
+    }
+    return result;
+  }
+
+  private static void axpy(double a, @Nonnull double[] x, @Nonnull double[] y) {
+    for (int i = 0; i < x.length; i++) {
+      y[i] += a * x[i];
+    }
+  }
+
+  private static double dot(@Nonnull double[] a, @Nonnull double[] b) {
+    double sum = 0;
+    for (int i = 0; i < a.length; i++) {
+      sum += a[i] * b[i];
+    }
+    return sum;
+  }
+
+  /**
+   * f(w) = sum of (h_i / 2) w_i^2 - c_i w_i over two layers, with curvatures h_i between 1 and 10.
+   */
+  private static final class Quadratic extends TrainableBase {
+    private final double[] first;
+    private final double[] second;
+
+    private Quadratic(int firstSize, int secondSize) {
+      first = new double[firstSize];
+      second = new double[secondSize];
+      for (int i = 0; i < first.length; i++) first[i] = Math.sin(i);
+      for (int i = 0; i < second.length; i++) second[i] = Math.cos(i);
+    }
+
+    private static double curvature(int i) {
+      return 1 + 9 * ((i * 37) % 101) / 100.0;
+    }
+
+    private static double linear(int i) {
+      return Math.sin(0.3 * i);
+    }
+
+    @Nullable
+    @Override
+    public Layer getLayer() {
+      return null;
+    }
+
+    @Nonnull
+    double[] flatWeights() {
+      return concat(first, second);
+    }
+
+    @Nonnull
+    double[] flatGradient() {
+      final double[] weights = flatWeights();
+      final double[] gradient = new double[weights.length];
+      for (int i = 0; i < weights.length; i++) {
+        gradient[i] = curvature(i) * weights[i] - linear(i);
+      }
+      return gradient;
+    }
+
+    /**
+     * A gradient step with some noise, so successive steps are not all along the same few directions.
+     */
+    void descend(double rate, @Nonnull Random random) {
+      final double[] gradient = flatGradient();
+      for (int i = 0; i < gradient.length; i++) {
+        final double step = -rate * gradient[i] * (1 + 0.5 * random.nextGaussian());
+        if (i < first.length) first[i] += step;
+        else second[i - first.length] += step;
+      }
+    }
+
+    @Override
+    public PointSample measure(TrainingMonitor monitor) {
+      final double[] weights = flatWeights();
+      final double[] gradient = flatGradient();
+      double sum = 0;
+      for (int i = 0; i < weights.length; i++) {
+        sum += 0.5 * curvature(i) * weights[i] * weights[i] - linear(i) * weights[i];
+      }
+      final double[] firstGradient = new double[first.length];
+      System.arraycopy(gradient, 0, firstGradient, 0, first.length);
+      final double[] secondGradient = new double[second.length];
+      System.arraycopy(gradient, first.length, secondGradient, 0, second.length);
+      final DeltaSet<UUID> delta = new DeltaSet<>();
+      final Delta<UUID> firstDelta = delta.get(FIRST, first);
+      assert firstDelta != null;
+      firstDelta.addInPlace(firstGradient);
+      firstDelta.freeRef();
+      final Delta<UUID> secondDelta = delta.get(SECOND, second);
+      assert secondDelta != null;
+      secondDelta.addInPlace(secondGradient);
+      secondDelta.freeRef();
+      final StateSet<UUID> state = new StateSet<>(delta.addRef());
+      return new PointSample(delta, state, sum, 0.0, 1);
+    }
+
+    @Override
+    public void _free() {
+      super._free();
+    }
+  }
+}
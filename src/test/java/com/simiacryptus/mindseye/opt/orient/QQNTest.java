@@ -52,10 +52,10 @@ public class QQNTest extends MnistTestBase {
           @Nonnull final SimpleLossNetwork supervisedNetwork = new SimpleLossNetwork(network.addRef(),
               new EntropyLossLayer());
           ValidatingTrainer temp_45_0002 = new ValidatingTrainer(
-              new SampledArrayTrainable(RefUtil.addRef(trainingData),
-                  supervisedNetwork, 1000, 10000),
-              new ArrayTrainable(RefUtil.addRef(trainingData),
-                  supervisedNetwork.addRef()));
+              counting(new SampledArrayTrainable(RefUtil.addRef(trainingData),
+                  supervisedNetwork, 1000, 10000)),
+              counting(new ArrayTrainable(RefUtil.addRef(trainingData),
+                  supervisedNetwork.addRef())));
           //return new IterativeTrainer(new SampledArrayTrainable(trainingData, supervisedNetwork, 10000))
           temp_45_0002.setMonitor(monitor);
           @Nonnull
@@ -22,6 +22,7 @@ package com.simiacryptus.mindseye.opt.orient;
 import com.simiacryptus.lang.UncheckedSupplier;
 import com.simiacryptus.mindseye.eval.ArrayTrainable;
 import com.simiacryptus.mindseye.eval.SampledArrayTrainable;
+import com.simiacryptus.mindseye.eval.Trainable;
 import com.simiacryptus.mindseye.lang.Layer;
 import com.simiacryptus.mindseye.lang.Tensor;
 import com.simiacryptus.mindseye.layers.cudnn.ActivationLayer;
@@ -107,12 +108,12 @@ public abstract class RecursiveSubspaceTest extends MnistTestBase {
         .wrapInterface((UncheckedSupplier<Double>) () -> {
           @Nonnull final SimpleLossNetwork supervisedNetwork = new SimpleLossNetwork(network.addRef(),
               new EntropyLossLayer());
-          ArrayTrainable temp_46_0007 = new ArrayTrainable(
+          Trainable temp_46_0007 = counting(new ArrayTrainable(
               RefUtil.addRef(trainingData),
-              supervisedNetwork.addRef(), 1000);
+              supervisedNetwork.addRef(), 1000));
           ValidatingTrainer temp_46_0008 = new ValidatingTrainer(
-              new SampledArrayTrainable(RefUtil.addRef(trainingData),
-                  supervisedNetwork, 1000, 1000),
+              counting(new SampledArrayTrainable(RefUtil.addRef(trainingData),
+                  supervisedNetwork, 1000, 1000)),
               temp_46_0007.cached());
           temp_46_0008.setMonitor(monitor);
           @Nonnull
@@ -0,0 +1,214 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.mindseye.opt.orient;
+
+import com.simiacryptus.mindseye.eval.ArrayTrainable;
+import com.simiacryptus.mindseye.eval.SampledArrayTrainable;
+import com.simiacryptus.mindseye.eval.Trainable;
+import com.simiacryptus.mindseye.lang.DeltaSet;
+import com.simiacryptus.mindseye.lang.Layer;
+import com.simiacryptus.mindseye.lang.PointSample;
+import com.simiacryptus.mindseye.lang.Tensor;
+import com.simiacryptus.mindseye.layers.java.FullyConnectedLayer;
+import com.simiacryptus.mindseye.layers.java.MeanSqLossLayer;
+import com.simiacryptus.mindseye.network.PipelineNetwork;
+import com.simiacryptus.mindseye.opt.CountingTrainable;
+import com.simiacryptus.mindseye.opt.IterativeTrainer;
+import com.simiacryptus.mindseye.opt.TrainingMonitor;
+import com.simiacryptus.mindseye.opt.line.LineSearchCursor;
+import com.simiacryptus.mindseye.opt.line.LineSearchCursorBase;
+import com.simiacryptus.mindseye.opt.line.LineSearchPoint;
+import com.simiacryptus.mindseye.opt.line.StaticLearningRate;
+import com.simiacryptus.ref.lang.RefUtil;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import javax.annotation.Nonnull;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Function;
+
+/**
+ * Trains QQN on a small full-batch regression, once with speculative step sizes and once without, and checks that
+ * the line search sees the same points either way. The targets are noisy, so the loss never reaches the point where
+ * summation order in the batched evaluation decides the comparison.
+ */
+public class SpeculativeAlphasTest {
+  private static final double[] ALPHAS = {0.25, 0.5, 1.0};
+
+  @Test
+  public void speculatedStepsMatchSequential() {
+    final Tensor[][] data = data();
+    final List<CountingTrainable> workers = Collections.synchronizedList(new ArrayList<>());
+    final List<double[]> speculated = trace(data, layer -> {
+      final CountingTrainable worker = new CountingTrainable(new ArrayTrainable(RefUtil.addRef(data), layer));
+      workers.add(worker.addRef());
+      return worker;
+    });
+    final List<double[]> sequential = trace(data, new QQN());
+    RefUtil.freeRef(data);
+    long speculativeMeasures = 0;
+    for (CountingTrainable worker : workers) {
+      speculativeMeasures += worker.getMeasureCount();
+      worker.freeRef();
+    }
+    Assertions.assertTrue(0 < speculativeMeasures, "No step was speculated");
+    Assertions.assertTrue(speculated.stream().anyMatch(step -> 1 == step[0] && isSpeculated(step[1])),
+        "The line search never asked for a speculated step size");
+    Assertions.assertEquals(sequential.size(), speculated.size());
+    for (int i = 0; i < speculated.size(); i++) {
+      Assertions.assertArrayEquals(sequential.get(i), speculated.get(i), 1e-12, "Step " + i);
+    }
+  }
+
+  @Test
+  public void minibatchFactoryDisablesSpeculation() {
+    final Tensor[][] data = data();
+    final List<CountingTrainable> workers = Collections.synchronizedList(new ArrayList<>());
+    final QQN qqn = new QQN();
+    qqn.setSpeculation(layer -> {
+      final CountingTrainable worker = new CountingTrainable(new SampledArrayTrainable(RefUtil.addRef(data), layer, 4));
+      workers.add(worker.addRef());
+      return worker;
+    }, ALPHAS);
+    final List<double[]> speculated = trace(data, qqn);
+    final List<double[]> sequential = trace(data, new QQN());
+    RefUtil.freeRef(data);
+    Assertions.assertEquals(1, workers.size(), "Speculation should give up after the first copy");
+    final CountingTrainable worker = workers.get(0);
+    Assertions.assertEquals(0, worker.getMeasureCount());
+    worker.freeRef();
+    Assertions.assertTrue(worker.isFreed(), "The rejected copy was not released");
+    for (int i = 0; i < speculated.size(); i++) {
+      Assertions.assertArrayEquals(sequential.get(i), speculated.get(i), 1e-12, "Step " + i);
+    }
+  }
+
+  private static boolean isSpeculated(double alpha) {
+    for (double speculated : ALPHAS) {
+      if (speculated == alpha) return true;
+    }
+    return false;
+  }
+
+  @Nonnull
+  private static List<double[]> trace(@Nonnull Tensor[][] data, @Nonnull Function<Layer, ? extends Trainable> factory) {
+    final QQN qqn = new QQN();
+    qqn.setSpeculation(factory, ALPHAS);
+    return trace(data, qqn);
+  }
+
+  /**
+   * Trains a fixed starting network with the given QQN, and returns every point the line search was given, in order,
+   * as {quadratic cursor ? 1 : 0, step size, derivative, loss}.
+   */
+  @Nonnull
+  private static List<double[]> trace(@Nonnull Tensor[][] data, @Nonnull QQN qqn) {
+    final FullyConnectedLayer layer = new FullyConnectedLayer(new int[]{3}, new int[]{2});
+    layer.set((int i) -> Math.sin(1 + i));
+    final List<double[]> trace = new ArrayList<>();
+    // PipelineNetwork rather than SimpleLossNetwork, since the speculative copies are made through its JSON form
+    final PipelineNetwork network = new PipelineNetwork(2);
+    RefUtil.freeRef(network.add(new MeanSqLossLayer(), network.add(layer, network.getInput(0)), network.getInput(1)));
+    final IterativeTrainer trainer = new IterativeTrainer(new ArrayTrainable(RefUtil.addRef(data), network));
+    // A fixed rate, so the line search asks for the speculated step sizes (backing off by halves)
+    final StaticLearningRate search = new StaticLearningRate(1.0);
+    // The core LBFGS history rejects most orientations on a problem this small, which leaves QQN on plain gradient
+    // descent and never speculating
+    qqn.setPackedHistory(PackedLBFGSHistory.Precision.DOUBLE);
+    trainer.setOrientation(qqn);
+    trainer.setLineSearchFactory(directionType -> (cursor, monitor) ->
+        search.step(new RecordingCursor(cursor, trace), monitor));
+    trainer.setMonitor(new TrainingMonitor());
+    trainer.setMaxIterations(12);
+    trainer.setTimeout(1, TimeUnit.MINUTES);
+    try {
+      trainer.run();
+    } finally {
+      trainer.freeRef();
+    }
+    return trace;
+  }
+
+  @Nonnull
+  private static Tensor[][] data() {
+    final Random random = new Random(42);
+    final Tensor[][] data = new Tensor[16][];
+    for (int i = 0; i < data.length; i++) {
+      final double x = random.nextGaussian();
+      final double y = random.nextGaussian();
+      final double z = random.nextGaussian();
+      final double u = x - 2 * y + 0.3 * random.nextGaussian();
+      final double v = 3 * z + x + 0.3 * random.nextGaussian();
+      data[i] = new Tensor[]{new Tensor(new double[]{x, y, z}, 3), new Tensor(new double[]{u, v}, 2)};
+    }
+    return data;
+  }
+
+  private static final class RecordingCursor extends LineSearchCursorBase {
+    @Nonnull
+    private final LineSearchCursor inner;
+    @Nonnull
+    private final List<double[]> trace;
+
+    private RecordingCursor(@Nonnull LineSearchCursor inner, @Nonnull List<double[]> trace) {
+      this.inner = inner;
+      this.trace = trace;
+    }
+
+    @Override
+    public CharSequence getDirectionType() {
+      return inner.getDirectionType();
+    }
+
+    @Override
+    public PointSample afterStep(@Nonnull PointSample step) {
+      return inner.afterStep(step);
+    }
+
+    @Override
+    public DeltaSet<UUID> position(double alpha) {
+      return inner.position(alpha);
+    }
+
+    @Override
+    public void reset() {
+      inner.reset();
+    }
+
+    @Override
+    public LineSearchPoint step(double alpha, TrainingMonitor monitor) {
+      final LineSearchPoint point = inner.step(alpha, monitor);
+      final double quadratic = QQN.CURSOR_NAME.equals(getDirectionType().toString()) ? 1 : 0;
+      trace.add(new double[]{quadratic, alpha, point.derivative, point.getPointSum()});
+      return point;
+    }
+
+    @Override
+    public void _free() {
+      super._free();
+      inner.freeRef();
+    }
+  }
+}
@@ -0,0 +1,244 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.mindseye.opt.orient;
+
+import com.simiacryptus.mindseye.eval.TrainableBase;
+import com.simiacryptus.mindseye.lang.*;
+import com.simiacryptus.mindseye.opt.DoubleArena;
+import com.simiacryptus.mindseye.opt.TrainingMonitor;
+import com.simiacryptus.ref.wrappers.RefMap;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Checks the sketch directions RecursiveSubspace adds to its per-layer directions: they are orthonormal across
+ * layers, the gradient the subspace layer reports for each sketch coefficient is the directional derivative of the
+ * loss along that direction, the coefficients start from zero on every rebuild, and the directions are reused from
+ * the arena from one iteration to the next.
+ */
+public class SubspaceSketchTest {
+  private static final UUID FIRST = UUID.nameUUIDFromBytes("SubspaceSketchTest/first".getBytes(StandardCharsets.UTF_8));
+  private static final UUID SECOND = UUID.nameUUIDFromBytes("SubspaceSketchTest/second".getBytes(StandardCharsets.UTF_8));
+
+  @Test
+  public void directionsAreOrthonormal() {
+    final SubspaceSketch sketch = sketch(4);
+    final double[][][] directions = sketch.directions(Arrays.asList(FIRST, SECOND), new DoubleArena());
+    Assertions.assertEquals(4, directions.length);
+    for (int a = 0; a < directions.length; a++) {
+      for (int b = 0; b < directions.length; b++) {
+        Assertions.assertEquals(a == b ? 1 : 0, SubspaceSketch.dot(directions[a], directions[b]), 1e-10, a + "," + b);
+      }
+    }
+  }
+
+  @Test
+  public void directionsReuseArenaBuffers() {
+    // Six updates fold in five pairs of differences, so at most ten of the twelve columns are independent
+    final SubspaceSketch sketch = sketch(12);
+    final DoubleArena arena = new DoubleArena();
+    final double[][][] first = sketch.directions(Arrays.asList(FIRST, SECOND), arena);
+    Assertions.assertTrue(first.length < 12, "Expected dependent columns to be dropped");
+    final long misses = arena.getMisses();
+    final long retained = arena.getRetainedBytes();
+    // Dropped columns are handed back, so at most one set beyond the kept directions stays in the arena
+    Assertions.assertTrue(retained <= 8L * (first.length + 1) * (40 + 9), arena.toString());
+    arena.release();
+    final double[][][] second = sketch.directions(Arrays.asList(FIRST, SECOND), arena);
+    Assertions.assertEquals(misses, arena.getMisses(), arena.toString());
+    Assertions.assertEquals(retained, arena.getRetainedBytes(), arena.toString());
+    Assertions.assertEquals(first.length, second.length);
+    for (int j = 0; j < first.length; j++) {
+      Assertions.assertSame(first[j][0], second[j][0], "Direction " + j);
+      Assertions.assertSame(first[j][1], second[j][1], "Direction " + j);
+    }
+  }
+
+  @Test
+  public void sketchGradientMatchesFiniteDifference() {
+    final Quadratic subject = new Quadratic();
+    final RecursiveSubspace subspace = new RecursiveSubspace();
+    subspace.setSketchRank(2);
+    final Random random = new Random(5);
+    try {
+      double[] coefficients = null;
+      for (int build = 0; build < 4; build++) {
+        final Layer layer = subspace.buildSubspace(subject.addRef(), subject.measure(new TrainingMonitor()),
+            new TrainingMonitor());
+        assert layer != null;
+        try {
+          final Map<String, double[]> gradient = gradient(layer);
+          final double[] weights = gradient.get("weights");
+          // The first build has no sketch directions yet, so the coefficients only keep their array from the third on
+          if (build > 1) {
+            Assertions.assertSame(coefficients, weights, "Coefficients were reallocated");
+            for (int j = 2; j < weights.length; j++) {
+              Assertions.assertEquals(0, weights[j], "Sketch coefficient " + j + " carried over from the last build");
+            }
+          }
+          coefficients = weights;
+          final double[] analytic = gradient.get("gradient");
+          // Past the two per-layer coefficients are the sketch coefficients
+          for (int j = 2; j < weights.length; j++) {
+            final double h = 1e-4;
+            weights[j] = h;
+            final double plus = loss(layer);
+            weights[j] = -h;
+            final double minus = loss(layer);
+            weights[j] = 0;
+            Assertions.assertEquals((plus - minus) / (2 * h), analytic[j], 1e-6 * Math.max(1, Math.abs(analytic[j])),
+                "Sketch coefficient " + j + " of build " + build);
+          }
+          if (build > 0) Assertions.assertEquals(4, weights.length, "Expected two sketch directions");
+          // What a subspace solve would leave behind
+          for (int j = 0; j < weights.length; j++) weights[j] = 0.1 * (j + 1);
+          loss(layer);
+        } finally {
+          layer.freeRef();
+        }
+        subject.move(random);
+      }
+    } finally {
+      subspace.freeRef();
+      subject.freeRef();
+    }
+  }
+
+  private static double loss(@Nonnull Layer layer) {
+    final Result result = layer.eval((Result) null);
+    assert result != null;
+    final TensorList data = result.getData();
+    final double loss = data.get(0).get(0);
+    data.freeRef();
+    result.freeRef();
+    return loss;
+  }
+
+  /**
+   * Evaluates the subspace layer at its current coefficients, and returns the coefficient array itself as "weights"
+   * along with the gradient reported for it.
+   */
+  @Nonnull
+  private static Map<String, double[]> gradient(@Nonnull Layer layer) {
+    final Result result = layer.eval((Result) null);
+    assert result != null;
+    final DeltaSet<UUID> buffer = new DeltaSet<>();
+    result.accumulate(buffer.addRef());
+    result.freeRef();
+    final RefMap<UUID, Delta<UUID>> map = buffer.getMap();
+    buffer.freeRef();
+    Assertions.assertEquals(1, map.size());
+    final Map<String, double[]> gradient = new HashMap<>();
+    map.forEach((id, delta) -> {
+      gradient.put("weights", delta.target);
+      gradient.put("gradient", delta.getDelta().clone());
+      delta.freeRef();
+    });
+    map.freeRef();
+    return gradient;
+  }
+
+  /**
+   * A sketch of the given rank after six random updates over both layers.
+   */
+  @Nonnull
+  private static SubspaceSketch sketch(int rank) {
+    final SubspaceSketch sketch = new SubspaceSketch(rank, 0.9, 1);
+    final Random random = new Random(3);
+    for (int k = 0; k < 6; k++) {
+      final Map<UUID, double[]> weights = new HashMap<>();
+      final Map<UUID, double[]> gradient = new HashMap<>();
+      weights.put(FIRST, gaussian(random, 40));
+      gradient.put(FIRST, gaussian(random, 40));
+      weights.put(SECOND, gaussian(random, 9));
+      gradient.put(SECOND, gaussian(random, 9));
+      sketch.update(weights, gradient);
+    }
+    return sketch;
+  }
+
+  @Nonnull
+  private static double[] gaussian(@Nonnull Random random, int size) {
+    final double[] values = new double[size];
+    for (int i = 0; i < size; i++) values[i] = random.nextGaussian();
+    return values;
+  }
+
+  /**
+   * f(w) = sum of h_i (w_i - 1)^2 plus a coupling term over two layers.
+   */
+  private static final class Quadratic extends TrainableBase {
+    private final double[] first = new double[6];
+    private final double[] second = new double[5];
+
+    private Quadratic() {
+      for (int i = 0; i < first.length; i++) first[i] = Math.sin(i);
+      for (int i = 0; i < second.length; i++) second[i] = Math.cos(i);
+    }
+
+    void move(@Nonnull Random random) {
+      for (int i = 0; i < first.length; i++) first[i] += 0.1 * random.nextGaussian();
+      for (int i = 0; i < second.length; i++) second[i] += 0.1 * random.nextGaussian();
+    }
+
+    @Nullable
+    @Override
+    public Layer getLayer() {
+      return null;
+    }
+
+    @Override
+    public PointSample measure(TrainingMonitor monitor) {
+      double sum = 0;
+      final double[] firstGradient = new double[first.length];
+      final double[] secondGradient = new double[second.length];
+      for (int i = 0; i < first.length; i++) {
+        sum += (i + 1) * (first[i] - 1) * (first[i] - 1);
+        firstGradient[i] = 2 * (i + 1) * (first[i] - 1);
+      }
+      for (int i = 0; i < second.length; i++) {
+        sum += (i + 2) * (second[i] - 1) * (second[i] - 1) + first[i] * second[i];
+        secondGradient[i] = 2 * (i + 2) * (second[i] - 1) + first[i];
+        firstGradient[i] += second[i];
+      }
+      final DeltaSet<UUID> delta = new DeltaSet<>();
+      final Delta<UUID> firstDelta = delta.get(FIRST, first);
+      assert firstDelta != null;
+      firstDelta.addInPlace(firstGradient);
+      firstDelta.freeRef();
+      final Delta<UUID> secondDelta = delta.get(SECOND, second);
+      assert secondDelta != null;
+      secondDelta.addInPlace(secondGradient);
+      secondDelta.freeRef();
+      final StateSet<UUID> state = new StateSet<>(delta.addRef());
+      return new PointSample(delta, state, sum, 0.0, 1);
+    }
+
+    @Override
+    public void _free() {
+      super._free();
+    }
+  }
+}
@@ -0,0 +1,292 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.mindseye.opt.orient;
+
+import com.simiacryptus.mindseye.eval.TrainableBase;
+import com.simiacryptus.mindseye.lang.*;
+import com.simiacryptus.mindseye.opt.DoubleArena;
+import com.simiacryptus.mindseye.opt.TrainingMonitor;
+import com.simiacryptus.mindseye.opt.line.LineSearchCursor;
+import com.simiacryptus.mindseye.opt.line.LineSearchPoint;
+import com.simiacryptus.mindseye.opt.region.MeanVarianceGradient;
+import com.simiacryptus.mindseye.opt.region.SparseTrustRegion;
+import com.simiacryptus.mindseye.opt.region.TrustRegion;
+import com.simiacryptus.ref.lang.RefUtil;
+import com.simiacryptus.ref.wrappers.RefMap;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.function.Supplier;
+
+/**
+ * Drives a TrustRegionCursor directly on a two-block quadratic whose steps leave a box, so both the dense and the
+ * sparse projection paths clip. One block has a dense gradient, the other is non-zero on only a few coordinates.
+ * Checks that projection scratch does not pile up in the arena, that the per-cursor projection cache never changes
+ * what a line search sees, that the sparse path gives what the dense one does even when a layer starts outside the
+ * box, and that a region projecting into arena scratch gives what it does when it allocates.
+ */
+public class TrustRegionStrategyTest {
+  private static final UUID DENSE = UUID.nameUUIDFromBytes("TrustRegionStrategyTest/dense".getBytes(StandardCharsets.UTF_8));
+  private static final UUID SPARSE = UUID.nameUUIDFromBytes("TrustRegionStrategyTest/sparse".getBytes(StandardCharsets.UTF_8));
+  private static final int DENSE_SIZE = 64;
+  private static final int SPARSE_SIZE = 256;
+
+  @Test
+  public void projectionScratchIsReusedAcrossSteps() {
+    final BoxQuadratic subject = new BoxQuadratic(0.5);
+    final TrustRegionStrategy strategy = new RegionStrategy(4, Box::new);
+    final DoubleArena arena = new DoubleArena();
+    final DoubleArena previous = DoubleArena.attach(arena);
+    try {
+      final LineSearchCursor cursor = strategy.orient(subject.addRef(), subject.measure(new TrainingMonitor()),
+          new TrainingMonitor());
+      try {
+        for (int i = 1; i <= 50; i++) {
+          RefUtil.freeRef(cursor.step(0.01 * i, new TrainingMonitor()));
+          RefUtil.freeRef(cursor.position(0.015 * i));
+        }
+      } finally {
+        cursor.freeRef();
+      }
+    } finally {
+      DoubleArena.attach(previous);
+      strategy.freeRef();
+      subject.freeRef();
+    }
+    // One proposed position and one normal for the dense block, one correction for the sparse block
+    final long expected = 8L * (2 * DENSE_SIZE + SPARSE_SIZE);
+    Assertions.assertTrue(0 < arena.getHits(), arena.toString());
+    Assertions.assertEquals(expected, arena.getRetainedBytes(), arena.toString());
+  }
+
+  @Test
+  public void cachedProjectionsMatchUncached() {
+    final double[] alphas = {0.1, 0.3, 0.1, 0.2, 0.3, 0.05, 0.2, 0.1};
+    final List<double[]> cached = trace(4, 0.25, 0.5, alphas);
+    final List<double[]> uncached = trace(0, 0.25, 0.5, alphas);
+    Assertions.assertEquals(uncached.size(), cached.size());
+    for (int i = 0; i < cached.size(); i++) {
+      Assertions.assertArrayEquals(uncached.get(i), cached.get(i), 1e-12, "Call " + i);
+    }
+  }
+
+  @Test
+  public void sparseProjectionMatchesDenseOutsideTheBox() {
+    final double[] alphas = {0.1, 0.3, 0.2, 0.05};
+    // Starting weights reach 1.5, so the dense projection also pulls in coordinates the sparse step never touches
+    final List<double[]> sparse = trace(0, 0.25, 1.5, alphas);
+    final List<double[]> dense = trace(0, 0, 1.5, alphas);
+    Assertions.assertEquals(dense.size(), sparse.size());
+    for (int i = 0; i < sparse.size(); i++) {
+      Assertions.assertArrayEquals(dense.get(i), sparse.get(i), 1e-12, "Call " + i);
+    }
+  }
+
+  @Test
+  public void bufferedProjectionMatchesAllocating() {
+    final double[] alphas = {0.1, 0.3, 0.1, 0.2, 0.05};
+    final DoubleArena arena = new DoubleArena();
+    final DoubleArena previous = DoubleArena.attach(arena);
+    final List<double[]> buffered;
+    try {
+      buffered = trace(new RegionStrategy(0, MeanVarianceGradient::new), 0.5, alphas);
+    } finally {
+      DoubleArena.attach(previous);
+    }
+    final List<double[]> allocating = trace(new RegionStrategy(0, () -> new TrustRegion() {
+      @Override
+      public double[] project(double[] weights, double[] point) {
+        return new MeanVarianceGradient().project(weights, point);
+      }
+    }), 0.5, alphas);
+    Assertions.assertEquals(allocating.size(), buffered.size());
+    for (int i = 0; i < buffered.size(); i++) {
+      Assertions.assertArrayEquals(allocating.get(i), buffered.get(i), 1e-12, "Call " + i);
+    }
+    // The proposed position, the projection and the normal of each block, reused by every call
+    Assertions.assertEquals(8L * 3 * (DENSE_SIZE + SPARSE_SIZE), arena.getRetainedBytes(), arena.toString());
+  }
+
+  /**
+   * Alternates step() and position() on one cursor, each call with the next alpha, and records everything the line
+   * search could observe: the derivative and loss of each step, every returned gradient, and the weights after each
+   * call.
+   */
+  @Nonnull
+  private static List<double[]> trace(int projectionCacheSize, double sparseDensity, double amplitude,
+                                      @Nonnull double[] alphas) {
+    final TrustRegionStrategy strategy = new RegionStrategy(projectionCacheSize, Box::new);
+    strategy.setSparseDensity(sparseDensity);
+    return trace(strategy, amplitude, alphas);
+  }
+
+  @Nonnull
+  private static List<double[]> trace(@Nonnull TrustRegionStrategy strategy, double amplitude,
+                                      @Nonnull double[] alphas) {
+    final BoxQuadratic subject = new BoxQuadratic(amplitude);
+    final List<double[]> trace = new ArrayList<>();
+    final LineSearchCursor cursor = strategy.orient(subject.addRef(), subject.measure(new TrainingMonitor()),
+        new TrainingMonitor());
+    try {
+      for (int i = 0; i < alphas.length; i++) {
+        if (0 == i % 2) {
+          final LineSearchPoint point = cursor.step(alphas[i], new TrainingMonitor());
+          trace.add(new double[]{point.derivative, point.getPointSum()});
+          point.freeRef();
+        } else {
+          final DeltaSet<UUID> position = cursor.position(alphas[i]);
+          final RefMap<UUID, Delta<UUID>> map = position.getMap();
+          position.freeRef();
+          trace.add(values(map.get(DENSE)));
+          trace.add(values(map.get(SPARSE)));
+          map.freeRef();
+        }
+        trace.add(subject.dense.clone());
+        trace.add(subject.sparse.clone());
+      }
+    } finally {
+      cursor.freeRef();
+      strategy.freeRef();
+      subject.freeRef();
+    }
+    return trace;
+  }
+
+  @Nonnull
+  private static double[] values(@Nullable Delta<UUID> delta) {
+    assert delta != null;
+    final double[] values = delta.getDelta();
+    delta.freeRef();
+    assert values != null;
+    return values.clone();
+  }
+
+  /**
+   * f(w) = |w - 3|^2 on the dense block and the first four coordinates of the sparse block, with weights boxed to
+   * [-1, 1] by the region, so every step of a useful size gets clipped.
+   */
+  private static final class BoxQuadratic extends TrainableBase {
+    private final double[] dense = new double[DENSE_SIZE];
+    private final double[] sparse = new double[SPARSE_SIZE];
+
+    private BoxQuadratic(double amplitude) {
+      for (int i = 0; i < dense.length; i++) dense[i] = amplitude * Math.sin(i);
+      for (int i = 0; i < sparse.length; i++) sparse[i] = amplitude * Math.cos(i);
+    }
+
+    @Nullable
+    @Override
+    public Layer getLayer() {
+      return null;
+    }
+
+    @Override
+    public PointSample measure(TrainingMonitor monitor) {
+      double sum = 0;
+      final double[] denseGradient = new double[dense.length];
+      for (int i = 0; i < dense.length; i++) {
+        sum += (dense[i] - 3) * (dense[i] - 3);
+        denseGradient[i] = 2 * (dense[i] - 3);
+      }
+      final double[] sparseGradient = new double[sparse.length];
+      for (int i = 0; i < 4; i++) {
+        sum += (sparse[i] - 3) * (sparse[i] - 3);
+        sparseGradient[i] = 2 * (sparse[i] - 3);
+      }
+      final DeltaSet<UUID> delta = new DeltaSet<>();
+      final Delta<UUID> denseDelta = delta.get(DENSE, dense);
+      assert denseDelta != null;
+      denseDelta.addInPlace(denseGradient);
+      denseDelta.freeRef();
+      final Delta<UUID> sparseDelta = delta.get(SPARSE, sparse);
+      assert sparseDelta != null;
+      sparseDelta.addInPlace(sparseGradient);
+      sparseDelta.freeRef();
+      final StateSet<UUID> state = new StateSet<>(delta.addRef());
+      return new PointSample(delta, state, sum, 0.0, 1);
+    }
+
+    @Override
+    public void _free() {
+      super._free();
+    }
+  }
+
+  private static final class RegionStrategy extends TrustRegionStrategy {
+    @Nonnull
+    private final Supplier<TrustRegion> region;
+
+    private RegionStrategy(int projectionCacheSize, @Nonnull Supplier<TrustRegion> region) {
+      super(new GradientDescent());
+      this.region = region;
+      setProjectionCacheSize(projectionCacheSize);
+    }
+
+    @Override
+    public TrustRegion getRegionPolicy(@Nullable Layer layer) {
+      if (null != layer)
+        layer.freeRef();
+      return region.get();
+    }
+
+    @Override
+    public void _free() {
+      super._free();
+    }
+  }
+
+  private static final class Box implements SparseTrustRegion {
+    @Nonnull
+    @Override
+    public double[] project(final double[] weights, @Nonnull final double[] point) {
+      final double[] projected = new double[point.length];
+      for (int i = 0; i < point.length; i++) {
+        projected[i] = Math.max(-1, Math.min(1, point[i]));
+      }
+      return projected;
+    }
+
+    @Override
+    public boolean contains(@Nonnull double[] weights) {
+      for (double weight : weights) {
+        if (Math.abs(weight) > 1) return false;
+      }
+      return true;
+    }
+
+    @Override
+    public int projectSparse(@Nonnull double[] weights, @Nonnull double[] delta, @Nonnull int[] indices, int count,
+                             @Nonnull double[] correction) {
+      int changed = 0;
+      for (int k = 0; k < count; k++) {
+        final double point = weights[indices[k]] + delta[indices[k]];
+        correction[k] = Math.max(-1, Math.min(1, point)) - point;
+        if (0 != correction[k]) changed++;
+      }
+      return changed;
+    }
+  }
+}
@@ -0,0 +1,137 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.mindseye.opt.parallel;
+
+import com.simiacryptus.mindseye.eval.ArrayTrainable;
+import com.simiacryptus.mindseye.lang.PointSample;
+import com.simiacryptus.mindseye.lang.Tensor;
+import com.simiacryptus.mindseye.layers.java.EntropyLossLayer;
+import com.simiacryptus.mindseye.layers.java.FullyConnectedLayer;
+import com.simiacryptus.mindseye.layers.java.SoftmaxLayer;
+import com.simiacryptus.mindseye.network.PipelineNetwork;
+import com.simiacryptus.mindseye.network.SimpleLossNetwork;
+import com.simiacryptus.mindseye.opt.RoundRobinTrainer;
+import com.simiacryptus.mindseye.opt.TrainingMonitor;
+import com.simiacryptus.mindseye.opt.line.ArmijoWolfeSearch;
+import com.simiacryptus.mindseye.opt.orient.QQN;
+import com.simiacryptus.ref.lang.RefUtil;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Tag;
+import org.junit.jupiter.api.Test;
+
+import javax.annotation.Nonnull;
+import java.util.Random;
+
+/**
+ * Runs DataParallelTrainable with worker processes on loopback and checks it against an in-process ArrayTrainable.
+ * The tests that start workers are tagged Integration and run under the integration profile.
+ */
+public class DataParallelTrainableTest {
+  private static final int INPUTS = 8;
+  private static final int CATEGORIES = 3;
+
+  @Nonnull
+  private static Tensor[][] data(int rows, long seed) {
+    final Random random = new Random(seed);
+    final Tensor[][] data = new Tensor[rows][];
+    for (int row = 0; row < rows; row++) {
+      final int category = random.nextInt(CATEGORIES);
+      final Tensor input = new Tensor(INPUTS);
+      for (int i = 0; i < INPUTS; i++) {
+        input.set(i, random.nextGaussian() + (i % CATEGORIES == category ? 1.0 : 0.0));
+      }
+      final Tensor label = new Tensor(CATEGORIES);
+      label.set(category, 1);
+      data[row] = new Tensor[]{input, label};
+    }
+    return data;
+  }
+
+  /**
+   * Model and loss in one two-input PipelineNetwork, since the workers rebuild it from JSON.
+   */
+  @Nonnull
+  private static PipelineNetwork network(long seed) {
+    final Random random = new Random(seed);
+    final PipelineNetwork network = new PipelineNetwork(2);
+    final FullyConnectedLayer layer = new FullyConnectedLayer(new int[]{INPUTS}, new int[]{CATEGORIES});
+    layer.set(() -> 0.1 * random.nextGaussian());
+    RefUtil.freeRef(network.add(new EntropyLossLayer(),
+        network.add(new SoftmaxLayer(), network.add(layer, network.getInput(0))), network.getInput(1)));
+    return network;
+  }
+
+  @Test
+  @Tag("Integration")
+  public void matchesInProcess() {
+    final Tensor[][] data = data(210, 1);
+    final PipelineNetwork network = network(2);
+    // Each of the three workers measures its 70-row shard as one batch, so the reference batches the same rows
+    final ArrayTrainable local = new ArrayTrainable(RefUtil.addRef(data), network.addRef(), 70);
+    final DataParallelTrainable parallel = new DataParallelTrainable(data, network, 3);
+    try {
+      final PointSample expected = local.measure(new TrainingMonitor());
+      final PointSample actual = parallel.measure(new TrainingMonitor());
+      Assertions.assertEquals(expected.count, actual.count);
+      Assertions.assertEquals(expected.sum, actual.sum, 1e-9 * Math.abs(expected.sum));
+      final double expectedMagSq = expected.delta.dot(expected.delta.addRef());
+      final double actualMagSq = actual.delta.dot(actual.delta.addRef());
+      final double cross = expected.delta.dot(actual.delta.addRef());
+      Assertions.assertEquals(0.0, expectedMagSq + actualMagSq - 2 * cross, 1e-9 * expectedMagSq);
+      expected.freeRef();
+      actual.freeRef();
+    } finally {
+      local.freeRef();
+      parallel.freeRef();
+    }
+  }
+
+  @Test
+  public void rejectsNetworkWorkersCannotRebuild() {
+    final Tensor[][] data = data(10, 5);
+    final SimpleLossNetwork network = new SimpleLossNetwork(network(6), new EntropyLossLayer());
+    try {
+      Assertions.assertThrows(IllegalArgumentException.class, () -> new DataParallelTrainable(data, network, 2));
+    } finally {
+      network.freeRef();
+      RefUtil.freeRef(data);
+    }
+  }
+
+  @Test
+  @Tag("Integration")
+  public void trainsWithQQN() {
+    final DataParallelTrainable parallel = new DataParallelTrainable(data(500, 3), network(4), 2);
+    final PointSample initial = parallel.measure(new TrainingMonitor());
+    final double initialLoss = initial.sum;
+    initial.freeRef();
+    final RoundRobinTrainer trainer = new RoundRobinTrainer(parallel);
+    trainer.setOrientations(new QQN());
+    trainer.setLineSearchFactory(directionType -> new ArmijoWolfeSearch());
+    trainer.setMaxIterations(20);
+    trainer.setMonitor(new TrainingMonitor());
+    try {
+      final double finalLoss = trainer.run();
+      Assertions.assertTrue(finalLoss < initialLoss, finalLoss + " >= " + initialLoss);
+    } finally {
+      trainer.freeRef();
+    }
+  }
+}
@@ -0,0 +1,219 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.mindseye.opt.region;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import javax.annotation.Nonnull;
+import java.util.Random;
+
+/**
+ * Checks the projection against the scales it should have derived from the history: the result lies inside
+ * {@code sum((d_i / s_i)^2) <= n * radius^2}, points already inside are returned as they are, and points outside land
+ * on the nearest point of the ellipsoid, which is checked both through the KKT conditions and against a brute-force
+ * search over the boundary. One instance reused across calls, as a layer's region is, must project as a fresh one does.
+ */
+public class EllipsoidTrustRegionTest {
+  private static final double DECAY = 0.9;
+  private static final double RADIUS = 2.0;
+  private static final double MIN_SCALE = 1e-3;
+
+  @Test
+  public void projectionIsFeasible() {
+    final Random random = new Random(1);
+    for (int trial = 0; trial < 20; trial++) {
+      final double[][] history = history(random, 50, 5);
+      final double[] point = outside(random, history, 10 + trial);
+      final double[] projected = region().project(history, point);
+      final double[] scaleSq = scaleSq(history);
+      Assertions.assertTrue(norm(history[0], projected, scaleSq) <= bound(50) * (1 + 1e-9),
+          "Projection of trial " + trial + " is outside the region");
+    }
+  }
+
+  @Test
+  public void insidePointIsUnchanged() {
+    final Random random = new Random(2);
+    final double[][] history = history(random, 50, 5);
+    final double[] scaleSq = scaleSq(history);
+    final double[] point = new double[50];
+    for (int i = 0; i < point.length; i++) {
+      point[i] = history[0][i] + 0.5 * RADIUS * Math.sqrt(scaleSq[i]) * (random.nextBoolean() ? 1 : -1);
+    }
+    Assertions.assertTrue(norm(history[0], point, scaleSq) < bound(50));
+    final double[] copy = point.clone();
+    final double[] projected = region().project(history, point);
+    Assertions.assertArrayEquals(copy, projected);
+  }
+
+  @Test
+  public void projectionSatisfiesKkt() {
+    final Random random = new Random(3);
+    for (int trial = 0; trial < 20; trial++) {
+      final double[][] history = history(random, 12, 4);
+      final double[] point = outside(random, history, 3 + trial);
+      final double[] projected = region().setTolerance(1e-12).project(history, point);
+      final double[] weights = history[0];
+      final double[] scaleSq = scaleSq(history);
+      // Active constraint
+      Assertions.assertEquals(bound(12), norm(weights, projected, scaleSq), 1e-8 * bound(12));
+      // Stationarity: x - p = lambda * (p - w) / s^2 with one lambda >= 0 for every coordinate
+      double numerator = 0;
+      double denominator = 0;
+      for (int i = 0; i < point.length; i++) {
+        final double g = (projected[i] - weights[i]) / scaleSq[i];
+        numerator += (point[i] - projected[i]) * g;
+        denominator += g * g;
+      }
+      final double lambda = numerator / denominator;
+      Assertions.assertTrue(lambda > 0, "Multiplier of trial " + trial + " is not positive");
+      for (int i = 0; i < point.length; i++) {
+        final double g = (projected[i] - weights[i]) / scaleSq[i];
+        Assertions.assertEquals(point[i] - projected[i], lambda * g,
+            1e-8 * Math.max(1, Math.abs(point[i] - weights[i])), "Stationarity of trial " + trial + " at " + i);
+      }
+    }
+  }
+
+  @Test
+  public void projectionIsNearestPointInTwoDimensions() {
+    final Random random = new Random(4);
+    for (int trial = 0; trial < 20; trial++) {
+      final double[][] history = history(random, 2, 3);
+      final double[] point = outside(random, history, 2 + trial);
+      final double[] projected = region().project(history, point);
+      final double[] weights = history[0];
+      final double[] scaleSq = scaleSq(history);
+      final double r = Math.sqrt(bound(2));
+      double best = Double.POSITIVE_INFINITY;
+      final int steps = 1 << 18;
+      for (int k = 0; k < steps; k++) {
+        final double theta = 2 * Math.PI * k / steps;
+        final double[] candidate = {
+            weights[0] + r * Math.sqrt(scaleSq[0]) * Math.cos(theta),
+            weights[1] + r * Math.sqrt(scaleSq[1]) * Math.sin(theta)
+        };
+        best = Math.min(best, distance(point, candidate));
+      }
+      final double actual = distance(point, projected);
+      Assertions.assertEquals(best, actual, 1e-5 * best, "Trial " + trial);
+    }
+  }
+
+  @Test
+  public void reusedInstanceMatchesFresh() {
+    final Random random = new Random(5);
+    final EllipsoidTrustRegion reused = region();
+    for (int n : new int[]{30, 30, 7}) {
+      double[][] history = history(random, n, 3);
+      for (int step = 0; step < 5; step++) {
+        final double[] point = outside(random, history, 3 + step);
+        final double[] expected = region().project(history, point);
+        final double[] actual = reused.project(history, point);
+        for (int i = 0; i < n; i++) {
+          Assertions.assertEquals(expected[i], actual[i], 1e-12 * Math.max(1, Math.abs(expected[i])),
+              "Size " + n + ", step " + step + " at " + i);
+        }
+        // Advance by one snapshot, the way the strategy's history does
+        final double[][] next = new double[history.length + 1][];
+        next[0] = expected;
+        System.arraycopy(history, 0, next, 1, history.length);
+        history = next;
+      }
+    }
+  }
+
+  @Nonnull
+  private static EllipsoidTrustRegion region() {
+    return new EllipsoidTrustRegion().setDecay(DECAY).setRadius(RADIUS).setMinScale(MIN_SCALE);
+  }
+
+  private static double bound(int n) {
+    return n * RADIUS * RADIUS;
+  }
+
+  /**
+   * A random walk whose step size differs by up to two orders of magnitude between coordinates, newest first.
+   */
+  @Nonnull
+  private static double[][] history(@Nonnull Random random, int n, int length) {
+    final double[] stepSize = new double[n];
+    for (int i = 0; i < n; i++) stepSize[i] = Math.pow(10, -2 * random.nextDouble());
+    final double[][] history = new double[length][n];
+    for (int i = 0; i < n; i++) history[length - 1][i] = random.nextGaussian();
+    for (int k = length - 2; k >= 0; k--) {
+      for (int i = 0; i < n; i++) history[k][i] = history[k + 1][i] + stepSize[i] * random.nextGaussian();
+    }
+    return history;
+  }
+
+  /**
+   * A point in a random direction from the current weights, at {@code factor} times the region's extent.
+   */
+  @Nonnull
+  private static double[] outside(@Nonnull Random random, @Nonnull double[][] history, double factor) {
+    final double[] scaleSq = scaleSq(history);
+    final int n = scaleSq.length;
+    final double[] point = new double[n];
+    for (int i = 0; i < n; i++) {
+      point[i] = history[0][i] + factor * RADIUS * Math.sqrt(scaleSq[i]) * random.nextGaussian();
+    }
+    if (norm(history[0], point, scaleSq) <= bound(n)) return outside(random, history, factor);
+    return point;
+  }
+
+  /**
+   * The squared scales the region should derive: an exponential moving average of squared steps from the oldest
+   * pair to the newest, floored at {@code minScale^2} times their mean.
+   */
+  @Nonnull
+  private static double[] scaleSq(@Nonnull double[][] history) {
+    final int n = history[0].length;
+    final double[] meanSquare = new double[n];
+    for (int k = history.length - 1; k > 0; k--) {
+      for (int i = 0; i < n; i++) {
+        final double d = history[k - 1][i] - history[k][i];
+        meanSquare[i] = k == history.length - 1 ? d * d : DECAY * meanSquare[i] + (1 - DECAY) * d * d;
+      }
+    }
+    double mean = 0;
+    for (double value : meanSquare) mean += value;
+    mean /= n;
+    final double floor = MIN_SCALE * MIN_SCALE * mean;
+    for (int i = 0; i < n; i++) meanSquare[i] = Math.max(meanSquare[i], floor);
+    return meanSquare;
+  }
+
+  private static double norm(@Nonnull double[] weights, @Nonnull double[] point, @Nonnull double[] scaleSq) {
+    double sum = 0;
+    for (int i = 0; i < point.length; i++) {
+      final double d = point[i] - weights[i];
+      sum += d * d / scaleSq[i];
+    }
+    return sum;
+  }
+
+  private static double distance(@Nonnull double[] a, @Nonnull double[] b) {
+    double sum = 0;
+    for (int i = 0; i < a.length; i++) sum += (a[i] - b[i]) * (a[i] - b[i]);
+    return Math.sqrt(sum);
+  }
+}
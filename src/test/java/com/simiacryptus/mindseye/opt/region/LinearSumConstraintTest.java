@@ -52,9 +52,9 @@ public class LinearSumConstraintTest extends MnistTestBase {
         .wrapInterface((UncheckedSupplier<Double>) () -> {
           @Nonnull final SimpleLossNetwork supervisedNetwork = new SimpleLossNetwork(network.addRef(),
               new EntropyLossLayer());
-          @Nonnull final Trainable trainable = new SampledArrayTrainable(
+          @Nonnull final Trainable trainable = counting(new SampledArrayTrainable(
               RefUtil.addRef(trainingData),
-              supervisedNetwork, 10000);
+              supervisedNetwork, 10000));
           @Nonnull final TrustRegionStrategy trustRegionStrategy = new TrustRegionStrategy() {
             @Nonnull
             @Override
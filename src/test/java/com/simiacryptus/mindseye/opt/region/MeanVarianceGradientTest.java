@@ -0,0 +1,159 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.mindseye.opt.region;
+
+import com.simiacryptus.util.ArrayUtil;
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import javax.annotation.Nonnull;
+import java.util.Random;
+
+/**
+ * Compares the fused ABSOLUTE projection with the original five-pass implementation, on both sides of the parallel
+ * threshold and with the output buffer aliasing either input, and the single-pass STANDARD projection with a two-pass
+ * mean and variance, including Welford partials of uneven size merged across blocks. The two sides sum in different
+ * orders, so they agree to rounding rather than bit for bit.
+ */
+public class MeanVarianceGradientTest {
+  private static final int[] SIZES = {1, 1000, 65535, 65536, 200003};
+  private static final double TOLERANCE = 1e-12;
+
+  @Test
+  public void absoluteMatchesOriginal() {
+    final Random random = new Random(1);
+    for (int size : SIZES) {
+      final double[] weights = values(random, size, 0.3, 2);
+      final double[] point = values(random, size, -1, 0.5);
+      final double[] expected = original(weights, point);
+      assertClose(expected, new MeanVarianceGradient().project(weights, point), "size " + size);
+    }
+  }
+
+  @Test
+  public void absoluteMatchesOriginalWhenOutAliasesWeights() {
+    final Random random = new Random(2);
+    for (int size : SIZES) {
+      final double[] weights = values(random, size, 0.3, 2);
+      final double[] point = values(random, size, -1, 0.5);
+      final double[] expected = original(weights, point);
+      final double[] result = new MeanVarianceGradient().project(weights, point, weights);
+      Assertions.assertSame(weights, result);
+      assertClose(expected, result, "size " + size);
+    }
+  }
+
+  @Test
+  public void absoluteMatchesOriginalWhenOutAliasesPoint() {
+    final Random random = new Random(3);
+    for (int size : SIZES) {
+      final double[] weights = values(random, size, 0.3, 2);
+      final double[] point = values(random, size, -1, 0.5);
+      final double[] expected = original(weights, point);
+      final double[] result = new MeanVarianceGradient().project(weights, point, point);
+      Assertions.assertSame(point, result);
+      assertClose(expected, result, "size " + size);
+    }
+  }
+
+  @Test
+  public void standardMatchesTwoPass() {
+    final Random random = new Random(4);
+    for (int size : SIZES) {
+      final double[] weights = values(random, size, 0.3, 2);
+      final double[] point = values(random, size, -1, 0.5);
+      final MeanVarianceGradient region = new MeanVarianceGradient().setDispersion(MeanVarianceGradient.Dispersion.STANDARD);
+      assertClose(twoPass(weights, point), region.project(weights, point), "size " + size);
+    }
+  }
+
+  @Test
+  public void standardMergesUnevenBlocks() {
+    final Random random = new Random(5);
+    // With the threshold at 1 every size is split into blocks of 2^14, so these end in a partial block of 1, 7 and
+    // 2^14 - 1 values; a large offset against a small spread is where a one-pass sum of squares would lose digits
+    for (int size : new int[]{(1 << 14) + 1, 2 * (1 << 14) + 7, 3 * (1 << 14) - 1}) {
+      final double[] weights = values(random, size, 1e4, 1e-2);
+      final double[] point = values(random, size, -3e3, 5e-3);
+      final MeanVarianceGradient region = new MeanVarianceGradient()
+          .setDispersion(MeanVarianceGradient.Dispersion.STANDARD).setParallelThreshold(1);
+      assertClose(twoPass(weights, point), region.project(weights, point), "size " + size);
+    }
+  }
+
+  /**
+   * The STANDARD projection from a plain two-pass mean and population variance.
+   */
+  @Nonnull
+  private static double[] twoPass(@Nonnull final double[] weights, @Nonnull final double[] point) {
+    final int n = weights.length;
+    double sumWeight = 0;
+    double sumPoint = 0;
+    for (int i = 0; i < n; i++) {
+      sumWeight += weights[i];
+      sumPoint += point[i];
+    }
+    final double meanWeight = sumWeight / n;
+    final double meanPoint = sumPoint / n;
+    double varWeight = 0;
+    double varPoint = 0;
+    for (int i = 0; i < n; i++) {
+      varWeight += (weights[i] - meanWeight) * (weights[i] - meanWeight);
+      varPoint += (point[i] - meanPoint) * (point[i] - meanPoint);
+    }
+    final double scale = Math.sqrt(varPoint / n) / Math.sqrt(varWeight / n);
+    final double[] result = new double[n];
+    for (int i = 0; i < n; i++) result[i] = (weights[i] - meanWeight) * scale + meanPoint;
+    return result;
+  }
+
+  /**
+   * MeanVarianceGradient.project as it was before the statistics passes were fused.
+   */
+  @Nonnull
+  private static double[] original(@Nonnull final double[] weights, @Nonnull final double[] point) {
+    final double meanWeight = ArrayUtil.mean(weights);
+    final double meanPoint = ArrayUtil.mean(point);
+    final double varWeights = ArrayUtil.mean(ArrayUtil.op(weights, x -> Math.abs(x - meanWeight)));
+    final double varPoint = ArrayUtil.mean(ArrayUtil.op(point, x -> Math.abs(x - meanPoint)));
+    return ArrayUtil.op(weights, v -> {
+      return (v - meanWeight) * (varPoint / varWeights) + meanPoint;
+    });
+  }
+
+  private static void assertClose(@Nonnull double[] expected, @Nonnull double[] actual, @Nonnull String message) {
+    Assertions.assertEquals(expected.length, actual.length, message);
+    for (int i = 0; i < expected.length; i++) {
+      // NaN for a single element, where both deviations are zero
+      if (Double.isNaN(expected[i])) {
+        Assertions.assertTrue(Double.isNaN(actual[i]), message + " at " + i);
+      } else {
+        Assertions.assertEquals(expected[i], actual[i], TOLERANCE * Math.max(1, Math.abs(expected[i])), message + " at " + i);
+      }
+    }
+  }
+
+  @Nonnull
+  private static double[] values(@Nonnull Random random, int size, double mean, double spread) {
+    final double[] values = new double[size];
+    for (int i = 0; i < size; i++) values[i] = mean + spread * random.nextGaussian();
+    return values;
+  }
+}
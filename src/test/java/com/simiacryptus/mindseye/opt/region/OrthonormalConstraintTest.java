@@ -0,0 +1,130 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.mindseye.opt.region;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import javax.annotation.Nonnull;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Projects 16 rows of 64 weights, with row norms between 1 and 4, through both modes. Gram-Schmidt gives some
+ * orthonormal basis of the row space; Newton-Schulz has to give the nearest one, the polar factor Q of the rows A,
+ * which is the orthonormal Q with the same row space for which AQ' is symmetric positive definite.
+ */
+public class OrthonormalConstraintTest {
+  private static final int ROWS = 16;
+  private static final int COLUMNS = 64;
+
+  @Test
+  public void coldStartGivesPolarFactor() {
+    final double[] point = rows(new Random(1));
+    assertPolarFactor(point, project(newtonSchulz(), point));
+  }
+
+  @Test
+  public void warmStartGivesPolarFactor() {
+    final Random random = new Random(2);
+    final double[] first = rows(random);
+    final OrthonormalConstraint constraint = newtonSchulz();
+    project(constraint, first);
+    final double[] second = first.clone();
+    for (int i = 0; i < second.length; i++) second[i] += 0.005 * random.nextGaussian();
+    final double[] warm = project(constraint, second);
+    assertPolarFactor(second, warm);
+    Assertions.assertArrayEquals(project(newtonSchulz(), second), warm, 1e-6);
+  }
+
+  private static void assertPolarFactor(@Nonnull double[] point, @Nonnull double[] projected) {
+    final OrthonormalConstraint gramSchmidt = new OrthonormalConstraint(indexMap());
+    final List<double[]> a = gramSchmidt.decompose(point);
+    final List<double[]> q = gramSchmidt.decompose(projected);
+    final List<double[]> basis = gramSchmidt.decompose(project(gramSchmidt, point));
+    for (int i = 0; i < ROWS; i++) {
+      for (int j = 0; j < ROWS; j++) {
+        Assertions.assertEquals(i == j ? 1 : 0, OrthonormalConstraint.dot(q.get(i), q.get(j)), 1e-6, "QQ' " + i + "," + j);
+      }
+    }
+    // Same row space: each row of Q lies in the span of the Gram-Schmidt basis
+    for (int i = 0; i < ROWS; i++) {
+      double inSpan = 0;
+      for (int j = 0; j < ROWS; j++) {
+        final double c = OrthonormalConstraint.dot(q.get(i), basis.get(j));
+        inSpan += c * c;
+      }
+      Assertions.assertEquals(1, inSpan, 1e-6, "Row " + i + " left the row space");
+    }
+    final double[][] aq = new double[ROWS][ROWS];
+    for (int i = 0; i < ROWS; i++) {
+      for (int j = 0; j < ROWS; j++) {
+        aq[i][j] = OrthonormalConstraint.dot(a.get(i), q.get(j));
+      }
+    }
+    for (int i = 0; i < ROWS; i++) {
+      Assertions.assertTrue(aq[i][i] > 0, "AQ' has a non-positive diagonal at " + i);
+      for (int j = 0; j < i; j++) {
+        Assertions.assertEquals(aq[i][j], aq[j][i], 1e-6, "AQ' is not symmetric at " + i + "," + j);
+      }
+    }
+    Assertions.assertTrue(distance(point, projected) <= distance(point, project(gramSchmidt, point)),
+        "Gram-Schmidt found a closer orthonormal set");
+  }
+
+  @Nonnull
+  private static OrthonormalConstraint newtonSchulz() {
+    return new OrthonormalConstraint(indexMap()).setMode(OrthonormalConstraint.Mode.NEWTON_SCHULZ);
+  }
+
+  @Nonnull
+  private static double[] project(@Nonnull OrthonormalConstraint constraint, @Nonnull double[] point) {
+    return constraint.project(new double[point.length], point).clone();
+  }
+
+  private static double distance(@Nonnull double[] a, @Nonnull double[] b) {
+    double sum = 0;
+    for (int i = 0; i < a.length; i++) sum += (a[i] - b[i]) * (a[i] - b[i]);
+    return Math.sqrt(sum);
+  }
+
+  @Nonnull
+  private static double[] rows(@Nonnull Random random) {
+    final double[] point = new double[ROWS * COLUMNS];
+    for (int i = 0; i < ROWS; i++) {
+      final double norm = 1 + 3.0 * i / (ROWS - 1);
+      for (int m = 0; m < COLUMNS; m++) {
+        point[i * COLUMNS + m] = norm * random.nextGaussian() / Math.sqrt(COLUMNS);
+      }
+    }
+    return point;
+  }
+
+  @Nonnull
+  private static int[][] indexMap() {
+    final int[][] indexMap = new int[ROWS][COLUMNS];
+    for (int i = 0; i < ROWS; i++) {
+      for (int m = 0; m < COLUMNS; m++) {
+        indexMap[i][m] = i * COLUMNS + m;
+      }
+    }
+    return indexMap;
+  }
+}
@@ -0,0 +1,101 @@
+/*
+ * Copyright (c) 2019 by Andrew Charneski.
+ *
+ * The author licenses this file to you under the
+ * Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance
+ * with the License.  You may obtain a copy
+ * of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.simiacryptus.mindseye.opt.region;
+
+import org.junit.jupiter.api.Assertions;
+import org.junit.jupiter.api.Test;
+
+import javax.annotation.Nonnull;
+import java.util.Random;
+
+/**
+ * Applies the corrections projectSparse writes for a sparse step and compares the result, on every coordinate, with
+ * what project gives for the same step. The sparse path is only taken for weights the region contains, so the weights
+ * here start inside it; weights outside it must be reported as such.
+ */
+public class SparseTrustRegionTest {
+  private static final int SIZE = 500;
+  private static final int TOUCHED = 40;
+
+  @Test
+  public void rangeConstraintMatchesDense() {
+    final Random random = new Random(1);
+    final RangeConstraint region = new RangeConstraint(-1, 1);
+    for (int trial = 0; trial < 20; trial++) {
+      final double[] weights = new double[SIZE];
+      for (int i = 0; i < SIZE; i++) weights[i] = 2 * random.nextDouble() - 1;
+      // Leave a few exactly on the boundary
+      weights[random.nextInt(SIZE)] = 1;
+      weights[random.nextInt(SIZE)] = -1;
+      assertSparseMatchesDense(region, weights, random, "Trial " + trial);
+    }
+  }
+
+  @Test
+  public void singleOrthantMatchesDense() {
+    final Random random = new Random(2);
+    final SingleOrthant region = new SingleOrthant();
+    for (int trial = 0; trial < 20; trial++) {
+      final double[] weights = new double[SIZE];
+      for (int i = 0; i < SIZE; i++) weights[i] = random.nextGaussian();
+      // Zero and sub-tolerance weights take their own branch of sign()
+      for (int k = 0; k < 10; k++) weights[random.nextInt(SIZE)] = 0;
+      for (int k = 0; k < 10; k++) weights[random.nextInt(SIZE)] = 1e-25 * random.nextGaussian();
+      assertSparseMatchesDense(region, weights, random, "Trial " + trial);
+    }
+  }
+
+  @Test
+  public void rangeConstraintRejectsOutsideWeights() {
+    final RangeConstraint region = new RangeConstraint(-1, 1);
+    Assertions.assertTrue(region.contains(new double[]{-1, 0, 1}));
+    Assertions.assertFalse(region.contains(new double[]{0, 1.5, 0}));
+    Assertions.assertFalse(region.contains(new double[]{-1.5}));
+    Assertions.assertFalse(region.contains(new double[]{Double.NaN}));
+  }
+
+  private static void assertSparseMatchesDense(@Nonnull SparseTrustRegion region, @Nonnull double[] weights,
+                                               @Nonnull Random random, @Nonnull String message) {
+    Assertions.assertTrue(region.contains(weights), message);
+    final double[] delta = new double[SIZE];
+    final int[] indices = new int[TOUCHED];
+    int count = 0;
+    for (int i = 0; i < SIZE && count < TOUCHED; i++) {
+      if (random.nextInt(SIZE) < 2 * TOUCHED) {
+        delta[i] = 2 * random.nextGaussian();
+        indices[count++] = i;
+      }
+    }
+    final double[] point = new double[SIZE];
+    for (int i = 0; i < SIZE; i++) point[i] = weights[i] + delta[i];
+    final double[] expected = region.project(weights, point);
+    final double[] correction = new double[SIZE];
+    final int changed = region.projectSparse(weights, delta, indices, count, correction);
+    final double[] actual = point.clone();
+    int nonZero = 0;
+    for (int k = 0; k < count; k++) {
+      actual[indices[k]] += correction[k];
+      if (0 != correction[k]) nonZero++;
+    }
+    Assertions.assertEquals(nonZero, changed, message);
+    Assertions.assertTrue(0 < changed, message + ": the step was never projected");
+    Assertions.assertArrayEquals(expected, actual, 0, message);
+  }
+}
@@ -58,8 +58,8 @@ public class L2NormalizationTest extends MnistTestBase {
           @Nonnull final SimpleLossNetwork supervisedNetwork = new SimpleLossNetwork(network.addRef(),
               new EntropyLossLayer());
           @Nonnull final Trainable trainable = new L12Normalizer(
-              new SampledArrayTrainable(RefUtil.addRef(trainingData),
-                  supervisedNetwork, 1000)) {
+              counting(new SampledArrayTrainable(RefUtil.addRef(trainingData),
+                  supervisedNetwork, 1000))) {
             @Override
             public Layer getLayer() {
               assert inner != null;
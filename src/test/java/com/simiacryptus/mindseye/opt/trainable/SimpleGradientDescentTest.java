@@ -63,8 +63,8 @@ public class SimpleGradientDescentTest extends MnistTestBase {
               Arrays.stream(RefUtil.addRef(trainingData)).collect(Collectors.toList()));
           Collections.shuffle(trainingList);
           @Nonnull final Tensor[][] randomSelection = trainingList.subList(0, 10000).toArray(new Tensor[][]{});
-          @Nonnull final Trainable trainable = new ArrayTrainable(RefUtil.addRef(randomSelection),
-              supervisedNetwork);
+          @Nonnull final Trainable trainable = counting(new ArrayTrainable(RefUtil.addRef(randomSelection),
+              supervisedNetwork));
           RefUtil.freeRef(randomSelection);
           IterativeTrainer temp_40_0002 = new IterativeTrainer(
               trainable);
@@ -56,9 +56,9 @@ public class SimpleStochasticGradientDescentTest extends MnistTestBase {
         .wrapInterface((UncheckedSupplier<Double>) () -> {
           @Nonnull final SimpleLossNetwork supervisedNetwork = new SimpleLossNetwork(network.addRef(),
               new EntropyLossLayer());
-          @Nonnull final Trainable trainable = new SampledArrayTrainable(
+          @Nonnull final Trainable trainable = counting(new SampledArrayTrainable(
               RefUtil.addRef(trainingData),
-              supervisedNetwork, 10000);
+              supervisedNetwork, 10000));
           IterativeTrainer temp_36_0002 = new IterativeTrainer(
               trainable);
           temp_36_0002.setMonitor(monitor);